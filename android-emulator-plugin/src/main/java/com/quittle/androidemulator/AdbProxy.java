@@ -5,9 +5,15 @@ import org.gradle.api.GradleException;
 import org.gradle.api.Project;
 import org.gradle.process.ExecResult;
 
+import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * Provides a simplified abstraction of running ADB commands.
@@ -15,10 +21,12 @@ import java.util.Arrays;
 public class AdbProxy {
     private final Project project;
     private final EmulatorConfiguration emulatorConfiguration;
+    private final AdbServer adbServer;
 
-    public AdbProxy(final Project project, final EmulatorConfiguration emulatorConfiguration) {
+    public AdbProxy(final Project project, final EmulatorConfiguration emulatorConfiguration, final AdbServer adbServer) {
         this.project = project;
         this.emulatorConfiguration = emulatorConfiguration;
+        this.adbServer = adbServer;
     }
 
     /**
@@ -28,6 +36,8 @@ public class AdbProxy {
      * @throws GradleException if the ADB command exits with a non-zero exit code.
      */
     public String[] execute(String... arguments) throws GradleException {
+        adbServer.awaitStarted();
+
         final ByteArrayOutputStream stdout = new ByteArrayOutputStream();
         final ExecResult result = project.exec(execSpec -> {
             execSpec.setExecutable(emulatorConfiguration.getAdb());
@@ -53,4 +63,84 @@ public class AdbProxy {
         }
         return lines;
     }
+
+    /**
+     * Invokes {@code ADB} with the provided arguments, passing each line of its output to the consumer as soon as it
+     * is written rather than once ADB exits. Unlike {@link #execute}, this is safe to call from several threads at
+     * once.
+     * @param lineConsumer Receives each line of standard output, with any trailing carriage return removed. The
+     *                     standard error is discarded.
+     * @param arguments The arguments to pass to ADB.
+     * @throws GradleException if ADB could not be run or exits with a non-zero exit code.
+     */
+    public void stream(final Consumer<String> lineConsumer, final String... arguments) throws GradleException {
+        final Process process = start(arguments);
+
+        final int exitCode;
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line = reader.readLine();
+            while (line != null) {
+                lineConsumer.accept(line.endsWith("\r") ? line.substring(0, line.length() - 1) : line);
+                line = reader.readLine();
+            }
+            exitCode = process.waitFor();
+        } catch (final IOException e) {
+            throw new GradleException("Unable to read ADB output", e);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GradleException("Interrupted while running ADB", e);
+        } finally {
+            // Only still running if reading its output failed
+            process.destroy();
+        }
+        if (exitCode != 0) {
+            throw new GradleException("ADB exited with return code " + exitCode + " running " + String.join(" ", arguments));
+        }
+    }
+
+    /**
+     * Starts {@code ADB} with the provided arguments without waiting for it to exit, for commands that run until
+     * stopped.
+     * @param arguments The arguments to pass to ADB.
+     * @return The ADB process, whose standard output must be consumed. The standard error is discarded.
+     * @throws GradleException if ADB could not be run.
+     */
+    public Process start(final String... arguments) throws GradleException {
+        adbServer.awaitStarted();
+
+        final List<String> command = new ArrayList<>();
+        command.add(emulatorConfiguration.getAdb().getAbsolutePath());
+        command.addAll(Arrays.asList(arguments));
+        final ProcessBuilder pb = new ProcessBuilder(command);
+        pb.environment().putAll(emulatorConfiguration.getEnvironmentVariableMap());
+        pb.redirectError(ProcessBuilder.Redirect.DISCARD);
+
+        try {
+            return pb.start();
+        } catch (final IOException e) {
+            throw new GradleException("Unable to run ADB", e);
+        }
+    }
+
+    /**
+     * Connects to the file sync service of the emulator through the ADB server, which is much faster than running
+     * {@code adb push} for each file.
+     * @return The connected client, which must be closed.
+     * @throws IOException if unable to connect to the emulator.
+     */
+    public AdbSyncClient openSync() throws IOException {
+        adbServer.awaitStarted();
+
+        final Integer adbServerPort = emulatorConfiguration.getAdbServerPort();
+        final int port;
+        if (adbServerPort != null) {
+            port = adbServerPort;
+        } else {
+            // The same environment variable ADB itself uses to find the server
+            final String environmentPort = System.getenv("ANDROID_ADB_SERVER_PORT");
+            port = environmentPort != null ? Integer.parseInt(environmentPort) : AdbSyncClient.DEFAULT_ADB_SERVER_PORT;
+        }
+        return new AdbSyncClient(port, emulatorConfiguration.getEmulatorSerial());
+    }
 }
@@ -0,0 +1,156 @@
+package com.quittle.androidemulator;
+
+import org.gradle.api.GradleException;
+import org.gradle.api.logging.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Manages an ADB server owned by the build, listening on its own port rather than the shared default of 5037. This
+ * prevents builds running concurrently on the same host from interfering with each other when one of them restarts or
+ * wedges the server. When the plugin is not configured to isolate the ADB server, all operations are no-ops.
+ */
+public class AdbServer {
+    private static final long SERVER_START_TIMEOUT_SEC = 60;
+    private static final long SERVER_KILL_TIMEOUT_SEC = 10;
+
+    private final File adb;
+    private final Integer port;
+    private final Map<String, String> environment;
+    private final Logger logger;
+    private final AtomicReference<Process> startProcess = new AtomicReference<>();
+    // Kills the server if the build is aborted before stopping it. Removed once stopped so hooks don't pile up in the
+    // long-lived daemon as servers are started and stopped.
+    private final AtomicReference<Thread> shutdownHook = new AtomicReference<>();
+
+    public AdbServer(final EmulatorConfiguration emulatorConfiguration, final Logger logger) {
+        this(emulatorConfiguration.getAdb(), emulatorConfiguration.getAdbServerPort(),
+                emulatorConfiguration.getEnvironmentVariableMap(), logger);
+    }
+
+    /**
+     * @param adb         The ADB executable.
+     * @param port        The port the server listens on or {@code null} if the build uses the shared server.
+     * @param environment The environment to run ADB with, which points it at the port.
+     * @param logger      The logger to report on the server with.
+     */
+    AdbServer(final File adb, final Integer port, final Map<String, String> environment, final Logger logger) {
+        this.adb = adb;
+        this.port = port;
+        this.environment = environment;
+        this.logger = logger;
+    }
+
+    /**
+     * Finds a free port on the loopback interface to run an ADB server on.
+     *
+     * @return A port that was free at the time of the call.
+     * @throws UncheckedIOException if unable to find a port.
+     */
+    public static int allocatePort() {
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        } catch (final IOException e) {
+            throw new UncheckedIOException("Unable to allocate a port for the ADB server", e);
+        }
+    }
+
+    public boolean isEnabled() {
+        return port != null;
+    }
+
+    /**
+     * Starts the server without waiting for it to be ready. Subsequent calls have no effect.
+     */
+    public synchronized void startInBackground() {
+        if (!isEnabled() || startProcess.get() != null) {
+            return;
+        }
+
+        logger.info("Starting ADB server on port {}", port);
+        final ProcessBuilder pb = new ProcessBuilder(adb.getAbsolutePath(), "start-server");
+        pb.environment().putAll(environment);
+        pb.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        pb.redirectError(ProcessBuilder.Redirect.DISCARD);
+        try {
+            startProcess.set(pb.start());
+        } catch (final IOException e) {
+            throw new GradleException("Unable to start ADB server", e);
+        }
+        final Thread hook = new Thread(this::kill);
+        shutdownHook.set(hook);
+        Runtime.getRuntime().addShutdownHook(hook);
+    }
+
+    /**
+     * Ensures the server is running, starting it if necessary, and waits for it to be ready.
+     *
+     * @throws GradleException if the server fails to start.
+     */
+    public synchronized void awaitStarted() throws GradleException {
+        if (!isEnabled()) {
+            return;
+        }
+
+        startInBackground();
+        final Process process = startProcess.get();
+        try {
+            if (!process.waitFor(SERVER_START_TIMEOUT_SEC, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+                throw new GradleException("Timed out starting ADB server");
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GradleException("Interrupted while starting ADB server", e);
+        }
+        if (process.exitValue() != 0) {
+            throw new GradleException("ADB server failed to start with return code " + process.exitValue());
+        }
+    }
+
+    /**
+     * Shuts down the server if it was started by the plugin.
+     */
+    public synchronized void kill() {
+        if (startProcess.getAndSet(null) == null) {
+            return;
+        }
+        removeShutdownHook();
+
+        logger.info("Stopping ADB server on port {}", port);
+        final ProcessBuilder pb = new ProcessBuilder(adb.getAbsolutePath(), "kill-server");
+        pb.environment().putAll(environment);
+        pb.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        pb.redirectError(ProcessBuilder.Redirect.DISCARD);
+        try {
+            final Process process = pb.start();
+            if (!process.waitFor(SERVER_KILL_TIMEOUT_SEC, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            }
+        } catch (final IOException e) {
+            logger.warn("Unable to stop ADB server", e);
+        } catch (final InterruptedException e) {
+            logger.debug("Interrupted while stopping ADB server", e);
+        }
+    }
+
+    private void removeShutdownHook() {
+        final Thread hook = shutdownHook.getAndSet(null);
+        if (hook == null || hook == Thread.currentThread()) {
+            return;
+        }
+        try {
+            Runtime.getRuntime().removeShutdownHook(hook);
+        } catch (final IllegalStateException e) {
+            // The JVM is already shutting down, so the hook can't be removed and finds the server already stopped
+            return;
+        }
+    }
+}
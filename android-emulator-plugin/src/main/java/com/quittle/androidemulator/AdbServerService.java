@@ -0,0 +1,29 @@
+package com.quittle.androidemulator;
+
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Kills the {@link AdbServer}s of a build when the build finishes. All of the build's emulators share its server, so it
+ * is only killed once Gradle closes the service after the last task has run, rather than by whichever emulator happens
+ * to be stopped first.
+ */
+public abstract class AdbServerService implements BuildService<BuildServiceParameters.None>, AutoCloseable {
+    private final List<AdbServer> adbServers = new ArrayList<>();
+
+    /**
+     * @param adbServer A server to kill when the build finishes.
+     */
+    public synchronized void killAtEndOfBuild(final AdbServer adbServer) {
+        adbServers.add(adbServer);
+    }
+
+    @Override
+    public synchronized void close() {
+        adbServers.forEach(AdbServer::kill);
+        adbServers.clear();
+    }
+}
@@ -0,0 +1,253 @@
+package com.quittle.androidemulator;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A client for the file sync service of a device, talking to the ADB server directly rather than running
+ * {@code adb push} for each file. A single connection is used for any number of files, and the files are streamed
+ * from disk a chunk at a time.
+ * <p>
+ * Each sync request is a four letter id, a little-endian 32-bit length, and that many bytes of payload. Files are
+ * sent as a {@code SEND} of {@code <path>,<mode>}, a series of {@code DATA} chunks, and a {@code DONE} carrying the
+ * modification time, after which the device replies {@code OKAY} or {@code FAIL} with a message.
+ */
+public class AdbSyncClient implements Closeable {
+    /**
+     * The port of the ADB server when not configured otherwise.
+     */
+    public static final int DEFAULT_ADB_SERVER_PORT = 5037;
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int READ_TIMEOUT_MS = 60_000;
+    // The most data the sync service accepts in a single DATA request
+    private static final int MAX_DATA_LENGTH = 64 * 1024;
+    // STAT requests are sent in batches without waiting for each reply. The batches are limited so the replies never
+    // fill the socket's buffers while requests are still being written.
+    private static final int STAT_BATCH_SIZE = 128;
+    private static final int HEADER_LENGTH = 8;
+    private static final int ID_LENGTH = 4;
+    private static final int HOST_LENGTH_DIGITS = 4;
+    private static final int HEX_RADIX = 16;
+    private static final int REGULAR_FILE_MODE = 0100644;
+    private static final String ID_STAT = "STAT";
+    private static final String ID_SEND = "SEND";
+    private static final String ID_DATA = "DATA";
+    private static final String ID_DONE = "DONE";
+    private static final String ID_QUIT = "QUIT";
+    private static final String ID_OKAY = "OKAY";
+    private static final String ID_FAIL = "FAIL";
+
+    /**
+     * The attributes of a file on the device. The sync service reports sizes and times as unsigned 32-bit values.
+     */
+    public static class FileStat {
+        private final int mode;
+        private final long size;
+        private final long modifiedSeconds;
+
+        FileStat(final int mode, final long size, final long modifiedSeconds) {
+            this.mode = mode;
+            this.size = size;
+            this.modifiedSeconds = modifiedSeconds;
+        }
+
+        public boolean exists() {
+            return mode != 0;
+        }
+
+        public int getMode() {
+            return mode;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getModifiedSeconds() {
+            return modifiedSeconds;
+        }
+
+        /**
+         * @param size            The size of the local file.
+         * @param modifiedSeconds The modification time of the local file, in seconds since the epoch.
+         * @return {@code true} if the device's copy has the same size and modification time as the local file.
+         */
+        public boolean matches(final long size, final long modifiedSeconds) {
+            return exists() &&
+                    this.size == Integer.toUnsignedLong((int) size) &&
+                    this.modifiedSeconds == Integer.toUnsignedLong((int) modifiedSeconds);
+        }
+    }
+
+    private final Socket socket;
+    private final DataInputStream input;
+    private final OutputStream output;
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer chunk = ByteBuffer.allocate(MAX_DATA_LENGTH);
+
+    /**
+     * Connects to the sync service of a device.
+     *
+     * @param adbServerPort The port of the ADB server on this host.
+     * @param serial        The serial of the device.
+     * @throws IOException if unable to connect or the device is not available.
+     */
+    public AdbSyncClient(final int adbServerPort, final String serial) throws IOException {
+        this.socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), adbServerPort), CONNECT_TIMEOUT_MS);
+            socket.setSoTimeout(READ_TIMEOUT_MS);
+            this.input = new DataInputStream(socket.getInputStream());
+            this.output = new BufferedOutputStream(socket.getOutputStream(), HEADER_LENGTH + MAX_DATA_LENGTH);
+
+            hostRequest("host:transport:" + serial);
+            hostRequest("sync:");
+        } catch (IOException | RuntimeException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private void hostRequest(final String request) throws IOException {
+        final byte[] requestBytes = request.getBytes(StandardCharsets.UTF_8);
+        output.write(String.format(Locale.ROOT, "%04x", requestBytes.length).getBytes(StandardCharsets.US_ASCII));
+        output.write(requestBytes);
+        output.flush();
+
+        final String status = readId();
+        if (ID_FAIL.equals(status)) {
+            final int length = Integer.parseInt(readString(HOST_LENGTH_DIGITS), HEX_RADIX);
+            throw new IOException("ADB server rejected " + request + ": " + readString(length));
+        } else if (!ID_OKAY.equals(status)) {
+            throw new IOException("Unexpected reply from ADB server to " + request + ": " + status);
+        }
+    }
+
+    /**
+     * Looks up several files on the device at once.
+     *
+     * @param paths The absolute paths of the files on the device.
+     * @return The attributes of each file, in the same order as the paths.
+     * @throws IOException if the device could not be communicated with.
+     */
+    public List<FileStat> stat(final List<String> paths) throws IOException {
+        final List<FileStat> stats = new ArrayList<>(paths.size());
+        for (int start = 0; start < paths.size(); start += STAT_BATCH_SIZE) {
+            final List<String> batch = paths.subList(start, Math.min(paths.size(), start + STAT_BATCH_SIZE));
+            for (final String path : batch) {
+                writeRequest(ID_STAT, path);
+            }
+            output.flush();
+            for (final String path : batch) {
+                final String id = readId();
+                if (!ID_STAT.equals(id)) {
+                    throw new IOException("Unexpected reply to STAT of " + path + ": " + id);
+                }
+                final int mode = readInt();
+                final long size = Integer.toUnsignedLong(readInt());
+                final long modifiedSeconds = Integer.toUnsignedLong(readInt());
+                stats.add(new FileStat(mode, size, modifiedSeconds));
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Copies a file to the device, creating its parent directories if necessary.
+     *
+     * @param localFile       The file to copy.
+     * @param remotePath      The absolute path to copy the file to on the device.
+     * @param modifiedSeconds The modification time to give the copy, in seconds since the epoch.
+     * @return The number of bytes sent.
+     * @throws IOException if the file could not be read or the device failed to write it.
+     */
+    public long send(final Path localFile, final String remotePath, final long modifiedSeconds) throws IOException {
+        writeRequest(ID_SEND, remotePath + "," + REGULAR_FILE_MODE);
+        long sent = 0;
+        try (FileChannel file = FileChannel.open(localFile, StandardOpenOption.READ)) {
+            chunk.clear();
+            int read = file.read(chunk);
+            while (read != -1) {
+                if (!chunk.hasRemaining()) {
+                    sent += writeChunk();
+                }
+                read = file.read(chunk);
+            }
+            sent += writeChunk();
+        }
+        writeHeader(ID_DONE, (int) modifiedSeconds);
+        output.flush();
+
+        final String id = readId();
+        final int length = readInt();
+        if (ID_FAIL.equals(id)) {
+            throw new IOException("Device failed to write " + remotePath + ": " + readString(length));
+        } else if (!ID_OKAY.equals(id)) {
+            throw new IOException("Unexpected reply to SEND of " + remotePath + ": " + id);
+        }
+        return sent;
+    }
+
+    private int writeChunk() throws IOException {
+        final int length = chunk.position();
+        if (length > 0) {
+            writeHeader(ID_DATA, length);
+            output.write(chunk.array(), 0, length);
+        }
+        chunk.clear();
+        return length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            writeHeader(ID_QUIT, 0);
+            output.flush();
+        } finally {
+            socket.close();
+        }
+    }
+
+    private void writeRequest(final String id, final String payload) throws IOException {
+        final byte[] payloadBytes = payload.getBytes(StandardCharsets.UTF_8);
+        writeHeader(id, payloadBytes.length);
+        output.write(payloadBytes);
+    }
+
+    private void writeHeader(final String id, final int value) throws IOException {
+        header.clear();
+        header.put(id.getBytes(StandardCharsets.US_ASCII)).putInt(value);
+        output.write(header.array(), 0, HEADER_LENGTH);
+    }
+
+    private String readId() throws IOException {
+        return readString(ID_LENGTH);
+    }
+
+    private String readString(final int length) throws IOException {
+        final byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private int readInt() throws IOException {
+        final byte[] bytes = new byte[Integer.BYTES];
+        input.readFully(bytes);
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).getInt();
+    }
+}
@@ -1,9 +1,16 @@
 package com.quittle.androidemulator;
 
 import org.gradle.api.Action;
+import org.gradle.api.NamedDomainObjectContainer;
+import org.gradle.api.model.ObjectFactory;
 
+import javax.inject.Inject;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 
@@ -18,6 +25,13 @@ public class AndroidEmulatorExtension {
         private int sdkVersion = -1;
         private String abi = ArchitectureUtils.getEmulatorAbiString();;
         private boolean includeGoogleApis = false;
+        // Hardware values of zero or less are sized from the host's resources
+        private int cores = -1;
+        private int ramSizeMb = -1;
+        private int heapSizeMb = -1;
+        private int dataPartitionSizeMb = -1;
+        private int instances = 1;
+        private boolean goldenSnapshot = true;
 
         public String getName() {
             return this.name;
@@ -78,15 +92,845 @@ public class AndroidEmulatorExtension {
         public void includeGoogleApis(final boolean includeGoogleApis) {
             this.includeGoogleApis = includeGoogleApis;
         }
+
+        public int getCores() {
+            return this.cores;
+        }
+
+        public void setCores(final int cores) {
+            this.cores = cores;
+        }
+
+        public void cores(final int cores) {
+            this.cores = cores;
+        }
+
+        public int getRamSizeMb() {
+            return this.ramSizeMb;
+        }
+
+        public void setRamSizeMb(final int ramSizeMb) {
+            this.ramSizeMb = ramSizeMb;
+        }
+
+        public void ramSizeMb(final int ramSizeMb) {
+            this.ramSizeMb = ramSizeMb;
+        }
+
+        public int getHeapSizeMb() {
+            return this.heapSizeMb;
+        }
+
+        public void setHeapSizeMb(final int heapSizeMb) {
+            this.heapSizeMb = heapSizeMb;
+        }
+
+        public void heapSizeMb(final int heapSizeMb) {
+            this.heapSizeMb = heapSizeMb;
+        }
+
+        public int getDataPartitionSizeMb() {
+            return this.dataPartitionSizeMb;
+        }
+
+        public void setDataPartitionSizeMb(final int dataPartitionSizeMb) {
+            this.dataPartitionSizeMb = dataPartitionSizeMb;
+        }
+
+        public void dataPartitionSizeMb(final int dataPartitionSizeMb) {
+            this.dataPartitionSizeMb = dataPartitionSizeMb;
+        }
+
+        /**
+         * @return How many instances of the emulator to run. More than one runs them all from a single, shared AVD
+         *         that the instances can't modify.
+         */
+        public int getInstances() {
+            return this.instances;
+        }
+
+        public void setInstances(final int instances) {
+            this.instances = instances;
+        }
+
+        public void instances(final int instances) {
+            this.instances = instances;
+        }
+
+        /**
+         * @return Whether to boot a shared AVD once after creating it to save a snapshot its instances restore from
+         *         instead of booting.
+         */
+        public boolean getGoldenSnapshot() {
+            return this.goldenSnapshot;
+        }
+
+        public void setGoldenSnapshot(final boolean goldenSnapshot) {
+            this.goldenSnapshot = goldenSnapshot;
+        }
+
+        public void goldenSnapshot(final boolean goldenSnapshot) {
+            this.goldenSnapshot = goldenSnapshot;
+        }
+    }
+
+    /**
+     * Configures the preparation of the device once it has booted. All steps are run in a single shell session on the
+     * device rather than as individual {@code adb shell} invocations.
+     */
+    public static class DeviceSetupExtension {
+        private boolean disableAnimations = false;
+        private boolean keepScreenOn = false;
+        private boolean unlockScreen = false;
+        private final List<String> waitForServices = new ArrayList<>();
+        private final List<String> commands = new ArrayList<>();
+
+        public boolean getDisableAnimations() {
+            return this.disableAnimations;
+        }
+
+        public void setDisableAnimations(final boolean disableAnimations) {
+            this.disableAnimations = disableAnimations;
+        }
+
+        public void disableAnimations(final boolean disableAnimations) {
+            this.disableAnimations = disableAnimations;
+        }
+
+        public boolean getKeepScreenOn() {
+            return this.keepScreenOn;
+        }
+
+        public void setKeepScreenOn(final boolean keepScreenOn) {
+            this.keepScreenOn = keepScreenOn;
+        }
+
+        public void keepScreenOn(final boolean keepScreenOn) {
+            this.keepScreenOn = keepScreenOn;
+        }
+
+        public boolean getUnlockScreen() {
+            return this.unlockScreen;
+        }
+
+        public void setUnlockScreen(final boolean unlockScreen) {
+            this.unlockScreen = unlockScreen;
+        }
+
+        public void unlockScreen(final boolean unlockScreen) {
+            this.unlockScreen = unlockScreen;
+        }
+
+        public List<String> getWaitForServices() {
+            return Collections.unmodifiableList(this.waitForServices);
+        }
+
+        public void setWaitForServices(final Collection<String> waitForServices) {
+            this.waitForServices.clear();
+            this.waitForServices.addAll(waitForServices);
+        }
+
+        public void waitForServices(final String... waitForServices) {
+            this.waitForServices.addAll(Arrays.asList(waitForServices));
+        }
+
+        public List<String> getCommands() {
+            return Collections.unmodifiableList(this.commands);
+        }
+
+        public void setCommands(final Collection<String> commands) {
+            this.commands.clear();
+            this.commands.addAll(commands);
+        }
+
+        public void commands(final String... commands) {
+            this.commands.addAll(Arrays.asList(commands));
+        }
+    }
+
+    /**
+     * Configures the deadlines for each phase of booting the emulator and how many times booting is attempted. A
+     * timeout of zero or less disables the deadline for the phase.
+     */
+    public static class BootWatchdogExtension {
+        private int processUpTimeoutSeconds = 60;
+        private int adbOnlineTimeoutSeconds = 300;
+        private int bootCompletedTimeoutSeconds = 900;
+        private int maxAttempts = 3;
+
+        public int getProcessUpTimeoutSeconds() {
+            return this.processUpTimeoutSeconds;
+        }
+
+        public void setProcessUpTimeoutSeconds(final int processUpTimeoutSeconds) {
+            this.processUpTimeoutSeconds = processUpTimeoutSeconds;
+        }
+
+        public void processUpTimeoutSeconds(final int processUpTimeoutSeconds) {
+            this.processUpTimeoutSeconds = processUpTimeoutSeconds;
+        }
+
+        public int getAdbOnlineTimeoutSeconds() {
+            return this.adbOnlineTimeoutSeconds;
+        }
+
+        public void setAdbOnlineTimeoutSeconds(final int adbOnlineTimeoutSeconds) {
+            this.adbOnlineTimeoutSeconds = adbOnlineTimeoutSeconds;
+        }
+
+        public void adbOnlineTimeoutSeconds(final int adbOnlineTimeoutSeconds) {
+            this.adbOnlineTimeoutSeconds = adbOnlineTimeoutSeconds;
+        }
+
+        public int getBootCompletedTimeoutSeconds() {
+            return this.bootCompletedTimeoutSeconds;
+        }
+
+        public void setBootCompletedTimeoutSeconds(final int bootCompletedTimeoutSeconds) {
+            this.bootCompletedTimeoutSeconds = bootCompletedTimeoutSeconds;
+        }
+
+        public void bootCompletedTimeoutSeconds(final int bootCompletedTimeoutSeconds) {
+            this.bootCompletedTimeoutSeconds = bootCompletedTimeoutSeconds;
+        }
+
+        public int getMaxAttempts() {
+            return this.maxAttempts;
+        }
+
+        public void setMaxAttempts(final int maxAttempts) {
+            this.maxAttempts = maxAttempts;
+        }
+
+        public void maxAttempts(final int maxAttempts) {
+            this.maxAttempts = maxAttempts;
+        }
+    }
+
+    /**
+     * Configures how emulator boots are spread out to avoid overloading the host. This applies across all builds on the
+     * host that enable it. It is disabled by default as the host's load, which includes other work, can keep boots
+     * waiting.
+     */
+    public static class BootAdmissionExtension {
+        private boolean enabled = false;
+        private int maxConcurrentBoots = -1;
+        private int staggerSeconds = 5;
+        private int maxQueueWaitSeconds = 120;
+
+        public boolean getEnabled() {
+            return this.enabled;
+        }
+
+        public void setEnabled(final boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public void enabled(final boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public int getMaxConcurrentBoots() {
+            return this.maxConcurrentBoots;
+        }
+
+        public void setMaxConcurrentBoots(final int maxConcurrentBoots) {
+            this.maxConcurrentBoots = maxConcurrentBoots;
+        }
+
+        public void maxConcurrentBoots(final int maxConcurrentBoots) {
+            this.maxConcurrentBoots = maxConcurrentBoots;
+        }
+
+        public int getStaggerSeconds() {
+            return this.staggerSeconds;
+        }
+
+        public void setStaggerSeconds(final int staggerSeconds) {
+            this.staggerSeconds = staggerSeconds;
+        }
+
+        public void staggerSeconds(final int staggerSeconds) {
+            this.staggerSeconds = staggerSeconds;
+        }
+
+        public int getMaxQueueWaitSeconds() {
+            return this.maxQueueWaitSeconds;
+        }
+
+        public void setMaxQueueWaitSeconds(final int maxQueueWaitSeconds) {
+            this.maxQueueWaitSeconds = maxQueueWaitSeconds;
+        }
+
+        public void maxQueueWaitSeconds(final int maxQueueWaitSeconds) {
+            this.maxQueueWaitSeconds = maxQueueWaitSeconds;
+        }
+    }
+
+    /**
+     * Configures the plugin's own instrumentation test runner. Values left unset are taken from the Android
+     * extension's default config.
+     */
+    public static class InstrumentationTestsExtension {
+        private String variant = "debug";
+        private String testPackage = null;
+        private String runner = null;
+
+        public String getVariant() {
+            return this.variant;
+        }
+
+        public void setVariant(final String variant) {
+            this.variant = variant;
+        }
+
+        public void variant(final String variant) {
+            this.variant = variant;
+        }
+
+        public String getTestPackage() {
+            return this.testPackage;
+        }
+
+        public void setTestPackage(final String testPackage) {
+            this.testPackage = testPackage;
+        }
+
+        public void testPackage(final String testPackage) {
+            this.testPackage = testPackage;
+        }
+
+        public String getRunner() {
+            return this.runner;
+        }
+
+        public void setRunner(final String runner) {
+            this.runner = runner;
+        }
+
+        public void runner(final String runner) {
+            this.runner = runner;
+        }
+    }
+
+    /**
+     * Files pushed to the emulators before the tests run, such as large test inputs.
+     */
+    public static class TestFixturesExtension {
+        private File sourceDir = null;
+        private String devicePath = "/data/local/tmp/test-fixtures";
+
+        public File getSourceDir() {
+            return this.sourceDir;
+        }
+
+        public void setSourceDir(final File sourceDir) {
+            this.sourceDir = sourceDir;
+        }
+
+        public void sourceDir(final File sourceDir) {
+            this.sourceDir = sourceDir;
+        }
+
+        public String getDevicePath() {
+            return this.devicePath;
+        }
+
+        public void setDevicePath(final String devicePath) {
+            this.devicePath = devicePath;
+        }
+
+        public void devicePath(final String devicePath) {
+            this.devicePath = devicePath;
+        }
+    }
+
+    /**
+     * Configures exporting metrics about the emulators while the build runs. Nothing is exported unless a port or a
+     * textfile directory is set.
+     */
+    public static class MetricsExtension {
+        private Integer port = null;
+        private String bindAddress = "127.0.0.1";
+        private File textFileDirectory = null;
+        private int textFileIntervalSeconds = 15;
+
+        public Integer getPort() {
+            return this.port;
+        }
+
+        public void setPort(final Integer port) {
+            this.port = port;
+        }
+
+        public void port(final Integer port) {
+            this.port = port;
+        }
+
+        public String getBindAddress() {
+            return this.bindAddress;
+        }
+
+        public void setBindAddress(final String bindAddress) {
+            this.bindAddress = bindAddress;
+        }
+
+        public void bindAddress(final String bindAddress) {
+            this.bindAddress = bindAddress;
+        }
+
+        public File getTextFileDirectory() {
+            return this.textFileDirectory;
+        }
+
+        public void setTextFileDirectory(final File textFileDirectory) {
+            this.textFileDirectory = textFileDirectory;
+        }
+
+        public void textFileDirectory(final File textFileDirectory) {
+            this.textFileDirectory = textFileDirectory;
+        }
+
+        public int getTextFileIntervalSeconds() {
+            return this.textFileIntervalSeconds;
+        }
+
+        public void setTextFileIntervalSeconds(final int textFileIntervalSeconds) {
+            this.textFileIntervalSeconds = textFileIntervalSeconds;
+        }
+
+        public void textFileIntervalSeconds(final int textFileIntervalSeconds) {
+            this.textFileIntervalSeconds = textFileIntervalSeconds;
+        }
+
+        /**
+         * @return Whether any form of export is enabled.
+         */
+        public boolean isEnabled() {
+            return this.port != null || this.textFileDirectory != null;
+        }
+    }
+
+    /**
+     * Configures checking the history of how long getting the emulator ready took for regressions.
+     */
+    public static class BootTimeRegressionExtension {
+        private int thresholdPercent = 25;
+        private int recentRuns = 5;
+        private int baselineRuns = 20;
+        private boolean failOnRegression = false;
+
+        public int getThresholdPercent() {
+            return this.thresholdPercent;
+        }
+
+        public void setThresholdPercent(final int thresholdPercent) {
+            this.thresholdPercent = thresholdPercent;
+        }
+
+        public void thresholdPercent(final int thresholdPercent) {
+            this.thresholdPercent = thresholdPercent;
+        }
+
+        public int getRecentRuns() {
+            return this.recentRuns;
+        }
+
+        public void setRecentRuns(final int recentRuns) {
+            this.recentRuns = recentRuns;
+        }
+
+        public void recentRuns(final int recentRuns) {
+            this.recentRuns = recentRuns;
+        }
+
+        public int getBaselineRuns() {
+            return this.baselineRuns;
+        }
+
+        public void setBaselineRuns(final int baselineRuns) {
+            this.baselineRuns = baselineRuns;
+        }
+
+        public void baselineRuns(final int baselineRuns) {
+            this.baselineRuns = baselineRuns;
+        }
+
+        public boolean getFailOnRegression() {
+            return this.failOnRegression;
+        }
+
+        public void setFailOnRegression(final boolean failOnRegression) {
+            this.failOnRegression = failOnRegression;
+        }
+
+        public void failOnRegression(final boolean failOnRegression) {
+            this.failOnRegression = failOnRegression;
+        }
+    }
+
+    /**
+     * Configures sampling the resource usage of the emulators while tests run on them.
+     */
+    public static class ResourceSamplingExtension {
+        private boolean enabled = true;
+        private long intervalMillis = 1000;
+
+        public boolean getEnabled() {
+            return this.enabled;
+        }
+
+        public void setEnabled(final boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public void enabled(final boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public long getIntervalMillis() {
+            return this.intervalMillis;
+        }
+
+        public void setIntervalMillis(final long intervalMillis) {
+            this.intervalMillis = intervalMillis;
+        }
+
+        public void intervalMillis(final long intervalMillis) {
+            this.intervalMillis = intervalMillis;
+        }
+    }
+
+    /**
+     * Configures isolating the emulators from each other and from the rest of the host. Only supported on Linux.
+     */
+    public static class IsolationExtension {
+        private boolean pinCpus = false;
+        private File cgroupParent = null;
+        private long memoryLimitMb = 0;
+
+        /**
+         * @return Whether to pin each emulator to its own cores with {@code taskset}.
+         */
+        public boolean getPinCpus() {
+            return this.pinCpus;
+        }
+
+        public void setPinCpus(final boolean pinCpus) {
+            this.pinCpus = pinCpus;
+        }
+
+        public void pinCpus(final boolean pinCpus) {
+            this.pinCpus = pinCpus;
+        }
+
+        /**
+         * @return A cgroup v2 directory delegated to the user running Gradle, under which each emulator gets its own
+         *         cgroup, or null to not use cgroups.
+         */
+        public File getCgroupParent() {
+            return this.cgroupParent;
+        }
+
+        public void setCgroupParent(final File cgroupParent) {
+            this.cgroupParent = cgroupParent;
+        }
+
+        public void cgroupParent(final File cgroupParent) {
+            this.cgroupParent = cgroupParent;
+        }
+
+        /**
+         * @return The memory limit of each emulator's cgroup or 0 or less to size it from the emulator's RAM.
+         */
+        public long getMemoryLimitMb() {
+            return this.memoryLimitMb;
+        }
+
+        public void setMemoryLimitMb(final long memoryLimitMb) {
+            this.memoryLimitMb = memoryLimitMb;
+        }
+
+        public void memoryLimitMb(final long memoryLimitMb) {
+            this.memoryLimitMb = memoryLimitMb;
+        }
+    }
+
+    /**
+     * Configures running the emulators from copies of their AVDs on a RAM disk.
+     */
+    public static class RamDiskExtension {
+        private boolean enabled = false;
+        private File directory = null;
+        private boolean copyBack = false;
+        private long minFreeMemoryMb = 1024;
+
+        public boolean getEnabled() {
+            return this.enabled;
+        }
+
+        public void setEnabled(final boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public void enabled(final boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        /**
+         * @return The directory of the RAM disk or null to use {@code /dev/shm}.
+         */
+        public File getDirectory() {
+            return this.directory;
+        }
+
+        public void setDirectory(final File directory) {
+            this.directory = directory;
+        }
+
+        public void directory(final File directory) {
+            this.directory = directory;
+        }
+
+        /**
+         * @return Whether to copy the AVD back to disk when the emulator exits, keeping its snapshots and data for the
+         *         next build.
+         */
+        public boolean getCopyBack() {
+            return this.copyBack;
+        }
+
+        public void setCopyBack(final boolean copyBack) {
+            this.copyBack = copyBack;
+        }
+
+        public void copyBack(final boolean copyBack) {
+            this.copyBack = copyBack;
+        }
+
+        /**
+         * @return The memory to leave available to the rest of the host after copying the AVD and starting the
+         *         emulator.
+         */
+        public long getMinFreeMemoryMb() {
+            return this.minFreeMemoryMb;
+        }
+
+        public void setMinFreeMemoryMb(final long minFreeMemoryMb) {
+            this.minFreeMemoryMb = minFreeMemoryMb;
+        }
+
+        public void minFreeMemoryMb(final long minFreeMemoryMb) {
+            this.minFreeMemoryMb = minFreeMemoryMb;
+        }
+    }
+
+    /**
+     * Configures leasing emulators from a broker shared by all the builds on the host, which keeps them booted between
+     * builds.
+     */
+    public static class BrokerExtension {
+        private boolean enabled = false;
+        private int port = 25037;
+        private int poolSize = 1;
+        private int maxEmulators = 0;
+        private long idleTimeoutMinutes = 30;
+        private int maxLeaseWaitSeconds = 1800;
+
+        public boolean getEnabled() {
+            return this.enabled;
+        }
+
+        public void setEnabled(final boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        public void enabled(final boolean enabled) {
+            this.enabled = enabled;
+        }
+
+        /**
+         * @return The loopback port the broker listens on.
+         */
+        public int getPort() {
+            return this.port;
+        }
+
+        public void setPort(final int port) {
+            this.port = port;
+        }
+
+        public void port(final int port) {
+            this.port = port;
+        }
+
+        /**
+         * @return How many idle emulators of each configuration the broker keeps booted.
+         */
+        public int getPoolSize() {
+            return this.poolSize;
+        }
+
+        public void setPoolSize(final int poolSize) {
+            this.poolSize = poolSize;
+        }
+
+        public void poolSize(final int poolSize) {
+            this.poolSize = poolSize;
+        }
+
+        /**
+         * @return How many emulators the broker runs at once or 0 or less to fit as many as the host's cores allow.
+         */
+        public int getMaxEmulators() {
+            return this.maxEmulators;
+        }
+
+        public void setMaxEmulators(final int maxEmulators) {
+            this.maxEmulators = maxEmulators;
+        }
+
+        public void maxEmulators(final int maxEmulators) {
+            this.maxEmulators = maxEmulators;
+        }
+
+        /**
+         * @return How long the broker keeps an unused emulator, and itself, running.
+         */
+        public long getIdleTimeoutMinutes() {
+            return this.idleTimeoutMinutes;
+        }
+
+        public void setIdleTimeoutMinutes(final long idleTimeoutMinutes) {
+            this.idleTimeoutMinutes = idleTimeoutMinutes;
+        }
+
+        public void idleTimeoutMinutes(final long idleTimeoutMinutes) {
+            this.idleTimeoutMinutes = idleTimeoutMinutes;
+        }
+
+        /**
+         * @return How long to wait for the broker to lend an emulator before starting one for the build instead.
+         */
+        public int getMaxLeaseWaitSeconds() {
+            return this.maxLeaseWaitSeconds;
+        }
+
+        public void setMaxLeaseWaitSeconds(final int maxLeaseWaitSeconds) {
+            this.maxLeaseWaitSeconds = maxLeaseWaitSeconds;
+        }
+
+        public void maxLeaseWaitSeconds(final int maxLeaseWaitSeconds) {
+            this.maxLeaseWaitSeconds = maxLeaseWaitSeconds;
+        }
+    }
+
+    /**
+     * Configures leasing already booted devices from other hosts over {@code adb connect} instead of starting emulators
+     * on this one. Leasing is enabled by listing any endpoints.
+     */
+    public static class RemoteDevicesExtension {
+        private final List<String> endpoints = new ArrayList<>();
+        private long leaseTimeoutMinutes = 30;
+        private int maxLeaseWaitSeconds = 1800;
+        private int pollIntervalSeconds = 15;
+
+        /**
+         * @return The {@code host:port} pairs of the devices to lease from. Devices on the same host share its load.
+         */
+        public List<String> getEndpoints() {
+            return Collections.unmodifiableList(this.endpoints);
+        }
+
+        public void setEndpoints(final Collection<String> endpoints) {
+            this.endpoints.clear();
+            this.endpoints.addAll(endpoints);
+        }
+
+        public void endpoints(final String... endpoints) {
+            this.endpoints.addAll(Arrays.asList(endpoints));
+        }
+
+        /**
+         * @return How long a lease lasts without the build renewing it, after which another build may break it.
+         */
+        public long getLeaseTimeoutMinutes() {
+            return this.leaseTimeoutMinutes;
+        }
+
+        public void setLeaseTimeoutMinutes(final long leaseTimeoutMinutes) {
+            this.leaseTimeoutMinutes = leaseTimeoutMinutes;
+        }
+
+        public void leaseTimeoutMinutes(final long leaseTimeoutMinutes) {
+            this.leaseTimeoutMinutes = leaseTimeoutMinutes;
+        }
+
+        /**
+         * @return How long to wait for a device to be free before failing the build.
+         */
+        public int getMaxLeaseWaitSeconds() {
+            return this.maxLeaseWaitSeconds;
+        }
+
+        public void setMaxLeaseWaitSeconds(final int maxLeaseWaitSeconds) {
+            this.maxLeaseWaitSeconds = maxLeaseWaitSeconds;
+        }
+
+        public void maxLeaseWaitSeconds(final int maxLeaseWaitSeconds) {
+            this.maxLeaseWaitSeconds = maxLeaseWaitSeconds;
+        }
+
+        /**
+         * @return How long to wait between checking the devices while all of them are leased.
+         */
+        public int getPollIntervalSeconds() {
+            return this.pollIntervalSeconds;
+        }
+
+        public void setPollIntervalSeconds(final int pollIntervalSeconds) {
+            this.pollIntervalSeconds = pollIntervalSeconds;
+        }
+
+        public void pollIntervalSeconds(final int pollIntervalSeconds) {
+            this.pollIntervalSeconds = pollIntervalSeconds;
+        }
     }
 
     private final EmulatorExtension emulator = new EmulatorExtension();
+    private final InstrumentationTestsExtension instrumentationTests = new InstrumentationTestsExtension();
+    private final TestFixturesExtension testFixtures = new TestFixturesExtension();
+    private final MetricsExtension metrics = new MetricsExtension();
+    private final BootTimeRegressionExtension bootTimeRegression = new BootTimeRegressionExtension();
+    private final ResourceSamplingExtension resourceSampling = new ResourceSamplingExtension();
+    private final IsolationExtension isolation = new IsolationExtension();
+    private final RamDiskExtension ramDisk = new RamDiskExtension();
+    private final BrokerExtension broker = new BrokerExtension();
+    private final RemoteDevicesExtension remoteDevices = new RemoteDevicesExtension();
+    private final NamedDomainObjectContainer<EmulatorExtension> matrix;
+    private final DeviceSetupExtension deviceSetup = new DeviceSetupExtension();
+    private final BootWatchdogExtension bootWatchdog = new BootWatchdogExtension();
+    private final BootAdmissionExtension bootAdmission = new BootAdmissionExtension();
     private File avdRoot = null;
     private boolean enableForAndroidTests = true;
     private boolean headless = false;
     private String[] additionalEmulatorArguments = null;
     private String[] additionalSdkManagerArguments = null;
     private boolean logEmulatorOutput = false;
+    private boolean isolatedAdbServer = false;
+    private boolean snapshotIsolation = false;
+    private boolean asyncShutdown = false;
+    private SoftwareEmulationFallback softwareEmulationFallback = SoftwareEmulationFallback.ALLOW;
+
+    @Inject
+    public AndroidEmulatorExtension(final ObjectFactory objectFactory) {
+        // The name of each entry is also the name of its AVD
+        this.matrix = objectFactory.domainObjectContainer(EmulatorExtension.class, name -> {
+            final EmulatorExtension entry = new EmulatorExtension();
+            entry.setName(name);
+            return entry;
+        });
+    }
 
     public EmulatorExtension getEmulator() {
         return this.emulator;
@@ -96,6 +940,116 @@ public class AndroidEmulatorExtension {
         action.execute(this.emulator);
     }
 
+    /**
+     * Emulators to run the connected tests on at the same time. When any are configured, they replace
+     * {@link #getEmulator()}.
+     *
+     * @return The emulators, keyed by name.
+     */
+    public NamedDomainObjectContainer<EmulatorExtension> getMatrix() {
+        return this.matrix;
+    }
+
+    public void matrix(Action<NamedDomainObjectContainer<EmulatorExtension>> action) {
+        action.execute(this.matrix);
+    }
+
+    public DeviceSetupExtension getDeviceSetup() {
+        return this.deviceSetup;
+    }
+
+    public void deviceSetup(Action<DeviceSetupExtension> action) {
+        action.execute(this.deviceSetup);
+    }
+
+    public BootWatchdogExtension getBootWatchdog() {
+        return this.bootWatchdog;
+    }
+
+    public void bootWatchdog(Action<BootWatchdogExtension> action) {
+        action.execute(this.bootWatchdog);
+    }
+
+    public BootAdmissionExtension getBootAdmission() {
+        return this.bootAdmission;
+    }
+
+    public void bootAdmission(Action<BootAdmissionExtension> action) {
+        action.execute(this.bootAdmission);
+    }
+
+    public InstrumentationTestsExtension getInstrumentationTests() {
+        return this.instrumentationTests;
+    }
+
+    public void instrumentationTests(Action<InstrumentationTestsExtension> action) {
+        action.execute(this.instrumentationTests);
+    }
+
+    public TestFixturesExtension getTestFixtures() {
+        return this.testFixtures;
+    }
+
+    public void testFixtures(Action<TestFixturesExtension> action) {
+        action.execute(this.testFixtures);
+    }
+
+    public MetricsExtension getMetrics() {
+        return this.metrics;
+    }
+
+    public void metrics(Action<MetricsExtension> action) {
+        action.execute(this.metrics);
+    }
+
+    public BootTimeRegressionExtension getBootTimeRegression() {
+        return this.bootTimeRegression;
+    }
+
+    public void bootTimeRegression(Action<BootTimeRegressionExtension> action) {
+        action.execute(this.bootTimeRegression);
+    }
+
+    public ResourceSamplingExtension getResourceSampling() {
+        return this.resourceSampling;
+    }
+
+    public void resourceSampling(Action<ResourceSamplingExtension> action) {
+        action.execute(this.resourceSampling);
+    }
+
+    public IsolationExtension getIsolation() {
+        return this.isolation;
+    }
+
+    public void isolation(Action<IsolationExtension> action) {
+        action.execute(this.isolation);
+    }
+
+    public RamDiskExtension getRamDisk() {
+        return this.ramDisk;
+    }
+
+    public void ramDisk(Action<RamDiskExtension> action) {
+        action.execute(this.ramDisk);
+    }
+
+    public BrokerExtension getBroker() {
+        return this.broker;
+    }
+
+    public void broker(Action<BrokerExtension> action) {
+        action.execute(this.broker);
+    }
+
+    public RemoteDevicesExtension getRemoteDevices() {
+        return this.remoteDevices;
+    }
+
+    public void remoteDevices(Action<RemoteDevicesExtension> action) {
+        action.execute(this.remoteDevices);
+    }
+
     public void setAvdRoot(final File avdRoot) {
         this.avdRoot = avdRoot;
     }
@@ -184,6 +1138,62 @@ public class AndroidEmulatorExtension {
         return this.logEmulatorOutput;
     }
 
+    public void isolatedAdbServer(final boolean isolatedAdbServer) {
+        this.isolatedAdbServer = isolatedAdbServer;
+    }
+
+    public void setIsolatedAdbServer(final boolean isolatedAdbServer) {
+        this.isolatedAdbServer = isolatedAdbServer;
+    }
+
+    public boolean getIsolatedAdbServer() {
+        return this.isolatedAdbServer;
+    }
+
+    public void snapshotIsolation(final boolean snapshotIsolation) {
+        this.snapshotIsolation = snapshotIsolation;
+    }
+
+    public void setSnapshotIsolation(final boolean snapshotIsolation) {
+        this.snapshotIsolation = snapshotIsolation;
+    }
+
+    public boolean getSnapshotIsolation() {
+        return this.snapshotIsolation;
+    }
+
+    public void asyncShutdown(final boolean asyncShutdown) {
+        this.asyncShutdown = asyncShutdown;
+    }
+
+    public void setAsyncShutdown(final boolean asyncShutdown) {
+        this.asyncShutdown = asyncShutdown;
+    }
+
+    public boolean getAsyncShutdown() {
+        return this.asyncShutdown;
+    }
+
+    public void softwareEmulationFallback(final String softwareEmulationFallback) {
+        this.softwareEmulationFallback = SoftwareEmulationFallback.fromName(softwareEmulationFallback);
+    }
+
+    public void softwareEmulationFallback(final SoftwareEmulationFallback softwareEmulationFallback) {
+        this.softwareEmulationFallback = softwareEmulationFallback;
+    }
+
+    public void setSoftwareEmulationFallback(final String softwareEmulationFallback) {
+        this.softwareEmulationFallback = SoftwareEmulationFallback.fromName(softwareEmulationFallback);
+    }
+
+    public void setSoftwareEmulationFallback(final SoftwareEmulationFallback softwareEmulationFallback) {
+        this.softwareEmulationFallback = softwareEmulationFallback;
+    }
+
+    public SoftwareEmulationFallback getSoftwareEmulationFallback() {
+        return this.softwareEmulationFallback;
+    }
+
     /**
      * Helper method for cloning a potentially null array
      *
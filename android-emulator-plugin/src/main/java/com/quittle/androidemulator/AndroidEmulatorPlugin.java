@@ -3,12 +3,25 @@ package com.quittle.androidemulator;
 import com.android.build.gradle.BaseExtension;
 import com.android.build.gradle.internal.tasks.DeviceProviderInstrumentTestTask;
 import com.quittle.androidemulator.task.*;
+import org.gradle.api.Action;
 import org.gradle.api.Plugin;
 import org.gradle.api.Project;
 import org.gradle.api.Task;
+import org.gradle.api.provider.Provider;
 import org.gradle.api.tasks.TaskInstantiationException;
 
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 
 public class AndroidEmulatorPlugin implements Plugin<Project> {
     public static final String ENSURE_BASE_SDK_PERMISSIONS_TASK_NAME = "ensureBaseSdkPermissionsForAndroidEmulatorPlugin";
@@ -19,16 +32,201 @@ public class AndroidEmulatorPlugin implements Plugin<Project> {
     public static final String CREATE_ANDROID_EMULATOR_TASK_NAME = "createAndroidEmulator";
     public static final String START_ANDROID_EMULATOR_TASK_NAME = "startAndroidEmulator";
     public static final String WAIT_FOR_ANDROID_EMULATOR_TASK_NAME = "waitForAndroidEmulator";
+    public static final String PREPARE_ANDROID_EMULATOR_TASK_NAME = "prepareAndroidEmulator";
+    public static final String SAVE_ANDROID_EMULATOR_SNAPSHOT_TASK_NAME = "saveAndroidEmulatorSnapshot";
     public static final String STOP_ANDROID_EMULATOR_TASK_NAME = "stopAndroidEmulator";
+    public static final String RECORD_ANDROID_TEST_TIMINGS_TASK_NAME = "recordAndroidTestTimings";
+    public static final String RUN_ANDROID_INSTRUMENTATION_TESTS_TASK_NAME = "runAndroidInstrumentationTests";
+    public static final String PUSH_ANDROID_TEST_FIXTURES_TASK_NAME = "pushAndroidTestFixtures";
+    public static final String CHECK_ANDROID_EMULATOR_BOOT_TIME_TASK_NAME = "checkAndroidEmulatorBootTime";
+    public static final String STOP_RESOURCE_SAMPLING_TASK_NAME = "stopResourceSamplingFor";
 
-    private static void setUpAndroidTests(final Project project) {
+    private static void setUpAndroidTests(final Project project, final List<EmulatorTasks> emulators) {
         project.getTasks().withType(
                 DeviceProviderInstrumentTestTask.class, task -> {
-                    task.dependsOn(WAIT_FOR_ANDROID_EMULATOR_TASK_NAME);
-                    task.finalizedBy(STOP_ANDROID_EMULATOR_TASK_NAME);
+                    // Records the timings of failing runs too
+                    task.finalizedBy(RECORD_ANDROID_TEST_TIMINGS_TASK_NAME);
+                    // The test task runs the tests on all of the emulators at once
+                    for (final EmulatorTasks emulator : emulators) {
+                        task.dependsOn(emulator.taskName(PREPARE_ANDROID_EMULATOR_TASK_NAME),
+                                emulator.taskName(SAVE_ANDROID_EMULATOR_SNAPSHOT_TASK_NAME));
+                        task.finalizedBy(emulator.taskName(STOP_ANDROID_EMULATOR_TASK_NAME));
+                        if (emulator.managedEmulator.getConfiguration().getSnapshotIsolation()) {
+                            task.doFirst(new RestoreCleanSnapshot(emulator.managedEmulator.getSnapshots()));
+                        }
+                    }
+                    // Added last so they run first, before a dead emulator is used
+                    for (final EmulatorTasks emulator : emulators) {
+                        task.doFirst(new AwaitHealthyEmulator(emulator.managedEmulator.getHealthMonitor()));
+                    }
                 });
     }
 
+    /**
+     * Waits for a replacement emulator if the emulator crashed during a previous test task.
+     */
+    private static class AwaitHealthyEmulator implements Action<Task> {
+        private final EmulatorHealthMonitor emulatorHealthMonitor;
+
+        private AwaitHealthyEmulator(final EmulatorHealthMonitor emulatorHealthMonitor) {
+            this.emulatorHealthMonitor = emulatorHealthMonitor;
+        }
+
+        @Override
+        public void execute(final Task task) {
+            emulatorHealthMonitor.awaitHealthy();
+        }
+    }
+
+    /**
+     * Returns the emulator to the clean snapshot if a previous test task has used it.
+     */
+    private static class RestoreCleanSnapshot implements Action<Task> {
+        private final EmulatorSnapshots emulatorSnapshots;
+
+        private RestoreCleanSnapshot(final EmulatorSnapshots emulatorSnapshots) {
+            this.emulatorSnapshots = emulatorSnapshots;
+        }
+
+        @Override
+        public void execute(final Task task) {
+            if (emulatorSnapshots.restoreIfDirty(EmulatorSnapshots.CLEAN_SNAPSHOT_NAME)) {
+                task.getLogger().info("Restored snapshot {}", EmulatorSnapshots.CLEAN_SNAPSHOT_NAME);
+            }
+            emulatorSnapshots.markDirty();
+        }
+    }
+
+    /**
+     * Starts timing a phase of getting the emulators ready.
+     */
+    private static class StartBootPhase implements Action<Task> {
+        private final List<BootTimings> bootTimings;
+        private final BootTimings.Phase phase;
+
+        private StartBootPhase(final List<BootTimings> bootTimings, final BootTimings.Phase phase) {
+            this.bootTimings = bootTimings;
+            this.phase = phase;
+        }
+
+        @Override
+        public void execute(final Task task) {
+            bootTimings.forEach(timings -> timings.start(phase));
+        }
+    }
+
+    /**
+     * Stops timing a phase of getting the emulators ready.
+     */
+    private static class StopBootPhase implements Action<Task> {
+        private final List<BootTimings> bootTimings;
+        private final BootTimings.Phase phase;
+
+        private StopBootPhase(final List<BootTimings> bootTimings, final BootTimings.Phase phase) {
+            this.bootTimings = bootTimings;
+            this.phase = phase;
+        }
+
+        @Override
+        public void execute(final Task task) {
+            bootTimings.forEach(timings -> timings.stop(phase));
+        }
+    }
+
+    /**
+     * Adds how long getting the emulator ready took to its history and metrics once it's ready.
+     */
+    private static class RecordBootTimes implements Action<Task> {
+        private final EmulatorConfiguration emulatorConfiguration;
+        private final EmulatorLauncher emulatorLauncher;
+        private final EmulatorLease emulatorLease;
+        private final BootTimings bootTimings;
+        private final EmulatorMetrics.Emulator metrics;
+
+        private RecordBootTimes(
+                final EmulatorConfiguration emulatorConfiguration,
+                final EmulatorLauncher emulatorLauncher,
+                final EmulatorLease emulatorLease,
+                final BootTimings bootTimings,
+                final EmulatorMetrics.Emulator metrics) {
+            this.emulatorConfiguration = emulatorConfiguration;
+            this.emulatorLauncher = emulatorLauncher;
+            this.emulatorLease = emulatorLease;
+            this.bootTimings = bootTimings;
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void execute(final Task task) {
+            bootTimings.stop(BootTimings.Phase.READY);
+            final Long readyMillis = bootTimings.getMillis().get(BootTimings.Phase.READY);
+            if (readyMillis != null) {
+                metrics.recordReadinessWait(Duration.ofMillis(readyMillis));
+            }
+            if (emulatorLease.isLeased()) {
+                // The build didn't boot the emulator it leased
+                return;
+            }
+
+            // The executable, AVD, and port don't affect the timings
+            final List<String> command = emulatorLauncher.getLastLaunchCommand();
+            final List<String> arguments = new ArrayList<>();
+            for (int i = 1; i < command.size(); i++) {
+                if (command.get(i).equals("-port")) {
+                    i++;
+                } else if (!command.get(i).startsWith("@")) {
+                    arguments.add(command.get(i));
+                }
+            }
+            final String configuration = BootTimeHistory.describeConfiguration(
+                    BootTimeHistory.readEmulatorRevision(emulatorConfiguration.sdkFile("emulator", "source.properties")),
+                    emulatorConfiguration.getSystemImagePackageName(),
+                    arguments);
+
+            final File historyFile = emulatorConfiguration.getBootTimeHistoryFile();
+            try {
+                BootTimeHistory.append(historyFile, new BootTimeHistory.Entry(Instant.now().getEpochSecond(),
+                        bootTimings.isFromSnapshot(), bootTimings.getMillis(), configuration));
+            } catch (final IOException e) {
+                task.getLogger().warn("Unable to record the boot times in {}", historyFile, e);
+            }
+        }
+    }
+
+    /**
+     * Starts sampling the resource usage of the emulators for a test task.
+     */
+    private static class StartResourceSampling implements Action<Task> {
+        private final ResourceSampler resourceSampler;
+        private final EmulatorConfiguration emulatorConfiguration;
+
+        private StartResourceSampling(final ResourceSampler resourceSampler, final EmulatorConfiguration emulatorConfiguration) {
+            this.resourceSampler = resourceSampler;
+            this.emulatorConfiguration = emulatorConfiguration;
+        }
+
+        @Override
+        public void execute(final Task task) {
+            resourceSampler.start(emulatorConfiguration.getResourceSamplesDirectory(task.getName()));
+        }
+    }
+
+    /**
+     * Stops sampling the resource usage of the emulators for a test task, if sampling.
+     */
+    private static class StopResourceSampling implements Action<Task> {
+        private final ResourceSampler resourceSampler;
+
+        private StopResourceSampling(final ResourceSampler resourceSampler) {
+            this.resourceSampler = resourceSampler;
+        }
+
+        @Override
+        public void execute(final Task task) {
+            resourceSampler.stop();
+        }
+    }
+
     private static void createEnsurePermissionsTasks(final Project project, final EmulatorConfiguration emulatorConfiguration) {
         project.getTasks().create(ENSURE_BASE_SDK_PERMISSIONS_TASK_NAME, EnsureBaseSdkPermissions.class, emulatorConfiguration);
 
@@ -45,53 +243,316 @@ public class AndroidEmulatorPlugin implements Plugin<Project> {
         task.dependsOn(ENSURE_BASE_SDK_PERMISSIONS_TASK_NAME);
     }
 
-    private static void createInstallEmulatorSystemImageTask(final Project project, final EmulatorConfiguration emulatorConfiguration) {
-        final Task task = project.getTasks().create(INSTALL_ANDROID_EMULATOR_SYSTEM_IMAGE_TASK_NAME, InstallAndroidEmulatorSystemImageTask.class, emulatorConfiguration);
+    private static void createInstallEmulatorSystemImageTask(final Project project, final List<EmulatorConfiguration> emulatorConfigurations) {
+        final Task task = project.getTasks().create(INSTALL_ANDROID_EMULATOR_SYSTEM_IMAGE_TASK_NAME, InstallAndroidEmulatorSystemImageTask.class, emulatorConfigurations);
         task.dependsOn(ENSURE_INSTALLED_SDK_PERMISSIONS_TASK_NAME, ADD_ADDITIONAL_SDK_REPOSITORIES_TASK_NAME);
     }
 
-    private static void createCreateEmulatorTask(final Project project, final EmulatorConfiguration emulatorConfiguration) {
-        final Task createEmulatorTask = project.getTasks().create(
-                CREATE_ANDROID_EMULATOR_TASK_NAME, CreateEmulatorExecTask.class, emulatorConfiguration);
-        createEmulatorTask.dependsOn(
-                INSTALL_ANDROID_EMULATOR_SYSTEM_IMAGE_TASK_NAME,
-                INSTALL_SDK_DEPENDENCIES_TASK_NAME,
-                ENSURE_INSTALLED_SDK_PERMISSIONS_TASK_NAME);
+    /**
+     * The tasks managing a single emulator. When the build runs a matrix of emulators, each emulator's task names are
+     * suffixed with the name of its entry.
+     */
+    private static class EmulatorTasks {
+        private final String taskNameSuffix;
+        private final ManagedEmulator managedEmulator;
+        private final BootTimings bootTimings;
+        private final AtomicReference<Process> emulatorProcess;
+
+        private EmulatorTasks(final String taskNameSuffix, final ManagedEmulator managedEmulator, final BootTimings bootTimings, final AtomicReference<Process> emulatorProcess) {
+            this.taskNameSuffix = taskNameSuffix;
+            this.managedEmulator = managedEmulator;
+            this.bootTimings = bootTimings;
+            this.emulatorProcess = emulatorProcess;
+        }
+
+        private String taskName(final String baseName) {
+            return baseName + taskNameSuffix;
+        }
     }
 
-    private static void createEmulatorLifecycleTasks(final Project project, final EmulatorConfiguration emulatorConfiguration, final AdbProxy adbProxy) {
+    /**
+     * @param avdTaskNameSuffix The task name suffix of the emulator that creates the AVD, which differs from the
+     *                          emulator's own for all but the first instance of a shared AVD.
+     */
+    private static EmulatorTasks createEmulatorTasks(final Project project, final EmulatorConfiguration emulatorConfiguration, final AdbServer adbServer, final EmulatorMetrics metrics, final String taskNameSuffix, final String avdTaskNameSuffix) {
+        final EmulatorMetrics.Emulator emulatorMetrics = metrics.forEmulator(emulatorConfiguration.getInstanceName());
+        final AdbProxy adbProxy = new AdbProxy(project, emulatorConfiguration, adbServer);
+        final EmulatorSnapshots emulatorSnapshots = new EmulatorSnapshots(emulatorConfiguration, adbProxy);
+
         final AtomicReference<Process> emulatorProcess = new AtomicReference<>();
         final AtomicReference<Process> waitForDeviceProcess = new AtomicReference<>();
+        final BootTimings bootTimings = new BootTimings();
+
+        final EmulatorLauncher emulatorLauncher =
+                new EmulatorLauncher(project, emulatorConfiguration, emulatorProcess, waitForDeviceProcess);
+        final BootAdmissionController bootAdmissionController =
+                new BootAdmissionController(emulatorConfiguration, project.getLogger());
+        final EmulatorLease emulatorLease = emulatorConfiguration.getRemoteDevicesEnabled()
+                ? new RemoteDevicePool(emulatorConfiguration, adbProxy, project.getLogger())
+                : new EmulatorBrokerClient(emulatorConfiguration, project.getLogger());
+        final EmulatorBootWaiter emulatorBootWaiter = new EmulatorBootWaiter(
+                emulatorConfiguration, adbProxy, emulatorLauncher, waitForDeviceProcess, emulatorMetrics, bootTimings, project.getLogger());
+        final EmulatorHealthMonitor emulatorHealthMonitor = new EmulatorHealthMonitor(
+                emulatorConfiguration, adbProxy, emulatorLauncher, emulatorBootWaiter, emulatorSnapshots, project.getLogger());
+        emulatorMetrics.track(emulatorProcess::get, emulatorHealthMonitor::getReplacementCount);
 
-        createStartEmulatorTask(project, emulatorConfiguration, adbProxy, emulatorProcess, waitForDeviceProcess);
-        createWaitForEmulatorTask(project, emulatorConfiguration, waitForDeviceProcess);
-        createStopEmulatorTask(project, emulatorProcess);
+        final EmulatorTasks emulator = new EmulatorTasks(taskNameSuffix,
+                new ManagedEmulator(emulatorConfiguration, adbProxy, emulatorSnapshots, emulatorHealthMonitor, emulatorMetrics),
+                bootTimings, emulatorProcess);
+
+        final Task createTask;
+        if (emulatorConfiguration.getCreatesAvd()) {
+            createTask = project.getTasks().create(
+                    emulator.taskName(CREATE_ANDROID_EMULATOR_TASK_NAME), CreateEmulatorExecTask.class,
+                    emulatorConfiguration, adbProxy);
+            createTask.dependsOn(
+                    INSTALL_ANDROID_EMULATOR_SYSTEM_IMAGE_TASK_NAME,
+                    INSTALL_SDK_DEPENDENCIES_TASK_NAME,
+                    ENSURE_INSTALLED_SDK_PERMISSIONS_TASK_NAME);
+            final List<BootTimings> emulatorBootTimings = Collections.singletonList(bootTimings);
+            createTask.doFirst(new StartBootPhase(emulatorBootTimings, BootTimings.Phase.AVD_CREATE));
+            createTask.doLast(new StopBootPhase(emulatorBootTimings, BootTimings.Phase.AVD_CREATE));
+        } else {
+            createTask = project.getTasks().create(emulator.taskName(CREATE_ANDROID_EMULATOR_TASK_NAME));
+            createTask.dependsOn(CREATE_ANDROID_EMULATOR_TASK_NAME + avdTaskNameSuffix);
+        }
+        if (emulatorConfiguration.getSharedAvd()) {
+            // Lets the instances run at once from the AVD, each with its own throwaway changes
+            emulatorLauncher.addLaunchArguments(Collections.singletonList(EmulatorLauncher.READ_ONLY_ARGUMENT));
+        }
+
+        final Task startTask = project.getTasks().create(
+                emulator.taskName(START_ANDROID_EMULATOR_TASK_NAME), StartAndroidEmulatorTask.class,
+                emulatorConfiguration, adbProxy, emulatorLauncher, bootAdmissionController, emulatorLease, emulatorMetrics);
+        startTask.dependsOn(ENSURE_INSTALLED_SDK_PERMISSIONS_TASK_NAME, INSTALL_SDK_DEPENDENCIES_TASK_NAME);
+        if (!emulatorConfiguration.getRemoteDevicesEnabled()) {
+            // Remote devices are already running, so there's no AVD for the build to create
+            startTask.dependsOn(createTask);
+        }
+        startTask.finalizedBy(emulator.taskName(STOP_ANDROID_EMULATOR_TASK_NAME));
+
+        final Task waitTask = project.getTasks().create(
+                emulator.taskName(WAIT_FOR_ANDROID_EMULATOR_TASK_NAME), WaitForAndroidEmulatorTask.class,
+                emulatorBootWaiter, bootAdmissionController, emulatorLease, emulatorHealthMonitor);
+        waitTask.dependsOn(ENSURE_BASE_SDK_PERMISSIONS_TASK_NAME, startTask);
+
+        final Task prepareTask = project.getTasks().create(
+                emulator.taskName(PREPARE_ANDROID_EMULATOR_TASK_NAME), PrepareAndroidEmulatorTask.class,
+                emulatorConfiguration, adbProxy);
+        prepareTask.dependsOn(waitTask);
+        prepareTask.doLast(new RecordBootTimes(emulatorConfiguration, emulatorLauncher, emulatorLease, bootTimings,
+                emulatorMetrics));
+        prepareTask.finalizedBy(CHECK_ANDROID_EMULATOR_BOOT_TIME_TASK_NAME);
+
+        final Task saveSnapshotTask = project.getTasks().create(
+                emulator.taskName(SAVE_ANDROID_EMULATOR_SNAPSHOT_TASK_NAME), SaveAndroidEmulatorSnapshotTask.class,
+                emulatorConfiguration, emulatorSnapshots);
+        saveSnapshotTask.dependsOn(prepareTask);
+
+        final Task stopTask = project.getTasks().create(
+                emulator.taskName(STOP_ANDROID_EMULATOR_TASK_NAME), StopAndroidEmulatorTask.class,
+                emulatorProcess, emulatorConfiguration, bootAdmissionController, emulatorLease, emulatorHealthMonitor);
+        stopTask.dependsOn(ENSURE_INSTALLED_SDK_PERMISSIONS_TASK_NAME, startTask);
+        stopTask.mustRunAfter(waitTask, prepareTask, saveSnapshotTask);
+
+        return emulator;
+    }
+
+    /**
+     * Orders the tasks of the matrix so that as many emulators boot at once as boot admission allows. Tasks of a
+     * project run one at a time, so boots only overlap if emulators are started before waiting for the earlier ones.
+     * Other builds on the host may hold some of the slots, so a start task may still wait on a slot held by one of the
+     * build's own emulators, whose wait task can't run until it finishes. The waiting boot releases the slots of the
+     * build's emulators that have booted, which are free to go to it, see {@link BootAdmissionController}.
+     */
+    private static void orderMatrixBoots(final Project project, final List<EmulatorTasks> emulators) {
+        final EmulatorConfiguration primaryConfiguration = emulators.get(0).managedEmulator.getConfiguration();
+        final int concurrentBoots = primaryConfiguration.getBootAdmissionEnabled()
+                ? primaryConfiguration.getMaxConcurrentBoots()
+                : emulators.size();
+        for (int i = 0; i < emulators.size(); i++) {
+            final Task waitTask = project.getTasks().getByName(emulators.get(i).taskName(WAIT_FOR_ANDROID_EMULATOR_TASK_NAME));
+            for (int j = 0; j < Math.min(emulators.size(), i + concurrentBoots); j++) {
+                waitTask.mustRunAfter(emulators.get(j).taskName(START_ANDROID_EMULATOR_TASK_NAME));
+            }
+            if (i >= concurrentBoots) {
+                project.getTasks().getByName(emulators.get(i).taskName(START_ANDROID_EMULATOR_TASK_NAME))
+                        .mustRunAfter(emulators.get(i - concurrentBoots).taskName(WAIT_FOR_ANDROID_EMULATOR_TASK_NAME));
+            }
+        }
+    }
+
+    /**
+     * Creates tasks with the names used for a single emulator that run the same task of every emulator in the matrix.
+     */
+    private static void createMatrixAggregateTasks(final Project project, final List<String> taskNameSuffixes) {
+        matrixAggregateTasks(taskNameSuffixes).forEach((name, emulatorTaskNames) ->
+                project.getTasks().create(name).dependsOn(emulatorTaskNames.toArray()));
+    }
+
+    /**
+     * The emulators' own tasks are suffixed whenever there is a matrix, even of a single entry, or several instances,
+     * which leaves the names used for a single emulator free for the aggregates.
+     *
+     * @param taskNameSuffixes The task name suffix of each emulator.
+     * @return The names of each aggregate task and the emulator tasks it runs, or nothing if the only emulator's tasks
+     *         already have the names.
+     */
+    static Map<String, List<String>> matrixAggregateTasks(final List<String> taskNameSuffixes) {
+        final Map<String, List<String>> aggregates = new LinkedHashMap<>();
+        if (taskNameSuffixes.stream().allMatch(String::isEmpty)) {
+            return aggregates;
+        }
+        for (final String name : Arrays.asList(
+                CREATE_ANDROID_EMULATOR_TASK_NAME,
+                START_ANDROID_EMULATOR_TASK_NAME,
+                WAIT_FOR_ANDROID_EMULATOR_TASK_NAME,
+                PREPARE_ANDROID_EMULATOR_TASK_NAME,
+                SAVE_ANDROID_EMULATOR_SNAPSHOT_TASK_NAME,
+                STOP_ANDROID_EMULATOR_TASK_NAME)) {
+            final List<String> emulatorTaskNames = new ArrayList<>();
+            for (final String taskNameSuffix : taskNameSuffixes) {
+                emulatorTaskNames.add(name + taskNameSuffix);
+            }
+            aggregates.put(name, emulatorTaskNames);
+        }
+        return aggregates;
+    }
+
+    private static void createTestTasks(final Project project, final AndroidEmulatorExtension extension, final List<EmulatorTasks> emulators) {
+        final EmulatorConfiguration primaryConfiguration = emulators.get(0).managedEmulator.getConfiguration();
+        // The test classes are only split between the instances of each entry
+        final long instanceCount = emulators.stream().filter(emulator -> emulator.managedEmulator.getConfiguration()
+                .getEmulatorName().equals(primaryConfiguration.getEmulatorName())).count();
+        project.getTasks().create(RECORD_ANDROID_TEST_TIMINGS_TASK_NAME, RecordAndroidTestTimingsTask.class,
+                primaryConfiguration, (int) instanceCount);
+
+        final List<ManagedEmulator> managedEmulators = new ArrayList<>();
+        for (final EmulatorTasks emulator : emulators) {
+            managedEmulators.add(emulator.managedEmulator);
+        }
+        if (extension.getTestFixtures().getSourceDir() != null) {
+            final Task fixturesTask = project.getTasks().create(PUSH_ANDROID_TEST_FIXTURES_TASK_NAME,
+                    PushAndroidTestFixturesTask.class, managedEmulators, extension.getTestFixtures());
+            for (final EmulatorTasks emulator : emulators) {
+                fixturesTask.dependsOn(emulator.taskName(PREPARE_ANDROID_EMULATOR_TASK_NAME));
+                // Pushed before the clean snapshot is saved so restoring it doesn't lose the fixtures
+                project.getTasks().getByName(emulator.taskName(SAVE_ANDROID_EMULATOR_SNAPSHOT_TASK_NAME))
+                        .dependsOn(fixturesTask);
+            }
+        }
+
+        final Task task = project.getTasks().create(RUN_ANDROID_INSTRUMENTATION_TESTS_TASK_NAME,
+                RunAndroidInstrumentationTestsTask.class, managedEmulators, extension.getInstrumentationTests());
+        for (final EmulatorTasks emulator : emulators) {
+            task.dependsOn(emulator.taskName(PREPARE_ANDROID_EMULATOR_TASK_NAME),
+                    emulator.taskName(SAVE_ANDROID_EMULATOR_SNAPSHOT_TASK_NAME));
+            task.finalizedBy(emulator.taskName(STOP_ANDROID_EMULATOR_TASK_NAME));
+        }
+        task.finalizedBy(RECORD_ANDROID_TEST_TIMINGS_TASK_NAME);
     }
 
-    private static void createStartEmulatorTask(
-            final Project project,
-            final EmulatorConfiguration emulatorConfiguration,
-            final AdbProxy adbProxy,
-            final AtomicReference<Process> emulatorProcess,
-            final AtomicReference<Process> waitForDeviceProcess) {
-        final Task task = project.getTasks().create(START_ANDROID_EMULATOR_TASK_NAME, StartAndroidEmulatorTask.class,
-                emulatorConfiguration, adbProxy, emulatorProcess, waitForDeviceProcess);
+    /**
+     * Times installing the SDK, which is shared by all the emulators, and creates the task checking the emulators' boot
+     * time history once they are ready.
+     */
+    private static void createBootTimeTasks(final Project project, final AndroidEmulatorExtension extension, final List<EmulatorTasks> emulators) {
+        final List<BootTimings> bootTimings = new ArrayList<>();
+        final List<EmulatorConfiguration> emulatorConfigurations = new ArrayList<>();
+        for (final EmulatorTasks emulator : emulators) {
+            bootTimings.add(emulator.bootTimings);
+            emulatorConfigurations.add(emulator.managedEmulator.getConfiguration());
+        }
+        for (final String name : Arrays.asList(INSTALL_SDK_DEPENDENCIES_TASK_NAME, INSTALL_ANDROID_EMULATOR_SYSTEM_IMAGE_TASK_NAME)) {
+            final Task task = project.getTasks().getByName(name);
+            task.doFirst(new StartBootPhase(bootTimings, BootTimings.Phase.SDK_INSTALL));
+            task.doLast(new StopBootPhase(bootTimings, BootTimings.Phase.SDK_INSTALL));
+        }
 
-        task.dependsOn(ENSURE_INSTALLED_SDK_PERMISSIONS_TASK_NAME, INSTALL_SDK_DEPENDENCIES_TASK_NAME, CREATE_ANDROID_EMULATOR_TASK_NAME);
-        task.finalizedBy(STOP_ANDROID_EMULATOR_TASK_NAME);
+        final Task checkTask = project.getTasks().create(CHECK_ANDROID_EMULATOR_BOOT_TIME_TASK_NAME,
+                CheckAndroidEmulatorBootTimeTask.class, emulatorConfigurations, extension.getBootTimeRegression());
+        for (final EmulatorTasks emulator : emulators) {
+            checkTask.mustRunAfter(emulator.taskName(PREPARE_ANDROID_EMULATOR_TASK_NAME));
+        }
     }
 
-    private static void createWaitForEmulatorTask(final Project project, final EmulatorConfiguration emulatorConfiguration, final AtomicReference<Process> waitForDeviceProcess) {
-        final Task task = project.getTasks().create(WAIT_FOR_ANDROID_EMULATOR_TASK_NAME, WaitForAndroidEmulatorTask.class, emulatorConfiguration, waitForDeviceProcess);
+    /**
+     * Samples the resource usage of the emulators while each test task runs, each with its own sampler so test tasks
+     * don't write to each other's samples. Test tasks that fail don't run their last actions, so sampling is stopped by
+     * a task finalizing the test task, which runs before the emulators are stopped.
+     */
+    private static void sampleResources(final Project project, final AndroidEmulatorExtension extension, final List<EmulatorTasks> emulators) {
+        final AndroidEmulatorExtension.ResourceSamplingExtension configuration = extension.getResourceSampling();
+        if (!configuration.getEnabled() || !ResourceSampler.isSupported()) {
+            return;
+        }
+        final Map<String, Supplier<Process>> emulatorProcesses = new LinkedHashMap<>();
+        for (final EmulatorTasks emulator : emulators) {
+            emulatorProcesses.put(emulator.managedEmulator.getConfiguration().getInstanceName(), emulator.emulatorProcess::get);
+        }
+
+        for (final Class<? extends Task> testTaskType : Arrays.asList(
+                DeviceProviderInstrumentTestTask.class, RunAndroidInstrumentationTestsTask.class)) {
+            project.getTasks().withType(testTaskType, task -> {
+                final ResourceSampler resourceSampler =
+                        new ResourceSampler(emulatorProcesses, configuration.getIntervalMillis(), project.getLogger());
+                task.doFirst(new StartResourceSampling(resourceSampler, emulators.get(0).managedEmulator.getConfiguration()));
+
+                final Task stopSamplingTask = project.getTasks().create(
+                        STOP_RESOURCE_SAMPLING_TASK_NAME + toTaskNameSuffix(task.getName()));
+                stopSamplingTask.doLast(new StopResourceSampling(resourceSampler));
+                task.finalizedBy(stopSamplingTask);
+                for (final EmulatorTasks emulator : emulators) {
+                    project.getTasks().getByName(emulator.taskName(STOP_ANDROID_EMULATOR_TASK_NAME))
+                            .mustRunAfter(stopSamplingTask);
+                }
+            });
+        }
+    }
 
-        task.dependsOn(ENSURE_BASE_SDK_PERMISSIONS_TASK_NAME, START_ANDROID_EMULATOR_TASK_NAME);
+    static String toTaskNameSuffix(final String matrixEntryName) {
+        return Character.toUpperCase(matrixEntryName.charAt(0)) + matrixEntryName.substring(1);
     }
 
-    private static void createStopEmulatorTask(final Project project, final AtomicReference<Process> emulatorProcess) {
-        final Task task = project.getTasks().create(STOP_ANDROID_EMULATOR_TASK_NAME, StopAndroidEmulatorTask.class, emulatorProcess);
+    static String instanceTaskNameSuffix(final String entrySuffix, final int instance, final int instances) {
+        return instances > 1 ? entrySuffix + "Instance" + (instance + 1) : entrySuffix;
+    }
 
-        task.dependsOn(ENSURE_INSTALLED_SDK_PERMISSIONS_TASK_NAME, START_ANDROID_EMULATOR_TASK_NAME);
-        task.mustRunAfter(WAIT_FOR_ANDROID_EMULATOR_TASK_NAME);
+    /**
+     * Starts the build's own ADB server as soon as it's known the emulator will be started so it is warm by the time
+     * the emulator tasks need it, and kills it once the build finishes.
+     */
+    private static void prewarmAdbServer(final Project project, final AdbServer adbServer) {
+        final Provider<AdbServerService> service = project.getGradle().getSharedServices().registerIfAbsent(
+                "androidEmulatorAdbServer" + project.getPath(), AdbServerService.class, spec -> { });
+        project.getGradle().getTaskGraph().whenReady(graph -> {
+            if (graph.getAllTasks().stream().anyMatch(StartAndroidEmulatorTask.class::isInstance)) {
+                adbServer.startInBackground();
+                service.get().killAtEndOfBuild(adbServer);
+            }
+        });
+    }
+
+    /**
+     * Exports the metrics of the emulators for as long as the build runs, if it starts any emulators.
+     */
+    private static void exportMetrics(final Project project, final AndroidEmulatorExtension extension, final EmulatorMetrics metrics) {
+        final AndroidEmulatorExtension.MetricsExtension configuration = extension.getMetrics();
+        if (!configuration.isEnabled()) {
+            return;
+        }
+        final File textFile = configuration.getTextFileDirectory() == null
+                ? null
+                : MetricsExporter.textFileFor(configuration.getTextFileDirectory(), project.getProjectDir());
+        final MetricsExporter exporter = new MetricsExporter(metrics, configuration, textFile, project.getLogger());
+        final Provider<MetricsExporterService> service = project.getGradle().getSharedServices().registerIfAbsent(
+                "androidEmulatorMetrics" + project.getPath(), MetricsExporterService.class, spec -> { });
+        project.getGradle().getTaskGraph().whenReady(graph -> {
+            if (graph.getAllTasks().stream().anyMatch(StartAndroidEmulatorTask.class::isInstance)) {
+                exporter.start();
+                service.get().stopAtEndOfBuild(exporter);
+            }
+        });
     }
 
     @Override
@@ -105,19 +566,57 @@ public class AndroidEmulatorPlugin implements Plugin<Project> {
                 throw new TaskInstantiationException("Android extension not found. Make sure the Android plugin is applied");
             }
 
-            final EmulatorConfiguration emulatorConfiguration = new EmulatorConfiguration(project, androidExtension, extension);
-            final AdbProxy adbProxy = new AdbProxy(project, emulatorConfiguration);
-
-            if (emulatorConfiguration.getEnableForAndroidTests()) {
-                setUpAndroidTests(p);
+            final List<EmulatorConfiguration> emulatorConfigurations = new ArrayList<>();
+            final List<String> taskNameSuffixes = new ArrayList<>();
+            final List<String> avdTaskNameSuffixes = new ArrayList<>();
+            final List<AndroidEmulatorExtension.EmulatorExtension> entries = extension.getMatrix().isEmpty()
+                    ? Collections.singletonList(extension.getEmulator())
+                    : new ArrayList<>(extension.getMatrix());
+            // The emulators share a single ADB server owned by the build
+            final Integer adbServerPort = EmulatorConfiguration.allocateAdbServerPort(extension);
+            final int emulatorCount = entries.stream().mapToInt(entry -> Math.max(1, entry.getInstances())).sum();
+            for (final AndroidEmulatorExtension.EmulatorExtension entry : entries) {
+                final String entrySuffix = extension.getMatrix().isEmpty() ? "" : toTaskNameSuffix(entry.getName());
+                final int instances = Math.max(1, entry.getInstances());
+                for (int instance = 0; instance < instances; instance++) {
+                    emulatorConfigurations.add(new EmulatorConfiguration(p, androidExtension, extension, entry,
+                            instance, emulatorConfigurations.size(), emulatorCount, adbServerPort));
+                    taskNameSuffixes.add(instanceTaskNameSuffix(entrySuffix, instance, instances));
+                    // Only the first instance creates the AVD the instances share
+                    avdTaskNameSuffixes.add(instanceTaskNameSuffix(entrySuffix, 0, instances));
+                }
             }
+            if (extension.getSnapshotIsolation() && entries.stream().anyMatch(entry -> entry.getInstances() > 1)) {
+                p.getLogger().warn("Snapshot isolation is disabled for emulators with several instances, which can't " +
+                        "save snapshots");
+            }
+            final EmulatorConfiguration primaryConfiguration = emulatorConfigurations.get(0);
+            final AdbServer adbServer = new AdbServer(primaryConfiguration, project.getLogger());
+            final EmulatorMetrics metrics = new EmulatorMetrics();
 
-            createEnsurePermissionsTasks(p, emulatorConfiguration);
+            createEnsurePermissionsTasks(p, primaryConfiguration);
             createAddAdditionalSdkRepositoriesTask(p);
-            createInstallSdkDependenciesTask(p, emulatorConfiguration);
-            createInstallEmulatorSystemImageTask(p, emulatorConfiguration);
-            createCreateEmulatorTask(p, emulatorConfiguration);
-            createEmulatorLifecycleTasks(p, emulatorConfiguration, adbProxy);
+            createInstallSdkDependenciesTask(p, primaryConfiguration);
+            createInstallEmulatorSystemImageTask(p, emulatorConfigurations);
+
+            final List<EmulatorTasks> emulators = new ArrayList<>();
+            for (int i = 0; i < emulatorConfigurations.size(); i++) {
+                emulators.add(createEmulatorTasks(p, emulatorConfigurations.get(i), adbServer, metrics, taskNameSuffixes.get(i), avdTaskNameSuffixes.get(i)));
+            }
+            if (emulators.size() > 1) {
+                orderMatrixBoots(p, emulators);
+            }
+            createMatrixAggregateTasks(p, taskNameSuffixes);
+            createTestTasks(p, extension, emulators);
+            createBootTimeTasks(p, extension, emulators);
+            // Before the Android tests are set up so sampling starts after waiting for a healthy emulator
+            sampleResources(p, extension, emulators);
+            prewarmAdbServer(p, adbServer);
+            exportMetrics(p, extension, metrics);
+
+            if (primaryConfiguration.getEnableForAndroidTests()) {
+                setUpAndroidTests(p, emulators);
+            }
         });
     }
 }
\ No newline at end of file
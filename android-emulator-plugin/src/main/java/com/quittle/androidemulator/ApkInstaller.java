@@ -0,0 +1,151 @@
+package com.quittle.androidemulator;
+
+import org.gradle.api.GradleException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Installs APKs on the emulator, skipping those already installed. The SHA-256 of each installed APK is recorded in a
+ * file on the device itself, so the record is always in step with what's installed: wiping the device or restoring a
+ * snapshot rolls back the record along with the apps.
+ */
+public class ApkInstaller {
+    static final String RECORD_PATH = "/data/local/tmp/android-emulator-plugin-installed-apks.txt";
+    private static final String HASH_ALGORITHM = "SHA-256";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final EmulatorConfiguration emulatorConfiguration;
+    private final AdbProxy adbProxy;
+
+    public ApkInstaller(final EmulatorConfiguration emulatorConfiguration, final AdbProxy adbProxy) {
+        this.emulatorConfiguration = emulatorConfiguration;
+        this.adbProxy = adbProxy;
+    }
+
+    /**
+     * Installs the APKs whose hash differs from the one recorded on the device, in the order given.
+     *
+     * @param apkHashes The APKs to install and their hashes, as returned by {@link #hash(List)}.
+     * @param force     Whether to install all the APKs regardless of the record, such as when they are known to have
+     *                  been uninstalled since.
+     * @return The APKs that were installed.
+     * @throws GradleException if an APK fails to install.
+     */
+    public List<File> install(final Map<File, String> apkHashes, final boolean force) throws GradleException {
+        final String serial = emulatorConfiguration.getEmulatorSerial();
+        final Map<String, String> record = force ? new TreeMap<>() : readRecord();
+        final List<File> installed = new ArrayList<>();
+        for (final Map.Entry<File, String> apk : apkHashes.entrySet()) {
+            if (apk.getValue().equals(record.get(apk.getKey().getName()))) {
+                continue;
+            }
+            adbProxy.stream(line -> { }, "-s", serial, "install", "-r", "-t", apk.getKey().getAbsolutePath());
+            record.put(apk.getKey().getName(), apk.getValue());
+            installed.add(apk.getKey());
+        }
+        if (!installed.isEmpty()) {
+            writeRecord(record);
+        }
+        return installed;
+    }
+
+    private Map<String, String> readRecord() {
+        final List<String> lines = new ArrayList<>();
+        // The record doesn't exist until something has been installed
+        adbProxy.stream(lines::add, "-s", emulatorConfiguration.getEmulatorSerial(),
+                "shell", "cat " + RECORD_PATH + " 2>/dev/null || true");
+        return parseRecord(lines);
+    }
+
+    private void writeRecord(final Map<String, String> record) {
+        final Path recordFile;
+        try {
+            recordFile = Files.createTempFile("installed-apks", ".txt");
+        } catch (final IOException e) {
+            throw new GradleException("Unable to record the installed APKs", e);
+        }
+        try {
+            Files.write(recordFile, formatRecord(record), StandardCharsets.UTF_8);
+            adbProxy.stream(line -> { }, "-s", emulatorConfiguration.getEmulatorSerial(),
+                    "push", recordFile.toString(), RECORD_PATH);
+        } catch (final IOException e) {
+            throw new GradleException("Unable to record the installed APKs", e);
+        } finally {
+            if (!recordFile.toFile().delete()) {
+                recordFile.toFile().deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * @param lines The lines of the record, each of the form {@code <sha-256> <apk file name>}.
+     * @return The hash of each installed APK, keyed by file name.
+     */
+    static Map<String, String> parseRecord(final List<String> lines) {
+        final Map<String, String> record = new TreeMap<>();
+        for (final String line : lines) {
+            final String trimmed = line.trim();
+            final int separator = trimmed.indexOf(' ');
+            if (separator < 0) {
+                continue;
+            }
+            record.put(trimmed.substring(separator + 1), trimmed.substring(0, separator));
+        }
+        return record;
+    }
+
+    static List<String> formatRecord(final Map<String, String> record) {
+        final List<String> lines = new ArrayList<>();
+        record.forEach((name, hash) -> lines.add(hash + " " + name));
+        return lines;
+    }
+
+    /**
+     * Hashes the APKs once so the hashes can be shared between emulators.
+     *
+     * @param apks The APKs to hash.
+     * @return The SHA-256 of each APK as lowercase hex, in the same order as the APKs.
+     * @throws IOException if an APK could not be read.
+     */
+    public static Map<File, String> hash(final List<File> apks) throws IOException {
+        final Map<File, String> hashes = new LinkedHashMap<>();
+        for (final File apk : apks) {
+            hashes.put(apk, sha256(apk));
+        }
+        return hashes;
+    }
+
+    static String sha256(final File file) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Every Java platform supports " + HASH_ALGORITHM, e);
+        }
+        try (InputStream input = Files.newInputStream(file.toPath())) {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            int read = input.read(buffer);
+            while (read != -1) {
+                digest.update(buffer, 0, read);
+                read = input.read(buffer);
+            }
+        }
+        final StringBuilder hex = new StringBuilder();
+        for (final byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,198 @@
+package com.quittle.androidemulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The hardware resources given to each emulator, sized from the host's resources so the emulators together make the
+ * most of the host without over-committing it. Values explicitly configured by the user always take precedence.
+ */
+public class AvdHardwareProfile {
+    static final int MIN_CORES = 1;
+    static final int MAX_CORES = 8;
+    static final long MIN_RAM_MB = 1536;
+    static final long MAX_RAM_MB = 8192;
+    static final long RAM_GRANULARITY_MB = 512;
+    static final long MIN_HOST_RESERVED_RAM_MB = 2048;
+    static final long DEFAULT_DATA_PARTITION_MB = 6144;
+    static final long MIN_DATA_PARTITION_MB = 2048;
+    private static final String DATA_PARTITION_SIZE_KEY = "disk.dataPartition.size";
+
+    private final int cores;
+    private final long ramSizeMb;
+    private final long heapSizeMb;
+    private final long dataPartitionSizeMb;
+    private final boolean dataPartitionSizedFromDisk;
+
+    AvdHardwareProfile(final int cores, final long ramSizeMb, final long heapSizeMb, final long dataPartitionSizeMb) {
+        this(cores, ramSizeMb, heapSizeMb, dataPartitionSizeMb, false);
+    }
+
+    /**
+     * @param dataPartitionSizedFromDisk Whether the data partition size was computed from the free disk space rather
+     *                                   than configured by the user.
+     */
+    AvdHardwareProfile(final int cores, final long ramSizeMb, final long heapSizeMb, final long dataPartitionSizeMb,
+            final boolean dataPartitionSizedFromDisk) {
+        this.cores = cores;
+        this.ramSizeMb = ramSizeMb;
+        this.heapSizeMb = heapSizeMb;
+        this.dataPartitionSizeMb = dataPartitionSizeMb;
+        this.dataPartitionSizedFromDisk = dataPartitionSizedFromDisk;
+    }
+
+    /**
+     * Computes the profile for each emulator.
+     *
+     * @param hostCores      The number of cores available on the host.
+     * @param hostMemoryMb   The total memory of the host in megabytes.
+     * @param freeDiskMb     The free space available for AVDs in megabytes or a negative number if unknown.
+     * @param emulatorCount  The number of emulators that will run at the same time, sharing the host.
+     * @param emulator       The user's configuration, whose values greater than zero override the computed ones.
+     * @return The profile to apply to the AVD.
+     */
+    static AvdHardwareProfile compute(
+            final int hostCores,
+            final long hostMemoryMb,
+            final long freeDiskMb,
+            final int emulatorCount,
+            final AndroidEmulatorExtension.EmulatorExtension emulator) {
+        final int count = Math.max(1, emulatorCount);
+
+        // Leave some of the host for Gradle and the rest of the build
+        final int reservedCores = hostCores <= 4 ? 1 : 2;
+        final int cores = clamp((hostCores - reservedCores) / count, MIN_CORES, MAX_CORES);
+
+        final long reservedRamMb = Math.max(MIN_HOST_RESERVED_RAM_MB, hostMemoryMb / 4);
+        final long ramPerEmulatorMb = (hostMemoryMb - reservedRamMb) / count;
+        final long ramSizeMb = clamp(ramPerEmulatorMb / RAM_GRANULARITY_MB * RAM_GRANULARITY_MB, MIN_RAM_MB, MAX_RAM_MB);
+
+        final long ramSize = emulator.getRamSizeMb() > 0 ? emulator.getRamSizeMb() : ramSizeMb;
+        final long heapSizeMb = ramSize >= 4096 ? 512 : 256;
+
+        // The data partition is allocated sparsely but should still fit on disk when full
+        long dataPartitionSizeMb = DEFAULT_DATA_PARTITION_MB;
+        if (freeDiskMb >= 0) {
+            dataPartitionSizeMb = clamp(freeDiskMb / count / 2, MIN_DATA_PARTITION_MB, DEFAULT_DATA_PARTITION_MB);
+        }
+
+        final boolean dataPartitionConfigured = emulator.getDataPartitionSizeMb() > 0;
+        return new AvdHardwareProfile(
+                emulator.getCores() > 0 ? emulator.getCores() : cores,
+                ramSize,
+                emulator.getHeapSizeMb() > 0 ? emulator.getHeapSizeMb() : heapSizeMb,
+                dataPartitionConfigured ? emulator.getDataPartitionSizeMb() : dataPartitionSizeMb,
+                !dataPartitionConfigured);
+    }
+
+    /**
+     * Computes the profile from the resources of the current host.
+     *
+     * @param avdRoot       Where the AVDs are stored, used to determine free disk space.
+     * @param emulatorCount The number of emulators that will run at the same time, sharing the host.
+     * @param emulator      The user's configuration, whose values override the computed ones.
+     * @return The profile to apply to the AVD.
+     */
+    @SuppressWarnings("deprecation") // getTotalPhysicalMemorySize was renamed in Java 14 and is not yet removed
+    static AvdHardwareProfile forHost(
+            final File avdRoot, final int emulatorCount, final AndroidEmulatorExtension.EmulatorExtension emulator) {
+        final int hostCores = Runtime.getRuntime().availableProcessors();
+
+        long hostMemoryMb = MIN_RAM_MB + MIN_HOST_RESERVED_RAM_MB;
+        final OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
+        if (osBean instanceof com.sun.management.OperatingSystemMXBean) {
+            hostMemoryMb = ((com.sun.management.OperatingSystemMXBean) osBean).getTotalPhysicalMemorySize() >> 20;
+        }
+
+        // The AVD root may not have been created yet
+        File existingDir = avdRoot.getAbsoluteFile();
+        while (existingDir != null && !existingDir.exists()) {
+            existingDir = existingDir.getParentFile();
+        }
+        final long freeDiskMb = existingDir != null ? existingDir.getUsableSpace() >> 20 : -1;
+
+        return compute(hostCores, hostMemoryMb, freeDiskMb, emulatorCount, emulator);
+    }
+
+    public int getCores() {
+        return cores;
+    }
+
+    public long getRamSizeMb() {
+        return ramSizeMb;
+    }
+
+    public long getHeapSizeMb() {
+        return heapSizeMb;
+    }
+
+    public long getDataPartitionSizeMb() {
+        return dataPartitionSizeMb;
+    }
+
+    /**
+     * @return The profile as AVD {@code config.ini} entries.
+     */
+    public Map<String, String> toConfigIni() {
+        final Map<String, String> entries = new LinkedHashMap<>();
+        entries.put("hw.cpu.ncore", String.valueOf(cores));
+        entries.put("hw.ramSize", String.valueOf(ramSizeMb));
+        entries.put("vm.heapSize", String.valueOf(heapSizeMb));
+        entries.put(DATA_PARTITION_SIZE_KEY, dataPartitionSizeMb + "M");
+        return Collections.unmodifiableMap(entries);
+    }
+
+    /**
+     * The free disk space changes from build to build, so the data partition size computed from it is left out.
+     * Otherwise the AVD would be recreated, losing its snapshots, whenever other files come and go on the disk. The AVD
+     * keeps the size it was created with until something else makes it out of date.
+     *
+     * @return The entries of {@link #toConfigIni()} that determine whether the AVD is up-to-date.
+     */
+    public Map<String, String> toUpToDateInput() {
+        final Map<String, String> entries = new LinkedHashMap<>(toConfigIni());
+        if (dataPartitionSizedFromDisk) {
+            entries.remove(DATA_PARTITION_SIZE_KEY);
+        }
+        return Collections.unmodifiableMap(entries);
+    }
+
+    /**
+     * Writes the profile into an AVD's {@code config.ini}, replacing existing values and leaving all other entries
+     * untouched.
+     *
+     * @param configIni The {@code config.ini} of the AVD.
+     * @throws IOException if unable to update the file.
+     */
+    public void applyTo(final File configIni) throws IOException {
+        final Map<String, String> remaining = new LinkedHashMap<>(toConfigIni());
+        final List<String> lines = new ArrayList<>();
+        for (final String line : Files.readAllLines(configIni.toPath(), StandardCharsets.UTF_8)) {
+            final int separator = line.indexOf('=');
+            final String key = separator < 0 ? line.trim() : line.substring(0, separator).trim();
+            final String value = remaining.remove(key);
+            lines.add(value == null ? line : key + "=" + value);
+        }
+        for (final Map.Entry<String, String> entry : remaining.entrySet()) {
+            lines.add(entry.getKey() + "=" + entry.getValue());
+        }
+        Files.write(configIni.toPath(), lines, StandardCharsets.UTF_8);
+    }
+
+    private static int clamp(final int value, final int min, final int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    private static long clamp(final long value, final long min, final long max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
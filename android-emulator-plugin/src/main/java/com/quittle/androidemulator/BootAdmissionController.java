@@ -0,0 +1,330 @@
+package com.quittle.androidemulator;
+
+import org.apache.tools.ant.taskdefs.condition.Os;
+import org.gradle.api.logging.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+/**
+ * Limits how many emulators boot at the same time on the host. Booting is far more CPU and disk intensive than running
+ * so emulators booting all at once each take much longer than if they were booted a few at a time.
+ * <p>
+ * A boot is admitted once it holds one of a fixed number of boot slots, enough time has passed since the previous boot
+ * was admitted, and the host has the CPU and memory available for it. Slots are file locks in a directory shared by all
+ * builds on the host so concurrent builds are also coordinated. The slot is held until the emulator finishes booting.
+ * <p>
+ * Emulators of a matrix are started before the earlier ones are waited for, so the slot of an emulator that has
+ * already booted may only be released once the build gets to its wait task. Boots waiting for a slot check whether the
+ * emulators launched in this JVM have booted and release their slots, so they never wait on the build's own emulators.
+ */
+public class BootAdmissionController {
+    private static final long POLL_INTERVAL_MS = 1000;
+    private static final String SLOT_FILE_PREFIX = "slot-";
+    private static final String STAGGER_FILE_NAME = "last-admission";
+    private static final String MEM_AVAILABLE_PREFIX = "MemAvailable:";
+    private static final int MAX_TIMESTAMP_BYTES = 32;
+
+    /**
+     * File locks are held by the JVM rather than a thread so boots within the same build are serialized here first.
+     */
+    private static final Object STAGGER_LOCK = new Object();
+
+    /**
+     * The controllers in this JVM holding a slot for an emulator that has been launched, each with how to tell whether
+     * its emulator has booted, guarded by the map.
+     */
+    private static final Map<BootAdmissionController, BooleanSupplier> LAUNCHED = new HashMap<>();
+
+    private final EmulatorConfiguration emulatorConfiguration;
+    private final Logger logger;
+    private final AtomicReference<FileChannel> heldSlot = new AtomicReference<>();
+    private final AtomicLong lastQueueWaitMillis = new AtomicLong(0);
+
+    public BootAdmissionController(final EmulatorConfiguration emulatorConfiguration, final Logger logger) {
+        this.emulatorConfiguration = emulatorConfiguration;
+        this.logger = logger;
+    }
+
+    /**
+     * Blocks until the boot is admitted. If the boot isn't admitted within the configured maximum wait, it proceeds
+     * anyway rather than failing the build.
+     */
+    public void acquire() {
+        if (!emulatorConfiguration.getBootAdmissionEnabled() || heldSlot.get() != null) {
+            return;
+        }
+
+        final long start = System.nanoTime();
+        final long maxWaitNanos = TimeUnit.SECONDS.toNanos(emulatorConfiguration.getMaxBootQueueWaitSeconds());
+        final AvdHardwareProfile profile = emulatorConfiguration.getHardwareProfile();
+        final int hostCores = Runtime.getRuntime().availableProcessors();
+        String waitingFor = null;
+        try {
+            while (true) {
+                if (heldSlot.get() == null) {
+                    heldSlot.set(tryAcquireSlot());
+                }
+                if (heldSlot.get() == null && releaseBootedSlots()) {
+                    heldSlot.set(tryAcquireSlot());
+                }
+
+                if (heldSlot.get() == null) {
+                    waitingFor = "a free boot slot";
+                } else if (!hasCapacity(getSystemLoadAverage(), getAvailableMemoryMb(), hostCores, profile)) {
+                    waitingFor = "host CPU and memory to become available";
+                } else if (tryAdmit()) {
+                    break;
+                } else {
+                    waitingFor = "the previous boot's stagger delay to pass";
+                }
+
+                if (System.nanoTime() - start > maxWaitNanos) {
+                    logger.warn("Gave up waiting for {} to boot the emulator after {} seconds. Booting anyway.",
+                            waitingFor, emulatorConfiguration.getMaxBootQueueWaitSeconds());
+                    break;
+                }
+                logger.info("Waiting for {} to boot the emulator", waitingFor);
+                Thread.sleep(POLL_INTERVAL_MS);
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting to boot the emulator", e);
+        } catch (final IOException e) {
+            logger.warn("Unable to coordinate booting with other emulators on the host. Booting anyway.", e);
+        }
+
+        final long queueWaitMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        lastQueueWaitMillis.set(queueWaitMillis);
+        if (waitingFor != null) {
+            logger.lifecycle("Waited {} ms to boot the emulator", queueWaitMillis);
+        }
+    }
+
+    /**
+     * Lets boots waiting for a slot release this one once the emulator has booted, rather than once the build waits
+     * for the emulator.
+     *
+     * @param booted Determines if the emulator has booted. It is called from the threads of other boots.
+     */
+    public void launched(final BooleanSupplier booted) {
+        if (heldSlot.get() == null) {
+            return;
+        }
+        synchronized (LAUNCHED) {
+            LAUNCHED.put(this, booted);
+        }
+    }
+
+    /**
+     * Releases the slots of the other emulators launched in this JVM that have booted.
+     *
+     * @return {@code true} if any slots were released.
+     */
+    private boolean releaseBootedSlots() {
+        final Map<BootAdmissionController, BooleanSupplier> launched;
+        synchronized (LAUNCHED) {
+            launched = new HashMap<>(LAUNCHED);
+        }
+        launched.remove(this);
+
+        boolean released = false;
+        for (final Map.Entry<BootAdmissionController, BooleanSupplier> entry : launched.entrySet()) {
+            if (entry.getValue().getAsBoolean()) {
+                logger.info("Releasing the boot slot of an emulator of this build that has already booted");
+                entry.getKey().release();
+                released = true;
+            }
+        }
+        return released;
+    }
+
+    /**
+     * Frees the boot slot, if held, for the next emulator to boot. This is safe to call multiple times.
+     */
+    public void release() {
+        synchronized (LAUNCHED) {
+            LAUNCHED.remove(this);
+        }
+        final FileChannel slot = heldSlot.getAndSet(null);
+        if (slot == null) {
+            return;
+        }
+        try {
+            // Closing the channel releases its lock
+            slot.close();
+        } catch (final IOException e) {
+            logger.warn("Unable to release emulator boot slot", e);
+        }
+    }
+
+    /**
+     * @return How long the most recent boot waited to be admitted, in milliseconds.
+     */
+    public long getLastQueueWaitMillis() {
+        return lastQueueWaitMillis.get();
+    }
+
+    private FileChannel tryAcquireSlot() throws IOException {
+        final File slotDirectory = emulatorConfiguration.getBootSlotDirectory();
+        if (!slotDirectory.isDirectory() && !slotDirectory.mkdirs()) {
+            throw new IOException("Unable to create directory " + slotDirectory);
+        }
+
+        for (int i = 0; i < emulatorConfiguration.getMaxConcurrentBoots(); i++) {
+            final FileChannel channel = FileChannel.open(new File(slotDirectory, SLOT_FILE_PREFIX + i).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            boolean locked = false;
+            try {
+                locked = tryLock(channel) != null;
+            } finally {
+                if (!locked) {
+                    channel.close();
+                }
+            }
+            if (locked) {
+                return channel;
+            }
+        }
+        return null;
+    }
+
+    private static FileLock tryLock(final FileChannel channel) throws IOException {
+        try {
+            return channel.tryLock();
+        } catch (final OverlappingFileLockException e) {
+            // Held by another emulator in this JVM
+            return null;
+        }
+    }
+
+    /**
+     * Admits the boot if the stagger delay since the previous admission on the host has passed, recording this
+     * admission for the next boot.
+     *
+     * @return {@code true} if admitted.
+     */
+    private boolean tryAdmit() throws IOException {
+        final File staggerFile = new File(emulatorConfiguration.getBootSlotDirectory(), STAGGER_FILE_NAME);
+        final long staggerMillis = TimeUnit.SECONDS.toMillis(emulatorConfiguration.getBootStaggerSeconds());
+        synchronized (STAGGER_LOCK) {
+            try (FileChannel channel = FileChannel.open(staggerFile.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                final FileLock lock = channel.lock();
+                try {
+                    final ByteBuffer buffer = ByteBuffer.allocate(MAX_TIMESTAMP_BYTES);
+                    channel.read(buffer, 0);
+                    final long lastAdmission = parseLong(new String(buffer.array(), 0, buffer.position(),
+                            StandardCharsets.UTF_8).trim());
+                    final long now = System.currentTimeMillis();
+                    if (now - lastAdmission < staggerMillis) {
+                        return false;
+                    }
+
+                    channel.truncate(0);
+                    channel.write(ByteBuffer.wrap(String.valueOf(now).getBytes(StandardCharsets.UTF_8)), 0);
+                    return true;
+                } finally {
+                    lock.release();
+                }
+            }
+        }
+    }
+
+    private static long parseLong(final String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (final NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Determines if the host can take on booting another emulator.
+     *
+     * @param loadAverage       The host's load average over the last minute or a negative number if unknown.
+     * @param availableMemoryMb The memory available to start new processes or a negative number if unknown.
+     * @param hostCores         The number of cores of the host.
+     * @param profile           The hardware of the emulator to boot.
+     * @return {@code true} if the emulator can be booted without over-committing the host.
+     */
+    static boolean hasCapacity(
+            final double loadAverage, final long availableMemoryMb, final int hostCores, final AvdHardwareProfile profile) {
+        final boolean cpuAvailable = loadAverage < 0 || loadAverage + profile.getCores() <= hostCores;
+        final boolean memoryAvailable = availableMemoryMb < 0 || availableMemoryMb >= profile.getRamSizeMb();
+        return cpuAvailable && memoryAvailable;
+    }
+
+    /**
+     * Parses the available memory from the contents of {@code /proc/meminfo}.
+     *
+     * @param meminfo The lines of {@code /proc/meminfo}.
+     * @return The available memory in megabytes or -1 if not present.
+     */
+    static long parseMemAvailableMb(final List<String> meminfo) {
+        for (final String line : meminfo) {
+            if (line.startsWith(MEM_AVAILABLE_PREFIX)) {
+                // The value is always in kB
+                final String[] parts = line.substring(MEM_AVAILABLE_PREFIX.length()).trim().split("\\s+");
+                try {
+                    return Long.parseLong(parts[0]) / 1024;
+                } catch (final NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static double getSystemLoadAverage() {
+        return ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage();
+    }
+
+    /**
+     * Free memory alone understates what is available on Linux, where most otherwise unused memory is put towards the
+     * page cache, so {@code MemAvailable} is preferred when present.
+     */
+    @SuppressFBWarnings(value = "DMI_HARDCODED_ABSOLUTE_FILENAME", justification = "meminfo is always at this path")
+    private static long getAvailableMemoryMb() {
+        if (Os.isName("linux")) {
+            try {
+                final long memAvailableMb = parseMemAvailableMb(Files.readAllLines(Paths.get("/proc/meminfo")));
+                if (memAvailableMb >= 0) {
+                    return memAvailableMb;
+                }
+            } catch (final IOException e) {
+                // Fall back to the free memory reported by the JVM
+                return getFreePhysicalMemoryMb();
+            }
+        }
+        return getFreePhysicalMemoryMb();
+    }
+
+    @SuppressWarnings("deprecation") // getFreePhysicalMemorySize was renamed in Java 14 and is not yet removed
+    private static long getFreePhysicalMemoryMb() {
+        final OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
+        if (osBean instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) osBean).getFreePhysicalMemorySize() >> 20;
+        }
+        return -1;
+    }
+}
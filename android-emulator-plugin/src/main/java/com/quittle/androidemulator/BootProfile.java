@@ -0,0 +1,205 @@
+package com.quittle.androidemulator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * How long each phase of an emulator's boot took, from the timestamps Android records as it boots. The guest's
+ * timestamps are relative to when its kernel started, so the time the emulator itself took to start the guest is the
+ * difference between how long the boot took from the host's point of view and the guest's uptime.
+ * <p>
+ * When the emulator is restored from a snapshot, the guest's timestamps describe the boot that created the snapshot,
+ * so no phases are reported.
+ */
+public class BootProfile {
+    private static final String SECTION_PREFIX = "@@";
+    private static final String UPTIME_SECTION = "uptime";
+    private static final String GETPROP_SECTION = "getprop";
+    private static final String EVENTS_SECTION = "events";
+    private static final String DMESG_SECTION = "dmesg";
+
+    /**
+     * Run in the emulator's shell to print everything the profile is built from. The kernel log may not be readable,
+     * in which case the start of init is taken from the properties instead.
+     */
+    public static final String COLLECT_COMMAND =
+            "echo " + SECTION_PREFIX + UPTIME_SECTION + "; cat /proc/uptime; " +
+            "echo " + SECTION_PREFIX + GETPROP_SECTION + "; getprop | grep ro.boottime.init; " +
+            "echo " + SECTION_PREFIX + EVENTS_SECTION + "; logcat -b events -d | grep boot_progress_; " +
+            "echo " + SECTION_PREFIX + DMESG_SECTION + "; dmesg 2>/dev/null | grep -E 'Run /init|init first stage'; " +
+            "true";
+
+    // e.g. [ro.boottime.init]: [3263437216]
+    private static final Pattern INIT_PROPERTY_PATTERN = Pattern.compile("\\[ro\\.boottime\\.init]: \\[(\\d+)]");
+    // e.g. 10-19 12:00:08.123   345   345 I boot_progress_start: 8123
+    private static final Pattern EVENT_PATTERN = Pattern.compile("\\b(boot_progress_\\w+): (\\d+)\\s*$");
+    // e.g. [    3.263437] Run /init as init process
+    private static final Pattern DMESG_PATTERN = Pattern.compile("^\\[\\s*(\\d+)\\.(\\d{6})]");
+
+    private static final String INIT_STARTED = "init_started";
+    private static final String BOOT_COMPLETED = "boot_completed";
+
+    /**
+     * The phases of the boot in order and the marker that ends each one.
+     */
+    private static final String[][] PHASES = {
+            { "kernel", INIT_STARTED },
+            { "init", "boot_progress_start" },
+            { "zygote", "boot_progress_system_run" },
+            { "system_server", "boot_progress_pms_start" },
+            { "package_scan", "boot_progress_pms_ready" },
+            { "services", "boot_progress_ams_ready" },
+            { "launcher", "boot_progress_enable_screen" },
+            { BOOT_COMPLETED, BOOT_COMPLETED },
+    };
+    private static final String EMULATOR_PHASE = "emulator";
+
+    private final long totalMillis;
+    private final boolean fromSnapshot;
+    private final Map<String, Long> phases;
+    private final Map<String, Long> markers;
+
+    private BootProfile(
+            final long totalMillis,
+            final boolean fromSnapshot,
+            final Map<String, Long> phases,
+            final Map<String, Long> markers) {
+        this.totalMillis = totalMillis;
+        this.fromSnapshot = fromSnapshot;
+        this.phases = Collections.unmodifiableMap(phases);
+        this.markers = Collections.unmodifiableMap(markers);
+    }
+
+    /**
+     * @param hostMillis How long the emulator took to boot, from launching it until Android reported it had booted.
+     * @param output     The output of {@link #COLLECT_COMMAND}.
+     * @return The profile of the boot.
+     */
+    public static BootProfile parse(final long hostMillis, final List<String> output) {
+        final Map<String, Long> markers = new LinkedHashMap<>();
+        long uptimeMillis = -1;
+        long initPropertyMillis = -1;
+        String section = "";
+        for (final String line : output) {
+            if (line.startsWith(SECTION_PREFIX)) {
+                section = line.substring(SECTION_PREFIX.length()).trim();
+                continue;
+            }
+            switch (section) {
+                case UPTIME_SECTION:
+                    uptimeMillis = parseUptimeMillis(line, uptimeMillis);
+                    break;
+                case GETPROP_SECTION:
+                    final Matcher propertyMatcher = INIT_PROPERTY_PATTERN.matcher(line);
+                    if (propertyMatcher.find()) {
+                        initPropertyMillis = TimeUnit.NANOSECONDS.toMillis(Long.parseLong(propertyMatcher.group(1)));
+                    }
+                    break;
+                case EVENTS_SECTION:
+                    // Later events win as they are logged again if the framework restarts during the boot
+                    final Matcher eventMatcher = EVENT_PATTERN.matcher(line);
+                    if (eventMatcher.find()) {
+                        markers.remove(eventMatcher.group(1));
+                        markers.put(eventMatcher.group(1), Long.parseLong(eventMatcher.group(2)));
+                    }
+                    break;
+                case DMESG_SECTION:
+                    final Matcher dmesgMatcher = DMESG_PATTERN.matcher(line);
+                    if (dmesgMatcher.find() && !markers.containsKey(INIT_STARTED)) {
+                        markers.put(INIT_STARTED, TimeUnit.SECONDS.toMillis(Long.parseLong(dmesgMatcher.group(1))) +
+                                TimeUnit.MICROSECONDS.toMillis(Long.parseLong(dmesgMatcher.group(2))));
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (initPropertyMillis >= 0) {
+            markers.putIfAbsent(INIT_STARTED, initPropertyMillis);
+        }
+
+        // The guest can't have been running for longer than the emulator took to boot unless it was restored
+        final boolean fromSnapshot = uptimeMillis < 0 || uptimeMillis > hostMillis;
+        final Map<String, Long> phases = new LinkedHashMap<>();
+        if (!fromSnapshot) {
+            markers.put(BOOT_COMPLETED, uptimeMillis);
+            phases.put(EMULATOR_PHASE, hostMillis - uptimeMillis);
+            long previousMarker = 0;
+            for (final String[] phase : PHASES) {
+                final Long marker = markers.get(phase[1]);
+                // A missing marker's phase is counted as part of the next phase
+                if (marker != null && marker >= previousMarker) {
+                    phases.put(phase[0], marker - previousMarker);
+                    previousMarker = marker;
+                }
+            }
+            markers.remove(BOOT_COMPLETED);
+        }
+        return new BootProfile(hostMillis, fromSnapshot, phases, markers);
+    }
+
+    private static long parseUptimeMillis(final String line, final long defaultMillis) {
+        // e.g. "71.23 260.87", the uptime and idle time in seconds
+        final String[] fields = line.trim().split("\\s+");
+        try {
+            return Math.round(Double.parseDouble(fields[0]) * TimeUnit.SECONDS.toMillis(1));
+        } catch (final NumberFormatException e) {
+            return defaultMillis;
+        }
+    }
+
+    /**
+     * @return How long the boot took from the host's point of view.
+     */
+    public long getTotalMillis() {
+        return totalMillis;
+    }
+
+    /**
+     * @return Whether the emulator was restored from a snapshot, in which case there are no phases.
+     */
+    public boolean isFromSnapshot() {
+        return fromSnapshot;
+    }
+
+    /**
+     * @return How long each phase took in milliseconds, in the order they happened. Together they add up to
+     *         {@link #getTotalMillis()}.
+     */
+    public Map<String, Long> getPhases() {
+        return phases;
+    }
+
+    /**
+     * @return A single line listing the duration of each phase.
+     */
+    public String summarize() {
+        final List<String> parts = new ArrayList<>();
+        phases.forEach((phase, millis) -> parts.add(phase + " " + millis + " ms"));
+        return String.join(", ", parts);
+    }
+
+    /**
+     * @return A human readable breakdown of the boot.
+     */
+    public List<String> formatReport() {
+        final List<String> lines = new ArrayList<>();
+        if (fromSnapshot) {
+            lines.add(String.format("Restored from a snapshot in %d ms", totalMillis));
+            return lines;
+        }
+        lines.add(String.format("Booted in %d ms", totalMillis));
+        phases.forEach((phase, millis) -> lines.add(String.format(Locale.ROOT, "    %-15s %7d ms %5.1f%%",
+                phase, millis, totalMillis > 0 ? millis * 100.0 / totalMillis : 0)));
+        lines.add("Markers, in ms since the guest kernel started:");
+        markers.forEach((marker, millis) -> lines.add(String.format("    %-35s %7d", marker, millis)));
+        return lines;
+    }
+}
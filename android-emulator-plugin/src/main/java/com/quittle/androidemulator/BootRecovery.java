@@ -0,0 +1,63 @@
+package com.quittle.androidemulator;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Escalating recovery steps applied when booting the emulator is retried.
+ */
+public enum BootRecovery {
+    /**
+     * The first attempt boots normally.
+     */
+    NONE(false),
+    /**
+     * Ignores any snapshot which may be corrupt.
+     */
+    COLD_BOOT(true, "-no-snapshot-load"),
+    /**
+     * Resets the AVD back to its initial state.
+     */
+    WIPE_DATA(true, "-no-snapshot-load", "-wipe-data");
+
+    /**
+     * Whether stale {@code .lock} files left behind in the AVD by an emulator that did not shut down cleanly should be
+     * removed before booting.
+     */
+    public final boolean clearLocks;
+    private final List<String> emulatorArguments;
+
+    BootRecovery(final boolean clearLocks, final String... emulatorArguments) {
+        this.clearLocks = clearLocks;
+        this.emulatorArguments = Collections.unmodifiableList(Arrays.asList(emulatorArguments));
+    }
+
+    public List<String> getEmulatorArguments() {
+        return emulatorArguments;
+    }
+
+    /**
+     * Provides the recovery to use for an attempt at booting.
+     *
+     * @param attempt The attempt number, starting at 1.
+     * @return The recovery to apply, with the most aggressive recovery used for all attempts after it.
+     */
+    public static BootRecovery forAttempt(final int attempt) {
+        final BootRecovery[] values = values();
+        return values[Math.max(0, Math.min(attempt - 1, values.length - 1))];
+    }
+
+    /**
+     * Provides the recovery to use for an attempt at booting an instance of an AVD that may be shared. Wiping the data
+     * of a shared AVD would pull it out from under the other instances running from it, so they stop at a cold boot.
+     *
+     * @param attempt   The attempt number, starting at 1.
+     * @param sharedAvd Whether other instances run from the same AVD.
+     * @return The recovery to apply.
+     */
+    public static BootRecovery forAttempt(final int attempt, final boolean sharedAvd) {
+        final BootRecovery recovery = forAttempt(attempt);
+        return sharedAvd && recovery.compareTo(COLD_BOOT) > 0 ? COLD_BOOT : recovery;
+    }
+}
@@ -0,0 +1,329 @@
+package com.quittle.androidemulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.stream.Collectors;
+
+/**
+ * How long getting an emulator ready took in previous builds on this host, used to catch changes that make it slower,
+ * like upgrading the emulator.
+ * <p>
+ * The history is stored as one line per build of
+ * {@code <epoch seconds> <cold|snapshot> <sdk_install> <avd_create> <boot> <ready> <configuration>}, with each duration
+ * in milliseconds or {@code -} if the step didn't run. Only the most recent builds are kept. The file is locked while
+ * it is read or updated, as builds of several projects or instances of a shared AVD may finish booting at once.
+ */
+public class BootTimeHistory {
+    private static final String COMMENT_PREFIX = "#";
+    private static final String MISSING = "-";
+    private static final String COLD = "cold";
+    private static final String SNAPSHOT = "snapshot";
+    private static final int MAX_ENTRIES = 200;
+    private static final int FIXED_FIELDS = 2 + BootTimings.Phase.values().length;
+    private static final long PERCENT = 100;
+    private static final String UNKNOWN_REVISION = "unknown";
+
+    /**
+     * File locks are held by the JVM rather than a thread so updates within the same build are serialized here first.
+     */
+    private static final Object FILE_LOCK = new Object();
+
+    /**
+     * The timings of a single build.
+     */
+    public static class Entry {
+        private final long epochSeconds;
+        private final boolean fromSnapshot;
+        private final Map<BootTimings.Phase, Long> millis;
+        private final String configuration;
+
+        /**
+         * @param epochSeconds  When the build ran.
+         * @param fromSnapshot  Whether the emulator was restored from a snapshot rather than booted.
+         * @param millis        How long each step took. Steps that didn't run are absent.
+         * @param configuration Describes what the timings depend on, from {@link #describeConfiguration}.
+         */
+        public Entry(
+                final long epochSeconds,
+                final boolean fromSnapshot,
+                final Map<BootTimings.Phase, Long> millis,
+                final String configuration) {
+            this.epochSeconds = epochSeconds;
+            this.fromSnapshot = fromSnapshot;
+            this.millis = millis.isEmpty()
+                    ? new EnumMap<>(BootTimings.Phase.class)
+                    : new EnumMap<>(millis);
+            this.configuration = configuration;
+        }
+
+        public long getEpochSeconds() {
+            return epochSeconds;
+        }
+
+        public boolean isFromSnapshot() {
+            return fromSnapshot;
+        }
+
+        public Map<BootTimings.Phase, Long> getMillis() {
+            return Collections.unmodifiableMap(millis);
+        }
+
+        public String getConfiguration() {
+            return configuration;
+        }
+
+        private String format() {
+            final StringBuilder line = new StringBuilder();
+            line.append(epochSeconds).append(' ').append(fromSnapshot ? SNAPSHOT : COLD);
+            for (final BootTimings.Phase phase : BootTimings.Phase.values()) {
+                final Long phaseMillis = millis.get(phase);
+                line.append(' ').append(phaseMillis == null ? MISSING : phaseMillis.toString());
+            }
+            return line.append(' ').append(configuration).toString();
+        }
+
+        private static Entry parse(final String line) {
+            final String[] fields = line.split(" ", FIXED_FIELDS + 1);
+            if (fields.length < FIXED_FIELDS) {
+                throw new IllegalArgumentException("Too few fields in " + line);
+            }
+            final Map<BootTimings.Phase, Long> millis = new EnumMap<>(BootTimings.Phase.class);
+            for (final BootTimings.Phase phase : BootTimings.Phase.values()) {
+                final String value = fields[2 + phase.ordinal()];
+                if (!value.equals(MISSING)) {
+                    millis.put(phase, Long.parseLong(value));
+                }
+            }
+            return new Entry(Long.parseLong(fields[0]), SNAPSHOT.equals(fields[1]), millis,
+                    fields.length > FIXED_FIELDS ? fields[FIXED_FIELDS] : "");
+        }
+    }
+
+    private final List<Entry> entries;
+
+    public BootTimeHistory() {
+        this(new ArrayList<>());
+    }
+
+    private BootTimeHistory(final List<Entry> entries) {
+        this.entries = entries;
+    }
+
+    /**
+     * @param file The history file.
+     * @return The history or an empty history if the file doesn't exist.
+     * @throws IOException if the history file could not be read.
+     */
+    public static BootTimeHistory load(final File file) throws IOException {
+        if (!file.isFile()) {
+            return new BootTimeHistory();
+        }
+        synchronized (FILE_LOCK) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                final FileLock lock = channel.lock(0, Long.MAX_VALUE, true);
+                try {
+                    return parse(readLines(channel));
+                } finally {
+                    lock.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Records the timings of the latest build in the history file, keeping the entries other builds recorded since it
+     * was loaded.
+     *
+     * @param file  The history file, which is created along with its parent directories if necessary.
+     * @param entry The timings of the latest build.
+     * @throws IOException if the history could not be updated.
+     */
+    public static void append(final File file, final Entry entry) throws IOException {
+        Files.createDirectories(file.getParentFile().toPath());
+        synchronized (FILE_LOCK) {
+            try (FileChannel channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                final FileLock lock = channel.lock();
+                try {
+                    final BootTimeHistory history = parse(readLines(channel));
+                    history.record(entry);
+                    final byte[] content = (String.join(System.lineSeparator(), history.format()) +
+                            System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+                    channel.truncate(0);
+                    final ByteBuffer buffer = ByteBuffer.wrap(content);
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer, buffer.position());
+                    }
+                } finally {
+                    lock.release();
+                }
+            }
+        }
+    }
+
+    private static List<String> readLines(final FileChannel channel) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, buffer.position()) < 0) {
+                break;
+            }
+        }
+        final String content = new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8);
+        return Arrays.asList(content.split("\\r?\\n"));
+    }
+
+    static BootTimeHistory parse(final List<String> lines) {
+        final List<Entry> entries = new ArrayList<>();
+        for (final String line : lines) {
+            final String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith(COMMENT_PREFIX)) {
+                continue;
+            }
+            try {
+                entries.add(Entry.parse(trimmed));
+            } catch (final IllegalArgumentException e) {
+                // Skip corrupt lines rather than losing the rest of the history
+                continue;
+            }
+        }
+        return new BootTimeHistory(entries);
+    }
+
+    /**
+     * @param file The history file, which is created along with its parent directories if necessary.
+     * @throws IOException if the history could not be written.
+     */
+    public void save(final File file) throws IOException {
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.write(file.toPath(), format(), StandardCharsets.UTF_8);
+    }
+
+    List<String> format() {
+        final List<String> lines = new ArrayList<>();
+        lines.add(COMMENT_PREFIX + " <epoch seconds> <cold|snapshot> <sdk_install ms> <avd_create ms> <boot ms> " +
+                "<ready ms> <configuration>");
+        entries.subList(Math.max(0, entries.size() - MAX_ENTRIES), entries.size())
+                .forEach(entry -> lines.add(entry.format()));
+        return lines;
+    }
+
+    /**
+     * @param entry The timings of the latest build.
+     */
+    public void record(final Entry entry) {
+        entries.add(entry);
+    }
+
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Compares the median of each step over the most recent builds with its median over the builds before them. Only
+     * builds that booted the same way as the latest build are compared, as restoring a snapshot is much faster than
+     * booting.
+     *
+     * @param thresholdPercent How much slower the recent median may be before it is considered a regression.
+     * @param recentRuns       How many of the most recent builds to compare.
+     * @param baselineRuns     How many of the builds before them to compare against. Nothing is compared until there
+     *                         are at least {@code recentRuns} of them.
+     * @return A description of each step that regressed, empty if none did.
+     */
+    public List<String> findRegressions(final int thresholdPercent, final int recentRuns, final int baselineRuns) {
+        final List<String> regressions = new ArrayList<>();
+        if (entries.isEmpty()) {
+            return regressions;
+        }
+        final Entry latest = entries.get(entries.size() - 1);
+        final List<Entry> comparable = entries.stream()
+                .filter(entry -> entry.fromSnapshot == latest.fromSnapshot)
+                .collect(Collectors.toList());
+        final int recentStart = Math.max(0, comparable.size() - recentRuns);
+        final List<Entry> recent = comparable.subList(recentStart, comparable.size());
+        final List<Entry> baseline = comparable.subList(Math.max(0, recentStart - baselineRuns), recentStart);
+        if (baseline.size() < recentRuns) {
+            return regressions;
+        }
+
+        for (final BootTimings.Phase phase : BootTimings.Phase.values()) {
+            final List<Long> recentMillis = millisOf(recent, phase);
+            final List<Long> baselineMillis = millisOf(baseline, phase);
+            if (recentMillis.isEmpty() || baselineMillis.isEmpty()) {
+                continue;
+            }
+            final long recentMedian = median(recentMillis);
+            final long baselineMedian = median(baselineMillis);
+            if (baselineMedian > 0 && recentMedian * PERCENT > baselineMedian * (PERCENT + thresholdPercent)) {
+                regressions.add(String.format(
+                        "%s (%s): the median of the last %d builds, %d ms, is %d%% more than the median of the %d " +
+                                "builds before them, %d ms",
+                        phase.getName(), latest.fromSnapshot ? SNAPSHOT : COLD, recentMillis.size(), recentMedian,
+                        (recentMedian - baselineMedian) * PERCENT / baselineMedian, baselineMillis.size(),
+                        baselineMedian));
+            }
+        }
+
+        final String baselineConfiguration = baseline.get(baseline.size() - 1).configuration;
+        if (!regressions.isEmpty() && !baselineConfiguration.equals(latest.configuration)) {
+            regressions.add("The configuration changed from " + baselineConfiguration + " to " + latest.configuration);
+        }
+        return regressions;
+    }
+
+    private static List<Long> millisOf(final List<Entry> entries, final BootTimings.Phase phase) {
+        final List<Long> millis = new ArrayList<>();
+        for (final Entry entry : entries) {
+            final Long phaseMillis = entry.millis.get(phase);
+            if (phaseMillis != null) {
+                millis.add(phaseMillis);
+            }
+        }
+        return millis;
+    }
+
+    static long median(final List<Long> values) {
+        final List<Long> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+        final int middle = sorted.size() / 2;
+        return sorted.size() % 2 == 0 ? (sorted.get(middle - 1) + sorted.get(middle)) / 2 : sorted.get(middle);
+    }
+
+    /**
+     * @param emulatorRevision The revision of the emulator package.
+     * @param systemImage      The package of the system image.
+     * @param arguments        The arguments the emulator was launched with.
+     * @return A single line describing what the timings of a build depend on.
+     */
+    public static String describeConfiguration(
+            final String emulatorRevision, final String systemImage, final List<String> arguments) {
+        return "emulator=" + emulatorRevision + " image=" + systemImage + " args=" + String.join(" ", arguments);
+    }
+
+    /**
+     * @param sourceProperties The {@code source.properties} file of the emulator package.
+     * @return The revision of the emulator package or {@code unknown} if it can't be read.
+     */
+    public static String readEmulatorRevision(final File sourceProperties) {
+        final Properties properties = new Properties();
+        try (InputStream inputStream = Files.newInputStream(sourceProperties.toPath())) {
+            properties.load(inputStream);
+        } catch (final IOException e) {
+            return UNKNOWN_REVISION;
+        }
+        return properties.getProperty("Pkg.Revision", UNKNOWN_REVISION);
+    }
+}
@@ -0,0 +1,95 @@
+package com.quittle.androidemulator;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long each step of getting an emulator ready took during this build, recorded as the steps complete.
+ */
+public class BootTimings {
+    /**
+     * The steps of getting an emulator ready, in order.
+     */
+    public enum Phase {
+        /**
+         * Installing the SDK packages and system image. Shared by all the emulators of the build.
+         */
+        SDK_INSTALL("sdk_install"),
+        /**
+         * Creating the AVD.
+         */
+        AVD_CREATE("avd_create"),
+        /**
+         * Launching the emulator until Android reports it has booted.
+         */
+        BOOT("boot"),
+        /**
+         * Preparing the booted emulator for tests.
+         */
+        READY("ready");
+
+        private final String name;
+
+        Phase(final String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return The name of the phase in the history file.
+         */
+        public String getName() {
+            return name;
+        }
+    }
+
+    private final Map<Phase, Long> millis = new EnumMap<>(Phase.class);
+    private final Map<Phase, Long> startNanos = new EnumMap<>(Phase.class);
+    private boolean fromSnapshot = false;
+
+    /**
+     * Starts timing the phase.
+     *
+     * @param phase The phase that started.
+     */
+    public synchronized void start(final Phase phase) {
+        startNanos.put(phase, System.nanoTime());
+    }
+
+    /**
+     * Stops timing the phase, adding the time since it started to the phase's total. Does nothing if the phase wasn't
+     * started.
+     *
+     * @param phase The phase that finished.
+     */
+    public synchronized void stop(final Phase phase) {
+        final Long start = startNanos.remove(phase);
+        if (start != null) {
+            millis.merge(phase, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), Long::sum);
+        }
+    }
+
+    /**
+     * Records the boot and starts timing {@link Phase#READY}.
+     *
+     * @param bootMillis   How long the emulator took to boot.
+     * @param fromSnapshot Whether the emulator was restored from a snapshot rather than booted.
+     */
+    public synchronized void recordBoot(final long bootMillis, final boolean fromSnapshot) {
+        millis.put(Phase.BOOT, bootMillis);
+        this.fromSnapshot = fromSnapshot;
+        start(Phase.READY);
+    }
+
+    /**
+     * @return How long each phase took in milliseconds. Phases that didn't run in this build are absent.
+     */
+    public synchronized Map<Phase, Long> getMillis() {
+        return Collections.unmodifiableMap(new EnumMap<>(millis));
+    }
+
+    public synchronized boolean isFromSnapshot() {
+        return fromSnapshot;
+    }
+}
@@ -0,0 +1,111 @@
+package com.quittle.androidemulator;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Cores an emulator is pinned to, reserved across all builds on the host so emulators of concurrent builds aren't
+ * pinned to the same cores. Each core is a file lock in a directory shared by all builds on the host, like the boot
+ * slots of {@link BootAdmissionController}, so a reservation ends with its build even if the build is killed.
+ */
+public final class CpuReservation implements Closeable {
+    private static final String CPU_FILE_PREFIX = "cpu-";
+
+    /**
+     * The cores reserved within this JVM, guarded by the class. Closing any channel to a file releases every lock the
+     * JVM holds on it, so the files of cores reserved here are never opened again until they are released.
+     */
+    private static final Set<Integer> RESERVED = new HashSet<>();
+
+    private final List<Integer> cpus;
+    private final List<FileChannel> channels;
+
+    private CpuReservation(final List<Integer> cpus, final List<FileChannel> channels) {
+        this.cpus = Collections.unmodifiableList(new ArrayList<>(cpus));
+        this.channels = channels;
+    }
+
+    /**
+     * @param directory The directory shared by all builds on the host.
+     * @param cpus      The cores to reserve.
+     * @return The reservation or empty if any of the cores are reserved by another emulator.
+     * @throws IOException if unable to reserve the cores.
+     */
+    public static Optional<CpuReservation> tryReserve(final File directory, final List<Integer> cpus)
+            throws IOException {
+        synchronized (CpuReservation.class) {
+            if (cpus.stream().anyMatch(RESERVED::contains)) {
+                return Optional.empty();
+            }
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Unable to create directory " + directory);
+            }
+
+            final List<FileChannel> channels = new ArrayList<>();
+            boolean reserved = false;
+            try {
+                for (final int cpu : cpus) {
+                    final FileChannel channel = FileChannel.open(new File(directory, CPU_FILE_PREFIX + cpu).toPath(),
+                            StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                    channels.add(channel);
+                    if (!tryLock(channel)) {
+                        return Optional.empty();
+                    }
+                }
+                reserved = true;
+            } finally {
+                if (!reserved) {
+                    for (final FileChannel channel : channels) {
+                        channel.close();
+                    }
+                }
+            }
+            RESERVED.addAll(cpus);
+            return Optional.of(new CpuReservation(cpus, channels));
+        }
+    }
+
+    private static boolean tryLock(final FileChannel channel) throws IOException {
+        try {
+            return channel.tryLock() != null;
+        } catch (final OverlappingFileLockException e) {
+            // Held by a build whose copy of the plugin was loaded separately in this JVM
+            return false;
+        }
+    }
+
+    public List<Integer> getCpus() {
+        return cpus;
+    }
+
+    /**
+     * Frees the cores for other emulators. This is safe to call multiple times.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (CpuReservation.class) {
+            if (channels.isEmpty()) {
+                return;
+            }
+            try {
+                for (final FileChannel channel : channels) {
+                    // Closing the channel releases its lock
+                    channel.close();
+                }
+            } finally {
+                channels.clear();
+                RESERVED.removeAll(cpus);
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.quittle.androidemulator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds the shell script run on the device after it boots. Everything is combined into a single script so the whole
+ * preparation costs one {@code adb shell} session instead of one process and round trip per step.
+ * <p>
+ * Steps that persist on the device, like global settings, are guarded by a marker file in the device's data partition.
+ * This means they are applied once per AVD and, when the emulator saves its quickboot snapshot on shutdown, baked into
+ * the snapshot so subsequent boots skip them. The marker is cleared along with the rest of the user data if the AVD is
+ * wiped.
+ */
+public final class DeviceSetupScript {
+    static final String MARKER_FILE = "/data/local/tmp/.android-emulator-plugin-setup";
+
+    /**
+     * How long, in seconds, to wait for each service before failing the setup.
+     */
+    static final int SERVICE_TIMEOUT_SEC = 120;
+
+    private final List<String> readinessProbes = new ArrayList<>();
+    private final List<String> persistentSteps = new ArrayList<>();
+    private final List<String> transientSteps = new ArrayList<>();
+
+    DeviceSetupScript(final AndroidEmulatorExtension.DeviceSetupExtension deviceSetup) {
+        for (final String service : deviceSetup.getWaitForServices()) {
+            readinessProbes.add(String.format(
+                    "i=0; until service check %1$s | grep -q ': found'; do " +
+                        "i=$((i+1)); if [ $i -ge %2$d ]; then echo 'Timed out waiting for service %1$s'; exit 1; fi; " +
+                        "sleep 1; " +
+                    "done",
+                    service, SERVICE_TIMEOUT_SEC));
+        }
+        if (deviceSetup.getDisableAnimations()) {
+            persistentSteps.add("settings put global window_animation_scale 0");
+            persistentSteps.add("settings put global transition_animation_scale 0");
+            persistentSteps.add("settings put global animator_duration_scale 0");
+        }
+        if (deviceSetup.getKeepScreenOn()) {
+            persistentSteps.add("svc power stayon true");
+        }
+        if (deviceSetup.getUnlockScreen()) {
+            // The menu key dismisses the default, insecure keyguard
+            transientSteps.add("input keyevent 82");
+        }
+        transientSteps.addAll(deviceSetup.getCommands());
+    }
+
+    /**
+     * @return {@code true} if there is nothing to run on the device.
+     */
+    public boolean isEmpty() {
+        return readinessProbes.isEmpty() && persistentSteps.isEmpty() && transientSteps.isEmpty();
+    }
+
+    /**
+     * Builds the script to pass to {@code adb shell}. The script exits with a non-zero status as soon as any step fails.
+     *
+     * @return A single line of shell script.
+     */
+    public String build() {
+        final List<String> parts = new ArrayList<>(readinessProbes);
+        if (!persistentSteps.isEmpty()) {
+            final String marker = Integer.toHexString(String.join("\n", persistentSteps).hashCode());
+            parts.add(String.format(
+                    "if [ \"$(cat %1$s 2>/dev/null)\" != '%2$s' ]; then %3$s && echo '%2$s' > %1$s || exit 1; fi",
+                    MARKER_FILE, marker, String.join(" && ", persistentSteps)));
+        }
+        for (final String step : transientSteps) {
+            parts.add("{ " + step + "; } || exit 1");
+        }
+        return String.join("; ", parts);
+    }
+}
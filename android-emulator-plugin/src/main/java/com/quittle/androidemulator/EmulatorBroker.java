@@ -0,0 +1,774 @@
+package com.quittle.androidemulator;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A daemon shared by all the builds on the host that keeps emulators booted between builds and lends them out, so
+ * builds skip booting entirely. Builds lease an emulator for as long as they need it and the broker returns it to its
+ * clean, just booted state once they are done, by restoring a snapshot taken right after it booted.
+ * <p>
+ * Each emulator runs from the broker's own copy of the build's AVD, so the emulator can save its snapshot without
+ * touching the AVD or the other emulators and the build is free to recreate the AVD while the emulator keeps running.
+ * The copy is deleted once the emulator stops.
+ * <p>
+ * Emulators are pooled by the fingerprint of their configuration so a build is only lent an emulator launched the same
+ * way as the one it asked for. Once released, up to a number of emulators of each fingerprint are kept warm for the
+ * next build until they have been idle for a while. The broker boots an emulator when a build asks for one and none are
+ * idle, as long as the host has room for it, and exits once it has had nothing to do for a while.
+ * <p>
+ * Builds talk to the broker over a loopback connection, one connection per lease, as described by
+ * {@link EmulatorBrokerRequest}. Any user on the host can connect, so the broker only serves requests presenting the
+ * random token it writes to a file only its own user can read. A lease ends when the build's connection closes, so the
+ * emulator of a build that dies is returned to the pool too. The broker runs in its own JVM, started by the first build that needs it, so it only
+ * uses the JDK.
+ */
+public class EmulatorBroker {
+    /**
+     * The prefix of the snapshot the broker restores between leases, which is followed by the emulator's port.
+     */
+    static final String CLEAN_SNAPSHOT_NAME = "android-emulator-broker-clean";
+    /**
+     * The file in the broker's directory holding the token builds present with their requests.
+     */
+    static final String TOKEN_FILE_NAME = "broker.token";
+    private static final int TOKEN_BYTES = 32;
+    private static final String AVD_DIRECTORY_SUFFIX = ".avd";
+    private static final String PATH_KEY = "path=";
+    private static final String PATH_REL_KEY = "path.rel=";
+
+    private static final int FIRST_PORT = 5554;
+    // ADB servers only find emulators on their own up to this port, which the builds' own ADB servers rely on
+    private static final int LAST_PORT = 5584;
+    private static final int CONNECTION_BACKLOG = 50;
+    private static final int REQUEST_TIMEOUT_MS = 30_000;
+    private static final long REAP_INTERVAL_MS = 60_000;
+    private static final long BOOT_TIMEOUT_SEC = 600;
+    private static final long RESET_TIMEOUT_SEC = 120;
+    private static final long EXIT_TIMEOUT_SEC = 30;
+    private static final String BOOT_COMPLETED_COMMAND = "while $(exit $(getprop sys.boot_completed)) ; do sleep 1; done;";
+
+    /**
+     * How the broker was started, passed on the command line as {@code --<name>=<value>}.
+     */
+    static class Options {
+        private static final String PORT = "port";
+        private static final String POOL_SIZE = "pool-size";
+        private static final String MAX_EMULATORS = "max-emulators";
+        private static final String IDLE_TIMEOUT_MINUTES = "idle-timeout-minutes";
+        private static final String DIRECTORY = "directory";
+
+        final int port;
+        final int poolSize;
+        final int maxEmulators;
+        final long idleTimeoutMinutes;
+        final File directory;
+
+        Options(final int port, final int poolSize, final int maxEmulators, final long idleTimeoutMinutes,
+                final File directory) {
+            this.port = port;
+            this.poolSize = poolSize;
+            this.maxEmulators = maxEmulators;
+            this.idleTimeoutMinutes = idleTimeoutMinutes;
+            this.directory = directory;
+        }
+
+        List<String> toArguments() {
+            return Arrays.asList(
+                    argument(PORT, port),
+                    argument(POOL_SIZE, poolSize),
+                    argument(MAX_EMULATORS, maxEmulators),
+                    argument(IDLE_TIMEOUT_MINUTES, idleTimeoutMinutes),
+                    argument(DIRECTORY, directory.getAbsolutePath()));
+        }
+
+        /**
+         * @param args The command line arguments, from {@link #toArguments()}.
+         * @return The options.
+         * @throws IllegalArgumentException if an option is missing or malformed.
+         */
+        static Options parse(final String[] args) throws IllegalArgumentException {
+            final Map<String, String> values = new HashMap<>();
+            for (final String arg : args) {
+                final int equals = arg.indexOf('=');
+                if (!arg.startsWith("--") || equals == -1) {
+                    throw new IllegalArgumentException("Malformed option: " + arg);
+                }
+                values.put(arg.substring(2, equals), arg.substring(equals + 1));
+            }
+            return new Options(
+                    Integer.parseInt(require(values, PORT)),
+                    Integer.parseInt(require(values, POOL_SIZE)),
+                    Integer.parseInt(require(values, MAX_EMULATORS)),
+                    Long.parseLong(require(values, IDLE_TIMEOUT_MINUTES)),
+                    new File(require(values, DIRECTORY)));
+        }
+
+        private static String argument(final String name, final Object value) {
+            return "--" + name + "=" + value;
+        }
+
+        private static String require(final Map<String, String> values, final String name) {
+            final String value = values.get(name);
+            if (value == null) {
+                throw new IllegalArgumentException("Missing option --" + name);
+            }
+            return value;
+        }
+    }
+
+    enum State {
+        BOOTING,
+        LEASED,
+        IDLE,
+    }
+
+    /**
+     * An emulator owned by the broker. Its state is guarded by the broker.
+     */
+    private static class PooledEmulator {
+        private final EmulatorBrokerRequest request;
+        private final int port;
+        private volatile Process process;
+        private volatile boolean resettable = false;
+        private volatile File avdHome;
+        private State state = State.BOOTING;
+        private long idleSinceMillis = 0;
+
+        private PooledEmulator(final EmulatorBrokerRequest request, final int port) {
+            this.request = request;
+            this.port = port;
+        }
+
+        private String getSerial() {
+            return "emulator-" + port;
+        }
+
+        private String getSnapshotName() {
+            return CLEAN_SNAPSHOT_NAME + "-" + port;
+        }
+    }
+
+    private final ServerSocket serverSocket;
+    private final Options options;
+    private final String token;
+    private final File consoleAuthTokenFile;
+    private final List<PooledEmulator> emulators = new ArrayList<>();
+    private int connections = 0;
+    private long lastActivityMillis = System.currentTimeMillis();
+
+    /**
+     * @param serverSocket The socket to listen for builds on.
+     * @param options      How the broker was started.
+     * @param token        The token builds must present, from {@link #writeToken}.
+     */
+    EmulatorBroker(final ServerSocket serverSocket, final Options options, final String token) {
+        this.serverSocket = serverSocket;
+        this.options = options;
+        this.token = token;
+        this.consoleAuthTokenFile = new File(System.getProperty("user.home"), ".emulator_console_auth_token");
+    }
+
+    /**
+     * Runs the broker until it has been idle for its idle timeout. Exits straight away if another broker is already
+     * listening on the port, which happens when several builds start one at the same time.
+     *
+     * @param args The options, from {@link Options#toArguments()}.
+     * @throws IOException if unable to listen for builds.
+     */
+    public static void main(final String[] args) throws IOException {
+        final Options options = Options.parse(args);
+        Files.createDirectories(options.directory.toPath());
+        final ServerSocket serverSocket;
+        try {
+            serverSocket = new ServerSocket(options.port, CONNECTION_BACKLOG, InetAddress.getLoopbackAddress());
+        } catch (final BindException e) {
+            log("Another broker is already listening on port %d", options.port);
+            return;
+        }
+        // Only written once listening so a broker exiting straight away doesn't replace the running broker's token
+        final String token = writeToken(options.directory);
+        log("Listening on port %d", options.port);
+        final EmulatorBroker broker = new EmulatorBroker(serverSocket, options, token);
+        Runtime.getRuntime().addShutdownHook(new Thread(broker::stopAll, "android-emulator-broker-shutdown"));
+        broker.serve();
+    }
+
+    /**
+     * Generates a new token and writes it to the token file in the directory, readable only by the current user.
+     *
+     * @param directory The broker's directory.
+     * @return The token.
+     * @throws IOException if unable to write the token.
+     */
+    static String writeToken(final File directory) throws IOException {
+        final byte[] bytes = new byte[TOKEN_BYTES];
+        new SecureRandom().nextBytes(bytes);
+        final StringBuilder token = new StringBuilder();
+        for (final byte b : bytes) {
+            token.append(String.format("%02x", b));
+        }
+
+        // Written in full before it replaces the previous broker's token, so builds never read part of it
+        final Path temporary = Files.createTempFile(directory.toPath(), TOKEN_FILE_NAME, ".tmp");
+        try {
+            if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+                Files.setPosixFilePermissions(temporary, PosixFilePermissions.fromString("rw-------"));
+            }
+            Files.write(temporary, token.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(temporary, new File(directory, TOKEN_FILE_NAME).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+        return token.toString();
+    }
+
+    /**
+     * @param directory The broker's directory.
+     * @return The token of the broker running from the directory.
+     * @throws IOException if unable to read the token, such as when the broker hasn't written it yet.
+     */
+    static String readToken(final File directory) throws IOException {
+        return new String(Files.readAllBytes(new File(directory, TOKEN_FILE_NAME).toPath()), StandardCharsets.UTF_8)
+                .trim();
+    }
+
+    /**
+     * Lends emulators to builds until the server socket is closed, then stops all of the emulators.
+     */
+    void serve() {
+        final Thread reaper = new Thread(this::reap, "android-emulator-broker-reaper");
+        reaper.setDaemon(true);
+        reaper.start();
+
+        while (true) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (final IOException e) {
+                // Closed by the reaper once the broker has been idle for long enough
+                break;
+            }
+            synchronized (this) {
+                connections++;
+                lastActivityMillis = System.currentTimeMillis();
+            }
+            final Thread handler = new Thread(() -> handle(socket), "android-emulator-broker-lease");
+            handler.setDaemon(true);
+            handler.start();
+        }
+        log("Idle for %d minutes. Exiting.", options.idleTimeoutMinutes);
+        stopAll();
+    }
+
+    /**
+     * Serves a single lease over the connection.
+     */
+    private void handle(final Socket socket) {
+        try (Socket s = socket) {
+            s.setSoTimeout(REQUEST_TIMEOUT_MS);
+            final BufferedReader reader =
+                    new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            final Writer writer = new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8);
+            final PooledEmulator emulator;
+            try {
+                final EmulatorBrokerRequest request = EmulatorBrokerRequest.read(reader);
+                if (!MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8),
+                        request.getToken().getBytes(StandardCharsets.UTF_8))) {
+                    throw new IOException("The request did not present the broker's token");
+                }
+                emulator = acquire(request);
+            } catch (final IOException e) {
+                log("Unable to lend an emulator: %s", e.getMessage());
+                reply(writer, EmulatorBrokerRequest.ERROR + " " + e.getMessage());
+                return;
+            }
+
+            try {
+                reply(writer, EmulatorBrokerRequest.LEASED + " " + emulator.port);
+                log("Lent %s", emulator.getSerial());
+                // The lease lasts as long as the build needs it
+                s.setSoTimeout(0);
+                String line = reader.readLine();
+                while (line != null && !EmulatorBrokerRequest.RELEASE.equals(line)) {
+                    line = reader.readLine();
+                }
+            } catch (final IOException e) {
+                // The build is gone, so the emulator is returned all the same
+                log("Lost the connection to the build leasing %s", emulator.getSerial());
+            } finally {
+                release(emulator);
+            }
+        } catch (final IOException e) {
+            log("Error serving a lease: %s", e.getMessage());
+        } finally {
+            synchronized (this) {
+                connections--;
+                lastActivityMillis = System.currentTimeMillis();
+            }
+        }
+    }
+
+    private static void reply(final Writer writer, final String line) throws IOException {
+        writer.write(line.replace('\n', ' '));
+        writer.write('\n');
+        writer.flush();
+    }
+
+    /**
+     * Leases an idle emulator with the same fingerprint, booting one if there are none.
+     */
+    private PooledEmulator acquire(final EmulatorBrokerRequest request) throws IOException {
+        if (!request.getEmulator().isFile() || !request.getAdb().isFile()) {
+            throw new IOException("No emulator or ADB in the SDK " + request.getSdkRoot());
+        }
+        final List<PooledEmulator> evicted = new ArrayList<>();
+        final PooledEmulator emulator = reserve(request, evicted);
+        evicted.forEach(this::stop);
+        if (emulator.state == State.LEASED) {
+            return emulator;
+        }
+
+        try {
+            boot(emulator);
+        } catch (final IOException | RuntimeException e) {
+            synchronized (this) {
+                emulators.remove(emulator);
+                notifyAll();
+            }
+            stop(emulator);
+            throw e;
+        }
+        synchronized (this) {
+            emulator.state = State.LEASED;
+        }
+        return emulator;
+    }
+
+    /**
+     * Leases an idle emulator with the same fingerprint or reserves a port for a new one to boot, waiting for an
+     * emulator to be released if the host has no room for another.
+     *
+     * @param evicted Filled with the idle emulators to stop to make room for the new one.
+     * @return The leased emulator or the new one, which is still to boot.
+     */
+    private synchronized PooledEmulator reserve(final EmulatorBrokerRequest request,
+            final List<PooledEmulator> evicted) throws IOException {
+        while (true) {
+            final PooledEmulator idle = find(request.getFingerprint());
+            if (idle != null) {
+                idle.state = State.LEASED;
+                return idle;
+            }
+            if (emulators.size() >= options.maxEmulators) {
+                // Make room by stopping the emulator no build has asked for in the longest time
+                emulators.stream()
+                        .filter(e -> e.state == State.IDLE)
+                        .min(Comparator.comparingLong(e -> e.idleSinceMillis))
+                        .ifPresent(e -> {
+                            emulators.remove(e);
+                            evicted.add(e);
+                        });
+            }
+            final int port = emulators.size() < options.maxEmulators ? allocatePort() : -1;
+            if (port != -1) {
+                final PooledEmulator emulator = new PooledEmulator(request, port);
+                emulators.add(emulator);
+                return emulator;
+            }
+            try {
+                wait(REAP_INTERVAL_MS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for an emulator", e);
+            }
+        }
+    }
+
+    private PooledEmulator find(final String fingerprint) {
+        for (final PooledEmulator emulator : emulators) {
+            if (emulator.state == State.IDLE && emulator.request.getFingerprint().equals(fingerprint) &&
+                    emulator.process.isAlive()) {
+                return emulator;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return A port free for an emulator's console and ADB or -1 if there are none.
+     */
+    private int allocatePort() {
+        for (int port = FIRST_PORT; port <= LAST_PORT; port += 2) {
+            final int candidate = port;
+            if (emulators.stream().noneMatch(e -> e.port == candidate) && isFree(port) && isFree(port + 1)) {
+                return port;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isFree(final int port) {
+        try (ServerSocket socket = new ServerSocket(port, 1, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort() == port;
+        } catch (final IOException e) {
+            // Taken by an emulator the broker doesn't own
+            return false;
+        }
+    }
+
+    /**
+     * Copies the AVD, launches the emulator from the copy, waits for it to boot, and saves the snapshot to reset it to
+     * between leases.
+     */
+    private void boot(final PooledEmulator emulator) throws IOException {
+        final File avdRoot = new File(options.directory, "avd");
+        Files.createDirectories(avdRoot.toPath());
+        final File avdHome = Files.createTempDirectory(avdRoot.toPath(), emulator.port + "-").toFile();
+        emulator.avdHome = avdHome;
+        copyAvd(emulator.request.getAvd(), avdHome);
+
+        final File output = new File(options.directory, emulator.getSerial() + ".log");
+        final ProcessBuilder pb = new ProcessBuilder(withPort(emulator.request.getCommand(), emulator.port))
+                .redirectErrorStream(true)
+                .redirectOutput(output);
+        pb.environment().putAll(emulator.request.getEnvironment());
+        pb.environment().put("ANDROID_AVD_HOME", avdHome.getAbsolutePath());
+        log("Booting %s: %s", emulator.getSerial(), String.join(" ", pb.command()));
+        final Process process = pb.start();
+        emulator.process = process;
+        process.onExit().thenRun(() -> onExit(emulator));
+
+        if (!runAdb(emulator, BOOT_TIMEOUT_SEC, "wait-for-device", "shell", BOOT_COMPLETED_COMMAND)) {
+            throw new IOException("Emulator " + emulator.getSerial() + " failed to boot. See " + output);
+        }
+
+        try (EmulatorConsole console = new EmulatorConsole(emulator.port, consoleAuthTokenFile)) {
+            console.saveSnapshot(emulator.getSnapshotName());
+            emulator.resettable = true;
+        } catch (final IOException e) {
+            // The emulator is stopped after its first lease instead
+            log("Unable to save a snapshot of %s so it can't be lent again: %s", emulator.getSerial(), e.getMessage());
+        }
+        log("Booted %s", emulator.getSerial());
+    }
+
+    /**
+     * Copies the AVD and the {@code <name>.ini} file pointing to it into the AVD home. The emulator's lock files and
+     * snapshots are left behind, as they belong to the emulators of the original and a snapshot won't restore from a
+     * different path anyway.
+     *
+     * @param avd     The AVD directory to copy.
+     * @param avdHome Where to copy it, for the emulator's {@code ANDROID_AVD_HOME}.
+     * @throws IOException if unable to copy the AVD.
+     */
+    static void copyAvd(final File avd, final File avdHome) throws IOException {
+        final Path source = avd.toPath();
+        final Path target = new File(avdHome, avd.getName()).toPath();
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(final Path directory, final BasicFileAttributes attributes)
+                    throws IOException {
+                final Path relative = source.relativize(directory);
+                if (isLock(directory) || relative.toString().equals("snapshots")) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                Files.createDirectories(target.resolve(relative));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attributes) throws IOException {
+                if (!isLock(file)) {
+                    Files.copy(file, target.resolve(source.relativize(file)), StandardCopyOption.COPY_ATTRIBUTES);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        final String name = avd.getName().endsWith(AVD_DIRECTORY_SUFFIX)
+                ? avd.getName().substring(0, avd.getName().length() - AVD_DIRECTORY_SUFFIX.length())
+                : avd.getName();
+        final File ini = new File(avd.getParentFile(), name + ".ini");
+        final List<String> lines = new ArrayList<>();
+        lines.add(PATH_KEY + target.toAbsolutePath());
+        if (ini.isFile()) {
+            // The relative path takes precedence over the absolute one, so it must not point back to the original
+            Files.readAllLines(ini.toPath(), StandardCharsets.UTF_8).stream()
+                    .filter(line -> !line.startsWith(PATH_KEY) && !line.startsWith(PATH_REL_KEY))
+                    .forEach(lines::add);
+        }
+        Files.write(new File(avdHome, name + ".ini").toPath(), lines, StandardCharsets.UTF_8);
+    }
+
+    private static boolean isLock(final Path path) {
+        return path.getFileName() != null && path.getFileName().toString().endsWith(".lock");
+    }
+
+    private static void deleteRecursively(final Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+        Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(final Path file, final BasicFileAttributes attributes) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(final Path directory, final IOException e) throws IOException {
+                if (e != null) {
+                    throw e;
+                }
+                Files.delete(directory);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * @param command The command launching the emulator, without a port.
+     * @param port    The port of the emulator.
+     * @return The command with the port added after the AVD.
+     */
+    static List<String> withPort(final List<String> command, final int port) {
+        final List<String> withPort = new ArrayList<>(command);
+        // Right after the executable if there's no AVD, which the emulator would reject anyway
+        int avd = 0;
+        for (int i = 0; i < command.size(); i++) {
+            if (command.get(i).startsWith("@")) {
+                avd = i;
+                break;
+            }
+        }
+        withPort.addAll(Math.min(avd + 1, withPort.size()), Arrays.asList("-port", String.valueOf(port)));
+        return withPort;
+    }
+
+    /**
+     * Resets the emulator and keeps it for the next lease, unless enough emulators like it are already idle.
+     */
+    private void release(final PooledEmulator emulator) {
+        final boolean reset = emulator.resettable && emulator.process.isAlive() && reset(emulator);
+        final boolean keep;
+        synchronized (this) {
+            final long idleLikeIt = emulators.stream()
+                    .filter(e -> e.state == State.IDLE &&
+                            e.request.getFingerprint().equals(emulator.request.getFingerprint()))
+                    .count();
+            keep = reset && idleLikeIt < options.poolSize;
+            if (keep) {
+                emulator.state = State.IDLE;
+                emulator.idleSinceMillis = System.currentTimeMillis();
+            } else {
+                emulators.remove(emulator);
+            }
+            lastActivityMillis = System.currentTimeMillis();
+            notifyAll();
+        }
+        if (keep) {
+            log("%s is idle", emulator.getSerial());
+        } else {
+            stop(emulator);
+        }
+    }
+
+    private boolean reset(final PooledEmulator emulator) {
+        try (EmulatorConsole console = new EmulatorConsole(emulator.port, consoleAuthTokenFile)) {
+            console.loadSnapshot(emulator.getSnapshotName());
+        } catch (final IOException e) {
+            log("Unable to reset %s: %s", emulator.getSerial(), e.getMessage());
+            return false;
+        }
+        return runAdb(emulator, RESET_TIMEOUT_SEC, "wait-for-device");
+    }
+
+    /**
+     * Drops an idle emulator from the pool once it has exited on its own.
+     */
+    private void onExit(final PooledEmulator emulator) {
+        synchronized (this) {
+            if (emulator.state != State.IDLE || !emulators.remove(emulator)) {
+                // Stopped by the broker, which also deletes its copy of the AVD
+                return;
+            }
+            log("%s exited while idle", emulator.getSerial());
+            notifyAll();
+        }
+        deleteAvdCopy(emulator);
+    }
+
+    /**
+     * Runs ADB against the emulator, giving up if the emulator exits or the timeout passes.
+     *
+     * @return {@code true} if ADB completed successfully.
+     */
+    private boolean runAdb(final PooledEmulator emulator, final long timeoutSeconds, final String... args) {
+        final List<String> command = new ArrayList<>();
+        command.add(emulator.request.getAdb().getAbsolutePath());
+        command.add("-s");
+        command.add(emulator.getSerial());
+        command.addAll(Arrays.asList(args));
+        final ProcessBuilder pb = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        pb.environment().putAll(emulator.request.getEnvironment());
+        try {
+            final Process adb = pb.start();
+            // ADB would otherwise keep waiting for an emulator that will never come online
+            emulator.process.onExit().thenRun(adb::destroyForcibly);
+            try {
+                return adb.waitFor(timeoutSeconds, TimeUnit.SECONDS) && adb.exitValue() == 0;
+            } finally {
+                adb.destroyForcibly();
+            }
+        } catch (final IOException e) {
+            log("Unable to run ADB: %s", e.getMessage());
+            return false;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Stops emulators that have been idle for too long and closes the broker once it has nothing left to do.
+     */
+    private void reap() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Thread.sleep(REAP_INTERVAL_MS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            if (reapExpired(System.currentTimeMillis())) {
+                try {
+                    serverSocket.close();
+                } catch (final IOException e) {
+                    log("Unable to stop listening for builds: %s", e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops the emulators that have been idle for longer than the idle timeout.
+     *
+     * @param nowMillis The current time.
+     * @return {@code true} if the broker has nothing left to do and should exit.
+     */
+    boolean reapExpired(final long nowMillis) {
+        final long idleTimeoutMillis = TimeUnit.MINUTES.toMillis(options.idleTimeoutMinutes);
+        final List<PooledEmulator> expired = new ArrayList<>();
+        final boolean exit;
+        synchronized (this) {
+            final Iterator<PooledEmulator> iterator = emulators.iterator();
+            while (iterator.hasNext()) {
+                final PooledEmulator emulator = iterator.next();
+                if (emulator.state == State.IDLE && nowMillis - emulator.idleSinceMillis > idleTimeoutMillis) {
+                    iterator.remove();
+                    expired.add(emulator);
+                }
+            }
+            exit = emulators.isEmpty() && connections == 0 && nowMillis - lastActivityMillis > idleTimeoutMillis;
+        }
+        expired.forEach(this::stop);
+        return exit;
+    }
+
+    private void stopAll() {
+        final List<PooledEmulator> remaining;
+        synchronized (this) {
+            remaining = new ArrayList<>(emulators);
+            emulators.clear();
+        }
+        remaining.forEach(this::stop);
+    }
+
+    /**
+     * Asks the emulator to exit via its console, signalling it if that fails, and deletes its copy of the AVD.
+     */
+    private void stop(final PooledEmulator emulator) {
+        final Process process = emulator.process;
+        if (process != null && process.isAlive()) {
+            kill(emulator, process);
+        }
+        deleteAvdCopy(emulator);
+    }
+
+    private static void deleteAvdCopy(final PooledEmulator emulator) {
+        final File avdHome = emulator.avdHome;
+        if (avdHome == null) {
+            return;
+        }
+        try {
+            deleteRecursively(avdHome.toPath());
+        } catch (final IOException e) {
+            log("Unable to delete the copy of the AVD of %s: %s", emulator.getSerial(), e.getMessage());
+        }
+    }
+
+    private void kill(final PooledEmulator emulator, final Process process) {
+        log("Stopping %s", emulator.getSerial());
+        try (EmulatorConsole console = new EmulatorConsole(emulator.port, consoleAuthTokenFile)) {
+            console.kill();
+        } catch (final IOException e) {
+            process.destroy();
+        }
+        try {
+            if (!process.waitFor(EXIT_TIMEOUT_SEC, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            process.destroyForcibly();
+        }
+    }
+
+    /**
+     * @param state The state of the emulators to count.
+     * @return How many of the broker's emulators are in the state.
+     */
+    synchronized long count(final State state) {
+        return emulators.stream().filter(e -> e.state == state).count();
+    }
+
+    /**
+     * Logs to the broker's output, which the build starting the broker redirects to a file.
+     */
+    private static void log(final String format, final Object... args) {
+        System.err.println(Instant.now() + " " + String.format(format, args));
+    }
+}
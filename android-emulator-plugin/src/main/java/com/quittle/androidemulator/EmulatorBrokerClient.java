@@ -0,0 +1,230 @@
+package com.quittle.androidemulator;
+
+import org.gradle.api.logging.Logger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Leases the emulator from the {@link EmulatorBroker} shared by all the builds on the host, starting the broker if it
+ * isn't running yet. If the broker can't lend an emulator, the build starts its own instead.
+ */
+public class EmulatorBrokerClient implements EmulatorLease {
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final long BROKER_START_TIMEOUT_SEC = 30;
+    private static final long CONNECT_RETRY_INTERVAL_MS = 500;
+
+    private final EmulatorConfiguration emulatorConfiguration;
+    private final Logger logger;
+    private final AtomicReference<Socket> lease = new AtomicReference<>();
+
+    public EmulatorBrokerClient(final EmulatorConfiguration emulatorConfiguration, final Logger logger) {
+        this.emulatorConfiguration = emulatorConfiguration;
+        this.logger = logger;
+    }
+
+    /**
+     * Leases a booted emulator launched with the command, setting its port in the {@link EmulatorConfiguration}. Does
+     * nothing if the broker isn't enabled.
+     */
+    @Override
+    public boolean acquire(final List<String> command) {
+        if (lease.get() != null) {
+            return true;
+        }
+        if (!emulatorConfiguration.getBrokerEnabled()) {
+            return false;
+        }
+
+        final Map<String, String> environment = new TreeMap<>(emulatorConfiguration.getEnvironmentVariableMap());
+        // The broker's emulators outlive the build's own ADB server so register with the default one. The build's
+        // server still finds them as the broker only uses the ports ADB servers look for emulators on.
+        environment.remove("ANDROID_ADB_SERVER_PORT");
+        final String fingerprint = EmulatorBrokerRequest.fingerprint(command, environment, readAvdConfig());
+
+        logger.lifecycle("Leasing emulator {} from the broker on port {}", emulatorConfiguration.getInstanceName(),
+                emulatorConfiguration.getBrokerPort());
+        try {
+            final Socket socket = connect();
+            try {
+                // The broker only launches the SDK's own emulator so only the arguments are sent
+                final EmulatorBrokerRequest request = new EmulatorBrokerRequest(fingerprint, awaitToken(),
+                        emulatorConfiguration.getSdkRoot(), emulatorConfiguration.getAvdDirectory(), environment,
+                        command.subList(1, command.size()));
+                socket.setSoTimeout((int) TimeUnit.SECONDS.toMillis(emulatorConfiguration.getBrokerMaxLeaseWaitSeconds()));
+                final Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+                for (final String line : request.format()) {
+                    writer.write(line);
+                    writer.write('\n');
+                }
+                writer.flush();
+
+                final BufferedReader reader =
+                        new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                final int port = EmulatorBrokerRequest.parseReply(reader.readLine());
+                emulatorConfiguration.setEmulatorPort(port);
+                lease.set(socket);
+            } catch (final IOException | RuntimeException e) {
+                socket.close();
+                throw e;
+            }
+        } catch (final IOException | RuntimeException e) {
+            logger.warn("Unable to lease an emulator from the broker. Starting one for this build instead. See {}",
+                    emulatorConfiguration.getBrokerDirectory(), e);
+            return false;
+        }
+        logger.lifecycle("Leased emulator {} from the broker", emulatorConfiguration.getEmulatorSerial());
+        return true;
+    }
+
+    @Override
+    public boolean isLeased() {
+        return lease.get() != null;
+    }
+
+    /**
+     * Returns the leased emulator, if any, to the broker, which resets it for the next build.
+     */
+    @Override
+    public void release() {
+        final Socket socket = lease.getAndSet(null);
+        if (socket == null) {
+            return;
+        }
+        try (Socket s = socket) {
+            final Writer writer = new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8);
+            writer.write(EmulatorBrokerRequest.RELEASE);
+            writer.write('\n');
+            writer.flush();
+        } catch (final IOException e) {
+            // Closing the connection releases the emulator all the same
+            logger.info("Unable to notify the broker the emulator was released", e);
+        }
+    }
+
+    private List<String> readAvdConfig() {
+        final File config = new File(emulatorConfiguration.getAvdDirectory(), "config.ini");
+        try {
+            return Files.readAllLines(config.toPath(), StandardCharsets.UTF_8);
+        } catch (final IOException e) {
+            // Only emulators of the same AVD are interchangeable, which the command already accounts for
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Connects to the broker, starting it if it isn't running.
+     */
+    private Socket connect() throws IOException {
+        try {
+            return tryConnect();
+        } catch (final ConnectException e) {
+            logger.info("No broker is running. Starting one.");
+        }
+        startBroker();
+
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(BROKER_START_TIMEOUT_SEC);
+        while (true) {
+            try {
+                return tryConnect();
+            } catch (final ConnectException e) {
+                if (System.nanoTime() > deadline) {
+                    throw e;
+                }
+            }
+            try {
+                Thread.sleep(CONNECT_RETRY_INTERVAL_MS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the broker to start", e);
+            }
+        }
+    }
+
+    /**
+     * Reads the broker's token, waiting for a broker that was only just started to write it.
+     */
+    private String awaitToken() throws IOException {
+        final File directory = emulatorConfiguration.getBrokerDirectory();
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(BROKER_START_TIMEOUT_SEC);
+        while (true) {
+            try {
+                return EmulatorBroker.readToken(directory);
+            } catch (final NoSuchFileException e) {
+                if (System.nanoTime() > deadline) {
+                    throw e;
+                }
+            }
+            try {
+                Thread.sleep(CONNECT_RETRY_INTERVAL_MS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the broker to start", e);
+            }
+        }
+    }
+
+    private Socket tryConnect() throws IOException {
+        final Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), emulatorConfiguration.getBrokerPort()),
+                    CONNECT_TIMEOUT_MS);
+        } catch (final IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    /**
+     * Starts the broker in its own JVM, which outlives the build. If another build starts one at the same time, the
+     * later one exits straight away.
+     */
+    private void startBroker() throws IOException {
+        final File directory = emulatorConfiguration.getBrokerDirectory();
+        Files.createDirectories(directory.toPath());
+        final File classpath;
+        try {
+            classpath = new File(EmulatorBroker.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (final URISyntaxException | SecurityException e) {
+            throw new IOException("Unable to find the plugin's classes to start the broker with", e);
+        }
+
+        final List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin" + File.separator + "java").getAbsolutePath());
+        command.add("-cp");
+        command.add(classpath.getAbsolutePath());
+        command.add(EmulatorBroker.class.getName());
+        command.addAll(new EmulatorBroker.Options(
+                emulatorConfiguration.getBrokerPort(),
+                emulatorConfiguration.getBrokerPoolSize(),
+                emulatorConfiguration.getBrokerMaxEmulators(),
+                emulatorConfiguration.getBrokerIdleTimeoutMinutes(),
+                directory).toArguments());
+        final Process process = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(new File(directory, "broker.log")))
+                .start();
+        // The broker never reads its input
+        process.getOutputStream().close();
+    }
+}
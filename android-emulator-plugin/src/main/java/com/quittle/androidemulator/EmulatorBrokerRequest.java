@@ -0,0 +1,249 @@
+package com.quittle.androidemulator;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A build's request to lease an emulator from the {@link EmulatorBroker}, describing how to launch the emulator if the
+ * broker has none to lend. The request is sent as lines of text ending with an empty line.
+ * <pre>{@code
+ * acquire <fingerprint>
+ * token <the broker's token>
+ * sdk /path/to/sdk
+ * avd /path/to/avd-root/avd-name.avd
+ * env ANDROID_SDK_ROOT=/path/to/sdk
+ * arg @avd-name
+ * arg -no-window
+ *
+ * }</pre>
+ * The token is read from the broker's token file, which only the user running the broker can read, so other users on
+ * the host can't have the broker run anything. The broker only ever launches the SDK's emulator and ADB, with the
+ * arguments of the request. It replies with {@code leased <port>} once an emulator is ready or {@code error <reason>}.
+ * The lease lasts until the build sends {@code release} or closes the connection.
+ */
+final class EmulatorBrokerRequest {
+    static final String ACQUIRE = "acquire";
+    static final String LEASED = "leased";
+    static final String ERROR = "error";
+    static final String RELEASE = "release";
+    private static final String TOKEN = "token";
+    private static final String SDK = "sdk";
+    private static final String AVD = "avd";
+    private static final String ENV = "env";
+    private static final String ARG = "arg";
+
+    private final String fingerprint;
+    private final String token;
+    private final File sdkRoot;
+    private final File avd;
+    private final Map<String, String> environment;
+    private final List<String> arguments;
+
+    /**
+     * @param fingerprint Identifies the emulators that are interchangeable with the one requested, from
+     *                    {@link #fingerprint}.
+     * @param token       The broker's token, from {@link EmulatorBroker#readToken}.
+     * @param sdkRoot     The SDK to launch the emulator and wait for it with.
+     * @param avd         The AVD directory, which the broker runs a copy of.
+     * @param environment The environment to launch the emulator with, on top of the broker's own.
+     * @param arguments   The arguments to launch the emulator with, without a port, which the broker adds after the AVD.
+     */
+    EmulatorBrokerRequest(final String fingerprint, final String token, final File sdkRoot, final File avd,
+            final Map<String, String> environment, final List<String> arguments) {
+        this.fingerprint = fingerprint;
+        this.token = token;
+        this.sdkRoot = sdkRoot;
+        this.avd = avd;
+        this.environment = Collections.unmodifiableMap(new TreeMap<>(environment));
+        this.arguments = Collections.unmodifiableList(new ArrayList<>(arguments));
+    }
+
+    String getFingerprint() {
+        return fingerprint;
+    }
+
+    String getToken() {
+        return token;
+    }
+
+    File getSdkRoot() {
+        return sdkRoot;
+    }
+
+    /**
+     * @return The SDK's emulator, which is the only executable the broker launches emulators with.
+     */
+    File getEmulator() {
+        return new File(sdkRoot, "emulator" + File.separator + executable("emulator"));
+    }
+
+    /**
+     * @return The SDK's ADB, which the broker waits for the emulator with.
+     */
+    File getAdb() {
+        return new File(sdkRoot, "platform-tools" + File.separator + executable("adb"));
+    }
+
+    private static String executable(final String name) {
+        return System.getProperty("os.name").startsWith("Windows") ? name + ".exe" : name;
+    }
+
+    File getAvd() {
+        return avd;
+    }
+
+    Map<String, String> getEnvironment() {
+        return environment;
+    }
+
+    List<String> getArguments() {
+        return arguments;
+    }
+
+    /**
+     * @return The command launching the SDK's emulator with the arguments, without a port.
+     */
+    List<String> getCommand() {
+        final List<String> command = new ArrayList<>();
+        command.add(getEmulator().getAbsolutePath());
+        command.addAll(arguments);
+        return command;
+    }
+
+    /**
+     * @return The lines of the request, including the empty line ending it.
+     */
+    List<String> format() {
+        final List<String> lines = new ArrayList<>();
+        lines.add(ACQUIRE + " " + fingerprint);
+        lines.add(TOKEN + " " + token);
+        lines.add(SDK + " " + sdkRoot.getAbsolutePath());
+        lines.add(AVD + " " + avd.getAbsolutePath());
+        environment.forEach((key, value) -> lines.add(ENV + " " + key + "=" + value));
+        arguments.forEach(argument -> lines.add(ARG + " " + argument));
+        lines.add("");
+        return lines;
+    }
+
+    /**
+     * Reads a request up to and including the empty line ending it.
+     *
+     * @param reader The connection from the build.
+     * @return The request.
+     * @throws IOException if the request is incomplete or malformed.
+     */
+    static EmulatorBrokerRequest read(final BufferedReader reader) throws IOException {
+        String fingerprint = "";
+        String token = "";
+        String sdk = "";
+        String avd = "";
+        final Map<String, String> environment = new TreeMap<>();
+        final List<String> arguments = new ArrayList<>();
+        while (true) {
+            final String line = reader.readLine();
+            if (line == null) {
+                throw new IOException("Connection closed before the end of the request");
+            }
+            if (line.isEmpty()) {
+                break;
+            }
+            final int space = line.indexOf(' ');
+            final String key = space == -1 ? line : line.substring(0, space);
+            final String value = space == -1 ? "" : line.substring(space + 1);
+            switch (key) {
+                case ACQUIRE:
+                    fingerprint = value;
+                    break;
+                case TOKEN:
+                    token = value;
+                    break;
+                case SDK:
+                    sdk = value;
+                    break;
+                case AVD:
+                    avd = value;
+                    break;
+                case ENV:
+                    final int equals = value.indexOf('=');
+                    if (equals == -1) {
+                        throw new IOException("Malformed environment variable: " + value);
+                    }
+                    environment.put(value.substring(0, equals), value.substring(equals + 1));
+                    break;
+                case ARG:
+                    arguments.add(value);
+                    break;
+                default:
+                    throw new IOException("Unknown request line: " + line);
+            }
+        }
+        if (fingerprint.isEmpty() || token.isEmpty() || sdk.isEmpty() || avd.isEmpty()) {
+            throw new IOException("Request is missing its fingerprint, token, SDK, or AVD");
+        }
+        if (!new File(sdk).isAbsolute()) {
+            throw new IOException("The SDK must be an absolute path: " + sdk);
+        }
+        return new EmulatorBrokerRequest(fingerprint, token, new File(sdk), new File(avd), environment, arguments);
+    }
+
+    /**
+     * @param reply The broker's reply to the request.
+     * @return The port of the leased emulator.
+     * @throws IOException if the broker didn't lend an emulator.
+     */
+    static int parseReply(final String reply) throws IOException {
+        if (reply == null) {
+            throw new IOException("Broker closed the connection without lending an emulator");
+        }
+        final String prefix = LEASED + " ";
+        if (!reply.startsWith(prefix)) {
+            throw new IOException("Broker did not lend an emulator: " + reply);
+        }
+        try {
+            return Integer.parseInt(reply.substring(prefix.length()).trim());
+        } catch (final NumberFormatException e) {
+            throw new IOException("Malformed reply from the broker: " + reply, e);
+        }
+    }
+
+    /**
+     * Identifies the emulators that are interchangeable with each other. Emulators launched the same way from an AVD
+     * with the same configuration are.
+     *
+     * @param command     The command launching the emulator, without a port.
+     * @param environment The environment to launch the emulator with.
+     * @param avdConfig   The lines of the AVD's {@code config.ini}.
+     * @return The fingerprint, as hex.
+     */
+    static String fingerprint(final List<String> command, final Map<String, String> environment,
+            final List<String> avdConfig) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is always available", e);
+        }
+        final List<String> parts = new ArrayList<>(command);
+        new TreeMap<>(environment).forEach((key, value) -> parts.add(key + "=" + value));
+        parts.addAll(avdConfig);
+        for (final String part : parts) {
+            digest.update(part.getBytes(StandardCharsets.UTF_8));
+            // Separates the parts so they can't run into each other
+            digest.update((byte) 0);
+        }
+        final StringBuilder hex = new StringBuilder();
+        for (final byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -37,10 +37,16 @@ public class EmulatorConfiguration {
             // haven't been updated in years.
             new String[] { "tools", "bin" },
     };
+    /**
+     * Memory the emulator uses on the host beyond the guest's RAM, for the emulator itself and its GPU emulation.
+     */
+    private static final long EMULATOR_OVERHEAD_MB = 1536;
 
     private final File sdkRoot;
+    private final File buildDir;
     private final File avdRoot;
     private final Map<String, String> environmentVariableMap;
+    private final Integer adbServerPort;
     private final boolean enableForAndroidTests;
     private final List<String> additionalEmulatorArguments;
     private final List<String> additionalSdkManagerArguments;
@@ -50,17 +56,74 @@ public class EmulatorConfiguration {
     private final String abi;
     private final String systemImagePackageName;
     private final String emulatorName;
+    private final int instanceIndex;
+    private final int instanceCount;
+    private final String instanceName;
+    private final boolean goldenSnapshot;
     private final String deviceType;
+    private final AvdHardwareProfile hardwareProfile;
+    private final DeviceSetupScript deviceSetupScript;
+    private final int processUpTimeoutSeconds;
+    private final int adbOnlineTimeoutSeconds;
+    private final int bootCompletedTimeoutSeconds;
+    private final int maxBootAttempts;
+    private final SoftwareEmulationFallback softwareEmulationFallback;
+    private final boolean snapshotIsolation;
+    private final boolean asyncShutdown;
+    private final boolean bootAdmissionEnabled;
+    private final int maxConcurrentBoots;
+    private final int bootStaggerSeconds;
+    private final int maxBootQueueWaitSeconds;
+    private final int emulatorIndex;
+    private final int emulatorCount;
+    private final boolean pinCpus;
+    private final File cgroupParent;
+    private final long memoryLimitMb;
+    private final boolean memoryLimitConfigured;
+    private final boolean ramDiskEnabled;
+    private final File ramDiskDirectory;
+    private final boolean ramDiskCopyBack;
+    private final long ramDiskMinFreeMemoryMb;
+    private final boolean brokerEnabled;
+    private final int brokerPort;
+    private final int brokerPoolSize;
+    private final int brokerMaxEmulators;
+    private final long brokerIdleTimeoutMinutes;
+    private final int brokerMaxLeaseWaitSeconds;
+    private final List<String> remoteEndpoints;
+    private final long remoteLeaseTimeoutMinutes;
+    private final int remoteMaxLeaseWaitSeconds;
+    private final int remotePollIntervalSeconds;
     private Integer emulatorPort;
+    private volatile String remoteSerial;
+    // Released from the thread reaping the emulator when it shuts down in the background
+    private volatile File runtimeAvdHome;
 
     EmulatorConfiguration(final Project project, final BaseExtension androidExtension,
             final AndroidEmulatorExtension androidEmulatorExtension) {
+        this(project, androidExtension, androidEmulatorExtension, androidEmulatorExtension.getEmulator(), 0, 0, 1,
+                allocateAdbServerPort(androidEmulatorExtension));
+    }
+
+    /**
+     * @param emulator      The emulator to configure, either the single emulator or an entry of the matrix.
+     * @param instanceIndex Which of the emulator's instances to configure.
+     * @param emulatorIndex The position of the emulator instance within the build's emulators.
+     * @param emulatorCount The number of emulator instances the build runs at once, which share the host's resources.
+     * @param adbServerPort The port of the ADB server owned by the build, shared by all its emulators, or null to use
+     *                      the shared, default ADB server.
+     */
+    EmulatorConfiguration(final Project project, final BaseExtension androidExtension,
+            final AndroidEmulatorExtension androidEmulatorExtension,
+            final AndroidEmulatorExtension.EmulatorExtension emulator, final int instanceIndex,
+            final int emulatorIndex, final int emulatorCount, final Integer adbServerPort) {
         this.sdkRoot = androidExtension.getSdkDirectory();
+        this.buildDir = project.getBuildDir();
 
         if (androidEmulatorExtension.getAvdRoot() != null) {
             this.avdRoot = androidEmulatorExtension.getAvdRoot();
         } else {
-            this.avdRoot = new File(project.getBuildDir(), "android-avd-root");
+            this.avdRoot = new File(buildDir, "android-avd-root");
         }
 
         if (this.sdkRoot == null) {
@@ -72,6 +135,10 @@ public class EmulatorConfiguration {
         environmentVariableMap.put("ANDROID_SDK_ROOT", sdkRoot.getAbsolutePath());
         environmentVariableMap.put("ANDROID_HOME", sdkRoot.getAbsolutePath());
         environmentVariableMap.put("ANDROID_AVD_HOME", avdRoot.getAbsolutePath());
+        this.adbServerPort = adbServerPort;
+        if (adbServerPort != null) {
+            environmentVariableMap.put("ANDROID_ADB_SERVER_PORT", String.valueOf(adbServerPort));
+        }
         this.environmentVariableMap = Collections.unmodifiableMap(environmentVariableMap);
 
         this.enableForAndroidTests = androidEmulatorExtension.getEnableForAndroidTests();
@@ -97,7 +164,6 @@ public class EmulatorConfiguration {
 
         this.logEmulatorOutput = androidEmulatorExtension.getLogEmulatorOutput();
 
-        final AndroidEmulatorExtension.EmulatorExtension emulator = androidEmulatorExtension.getEmulator();
         int sdkVersion = emulator.getSdkVersion();
         if (sdkVersion <= 0) {
             ApiVersion version = androidExtension.getDefaultConfig().getTargetSdkVersion();
@@ -122,6 +188,98 @@ public class EmulatorConfiguration {
         } else {
             this.emulatorName = String.format("generated-%s_%s-%s", androidVersion, abi, flavor);
         }
+        this.instanceIndex = instanceIndex;
+        this.instanceCount = Math.max(1, emulator.getInstances());
+        this.instanceName = instanceName(emulatorName, instanceIndex, instanceCount);
+        final boolean sharedAvd = instanceCount > 1;
+        this.goldenSnapshot = sharedAvd && emulator.getGoldenSnapshot();
+
+        // The emulators of the build split the resources the host can spare between them
+        this.hardwareProfile = AvdHardwareProfile.forHost(avdRoot, emulatorCount, emulator);
+
+        this.deviceSetupScript = new DeviceSetupScript(androidEmulatorExtension.getDeviceSetup());
+
+        final AndroidEmulatorExtension.BootWatchdogExtension bootWatchdog = androidEmulatorExtension.getBootWatchdog();
+        this.processUpTimeoutSeconds = bootWatchdog.getProcessUpTimeoutSeconds();
+        this.adbOnlineTimeoutSeconds = bootWatchdog.getAdbOnlineTimeoutSeconds();
+        this.bootCompletedTimeoutSeconds = bootWatchdog.getBootCompletedTimeoutSeconds();
+        this.maxBootAttempts = Math.max(1, bootWatchdog.getMaxAttempts());
+
+        this.softwareEmulationFallback = androidEmulatorExtension.getSoftwareEmulationFallback();
+
+        final AndroidEmulatorExtension.BrokerExtension broker = androidEmulatorExtension.getBroker();
+        final AndroidEmulatorExtension.RemoteDevicesExtension remoteDevices = androidEmulatorExtension.getRemoteDevices();
+        this.remoteEndpoints = Collections.unmodifiableList(new ArrayList<>(remoteDevices.getEndpoints()));
+        // Remote devices are leased instead of anything the broker would lend
+        this.brokerEnabled = broker.getEnabled() && remoteEndpoints.isEmpty();
+
+        // Instances of a shared AVD can't save snapshots and remote devices have no console to save them through
+        this.snapshotIsolation = androidEmulatorExtension.getSnapshotIsolation() && !sharedAvd &&
+                remoteEndpoints.isEmpty();
+        this.asyncShutdown = androidEmulatorExtension.getAsyncShutdown();
+
+        final AndroidEmulatorExtension.BootAdmissionExtension bootAdmission = androidEmulatorExtension.getBootAdmission();
+        this.bootAdmissionEnabled = bootAdmission.getEnabled();
+        if (bootAdmission.getMaxConcurrentBoots() > 0) {
+            this.maxConcurrentBoots = bootAdmission.getMaxConcurrentBoots();
+        } else {
+            // Booting keeps all of the emulator's cores busy so leave room for another boot's worth of cores
+            this.maxConcurrentBoots = Math.max(1,
+                    Runtime.getRuntime().availableProcessors() / (2 * hardwareProfile.getCores()));
+        }
+        this.bootStaggerSeconds = Math.max(0, bootAdmission.getStaggerSeconds());
+        this.maxBootQueueWaitSeconds = Math.max(0, bootAdmission.getMaxQueueWaitSeconds());
+
+        final AndroidEmulatorExtension.IsolationExtension isolation = androidEmulatorExtension.getIsolation();
+        this.emulatorIndex = emulatorIndex;
+        this.emulatorCount = emulatorCount;
+        this.pinCpus = isolation.getPinCpus();
+        this.cgroupParent = isolation.getCgroupParent();
+        this.memoryLimitConfigured = isolation.getMemoryLimitMb() > 0;
+        if (memoryLimitConfigured) {
+            this.memoryLimitMb = isolation.getMemoryLimitMb();
+        } else {
+            this.memoryLimitMb = hardwareProfile.getRamSizeMb() + EMULATOR_OVERHEAD_MB;
+        }
+
+        final AndroidEmulatorExtension.RamDiskExtension ramDisk = androidEmulatorExtension.getRamDisk();
+        this.ramDiskEnabled = ramDisk.getEnabled();
+        if (ramDisk.getDirectory() != null) {
+            this.ramDiskDirectory = ramDisk.getDirectory();
+        } else {
+            this.ramDiskDirectory = new File(File.separator + "dev" + File.separator + "shm");
+        }
+        // Instances of a shared AVD don't modify it, so there is nothing to copy back
+        this.ramDiskCopyBack = ramDisk.getCopyBack() && !sharedAvd;
+        this.ramDiskMinFreeMemoryMb = Math.max(0, ramDisk.getMinFreeMemoryMb());
+
+        this.brokerPort = broker.getPort();
+        this.brokerPoolSize = Math.max(0, broker.getPoolSize());
+        if (broker.getMaxEmulators() > 0) {
+            this.brokerMaxEmulators = broker.getMaxEmulators();
+        } else {
+            this.brokerMaxEmulators = Math.max(1, Runtime.getRuntime().availableProcessors() / hardwareProfile.getCores());
+        }
+        this.brokerIdleTimeoutMinutes = Math.max(1, broker.getIdleTimeoutMinutes());
+        this.brokerMaxLeaseWaitSeconds = Math.max(0, broker.getMaxLeaseWaitSeconds());
+        this.remoteLeaseTimeoutMinutes = Math.max(1, remoteDevices.getLeaseTimeoutMinutes());
+        this.remoteMaxLeaseWaitSeconds = Math.max(0, remoteDevices.getMaxLeaseWaitSeconds());
+        this.remotePollIntervalSeconds = Math.max(1, remoteDevices.getPollIntervalSeconds());
+        this.runtimeAvdHome = avdRoot;
+    }
+
+    private static String instanceName(final String emulatorName, final int instanceIndex, final int instanceCount) {
+        return instanceCount > 1 ? emulatorName + "-" + (instanceIndex + 1) : emulatorName;
+    }
+
+    /**
+     * @return A port for the build's own ADB server or null if the build uses the shared, default ADB server.
+     */
+    static Integer allocateAdbServerPort(final AndroidEmulatorExtension androidEmulatorExtension) {
+        if (androidEmulatorExtension.getIsolatedAdbServer()) {
+            return AdbServer.allocatePort();
+        }
+        return null;
     }
 
     private static File sdkFile(final File sdkRoot, final String... pathParts) {
@@ -221,6 +379,15 @@ public class EmulatorConfiguration {
         return environmentVariableMap;
     }
 
+    /**
+     * The port of the ADB server owned by this build.
+     *
+     * @return The port or null if the build uses the shared, default ADB server.
+     */
+    public Integer getAdbServerPort() {
+        return adbServerPort;
+    }
+
     public boolean getEnableForAndroidTests() {
         return enableForAndroidTests;
     }
@@ -257,10 +424,375 @@ public class EmulatorConfiguration {
         return emulatorName;
     }
 
+    /**
+     * @return The name identifying this instance of the emulator, which is the AVD name unless the AVD is shared by
+     *         several instances.
+     */
+    public String getInstanceName() {
+        return instanceName;
+    }
+
+    /**
+     * @return Whether several instances run from the AVD, which they launch read-only.
+     */
+    public boolean getSharedAvd() {
+        return instanceCount > 1;
+    }
+
+    /**
+     * @return Whether this instance is the one that creates the AVD, as only one of the instances sharing it does.
+     */
+    public boolean getCreatesAvd() {
+        return instanceIndex == 0;
+    }
+
+    /**
+     * @return Whether to save a snapshot of the shared AVD after creating it for its instances to restore.
+     */
+    public boolean getGoldenSnapshot() {
+        return goldenSnapshot;
+    }
+
     public String getDeviceType() {
         return deviceType;
     }
 
+    /**
+     * The hardware the emulator's AVD is configured with.
+     *
+     * @return The hardware profile, sized for the host unless overridden by the user.
+     */
+    public AvdHardwareProfile getHardwareProfile() {
+        return hardwareProfile;
+    }
+
+    public DeviceSetupScript getDeviceSetupScript() {
+        return deviceSetupScript;
+    }
+
+    public int getProcessUpTimeoutSeconds() {
+        return processUpTimeoutSeconds;
+    }
+
+    public int getAdbOnlineTimeoutSeconds() {
+        return adbOnlineTimeoutSeconds;
+    }
+
+    public int getBootCompletedTimeoutSeconds() {
+        return bootCompletedTimeoutSeconds;
+    }
+
+    public int getMaxBootAttempts() {
+        return maxBootAttempts;
+    }
+
+    public SoftwareEmulationFallback getSoftwareEmulationFallback() {
+        return softwareEmulationFallback;
+    }
+
+    public boolean getSnapshotIsolation() {
+        return snapshotIsolation;
+    }
+
+    public boolean getAsyncShutdown() {
+        return asyncShutdown;
+    }
+
+    public boolean getBootAdmissionEnabled() {
+        return bootAdmissionEnabled;
+    }
+
+    public int getMaxConcurrentBoots() {
+        return maxConcurrentBoots;
+    }
+
+    public int getBootStaggerSeconds() {
+        return bootStaggerSeconds;
+    }
+
+    public int getMaxBootQueueWaitSeconds() {
+        return maxBootQueueWaitSeconds;
+    }
+
+    /**
+     * @return The position of the emulator within the build's emulators.
+     */
+    public int getEmulatorIndex() {
+        return emulatorIndex;
+    }
+
+    /**
+     * @return The number of emulators the build runs at once.
+     */
+    public int getEmulatorCount() {
+        return emulatorCount;
+    }
+
+    public boolean getPinCpus() {
+        return pinCpus;
+    }
+
+    /**
+     * @return The cgroup under which to create the emulator's own cgroup or null to not use cgroups.
+     */
+    public File getCgroupParent() {
+        return cgroupParent;
+    }
+
+    /**
+     * @return The memory limit of the emulator's cgroup.
+     */
+    public long getMemoryLimitMb() {
+        return memoryLimitMb;
+    }
+
+    /**
+     * @return {@code true} if the memory limit was configured rather than sized from the emulator's RAM.
+     */
+    public boolean getMemoryLimitConfigured() {
+        return memoryLimitConfigured;
+    }
+
+    public boolean getRamDiskEnabled() {
+        return ramDiskEnabled;
+    }
+
+    public File getRamDiskDirectory() {
+        return ramDiskDirectory;
+    }
+
+    public boolean getRamDiskCopyBack() {
+        return ramDiskCopyBack;
+    }
+
+    public long getRamDiskMinFreeMemoryMb() {
+        return ramDiskMinFreeMemoryMb;
+    }
+
+    public boolean getBrokerEnabled() {
+        return brokerEnabled;
+    }
+
+    public int getBrokerPort() {
+        return brokerPort;
+    }
+
+    public int getBrokerPoolSize() {
+        return brokerPoolSize;
+    }
+
+    public int getBrokerMaxEmulators() {
+        return brokerMaxEmulators;
+    }
+
+    public long getBrokerIdleTimeoutMinutes() {
+        return brokerIdleTimeoutMinutes;
+    }
+
+    public int getBrokerMaxLeaseWaitSeconds() {
+        return brokerMaxLeaseWaitSeconds;
+    }
+
+    /**
+     * Where the broker shared by all builds on the host keeps its logs.
+     *
+     * @return The broker directory, which may not exist.
+     */
+    public File getBrokerDirectory() {
+        return new File(System.getProperty("java.io.tmpdir"), "android-emulator-plugin" + File.separator + "broker");
+    }
+
+    public boolean getRemoteDevicesEnabled() {
+        return !remoteEndpoints.isEmpty();
+    }
+
+    public List<String> getRemoteEndpoints() {
+        return remoteEndpoints;
+    }
+
+    public long getRemoteLeaseTimeoutMinutes() {
+        return remoteLeaseTimeoutMinutes;
+    }
+
+    public int getRemoteMaxLeaseWaitSeconds() {
+        return remoteMaxLeaseWaitSeconds;
+    }
+
+    public int getRemotePollIntervalSeconds() {
+        return remotePollIntervalSeconds;
+    }
+
+    /**
+     * Where boot slots are coordinated between all builds on the host.
+     *
+     * @return The boot slot directory, which may not exist.
+     */
+    public File getBootSlotDirectory() {
+        return new File(System.getProperty("java.io.tmpdir"), "android-emulator-plugin" + File.separator + "boot-slots");
+    }
+
+    /**
+     * Where the cores emulators are pinned to are reserved between all builds on the host.
+     *
+     * @return The CPU reservation directory, which may not exist.
+     */
+    public File getCpuReservationDirectory() {
+        return new File(System.getProperty("java.io.tmpdir"), "android-emulator-plugin" + File.separator + "cpus");
+    }
+
+    /**
+     * Where the ports emulators listen on are reserved between all builds on the host.
+     *
+     * @return The port reservation directory, which may not exist.
+     */
+    public File getPortReservationDirectory() {
+        return new File(System.getProperty("java.io.tmpdir"), "android-emulator-plugin" + File.separator + "ports");
+    }
+
+    /**
+     * The token the emulator requires to authenticate to its console, created by the emulator on its first run.
+     *
+     * @return The auth token file, which may not exist.
+     */
+    public File getConsoleAuthTokenFile() {
+        return new File(System.getProperty("user.home"), ".emulator_console_auth_token");
+    }
+
+    /**
+     * How long each connected test class took in previous runs.
+     *
+     * @return The history file, which may not exist.
+     */
+    public File getTestTimingHistoryFile() {
+        return new File(buildDir, "android-emulator-plugin" + File.separator + "test-timings.txt");
+    }
+
+    /**
+     * Compares the predicted and actual durations of the last run's test classes when balanced across the emulators.
+     *
+     * @return The report file, which may not exist.
+     */
+    public File getTestShardReportFile() {
+        return new File(buildDir, "reports" + File.separator + "androidEmulator" + File.separator + "test-shards.txt");
+    }
+
+    /**
+     * Breaks down how long each boot of the emulator during the last build took.
+     *
+     * @return The report file, which may not exist.
+     */
+    public File getBootProfileReportFile() {
+        return new File(buildDir, "reports" + File.separator + "androidEmulator" + File.separator +
+                "boot-profile-" + instanceName + ".txt");
+    }
+
+    /**
+     * The resource usage of the emulators while a test task ran.
+     *
+     * @param taskName The name of the test task.
+     * @return The directory of the samples, which may not exist.
+     */
+    public File getResourceSamplesDirectory(final String taskName) {
+        return new File(buildDir, "reports" + File.separator + "androidEmulator" + File.separator + "resources" +
+                File.separator + taskName);
+    }
+
+    /**
+     * How long getting the emulator ready took in previous builds. This is kept beside the AVD rather than in the
+     * build directory so the history survives cleaning the project.
+     *
+     * @return The history file, which may not exist.
+     */
+    public File getBootTimeHistoryFile() {
+        return new File(avdRoot, instanceName + ".boot-history.txt");
+    }
+
+    /**
+     * Where the result of probing for hardware acceleration is cached between builds.
+     *
+     * @return The cache file, which may not exist.
+     */
+    public File getAccelerationProbeCacheFile() {
+        return new File(avdRoot, "acceleration-probe.properties");
+    }
+
+    /**
+     * Marks that the emulator is still shutting down in the background. This is kept beside rather than in the AVD
+     * directory so that it isn't considered part of the AVD.
+     *
+     * @return The marker file, which only exists while the emulator is shutting down.
+     */
+    public File getPendingShutdownMarker() {
+        return pendingShutdownMarker(instanceName);
+    }
+
+    /**
+     * @return The {@link #getPendingShutdownMarker()} of each of the emulator's instances.
+     */
+    public List<File> getInstancePendingShutdownMarkers() {
+        final List<File> markers = new ArrayList<>();
+        for (int i = 0; i < instanceCount; i++) {
+            markers.add(pendingShutdownMarker(instanceName(emulatorName, i, instanceCount)));
+        }
+        return markers;
+    }
+
+    private File pendingShutdownMarker(final String name) {
+        return new File(avdRoot, name + ".shutdown-pending");
+    }
+
+    /**
+     * The directory containing the emulator's AVD data, like its disk images and snapshots.
+     *
+     * @return The AVD directory, which may not exist.
+     */
+    public File getAvdDirectory() {
+        return new File(avdRoot, emulatorName + ".avd");
+    }
+
+    /**
+     * Points the emulator at its AVD directory.
+     *
+     * @return The AVD's ini file, which may not exist.
+     */
+    public File getAvdIni() {
+        return new File(avdRoot, emulatorName + ".ini");
+    }
+
+    /**
+     * Where the emulator's AVD is copied when running from the RAM disk. This is unique to the AVD root so builds of
+     * different projects don't share it.
+     *
+     * @return The AVD home on the RAM disk, which may not exist.
+     */
+    public File getRamDiskAvdHome() {
+        return new File(ramDiskDirectory, "android-emulator-plugin-" +
+                Integer.toHexString(avdRoot.getAbsolutePath().hashCode()) + "-" + instanceName);
+    }
+
+    /**
+     * When the plugin starts the emulator, it should call this with the AVD home the emulator runs from.
+     *
+     * @param runtimeAvdHome The AVD root or the AVD's home on the RAM disk.
+     */
+    public void setRuntimeAvdHome(final File runtimeAvdHome) {
+        this.runtimeAvdHome = runtimeAvdHome;
+    }
+
+    /**
+     * @return The AVD home the emulator runs from, which is the AVD root unless running from the RAM disk.
+     */
+    public File getRuntimeAvdHome() {
+        return this.runtimeAvdHome;
+    }
+
+    /**
+     * @return The AVD directory the emulator runs from.
+     */
+    public File getRuntimeAvdDirectory() {
+        return new File(runtimeAvdHome, emulatorName + ".avd");
+    }
+
     /**
      * When the plugin starts the emulator, it should bind it to a specify a port in
      * the range 5554 to 5682 and call this method to set it for other tasks to use.
@@ -284,4 +816,31 @@ public class EmulatorConfiguration {
     public Integer getEmulatorPort() {
         return this.emulatorPort;
     }
+
+    /**
+     * When the plugin leases a remote device, it should call this method with the device's {@code host:port} serial
+     * for other tasks to use in place of the emulator's.
+     *
+     * @param serial The serial of the remote device.
+     */
+    public void setRemoteSerial(final String serial) {
+        this.remoteSerial = serial;
+    }
+
+    /**
+     * The serial ADB uses to identify the emulator, e.g. {@code emulator-5554}, or the leased remote device, e.g.
+     * {@code 10.0.0.5:5555}.
+     *
+     * @return The serial of the emulator or null if the port is not bound yet.
+     */
+    public String getEmulatorSerial() {
+        final String remote = this.remoteSerial;
+        if (remote != null) {
+            return remote;
+        }
+        if (this.emulatorPort == null) {
+            return null;
+        }
+        return "emulator-" + this.emulatorPort;
+    }
 }
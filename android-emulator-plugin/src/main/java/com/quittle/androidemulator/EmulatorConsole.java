@@ -0,0 +1,187 @@
+package com.quittle.androidemulator;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A client for the emulator's telnet console, which listens on the emulator's port. Unlike signalling the emulator
+ * process, each console command replies once it has completed so operations don't need to rely on timeouts.
+ * <p>
+ * The console replies to every command with any output followed by a line of {@code OK}, or a line of
+ * {@code KO: <reason>} if the command failed.
+ */
+public class EmulatorConsole implements Closeable {
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    // Saving or loading a snapshot of an emulator with a lot of RAM can take a while
+    private static final int READ_TIMEOUT_MS = 120_000;
+    private static final String OK = "OK";
+    private static final String OK_WITH_MESSAGE_PREFIX = "OK:";
+    private static final String KO_PREFIX = "KO";
+    private static final String AUTH_REQUIRED = "Authentication required";
+    private static final String SNAPSHOT_LIST_HEADER_TAG = "TAG";
+    private static final int SNAPSHOT_LIST_TAG_COLUMN = 1;
+
+    private final Socket socket;
+    private final BufferedReader reader;
+    private final Writer writer;
+
+    /**
+     * Connects to the console of an emulator running on this host, authenticating if required.
+     *
+     * @param port          The console port of the emulator, which is the port in its serial.
+     * @param authTokenFile The file containing the token to authenticate with, usually
+     *                      {@code ~/.emulator_console_auth_token}.
+     * @throws IOException if unable to connect or authenticate.
+     */
+    public EmulatorConsole(final int port, final File authTokenFile) throws IOException {
+        this.socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), CONNECT_TIMEOUT_MS);
+            socket.setSoTimeout(READ_TIMEOUT_MS);
+            this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            this.writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+
+            final List<String> banner = readResponse();
+            if (banner.stream().anyMatch(line -> line.contains(AUTH_REQUIRED))) {
+                send("auth " + readAuthToken(authTokenFile));
+            }
+        } catch (IOException | RuntimeException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private static String readAuthToken(final File authTokenFile) throws IOException {
+        if (!authTokenFile.isFile()) {
+            throw new IOException("Emulator console requires authentication but " + authTokenFile + " does not exist");
+        }
+        return new String(Files.readAllBytes(authTokenFile.toPath()), StandardCharsets.UTF_8).trim();
+    }
+
+    /**
+     * Runs a console command.
+     *
+     * @param command The command to run, e.g. {@code avd status}.
+     * @return The lines of output before the final {@code OK}.
+     * @throws IOException if the command failed or the console could not be communicated with.
+     */
+    public synchronized List<String> execute(final String command) throws IOException {
+        return send(command);
+    }
+
+    private List<String> send(final String command) throws IOException {
+        writer.write(command);
+        writer.write('\n');
+        writer.flush();
+        return readResponse();
+    }
+
+    /**
+     * @return The state of the virtual device, e.g. {@code virtual device is running}.
+     * @throws IOException if the console could not be communicated with.
+     */
+    public String getStatus() throws IOException {
+        return String.join(" ", execute("avd status"));
+    }
+
+    /**
+     * Saves the current state of the emulator, replacing any existing snapshot with the same name.
+     *
+     * @param name The name of the snapshot.
+     * @throws IOException if the snapshot could not be saved.
+     */
+    public void saveSnapshot(final String name) throws IOException {
+        execute("avd snapshot save " + name);
+    }
+
+    /**
+     * Restores the emulator to a previously saved snapshot.
+     *
+     * @param name The name of the snapshot.
+     * @throws IOException if the snapshot could not be loaded.
+     */
+    public void loadSnapshot(final String name) throws IOException {
+        execute("avd snapshot load " + name);
+    }
+
+    /**
+     * @return The names of the snapshots saved for the emulator.
+     * @throws IOException if the console could not be communicated with.
+     */
+    public List<String> listSnapshots() throws IOException {
+        return parseSnapshotList(execute("avd snapshot list"));
+    }
+
+    /**
+     * Asks the emulator to exit. The emulator exits shortly after replying so the console can no longer be used.
+     *
+     * @throws IOException if the console could not be communicated with.
+     */
+    public void kill() throws IOException {
+        try {
+            execute("kill");
+        } catch (final EOFException e) {
+            // The emulator may exit before its reply is read
+            return;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    private List<String> readResponse() throws IOException {
+        final List<String> lines = new ArrayList<>();
+        while (true) {
+            final String line = reader.readLine();
+            if (line == null) {
+                throw new EOFException("Emulator console closed the connection");
+            }
+            if (OK.equals(line) || line.startsWith(OK_WITH_MESSAGE_PREFIX)) {
+                return lines;
+            }
+            if (line.startsWith(KO_PREFIX)) {
+                throw new IOException("Emulator console command failed: " + line);
+            }
+            lines.add(line);
+        }
+    }
+
+    /**
+     * Parses the output of {@code avd snapshot list}, which looks like
+     * <pre>{@code
+     * List of snapshots present on all disks:
+     * ID        TAG                 VM SIZE                DATE       VM CLOCK
+     * --        default_boot           129M 2023-05-01 10:00:00   00:00:21.102
+     * }</pre>
+     */
+    static List<String> parseSnapshotList(final List<String> lines) {
+        final List<String> names = new ArrayList<>();
+        boolean headerFound = false;
+        for (final String line : lines) {
+            final String[] columns = line.trim().split("\\s+");
+            if (!headerFound) {
+                headerFound = columns.length > SNAPSHOT_LIST_TAG_COLUMN &&
+                        SNAPSHOT_LIST_HEADER_TAG.equals(columns[SNAPSHOT_LIST_TAG_COLUMN]);
+            } else if (columns.length > SNAPSHOT_LIST_TAG_COLUMN) {
+                names.add(columns[SNAPSHOT_LIST_TAG_COLUMN]);
+            }
+        }
+        return Collections.unmodifiableList(names);
+    }
+}
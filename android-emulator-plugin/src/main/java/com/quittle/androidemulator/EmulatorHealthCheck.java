@@ -0,0 +1,47 @@
+package com.quittle.androidemulator;
+
+import java.util.Optional;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Decides from each poll of an emulator whether it needs to be replaced. A crashed emulator is replaced at once, but
+ * ADB briefly reports the emulator as offline while a snapshot is loaded, so only a sustained outage counts.
+ */
+public class EmulatorHealthCheck {
+    private final int maxOfflinePolls;
+    private final long pollIntervalSeconds;
+    private int offlinePolls = 0;
+
+    /**
+     * @param maxOfflinePolls     The number of polls in a row the emulator may be offline for.
+     * @param pollIntervalSeconds How often the emulator is polled, for describing the outage.
+     */
+    public EmulatorHealthCheck(final int maxOfflinePolls, final long pollIntervalSeconds) {
+        this.maxOfflinePolls = maxOfflinePolls;
+        this.pollIntervalSeconds = pollIntervalSeconds;
+    }
+
+    /**
+     * @param running Whether the emulator process is running.
+     * @param online  Checks whether ADB reports the emulator as online, which is only asked if it's running.
+     * @return Why the emulator needs to be replaced or empty if it doesn't.
+     */
+    public synchronized Optional<String> poll(final boolean running, final BooleanSupplier online) {
+        if (!running) {
+            return Optional.of("crashed");
+        }
+        if (online.getAsBoolean()) {
+            offlinePolls = 0;
+        } else if (++offlinePolls >= maxOfflinePolls) {
+            return Optional.of("has been offline for " + (maxOfflinePolls * pollIntervalSeconds) + " seconds");
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Forgets any outage, once the emulator has been replaced.
+     */
+    public synchronized void reset() {
+        offlinePolls = 0;
+    }
+}
@@ -0,0 +1,397 @@
+package com.quittle.androidemulator;
+
+import org.gradle.api.logging.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Keeps the emulators of a build from competing with each other and with Gradle for the host's cores by pinning each
+ * to its own set of cores and optionally placing it in its own cgroup with CPU and memory limits. The cores are
+ * reserved across all builds on the host, so emulators of concurrent builds are pinned to different cores while there
+ * are enough of them. Only supported on Linux.
+ */
+public class EmulatorIsolation {
+    private static final String CPUS_ALLOWED_PREFIX = "Cpus_allowed_list:";
+    private static final String CPU_DIR_PREFIX = "cpu";
+    private static final String CGROUP_NAME_PREFIX = "android-emulator-";
+    /**
+     * Written to the emulator's standard error before it starts if it couldn't be moved into its cgroup, followed by
+     * the cgroup's {@code cgroup.procs}.
+     */
+    public static final String CGROUP_MOVE_FAILED_OUTPUT = "Unable to move the emulator into cgroup";
+    // Run with the cgroup's cgroup.procs and then the command to run in the cgroup
+    static final String CGROUP_SCRIPT =
+            "echo $$ 2>/dev/null > \"$0\" || echo \"" + CGROUP_MOVE_FAILED_OUTPUT + " $0\" >&2; exec \"$@\"";
+    private static final long CPU_PERIOD_MICROS = 100_000;
+    private static final long BYTES_PER_MB = 1024 * 1024;
+
+    private final EmulatorConfiguration emulatorConfiguration;
+    private final Logger logger;
+    private final AtomicReference<CpuReservation> cpuReservation = new AtomicReference<>();
+    private final AtomicReference<File> cgroupInUse = new AtomicReference<>();
+
+    public EmulatorIsolation(final EmulatorConfiguration emulatorConfiguration, final Logger logger) {
+        this.emulatorConfiguration = emulatorConfiguration;
+        this.logger = logger;
+    }
+
+    /**
+     * @return Whether isolation was requested for the emulator.
+     */
+    public boolean isEnabled() {
+        return emulatorConfiguration.getPinCpus() || emulatorConfiguration.getCgroupParent() != null;
+    }
+
+    /**
+     * Wraps the command launching the emulator so the emulator and every process it starts are isolated. If the
+     * isolation can't be applied, the build continues without it.
+     *
+     * @param command The command launching the emulator.
+     * @return The command to run instead.
+     */
+    public List<String> wrap(final List<String> command) {
+        if (!isEnabled()) {
+            return command;
+        }
+        if (!Files.isRegularFile(Paths.get("/proc", "self", "status"))) {
+            logger.warn("Emulator isolation is only supported on Linux");
+            return command;
+        }
+
+        final Map<Integer, Long> coreIds = readCoreIds();
+        final List<Integer> orderedCpus = orderCpus(readAllowedCpus(), coreIds);
+        final List<Integer> cpus = emulatorConfiguration.getPinCpus()
+                ? reserveCpus(orderedCpus, coreIds)
+                : assignCpus(orderedCpus, coreIds, emulatorConfiguration.getEmulatorIndex(),
+                        emulatorConfiguration.getEmulatorCount());
+        final List<String> wrapped = new ArrayList<>(command);
+
+        if (emulatorConfiguration.getPinCpus()) {
+            final String taskset = findOnPath("taskset");
+            if (taskset.isEmpty()) {
+                logger.warn("Unable to pin the emulator to cores {} because taskset is not installed",
+                        formatCpuList(cpus));
+            } else {
+                logger.info("Pinning emulator {} to cores {}", emulatorConfiguration.getInstanceName(),
+                        formatCpuList(cpus));
+                wrapped.addAll(0, Arrays.asList(taskset, "-c", formatCpuList(cpus)));
+            }
+        }
+
+        if (emulatorConfiguration.getCgroupParent() != null) {
+            final File cgroup = new File(emulatorConfiguration.getCgroupParent(),
+                    CGROUP_NAME_PREFIX + emulatorConfiguration.getInstanceName());
+            try {
+                configureCgroup(cgroup, cpus);
+                final File procs = new File(cgroup, "cgroup.procs");
+                if (Files.isWritable(procs.toPath())) {
+                    // The shell moves itself into the cgroup before becoming the emulator, so every process the
+                    // emulator starts is in the cgroup too. Moving can still be refused, e.g. if the user can't write
+                    // to the cgroup Gradle runs in, in which case the emulator starts outside of it.
+                    wrapped.addAll(0, Arrays.asList("sh", "-c", CGROUP_SCRIPT, procs.getAbsolutePath()));
+                    cgroupInUse.set(cgroup);
+                } else {
+                    logger.warn("Unable to place the emulator in cgroup {} because {} is not writable. The parent " +
+                            "cgroup must be delegated to the user running Gradle.", cgroup, procs);
+                    removeCgroup(cgroup);
+                }
+            } catch (final IOException e) {
+                logger.warn("Unable to place the emulator in cgroup {}. The parent cgroup must be delegated to the " +
+                        "user running Gradle.", cgroup, e);
+            }
+        }
+        return wrapped;
+    }
+
+    /**
+     * Frees what was reserved for the emulator once it has exited. This is safe to call multiple times.
+     */
+    public void release() {
+        final CpuReservation reservation = cpuReservation.getAndSet(null);
+        if (reservation != null) {
+            try {
+                reservation.close();
+            } catch (final IOException e) {
+                logger.warn("Unable to release cores {}", formatCpuList(reservation.getCpus()), e);
+            }
+        }
+        final File cgroup = cgroupInUse.getAndSet(null);
+        if (cgroup != null) {
+            removeCgroup(cgroup);
+        }
+    }
+
+    /**
+     * Removes the cgroup, which the kernel only allows once no processes are left in it.
+     */
+    private void removeCgroup(final File cgroup) {
+        try {
+            Files.deleteIfExists(cgroup.toPath());
+        } catch (final IOException e) {
+            logger.info("Unable to remove cgroup {}. Processes of the emulator may still be running in it.", cgroup, e);
+        }
+    }
+
+    /**
+     * Reserves a set of cores no other emulator on the host is pinned to, preferring the set the emulator would get if
+     * its build were the only one on the host. If every set is taken, the emulator shares that set.
+     */
+    private List<Integer> reserveCpus(final List<Integer> orderedCpus, final Map<Integer, Long> coreIds) {
+        final List<List<Integer>> cpuSets = cpuSets(orderedCpus, coreIds, emulatorConfiguration.getEmulatorIndex(),
+                emulatorConfiguration.getEmulatorCount());
+        try {
+            for (final List<Integer> cpus : cpuSets) {
+                final Optional<CpuReservation> reservation =
+                        CpuReservation.tryReserve(emulatorConfiguration.getCpuReservationDirectory(), cpus);
+                if (reservation.isPresent()) {
+                    cpuReservation.set(reservation.get());
+                    return cpus;
+                }
+            }
+            logger.warn("Every set of cores is in use by other emulators on the host, so emulator {} shares cores {}",
+                    emulatorConfiguration.getInstanceName(), formatCpuList(cpuSets.get(0)));
+        } catch (final IOException e) {
+            logger.warn("Unable to coordinate cores with other emulators on the host. Pinning emulator {} to cores {} " +
+                    "anyway.", emulatorConfiguration.getInstanceName(), formatCpuList(cpuSets.get(0)), e);
+        }
+        return cpuSets.get(0);
+    }
+
+    /**
+     * Pages of a RAM disk are charged to the cgroup of the process that writes them, so the emulator's writes to its AVD
+     * on the RAM disk, like saving its snapshot, count towards its memory limit.
+     */
+    private long getMemoryLimitMb() {
+        final long memoryLimitMb = emulatorConfiguration.getMemoryLimitMb();
+        final long ramDiskFootprintMb = RamDiskAvd.placed(emulatorConfiguration).map(RamDiskAvd::getFootprintMb)
+                .orElse(0L);
+        if (memoryLimitMb <= 0 || ramDiskFootprintMb == 0) {
+            return memoryLimitMb;
+        }
+        if (!emulatorConfiguration.getMemoryLimitConfigured()) {
+            return memoryLimitMb + ramDiskFootprintMb;
+        }
+        logger.warn("Emulator {} runs from the RAM disk, whose pages it writes count towards its memory limit of {} " +
+                "MB. The AVD may take up to {} MB of it, so raise isolation.memoryLimitMb if the emulator runs out of " +
+                "memory.", emulatorConfiguration.getInstanceName(), memoryLimitMb, ramDiskFootprintMb);
+        return memoryLimitMb;
+    }
+
+    private void configureCgroup(final File cgroup, final List<Integer> cpus) throws IOException {
+        Files.createDirectories(cgroup.toPath());
+        final long memoryLimitMb = getMemoryLimitMb();
+        final Map<String, String> limits = new LinkedHashMap<>();
+        limits.put("cpu.max", (cpus.size() * CPU_PERIOD_MICROS) + " " + CPU_PERIOD_MICROS);
+        if (emulatorConfiguration.getPinCpus()) {
+            limits.put("cpuset.cpus", formatCpuList(cpus));
+        }
+        if (memoryLimitMb > 0) {
+            limits.put("memory.max", String.valueOf(memoryLimitMb * BYTES_PER_MB));
+        }
+        for (final Map.Entry<String, String> limit : limits.entrySet()) {
+            final Path file = cgroup.toPath().resolve(limit.getKey());
+            if (Files.exists(file)) {
+                Files.write(file, limit.getValue().getBytes(StandardCharsets.US_ASCII));
+            } else {
+                logger.warn("Unable to set {} of cgroup {} because its controller is not enabled in the parent's " +
+                        "cgroup.subtree_control", limit.getKey(), cgroup);
+            }
+        }
+        logger.info("Placing emulator {} in cgroup {} with limits {}", emulatorConfiguration.getInstanceName(), cgroup,
+                limits);
+    }
+
+    /**
+     * Orders the cores so that the hardware threads of each physical core are next to each other, keeping them in the
+     * same set when the cores are split up.
+     *
+     * @param cpus    The logical cores.
+     * @param coreIds The physical core of each logical core, from {@link #coreId}.
+     * @return The logical cores, in order.
+     */
+    static List<Integer> orderCpus(final List<Integer> cpus, final Map<Integer, Long> coreIds) {
+        return cpus.stream()
+                .sorted(Comparator.<Integer, Long>comparing(cpu -> physicalCore(cpu, coreIds))
+                        .thenComparing(Comparator.naturalOrder()))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Splits the cores between the emulators, leaving the first cores to Gradle and the rest of the host. Each emulator
+     * gets the same number of cores, rounded down to whole physical cores where possible. If there are more emulators
+     * than cores, emulators share cores.
+     *
+     * @param orderedCpus   The logical cores, ordered by {@link #orderCpus}.
+     * @param coreIds       The physical core of each logical core, from {@link #coreId}.
+     * @param emulatorIndex The position of the emulator within the build's emulators.
+     * @param emulatorCount The number of emulators the build runs at once.
+     * @return The cores assigned to the emulator.
+     */
+    static List<Integer> assignCpus(final List<Integer> orderedCpus, final Map<Integer, Long> coreIds,
+            final int emulatorIndex, final int emulatorCount) {
+        return cpuSets(orderedCpus, coreIds, emulatorIndex, emulatorCount).get(0);
+    }
+
+    /**
+     * Splits the cores into sets the size of an emulator's share, as {@link #assignCpus} does, for emulators of other
+     * builds on the host to fall back to when their own share is taken.
+     *
+     * @param orderedCpus   The logical cores, ordered by {@link #orderCpus}.
+     * @param coreIds       The physical core of each logical core, from {@link #coreId}.
+     * @param emulatorIndex The position of the emulator within the build's emulators.
+     * @param emulatorCount The number of emulators the build runs at once.
+     * @return Every set of cores, starting with the one assigned to the emulator and wrapping around.
+     */
+    static List<List<Integer>> cpuSets(final List<Integer> orderedCpus, final Map<Integer, Long> coreIds,
+            final int emulatorIndex, final int emulatorCount) {
+        final int cpuCount = orderedCpus.size();
+        final int count = Math.max(1, emulatorCount);
+        // The same split AvdHardwareProfile uses to size the emulators
+        final int reserved = Math.min(cpuCount - 1, cpuCount <= 4 ? 1 : 2);
+        final int available = cpuCount - reserved;
+
+        int perEmulator = 1;
+        if (available >= count) {
+            perEmulator = available / count;
+            final long physicalCores = orderedCpus.stream().map(cpu -> physicalCore(cpu, coreIds)).distinct().count();
+            final int threadsPerCore = (int) (cpuCount / Math.max(1, physicalCores));
+            if (perEmulator >= threadsPerCore) {
+                perEmulator -= perEmulator % threadsPerCore;
+            }
+        }
+        final int setCount = available / perEmulator;
+        final List<List<Integer>> cpuSets = new ArrayList<>(setCount);
+        for (int i = 0; i < setCount; i++) {
+            final int start = reserved + ((emulatorIndex + i) % setCount) * perEmulator;
+            cpuSets.add(new ArrayList<>(orderedCpus.subList(start, start + perEmulator)));
+        }
+        return cpuSets;
+    }
+
+    /**
+     * @param packageId The {@code physical_package_id} of a logical core.
+     * @param coreId    The {@code core_id} of a logical core, which is only unique within its package.
+     * @return Identifies the physical core, ordered by package and then core.
+     */
+    static long coreId(final int packageId, final int coreId) {
+        return ((long) packageId << Integer.SIZE) | coreId;
+    }
+
+    private static long physicalCore(final int cpu, final Map<Integer, Long> coreIds) {
+        // Treat cores with unknown topology as their own physical core, after all the known ones
+        return coreIds.getOrDefault(cpu, Long.MAX_VALUE - cpu);
+    }
+
+    /**
+     * @param cpuList A list of cores like {@code 0-3,8,10-11}, as used by the kernel.
+     * @return The cores.
+     */
+    static List<Integer> parseCpuList(final String cpuList) {
+        final TreeSet<Integer> cpus = new TreeSet<>();
+        for (final String range : cpuList.trim().split(",")) {
+            if (range.isEmpty()) {
+                continue;
+            }
+            final String[] bounds = range.split("-");
+            final int first = Integer.parseInt(bounds[0].trim());
+            final int last = Integer.parseInt(bounds[bounds.length - 1].trim());
+            IntStream.rangeClosed(first, last).forEach(cpus::add);
+        }
+        return new ArrayList<>(cpus);
+    }
+
+    /**
+     * @param cpus The cores.
+     * @return The cores as a list like {@code 0-3,8,10-11}, as used by {@code taskset} and the kernel.
+     */
+    static String formatCpuList(final List<Integer> cpus) {
+        final List<Integer> sorted = new ArrayList<>(new TreeSet<>(cpus));
+        final List<String> ranges = new ArrayList<>();
+        int i = 0;
+        while (i < sorted.size()) {
+            int j = i;
+            while (j + 1 < sorted.size() && sorted.get(j + 1) == sorted.get(j) + 1) {
+                j++;
+            }
+            ranges.add(i == j ? String.valueOf(sorted.get(i)) : sorted.get(i) + "-" + sorted.get(j));
+            i = j + 1;
+        }
+        return String.join(",", ranges);
+    }
+
+    /**
+     * @return The cores Gradle may run on, which respects any limits of the container it runs in.
+     */
+    private static List<Integer> readAllowedCpus() {
+        try {
+            for (final String line : Files.readAllLines(Paths.get("/proc", "self", "status"), StandardCharsets.UTF_8)) {
+                if (line.startsWith(CPUS_ALLOWED_PREFIX)) {
+                    return parseCpuList(line.substring(CPUS_ALLOWED_PREFIX.length()));
+                }
+            }
+        } catch (final IOException | NumberFormatException e) {
+            // Fall back to assuming the cores are numbered from zero
+            return IntStream.range(0, Runtime.getRuntime().availableProcessors()).boxed().collect(Collectors.toList());
+        }
+        return IntStream.range(0, Runtime.getRuntime().availableProcessors()).boxed().collect(Collectors.toList());
+    }
+
+    /**
+     * @return The physical core of each logical core, from {@link #coreId}. Logical cores whose topology is unknown
+     *         are absent.
+     */
+    private static Map<Integer, Long> readCoreIds() {
+        final Map<Integer, Long> coreIds = new HashMap<>();
+        final File[] cpuDirs = new File(File.separator + String.join(File.separator, "sys", "devices", "system", "cpu"))
+                .listFiles((dir, name) -> name.matches(CPU_DIR_PREFIX + "\\d+"));
+        if (cpuDirs == null) {
+            return coreIds;
+        }
+        for (final File cpuDir : cpuDirs) {
+            final Path topology = cpuDir.toPath().resolve("topology");
+            try {
+                coreIds.put(Integer.parseInt(cpuDir.getName().substring(CPU_DIR_PREFIX.length())),
+                        coreId(readInt(topology.resolve("physical_package_id")), readInt(topology.resolve("core_id"))));
+            } catch (final IOException | NumberFormatException e) {
+                // Offline cores have no topology
+                continue;
+            }
+        }
+        return coreIds;
+    }
+
+    private static int readInt(final Path file) throws IOException {
+        return Integer.parseInt(new String(Files.readAllBytes(file), StandardCharsets.US_ASCII).trim());
+    }
+
+    private static String findOnPath(final String executable) {
+        final String path = System.getenv("PATH");
+        if (path == null) {
+            return "";
+        }
+        for (final String dir : path.split(File.pathSeparator)) {
+            final File file = new File(dir, executable);
+            if (file.canExecute()) {
+                return file.getAbsolutePath();
+            }
+        }
+        return "";
+    }
+}
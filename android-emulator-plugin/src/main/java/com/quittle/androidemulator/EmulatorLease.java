@@ -0,0 +1,27 @@
+package com.quittle.androidemulator;
+
+import java.util.List;
+
+/**
+ * An emulator the build borrows rather than starts itself. While leased, the emulator is already booted and something
+ * other than the build looks after it, so the build only waits for it to be lent and hands it back when done.
+ */
+public interface EmulatorLease {
+    /**
+     * Leases an emulator, pointing the {@link EmulatorConfiguration} at it.
+     *
+     * @param command The command the build would launch the emulator with, without a port.
+     * @return {@code true} if leased or {@code false} if the build should start the emulator itself.
+     */
+    boolean acquire(List<String> command);
+
+    /**
+     * @return {@code true} if the build is using a leased emulator.
+     */
+    boolean isLeased();
+
+    /**
+     * Hands the leased emulator, if any, back. This is safe to call multiple times.
+     */
+    void release();
+}
@@ -0,0 +1,328 @@
+package com.quittle.androidemulator;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Counters, gauges, and histograms describing the emulators of a build, formatted for Prometheus. Recording a value
+ * only updates an adder, so recording is cheap enough to do unconditionally. Values that can be read from the
+ * emulators themselves, like their CPU and memory use, are only read when the metrics are formatted.
+ */
+public class EmulatorMetrics {
+    private static final double[] BOOT_SECONDS_BUCKETS = { 10, 20, 30, 45, 60, 90, 120, 180, 300, 600 };
+    private static final double[] QUEUE_WAIT_SECONDS_BUCKETS = { 0.1, 1, 5, 10, 30, 60, 120, 300, 600, 1800 };
+    private static final double[] READINESS_WAIT_SECONDS_BUCKETS = { 1, 2, 5, 10, 20, 30, 60, 120, 300, 600 };
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final String LABEL = "emulator";
+    private static final String COUNTER = "counter";
+    private static final String GAUGE = "gauge";
+    private static final String HISTOGRAM = "histogram";
+    private static final String TOTAL_SUFFIX = "_total";
+    private static final String NO_SUFFIX = "";
+
+    /**
+     * The format of the metrics.
+     */
+    public enum Format {
+        /**
+         * The OpenMetrics format, served to scrapers that ask for it.
+         */
+        OPEN_METRICS("application/openmetrics-text; version=1.0.0; charset=utf-8"),
+        /**
+         * The original Prometheus text format, which is what the node exporter's textfile collector reads.
+         */
+        PROMETHEUS_TEXT("text/plain; version=0.0.4; charset=utf-8");
+
+        private final String contentType;
+
+        Format(final String contentType) {
+            this.contentType = contentType;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+    }
+
+    /**
+     * Counts observations into fixed buckets.
+     */
+    static class Histogram {
+        private final double[] bounds;
+        private final LongAdder[] bucketCounts;
+        private final LongAdder count = new LongAdder();
+        private final DoubleAdder sum = new DoubleAdder();
+
+        Histogram(final double[] bounds) {
+            this.bounds = bounds.clone();
+            this.bucketCounts = new LongAdder[bounds.length];
+            for (int i = 0; i < bounds.length; i++) {
+                bucketCounts[i] = new LongAdder();
+            }
+        }
+
+        void observe(final double value) {
+            for (int i = 0; i < bounds.length; i++) {
+                if (value <= bounds[i]) {
+                    bucketCounts[i].increment();
+                    break;
+                }
+            }
+            count.increment();
+            sum.add(value);
+        }
+    }
+
+    /**
+     * The metrics of a single emulator.
+     */
+    public static class Emulator {
+        private final Histogram bootSeconds = new Histogram(BOOT_SECONDS_BUCKETS);
+        private final Histogram bootQueueWaitSeconds = new Histogram(QUEUE_WAIT_SECONDS_BUCKETS);
+        private final Histogram readinessWaitSeconds = new Histogram(READINESS_WAIT_SECONDS_BUCKETS);
+        private final LongAdder bootRetries = new LongAdder();
+        private final LongAdder bootFailures = new LongAdder();
+        private final AtomicInteger bootsQueued = new AtomicInteger(0);
+        private final AtomicInteger busy = new AtomicInteger(0);
+        private final Map<String, LongAdder> testResults = new LinkedHashMap<>();
+        private final AtomicReference<Supplier<Process>> process = new AtomicReference<>(() -> null);
+        private final AtomicReference<IntSupplier> replacements = new AtomicReference<>(() -> 0);
+
+        Emulator() {
+            for (final InstrumentationResultParser.TestStatus status : InstrumentationResultParser.TestStatus.values()) {
+                testResults.put(status.name().toLowerCase(Locale.ROOT), new LongAdder());
+            }
+        }
+
+        /**
+         * Starts reading the CPU and memory use of the emulator process, and the number of times it was replaced.
+         *
+         * @param process      Provides the current emulator process, or {@code null} if it isn't running.
+         * @param replacements Provides the number of times the emulator has been replaced after crashing.
+         */
+        public void track(final Supplier<Process> process, final IntSupplier replacements) {
+            this.process.set(process);
+            this.replacements.set(replacements);
+        }
+
+        /**
+         * @param duration How long the emulator took to boot, from launch until Android finished booting.
+         */
+        public void recordBoot(final Duration duration) {
+            bootSeconds.observe(duration.toNanos() / NANOS_PER_SECOND);
+        }
+
+        /**
+         * @param duration How long the emulator took to be ready for tests once Android finished booting.
+         */
+        public void recordReadinessWait(final Duration duration) {
+            readinessWaitSeconds.observe(duration.toNanos() / NANOS_PER_SECOND);
+        }
+
+        public void recordBootRetry() {
+            bootRetries.increment();
+        }
+
+        public void recordBootFailure() {
+            bootFailures.increment();
+        }
+
+        /**
+         * Records that the emulator is waiting for boot admission.
+         */
+        public void bootQueued() {
+            bootsQueued.incrementAndGet();
+        }
+
+        /**
+         * @param queueWait How long the emulator waited for boot admission.
+         */
+        public void bootAdmitted(final Duration queueWait) {
+            bootsQueued.decrementAndGet();
+            bootQueueWaitSeconds.observe(queueWait.toNanos() / NANOS_PER_SECOND);
+        }
+
+        /**
+         * Records that tests are running on the emulator until {@link #idle()} is called.
+         */
+        public void busy() {
+            busy.incrementAndGet();
+        }
+
+        public void idle() {
+            busy.decrementAndGet();
+        }
+
+        /**
+         * @param status The outcome of a test run on the emulator.
+         */
+        public void recordTest(final InstrumentationResultParser.TestStatus status) {
+            testResults.get(status.name().toLowerCase(Locale.ROOT)).increment();
+        }
+    }
+
+    private final Map<String, Emulator> emulators = new LinkedHashMap<>();
+
+    /**
+     * @param name The name of the emulator's AVD.
+     * @return The metrics of the emulator, created the first time it is requested.
+     */
+    public synchronized Emulator forEmulator(final String name) {
+        return emulators.computeIfAbsent(name, key -> new Emulator());
+    }
+
+    /**
+     * @param format The format to use.
+     * @return The current value of all the metrics.
+     */
+    public String format(final Format format) {
+        final Map<String, Emulator> snapshot;
+        synchronized (this) {
+            snapshot = new LinkedHashMap<>(emulators);
+        }
+        final MetricsWriter writer = new MetricsWriter(format);
+
+        writer.family("android_emulator_boot_seconds", HISTOGRAM,
+                "Time from launching the emulator until Android finished booting.");
+        snapshot.forEach((name, emulator) -> writer.histogram(name, emulator.bootSeconds));
+        writer.family("android_emulator_boot_queue_wait_seconds", HISTOGRAM,
+                "Time the emulator waited for boot admission before launching.");
+        snapshot.forEach((name, emulator) -> writer.histogram(name, emulator.bootQueueWaitSeconds));
+        writer.family("android_emulator_readiness_wait_seconds", HISTOGRAM,
+                "Time from Android finishing booting until the emulator was prepared for tests.");
+        snapshot.forEach((name, emulator) -> writer.histogram(name, emulator.readinessWaitSeconds));
+        writer.family("android_emulator_boots_queued", GAUGE, "Whether the emulator is waiting for boot admission.");
+        snapshot.forEach((name, emulator) -> writer.sample(NO_SUFFIX, name, emulator.bootsQueued.get()));
+        writer.family("android_emulator_boot_retries", COUNTER, "Boots retried after the emulator failed to boot.");
+        snapshot.forEach((name, emulator) -> writer.sample(TOTAL_SUFFIX, name, emulator.bootRetries.sum()));
+        writer.family("android_emulator_boot_failures", COUNTER, "Boots that failed after exhausting all retries.");
+        snapshot.forEach((name, emulator) -> writer.sample(TOTAL_SUFFIX, name, emulator.bootFailures.sum()));
+        writer.family("android_emulator_replacements", COUNTER, "Emulators replaced after crashing.");
+        snapshot.forEach((name, emulator) ->
+                writer.sample(TOTAL_SUFFIX, name, emulator.replacements.get().getAsInt()));
+
+        writer.family("android_emulator_running", GAUGE, "Whether the emulator process is running.");
+        snapshot.forEach((name, emulator) ->
+                writer.sample(NO_SUFFIX, name, isRunning(emulator.process.get().get()) ? 1 : 0));
+        writer.family("android_emulator_busy", GAUGE, "Whether tests are running on the emulator.");
+        snapshot.forEach((name, emulator) -> writer.sample(NO_SUFFIX, name, emulator.busy.get() > 0 ? 1 : 0));
+        writer.family("android_emulator_tests", COUNTER, "Tests run on the emulator by the plugin, by result.");
+        snapshot.forEach((name, emulator) -> emulator.testResults.forEach((result, count) ->
+                writer.sample(TOTAL_SUFFIX, name, "result=\"" + result + "\"", count.sum())));
+
+        writer.family("android_emulator_cpu_seconds", COUNTER,
+                "CPU time used by the running emulator process and its children.");
+        snapshot.forEach((name, emulator) -> {
+            final Process process = emulator.process.get().get();
+            if (isRunning(process)) {
+                writer.sample(TOTAL_SUFFIX, name, processTree(process)
+                        .map(handle -> handle.info().totalCpuDuration().orElse(Duration.ZERO))
+                        .mapToLong(Duration::toNanos).sum() / NANOS_PER_SECOND);
+            }
+        });
+        writer.family("android_emulator_resident_memory_bytes", GAUGE,
+                "Resident memory of the running emulator process and its children. Only available on Linux.");
+        snapshot.forEach((name, emulator) -> {
+            final Process process = emulator.process.get().get();
+            if (isRunning(process)) {
+                residentBytes(processTree(process).map(handle -> ProcessResourceUsage.read(handle.pid())))
+                        .ifPresent(rss -> writer.sample(NO_SUFFIX, name, rss));
+            }
+        });
+        return writer.finish();
+    }
+
+    /**
+     * @param usage The usage of each process of the emulator, empty for processes that exited while being read.
+     * @return The total resident memory of the processes that could be read or empty if none could be.
+     */
+    static Optional<Long> residentBytes(final Stream<Optional<ProcessResourceUsage>> usage) {
+        return usage.filter(Optional::isPresent)
+                .map(processUsage -> processUsage.get().getResidentBytes())
+                .reduce(Long::sum);
+    }
+
+    private static boolean isRunning(final Process process) {
+        return process != null && process.isAlive();
+    }
+
+    private static Stream<ProcessHandle> processTree(final Process process) {
+        // The emulator launcher runs the emulator itself as a child process
+        return Stream.concat(Stream.of(process.toHandle()), process.descendants());
+    }
+
+    /**
+     * Builds the text of the metrics, a family at a time.
+     */
+    private static class MetricsWriter {
+        private final Format format;
+        private final StringBuilder text = new StringBuilder();
+        private String familyName = "";
+
+        private MetricsWriter(final Format format) {
+            this.format = format;
+        }
+
+        private void family(final String name, final String type, final String help) {
+            familyName = name;
+            // The original format names counters by their samples, which end in _total
+            final String typeName = format == Format.PROMETHEUS_TEXT && COUNTER.equals(type) ? name + TOTAL_SUFFIX : name;
+            text.append("# TYPE ").append(typeName).append(' ').append(type).append('\n');
+            text.append("# HELP ").append(typeName).append(' ').append(help).append('\n');
+        }
+
+        private void sample(final String suffix, final String emulator, final double value) {
+            sample(suffix, emulator, NO_SUFFIX, value);
+        }
+
+        private void sample(final String suffix, final String emulator, final String extraLabels, final double value) {
+            text.append(familyName).append(suffix)
+                    .append('{').append(LABEL).append("=\"").append(escapeLabel(emulator)).append('"');
+            if (!extraLabels.isEmpty()) {
+                text.append(',').append(extraLabels);
+            }
+            text.append("} ").append(formatValue(value)).append('\n');
+        }
+
+        private void histogram(final String emulator, final Histogram histogram) {
+            long cumulative = 0;
+            for (int i = 0; i < histogram.bounds.length; i++) {
+                cumulative += histogram.bucketCounts[i].sum();
+                sample("_bucket", emulator, "le=\"" + formatValue(histogram.bounds[i]) + "\"", cumulative);
+            }
+            final long count = histogram.count.sum();
+            sample("_bucket", emulator, "le=\"+Inf\"", count);
+            sample("_sum", emulator, histogram.sum.sum());
+            sample("_count", emulator, count);
+        }
+
+        private String finish() {
+            if (format == Format.OPEN_METRICS) {
+                text.append("# EOF\n");
+            }
+            return text.toString();
+        }
+
+        private static String formatValue(final double value) {
+            if (value == Math.rint(value) && !Double.isInfinite(value)) {
+                return String.format(Locale.ROOT, "%.1f", value);
+            }
+            return Double.toString(value);
+        }
+
+        private static String escapeLabel(final String value) {
+            return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        }
+    }
+}
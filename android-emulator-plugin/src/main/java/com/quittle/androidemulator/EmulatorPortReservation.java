@@ -0,0 +1,130 @@
+package com.quittle.androidemulator;
+
+import org.gradle.api.GradleException;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * The console port of an emulator, and the ADB port after it, reserved across all builds on the host. Builds with
+ * their own ADB server can't see each other's emulators, and emulators of the same build start before they register
+ * with ADB, so neither can tell from ADB which ports are taken. Each port is a file lock in a directory shared by all
+ * builds on the host, like the cores of {@link CpuReservation}, so a reservation ends with its build even if the build
+ * is killed.
+ */
+public final class EmulatorPortReservation implements Closeable {
+    private static final String PORT_FILE_PREFIX = "port-";
+    // Start at the top of the range and iterate down to increase the likelihood of getting an earlier match
+    private static final int FIRST_PORT = 5680;
+    private static final int LAST_PORT = 5554;
+
+    /**
+     * The ports reserved within this JVM, guarded by the class. Closing any channel to a file releases every lock the
+     * JVM holds on it, so the files of ports reserved here are never opened again until they are released.
+     */
+    private static final Map<Integer, EmulatorPortReservation> RESERVED = new HashMap<>();
+
+    private final int port;
+    private final FileChannel channel;
+
+    private EmulatorPortReservation(final int port, final FileChannel channel) {
+        this.port = port;
+        this.channel = channel;
+    }
+
+    /**
+     * Reserves the first port free for an emulator's console and ADB.
+     *
+     * @param directory  The directory shared by all builds on the host.
+     * @param portsInUse The console ports of emulators known to be running, which are skipped.
+     * @return The reservation, which is held until it is closed.
+     * @throws IOException if unable to reserve a port.
+     */
+    public static EmulatorPortReservation reserve(final File directory, final Set<Integer> portsInUse)
+            throws IOException {
+        synchronized (EmulatorPortReservation.class) {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Unable to create directory " + directory);
+            }
+
+            for (int port = FIRST_PORT; port >= LAST_PORT; port -= 2) {
+                if (portsInUse.contains(port) || RESERVED.containsKey(port)) {
+                    continue;
+                }
+                final FileChannel channel = FileChannel.open(new File(directory, PORT_FILE_PREFIX + port).toPath(),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                boolean reserved = false;
+                try {
+                    // An emulator started without a reservation, such as by another tool, may still hold the ports
+                    reserved = tryLock(channel) && isFree(port) && isFree(port + 1);
+                } finally {
+                    if (!reserved) {
+                        channel.close();
+                    }
+                }
+                if (reserved) {
+                    final EmulatorPortReservation reservation = new EmulatorPortReservation(port, channel);
+                    RESERVED.put(port, reservation);
+                    return reservation;
+                }
+            }
+        }
+        throw new GradleException("No viable emulator ports found");
+    }
+
+    /**
+     * @param port The console port of the emulator.
+     * @return The reservation of the port made in this JVM or empty if it isn't reserved, such as for a leased emulator.
+     */
+    public static Optional<EmulatorPortReservation> reserved(final int port) {
+        synchronized (EmulatorPortReservation.class) {
+            return Optional.ofNullable(RESERVED.get(port));
+        }
+    }
+
+    private static boolean tryLock(final FileChannel channel) throws IOException {
+        try {
+            return channel.tryLock() != null;
+        } catch (final OverlappingFileLockException e) {
+            // Held by a build whose copy of the plugin was loaded separately in this JVM
+            return false;
+        }
+    }
+
+    private static boolean isFree(final int port) {
+        try (ServerSocket socket = new ServerSocket(port, 1, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort() == port;
+        } catch (final IOException e) {
+            // Taken by an emulator or another process that didn't reserve it
+            return false;
+        }
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Frees the port for other emulators once the emulator using it has exited. This is safe to call multiple times.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (EmulatorPortReservation.class) {
+            if (!RESERVED.remove(port, this)) {
+                return;
+            }
+            // Closing the channel releases its lock
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.quittle.androidemulator;
+
+import java.util.regex.Pattern;
+
+/**
+ * Recognizes lines of emulator output that indicate it will never finish booting.
+ */
+public enum FatalEmulatorOutput {
+    INVALID_ARGUMENTS(false, "(?i)(invalid|unknown) (command-line )?(option|parameter)"),
+    UNKNOWN_AVD(false, "(?i)unknown AVD name|cannot find AVD"),
+    MISSING_ENGINE(false, "(?i)missing emulator engine program"),
+    MISSING_ACCELERATION(false, "(?i)requires hardware acceleration|/dev/kvm is not found|KVM is (not installed|required)"),
+    NOT_ENOUGH_SPACE(false, "(?i)not enough (disk )?space"),
+    AVD_IN_USE(true, "(?i)another emulator instance is running|running multiple emulators with the same AVD"),
+    SNAPSHOT_FAILURE(true, "(?i)snapshot.*(corrupt|invalid)|failed to load savevm|error while loading state"),
+    PANIC(true, "PANIC:|FATAL\\s*[:|]");
+
+    /**
+     * Whether booting the emulator again with recovery options applied may succeed. Failures caused by the configuration
+     * or the host will happen again no matter how many times the boot is retried.
+     */
+    public final boolean recoverable;
+    private final Pattern pattern;
+
+    FatalEmulatorOutput(final boolean recoverable, final String regex) {
+        this.recoverable = recoverable;
+        this.pattern = Pattern.compile(regex);
+    }
+
+    /**
+     * Checks a line of emulator output for a known fatal error.
+     *
+     * @param line A line emitted on the emulator's standard output or error.
+     * @return The first matching fatal error or {@code null} if the line is harmless.
+     */
+    public static FatalEmulatorOutput match(final String line) {
+        for (final FatalEmulatorOutput fatalOutput : values()) {
+            if (fatalOutput.pattern.matcher(line).find()) {
+                return fatalOutput;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,241 @@
+package com.quittle.androidemulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Determines whether the emulator will be able to use hardware acceleration. Without it, the emulator silently falls
+ * back to software emulation (TCG) which is an order of magnitude slower.
+ * <p>
+ * Running {@code emulator -accel-check} takes a few seconds, so a result finding acceleration usable is cached on disk
+ * and only re-run when the emulator revision changes. Other results are not cached, as they often come from a problem
+ * fixed on the host without updating the emulator, like loading the KVM module, or from the check timing out on a busy
+ * host. Permissions on {@code /dev/kvm} are cheap to check and may change between runs so they are checked every time.
+ */
+public class HardwareAccelerationProbe {
+    private static final long ACCEL_CHECK_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(60);
+    private static final String[] KNOWN_ACCELERATORS = new String[] { "KVM", "HAXM", "HVF", "WHPX", "AEHD", "GVM" };
+    private static final String SOFTWARE_ACCELERATOR = "TCG";
+
+    private static final String CACHE_KEY_EMULATOR = "emulator";
+    private static final String CACHE_KEY_REVISION = "revision";
+    private static final String CACHE_KEY_ACCELERATED = "accelerated";
+    private static final String CACHE_KEY_ACCELERATOR = "accelerator";
+    private static final String CACHE_KEY_DESCRIPTION = "description";
+
+    private final File emulator;
+    private final File cacheFile;
+    private final File kvmDevice;
+    private final Map<String, String> environment;
+    private final long timeoutMillis;
+
+    /**
+     * The outcome of the probe.
+     */
+    public static class Result {
+        /**
+         * Whether the emulator can use hardware acceleration.
+         */
+        public final boolean accelerated;
+        /**
+         * The accelerator the emulator will use, e.g. {@code KVM}, or {@code TCG} if only software emulation is
+         * available.
+         */
+        public final String accelerator;
+        /**
+         * A human-readable explanation of the result, usually as reported by the emulator.
+         */
+        public final String description;
+
+        Result(final boolean accelerated, final String accelerator, final String description) {
+            this.accelerated = accelerated;
+            this.accelerator = accelerator;
+            this.description = description;
+        }
+    }
+
+    /**
+     * @param emulator    The emulator binary to probe.
+     * @param cacheFile   Where to cache the result of the probe.
+     * @param kvmDevice   The KVM device to check access to, or {@code null} if the host doesn't use KVM.
+     * @param environment Environment variables to run the emulator with.
+     */
+    public HardwareAccelerationProbe(
+            final File emulator, final File cacheFile, final File kvmDevice, final Map<String, String> environment) {
+        this(emulator, cacheFile, kvmDevice, environment, ACCEL_CHECK_TIMEOUT_MS);
+    }
+
+    /**
+     * @param timeoutMillis How long to wait for {@code emulator -accel-check} before giving up on it.
+     */
+    HardwareAccelerationProbe(final File emulator, final File cacheFile, final File kvmDevice,
+            final Map<String, String> environment, final long timeoutMillis) {
+        this.emulator = emulator;
+        this.cacheFile = cacheFile;
+        this.kvmDevice = kvmDevice;
+        this.environment = environment;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Probes the host, using the cached result from a previous probe that found acceleration usable if the emulator has
+     * not changed.
+     *
+     * @return The result of the probe.
+     * @throws IOException if unable to run the emulator.
+     */
+    public Result probe() throws IOException {
+        if (kvmDevice != null && kvmDevice.exists() && !(kvmDevice.canRead() && kvmDevice.canWrite())) {
+            return new Result(false, SOFTWARE_ACCELERATOR,
+                    "No permission to access " + kvmDevice + ". Add the user to the group owning it.");
+        }
+
+        final String revision = readEmulatorRevision();
+        final Properties cache = readCache();
+        // Caches written by earlier versions may hold results without acceleration
+        if (emulator.getAbsolutePath().equals(cache.getProperty(CACHE_KEY_EMULATOR)) &&
+                revision.equals(cache.getProperty(CACHE_KEY_REVISION)) &&
+                Boolean.parseBoolean(cache.getProperty(CACHE_KEY_ACCELERATED))) {
+            return new Result(
+                    true,
+                    cache.getProperty(CACHE_KEY_ACCELERATOR, SOFTWARE_ACCELERATOR),
+                    cache.getProperty(CACHE_KEY_DESCRIPTION, ""));
+        }
+
+        final Result result = runAccelCheck();
+        if (result.accelerated) {
+            writeCache(revision, result);
+        }
+        return result;
+    }
+
+    private Result runAccelCheck() throws IOException {
+        // Output goes to a file rather than a pipe so a hung check can't block reading it past the timeout
+        final File outputFile = File.createTempFile("accel-check", ".txt");
+        try {
+            final ProcessBuilder pb = new ProcessBuilder(emulator.getAbsolutePath(), "-accel-check");
+            pb.environment().putAll(environment);
+            pb.redirectErrorStream(true);
+            pb.redirectOutput(outputFile);
+            final Process process = pb.start();
+            try {
+                if (!process.waitFor(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                    process.descendants().forEach(ProcessHandle::destroyForcibly);
+                    process.destroyForcibly();
+                    return new Result(false, SOFTWARE_ACCELERATOR, "Timed out running emulator -accel-check");
+                }
+            } catch (final InterruptedException e) {
+                process.destroyForcibly();
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted running emulator -accel-check", e);
+            }
+            return parseAccelCheck(process.exitValue(),
+                    new String(Files.readAllBytes(outputFile.toPath()), StandardCharsets.UTF_8));
+        } finally {
+            Files.deleteIfExists(outputFile.toPath());
+        }
+    }
+
+    /**
+     * Parses the output of {@code emulator -accel-check}, which looks like
+     * <pre>{@code
+     * accel:
+     * 0
+     * KVM (version 12) is installed and usable.
+     * accel
+     * }</pre>
+     * where the number is the status, zero meaning acceleration is usable.
+     */
+    static Result parseAccelCheck(final int exitValue, final String output) {
+        final String[] lines = output.trim().split("\\r?\\n");
+        String status = null;
+        boolean nextLineIsStatus = false;
+        final StringBuilder description = new StringBuilder();
+        for (final String rawLine : lines) {
+            final String line = rawLine.trim();
+            if (nextLineIsStatus) {
+                status = line;
+                nextLineIsStatus = false;
+            } else if ("accel:".equals(line)) {
+                nextLineIsStatus = true;
+            } else if (!line.isEmpty() && !"accel".equals(line)) {
+                if (description.length() > 0) {
+                    description.append(' ');
+                }
+                description.append(line);
+            }
+        }
+
+        final boolean accelerated = exitValue == 0 && (status == null || "0".equals(status));
+        if (!accelerated) {
+            return new Result(false, SOFTWARE_ACCELERATOR, description.toString());
+        }
+
+        final String upperDescription = description.toString().toUpperCase(Locale.ROOT);
+        String accelerator = "unknown";
+        for (final String knownAccelerator : KNOWN_ACCELERATORS) {
+            if (upperDescription.contains(knownAccelerator)) {
+                accelerator = knownAccelerator;
+                break;
+            }
+        }
+        if (upperDescription.contains("HYPERVISOR.FRAMEWORK")) {
+            accelerator = "HVF";
+        }
+        return new Result(true, accelerator, description.toString());
+    }
+
+    /**
+     * @return The revision of the emulator package or an empty string if unknown.
+     */
+    private String readEmulatorRevision() {
+        final File sourceProperties = new File(emulator.getParentFile(), "source.properties");
+        final Properties properties = new Properties();
+        if (sourceProperties.isFile()) {
+            try (InputStream is = Files.newInputStream(sourceProperties.toPath())) {
+                properties.load(is);
+            } catch (final IOException e) {
+                return "";
+            }
+        }
+        return properties.getProperty("Pkg.Revision", "");
+    }
+
+    private Properties readCache() {
+        final Properties properties = new Properties();
+        if (cacheFile.isFile()) {
+            try (InputStream is = Files.newInputStream(cacheFile.toPath())) {
+                properties.load(is);
+            } catch (final IOException e) {
+                // A corrupt cache is treated as missing and overwritten
+                return new Properties();
+            }
+        }
+        return properties;
+    }
+
+    private void writeCache(final String revision, final Result result) throws IOException {
+        final Properties properties = new Properties();
+        properties.setProperty(CACHE_KEY_EMULATOR, emulator.getAbsolutePath());
+        properties.setProperty(CACHE_KEY_REVISION, revision);
+        properties.setProperty(CACHE_KEY_ACCELERATED, String.valueOf(result.accelerated));
+        properties.setProperty(CACHE_KEY_ACCELERATOR, result.accelerator);
+        properties.setProperty(CACHE_KEY_DESCRIPTION, result.description);
+
+        final File parent = cacheFile.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Unable to create directory for " + cacheFile);
+        }
+        try (OutputStream os = Files.newOutputStream(cacheFile.toPath())) {
+            properties.store(os, "Last updated by the com.quittle.android-emulator Gradle plugin");
+        }
+    }
+}
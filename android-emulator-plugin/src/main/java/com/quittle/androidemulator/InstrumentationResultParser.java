@@ -0,0 +1,216 @@
+package com.quittle.androidemulator;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Parses the raw output of {@code am instrument -r} a line at a time, reporting each test as soon as it completes
+ * rather than once the whole run has finished. The output is a series of status blocks like
+ * <pre>{@code
+ * INSTRUMENTATION_STATUS: class=com.example.ExampleTest
+ * INSTRUMENTATION_STATUS: test=testExample
+ * INSTRUMENTATION_STATUS: stack=java.lang.AssertionError
+ *     at com.example.ExampleTest.testExample(ExampleTest.java:10)
+ * INSTRUMENTATION_STATUS_CODE: -2
+ * }</pre>
+ * where values may span several lines, followed by a final result block ending with {@code INSTRUMENTATION_CODE}.
+ */
+public class InstrumentationResultParser {
+    private static final String STATUS_PREFIX = "INSTRUMENTATION_STATUS: ";
+    private static final String STATUS_CODE_PREFIX = "INSTRUMENTATION_STATUS_CODE: ";
+    private static final String RESULT_PREFIX = "INSTRUMENTATION_RESULT: ";
+    private static final String CODE_PREFIX = "INSTRUMENTATION_CODE: ";
+    private static final String FAILED_PREFIX = "INSTRUMENTATION_FAILED: ";
+    private static final String KEY_CLASS = "class";
+    private static final String KEY_TEST = "test";
+    private static final String KEY_STACK = "stack";
+    private static final String KEY_SHORT_MESSAGE = "shortMsg";
+    private static final int STATUS_START = 1;
+    // The code of a successful run, which Android defines as Activity.RESULT_OK
+    private static final int RESULT_OK = -1;
+
+    /**
+     * The outcome of a single test.
+     */
+    public enum TestStatus {
+        PASSED(0),
+        ERROR(-1),
+        FAILED(-2),
+        IGNORED(-3),
+        ASSUMPTION_FAILED(-4);
+
+        private final int code;
+
+        TestStatus(final int code) {
+            this.code = code;
+        }
+
+        static TestStatus fromCode(final int code) {
+            for (final TestStatus status : values()) {
+                if (status.code == code) {
+                    return status;
+                }
+            }
+            return ERROR;
+        }
+    }
+
+    /**
+     * Receives the results as they are parsed.
+     */
+    public interface Listener {
+        /**
+         * @param className The fully qualified name of the test class.
+         * @param testName  The name of the test method.
+         */
+        void testStarted(String className, String testName);
+
+        /**
+         * @param className     The fully qualified name of the test class.
+         * @param testName      The name of the test method.
+         * @param status        The outcome of the test.
+         * @param stackTrace    The stack trace of the failure or {@code null} if the test didn't fail.
+         * @param elapsedMillis How long the test took.
+         */
+        void testEnded(String className, String testName, TestStatus status, String stackTrace, long elapsedMillis);
+
+        /**
+         * Called if the instrumentation crashed or failed to start, in which case some tests may not have run.
+         *
+         * @param message The reason the run failed.
+         */
+        void runFailed(String message);
+    }
+
+    private final Listener listener;
+    private final LongSupplier clock;
+    private final Map<String, StringBuilder> values = new HashMap<>();
+    // Values may continue onto the following lines, which are appended to the last key's value
+    private String lastKey = "";
+    private long testStartMillis = 0;
+    // Empty while no test is running
+    private String startedClassName = "";
+    private String startedTestName = "";
+    private boolean completed = false;
+    private boolean failed = false;
+
+    public InstrumentationResultParser(final Listener listener) {
+        this(listener, System::currentTimeMillis);
+    }
+
+    /**
+     * @param listener Receives the results as they are parsed.
+     * @param clock    Provides the current time in milliseconds, used to time each test.
+     */
+    InstrumentationResultParser(final Listener listener, final LongSupplier clock) {
+        this.listener = listener;
+        this.clock = clock;
+    }
+
+    /**
+     * @param line The next line of output from {@code am instrument -r}.
+     */
+    public void addLine(final String line) {
+        if (line.startsWith(STATUS_CODE_PREFIX)) {
+            onStatus(parseCode(line.substring(STATUS_CODE_PREFIX.length())));
+            values.clear();
+            lastKey = "";
+        } else if (line.startsWith(STATUS_PREFIX)) {
+            addValue(line.substring(STATUS_PREFIX.length()));
+        } else if (line.startsWith(RESULT_PREFIX)) {
+            addValue(line.substring(RESULT_PREFIX.length()));
+        } else if (line.startsWith(CODE_PREFIX)) {
+            onResult(parseCode(line.substring(CODE_PREFIX.length())));
+        } else if (line.startsWith(FAILED_PREFIX)) {
+            fail("Instrumentation failed: " + line.substring(FAILED_PREFIX.length()));
+        } else if (values.containsKey(lastKey)) {
+            values.get(lastKey).append('\n').append(line);
+        }
+    }
+
+    /**
+     * Called once the output has ended to report a run that ended without a result, such as when the instrumentation
+     * process crashed.
+     */
+    public void done() {
+        if (!completed) {
+            fail(startedTestName.isEmpty()
+                    ? "Instrumentation ended without reporting a result"
+                    : "Instrumentation ended while running " + startedClassName + "#" + startedTestName);
+        }
+    }
+
+    /**
+     * @return {@code true} if the run completed successfully, whether or not tests failed.
+     */
+    public boolean isRunSuccessful() {
+        return completed && !failed;
+    }
+
+    private void addValue(final String keyValue) {
+        final int separator = keyValue.indexOf('=');
+        if (separator < 0) {
+            return;
+        }
+        lastKey = keyValue.substring(0, separator);
+        values.put(lastKey, new StringBuilder(keyValue.substring(separator + 1)));
+    }
+
+    private String value(final String key) {
+        final StringBuilder value = values.get(key);
+        return value == null ? null : value.toString();
+    }
+
+    private void onStatus(final int code) {
+        final String className = value(KEY_CLASS);
+        final String testName = value(KEY_TEST);
+        if (className == null || testName == null) {
+            return;
+        }
+
+        if (code == STATUS_START) {
+            startedClassName = className;
+            startedTestName = testName;
+            testStartMillis = clock.getAsLong();
+            listener.testStarted(className, testName);
+            return;
+        }
+
+        final TestStatus status = TestStatus.fromCode(code);
+        final boolean wasStarted = className.equals(startedClassName) && testName.equals(startedTestName);
+        final long elapsedMillis = wasStarted ? clock.getAsLong() - testStartMillis : 0;
+        startedClassName = "";
+        startedTestName = "";
+        listener.testEnded(className, testName, status, value(KEY_STACK), elapsedMillis);
+    }
+
+    private void onResult(final int code) {
+        completed = true;
+        if (code != RESULT_OK) {
+            final String shortMessage = value(KEY_SHORT_MESSAGE);
+            fail("Instrumentation finished with code " + code + (shortMessage == null ? "" : ": " + shortMessage));
+        } else if (values.containsKey(KEY_SHORT_MESSAGE)) {
+            // The runner reports crashes of the app process with a successful code and a short message
+            fail(value(KEY_SHORT_MESSAGE));
+        }
+        values.clear();
+        lastKey = "";
+    }
+
+    private void fail(final String message) {
+        completed = true;
+        if (!failed) {
+            failed = true;
+            listener.runFailed(message);
+        }
+    }
+
+    private static int parseCode(final String code) {
+        try {
+            return Integer.parseInt(code.trim());
+        } catch (final NumberFormatException e) {
+            return TestStatus.ERROR.code;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.quittle.androidemulator;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Locale;
+
+/**
+ * Writes test results in the JUnit XML format as each test completes, so the results of a run are available even if
+ * the build is aborted part way through. Since the totals aren't known until the end, they are left for readers to
+ * count from the test cases.
+ */
+public class JUnitXmlReport implements InstrumentationResultParser.Listener, Closeable {
+    private static final double MILLIS_PER_SECOND = 1000.0;
+    // The lowest character allowed in XML other than tabs and line breaks
+    private static final char FIRST_PRINTABLE_CHARACTER = ' ';
+
+    private final String suiteName;
+    private final Writer writer;
+    private int testCount = 0;
+    private int failureCount = 0;
+    private boolean runFailed = false;
+
+    /**
+     * @param file      The report file, whose parent directories are created if necessary.
+     * @param suiteName The name of the test suite, such as the serial of the device the tests ran on.
+     * @throws IOException if unable to create the report.
+     */
+    public JUnitXmlReport(final File file, final String suiteName) throws IOException {
+        Files.createDirectories(file.getParentFile().toPath());
+        this.suiteName = suiteName;
+        this.writer = new BufferedWriter(
+                new OutputStreamWriter(Files.newOutputStream(file.toPath()), StandardCharsets.UTF_8));
+        try {
+            writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            writer.write("<testsuite name=\"" + escape(suiteName) + "\">\n");
+            writer.flush();
+        } catch (final IOException e) {
+            writer.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void testStarted(final String className, final String testName) {
+        // Only completed tests are reported
+    }
+
+    @Override
+    public synchronized void testEnded(
+            final String className,
+            final String testName,
+            final InstrumentationResultParser.TestStatus status,
+            final String stackTrace,
+            final long elapsedMillis) {
+        testCount++;
+        final StringBuilder testCase = new StringBuilder()
+                .append("  <testcase name=\"").append(escape(testName))
+                .append("\" classname=\"").append(escape(className))
+                .append("\" time=\"").append(formatSeconds(elapsedMillis)).append('"');
+        switch (status) {
+            case FAILED:
+            case ERROR:
+                failureCount++;
+                final String element = status == InstrumentationResultParser.TestStatus.FAILED ? "failure" : "error";
+                testCase.append(">\n    <").append(element).append(" message=\"").append(escape(firstLine(stackTrace)))
+                        .append("\">").append(escape(stackTrace == null ? "" : stackTrace))
+                        .append("</").append(element).append(">\n  </testcase>\n");
+                break;
+            case IGNORED:
+            case ASSUMPTION_FAILED:
+                testCase.append(">\n    <skipped/>\n  </testcase>\n");
+                break;
+            default:
+                testCase.append("/>\n");
+                break;
+        }
+        write(testCase.toString());
+    }
+
+    @Override
+    public synchronized void runFailed(final String message) {
+        runFailed = true;
+        // Reported as a test case so the failure shows up wherever the results are read
+        write("  <testcase name=\"instrumentation\" classname=\"" + escape(suiteName) + "\" time=\"0\">\n" +
+                "    <error message=\"" + escape(message) + "\"/>\n" +
+                "  </testcase>\n");
+    }
+
+    /**
+     * Starts another run of the instrumentation writing to the same report, such as to rerun the tests that didn't
+     * finish after the instrumentation crashed. Failures of earlier runs stay in the report.
+     */
+    public synchronized void startRun() {
+        runFailed = false;
+    }
+
+    public synchronized int getTestCount() {
+        return testCount;
+    }
+
+    public synchronized int getFailureCount() {
+        return failureCount;
+    }
+
+    /**
+     * @return {@code true} if the instrumentation itself failed in the latest run, in which case some of its tests may
+     *         not have run.
+     */
+    public synchronized boolean isRunFailed() {
+        return runFailed;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            writer.write("</testsuite>\n");
+        } finally {
+            writer.close();
+        }
+    }
+
+    private void write(final String text) {
+        try {
+            writer.write(text);
+            // Flushed so the results are on disk as soon as each test completes
+            writer.flush();
+        } catch (final IOException e) {
+            throw new UncheckedIOException("Unable to write test results", e);
+        }
+    }
+
+    private static String firstLine(final String text) {
+        if (text == null) {
+            return "";
+        }
+        final int newline = text.indexOf('\n');
+        return newline < 0 ? text : text.substring(0, newline);
+    }
+
+    private static String formatSeconds(final long millis) {
+        return String.format(Locale.ROOT, "%.3f", millis / MILLIS_PER_SECOND);
+    }
+
+    static String escape(final String text) {
+        final StringBuilder escaped = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            switch (c) {
+                case '&':
+                    escaped.append("&amp;");
+                    break;
+                case '<':
+                    escaped.append("&lt;");
+                    break;
+                case '>':
+                    escaped.append("&gt;");
+                    break;
+                case '"':
+                    escaped.append("&quot;");
+                    break;
+                case '\t':
+                case '\n':
+                case '\r':
+                    escaped.append(c);
+                    break;
+                default:
+                    // Other control characters are invalid in XML, even when escaped
+                    if (c >= FIRST_PRINTABLE_CHARACTER) {
+                        escaped.append(c);
+                    }
+                    break;
+            }
+        }
+        return escaped.toString();
+    }
+}
@@ -0,0 +1,373 @@
+package com.quittle.androidemulator;
+
+import org.gradle.api.GradleException;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Records the log of a device to a file while tests run. The log is read in logcat's binary format and written to the
+ * file as is, so recording costs little more than copying bytes and uses a fixed amount of memory however much is
+ * logged. AndroidJUnitRunner logs a message as each test starts and finishes, and the position of these messages in
+ * the file is indexed so that the part of the log written during a single test can be extracted afterwards.
+ * <p>
+ * Each binary entry is a header starting {@code <payload length:u16> <header size:u16> <pid:i32> <tid:i32>
+ * <seconds:u32> <nanoseconds:u32>}, followed by fields that vary by Android version, then a payload of
+ * {@code <priority:u8> <tag>\0<message>\0}.
+ */
+public class LogcatCapture implements Closeable {
+    // The header size is zero in the original format, which had a fixed 20 byte header
+    private static final int LEGACY_HEADER_SIZE = 20;
+    private static final int LENGTH_FIELDS_SIZE = 4;
+    private static final int HEADER_SIZE_OFFSET = 2;
+    private static final int PID_OFFSET = 4;
+    private static final int TID_OFFSET = 8;
+    private static final int SECONDS_OFFSET = 12;
+    private static final int NANOSECONDS_OFFSET = 16;
+    // Large enough for two of the largest possible entries, whose lengths are both 16-bit
+    private static final int BUFFER_SIZE = 4 * 0xFFFF;
+    private static final String PRIORITIES = "??VDIWEFS";
+    private static final byte[] TEST_RUNNER_TAG = "TestRunner".getBytes(StandardCharsets.UTF_8);
+    private static final String STARTED_PREFIX = "started: ";
+    private static final String FINISHED_PREFIX = "finished: ";
+    private static final long DRAIN_TIMEOUT_MS = 5000;
+    private static final String DEVICE_TIME_FORMAT = "+%m-%d %H:%M:%S.000";
+    private static final Pattern DEVICE_TIME = Pattern.compile("\\d\\d-\\d\\d \\d\\d:\\d\\d:\\d\\d\\.000");
+    private static final String LATEST_ENTRY = "1";
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("MM-dd HH:mm:ss.SSS", Locale.ROOT).withZone(ZoneId.systemDefault());
+
+    private final ReadableByteChannel source;
+    private final File file;
+    private final FileChannel output;
+    private final Runnable stopSource;
+    private final Thread pumpThread;
+    private final AtomicLong written = new AtomicLong(0);
+    // The start and end offsets of each test in the file, keyed by the test's display name. The end is -1 while the
+    // test is running.
+    private final Map<String, long[]> testRanges = new HashMap<>();
+    private int runningTestCount = 0;
+
+    /**
+     * @param source     The binary log.
+     * @param file       The file to record the log to, which is replaced if it exists.
+     * @param stopSource Stops the source of the log so that reading it ends.
+     * @throws IOException if the file could not be created.
+     */
+    LogcatCapture(final ReadableByteChannel source, final File file, final Runnable stopSource) throws IOException {
+        Files.createDirectories(file.getParentFile().toPath());
+        this.source = source;
+        this.file = file;
+        this.output = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.stopSource = stopSource;
+        this.pumpThread = new Thread(this::pumpUntilStopped, "logcat-capture-" + file.getName());
+        this.pumpThread.setDaemon(true);
+    }
+
+    /**
+     * Starts recording the log of a device in the background, skipping anything logged before the current second on
+     * the device's clock. If the device's clock can't be read, only its latest entry is kept from before now.
+     *
+     * @param adbProxy The ADB proxy of the device's emulator.
+     * @param serial   The serial of the device.
+     * @param file     The file to record the log to, which is replaced if it exists.
+     * @return The running capture, which must be closed.
+     * @throws GradleException if logcat could not be started.
+     */
+    public static LogcatCapture start(final AdbProxy adbProxy, final String serial, final File file) throws GradleException {
+        // exec-out doesn't use a terminal, which would mangle the binary output on older versions of Android. It runs
+        // the command through the device's shell, so the time is quoted.
+        final Process process = adbProxy.start("-s", serial, "exec-out", "logcat", "-B", "-T",
+                "'" + startTime(readDeviceTime(adbProxy, serial)) + "'");
+        final LogcatCapture capture;
+        try {
+            capture = new LogcatCapture(Channels.newChannel(process.getInputStream()), file, process::destroy);
+        } catch (final IOException e) {
+            process.destroy();
+            throw new GradleException("Unable to record the log of " + serial + " to " + file, e);
+        }
+        capture.pumpThread.start();
+        return capture;
+    }
+
+    private static List<String> readDeviceTime(final AdbProxy adbProxy, final String serial) {
+        final List<String> dateOutput = new ArrayList<>();
+        try {
+            adbProxy.stream(dateOutput::add, "-s", serial, "shell", "date '" + DEVICE_TIME_FORMAT + "'");
+        } catch (final GradleException e) {
+            // Starts from the latest entry instead
+            return new ArrayList<>();
+        }
+        return dateOutput;
+    }
+
+    /**
+     * @param dateOutput The output of {@code date} on the device in {@link #DEVICE_TIME_FORMAT}.
+     * @return The time for logcat's {@code -T} to start from, or {@code 1} to start from the latest entry if the output
+     *         isn't a time. Logcat reads the time in the device's time zone, which {@code date} prints in.
+     */
+    static String startTime(final List<String> dateOutput) {
+        for (final String line : dateOutput) {
+            if (DEVICE_TIME.matcher(line.trim()).matches()) {
+                return line.trim();
+            }
+        }
+        return LATEST_ENTRY;
+    }
+
+    private void pumpUntilStopped() {
+        try {
+            pump();
+        } catch (final IOException e) {
+            // Reading fails once the source is stopped
+            return;
+        }
+    }
+
+    /**
+     * Copies the log to the file until the source ends.
+     *
+     * @throws IOException if the log could not be read or written.
+     */
+    void pump() throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        while (source.read(buffer) != -1) {
+            buffer.flip();
+            writeCompleteEntries(buffer);
+            buffer.compact();
+        }
+        // Keep a trailing partial entry since it's still part of the log
+        buffer.flip();
+        write(buffer, buffer.limit());
+    }
+
+    private void writeCompleteEntries(final ByteBuffer buffer) throws IOException {
+        int position = buffer.position();
+        while (buffer.limit() - position >= LENGTH_FIELDS_SIZE) {
+            final int headerSize = headerSize(buffer, position);
+            final int entrySize = headerSize + Short.toUnsignedInt(buffer.getShort(position));
+            if (buffer.limit() - position < entrySize) {
+                break;
+            }
+            final long entryOffset = written.get() + position - buffer.position();
+            indexTestMarker(buffer, position, headerSize, entrySize, entryOffset);
+            position += entrySize;
+        }
+        write(buffer, position);
+    }
+
+    private void write(final ByteBuffer buffer, final int end) throws IOException {
+        final ByteBuffer entries = buffer.duplicate();
+        entries.limit(end);
+        final int length = entries.remaining();
+        while (entries.hasRemaining()) {
+            output.write(entries);
+        }
+        buffer.position(end);
+        written.addAndGet(length);
+    }
+
+    private void indexTestMarker(
+            final ByteBuffer buffer, final int position, final int headerSize, final int entrySize, final long offset) {
+        final int payload = position + headerSize;
+        final int payloadEnd = position + entrySize;
+        // Checked before decoding the message to keep the cost of other entries down
+        if (payload + 1 + TEST_RUNNER_TAG.length >= payloadEnd ||
+                buffer.get(payload + 1 + TEST_RUNNER_TAG.length) != 0) {
+            return;
+        }
+        for (int i = 0; i < TEST_RUNNER_TAG.length; i++) {
+            if (buffer.get(payload + 1 + i) != TEST_RUNNER_TAG[i]) {
+                return;
+            }
+        }
+
+        final String message = readString(buffer, payload + 2 + TEST_RUNNER_TAG.length, payloadEnd);
+        synchronized (this) {
+            if (message.startsWith(STARTED_PREFIX)) {
+                final long[] previous =
+                        testRanges.put(message.substring(STARTED_PREFIX.length()), new long[] { offset, -1 });
+                if (previous == null || previous[1] != -1) {
+                    runningTestCount++;
+                }
+            } else if (message.startsWith(FINISHED_PREFIX)) {
+                final long[] range = testRanges.get(message.substring(FINISHED_PREFIX.length()));
+                if (range != null && range[1] == -1) {
+                    range[1] = offset + entrySize;
+                    runningTestCount--;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops recording, first waiting briefly for any tests still running to log that they finished since the log is
+     * read some time after it's written.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            final long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MS;
+            long remaining = DRAIN_TIMEOUT_MS;
+            while (runningTestCount > 0 && remaining > 0) {
+                try {
+                    wait(remaining);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+        try {
+            stopSource.run();
+            pumpThread.join(DRAIN_TIMEOUT_MS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * @return The tests that started but never logged that they finished, such as the test running when the app
+     *         crashed, as {@code <class name>#<test name>}.
+     */
+    public synchronized List<String> getUnfinishedTests() {
+        final List<String> unfinished = new ArrayList<>();
+        testRanges.forEach((displayName, range) -> {
+            if (range[1] == -1) {
+                final int classStart = displayName.lastIndexOf('(');
+                if (classStart > 0 && displayName.endsWith(")")) {
+                    unfinished.add(displayName.substring(classStart + 1, displayName.length() - 1) + "#" +
+                            displayName.substring(0, classStart));
+                }
+            }
+        });
+        return unfinished;
+    }
+
+    /**
+     * Writes the part of the log recorded while a test ran in logcat's {@code threadtime} format. A test that never
+     * finished includes the rest of the log.
+     *
+     * @param className   The fully qualified name of the test class.
+     * @param testName    The name of the test method.
+     * @param destination The text file to write, whose parent directories are created if necessary.
+     * @return {@code false} if the test wasn't found in the log.
+     * @throws IOException if the log could not be read or written.
+     */
+    public boolean extract(final String className, final String testName, final File destination) throws IOException {
+        final long start;
+        final long end;
+        synchronized (this) {
+            // AndroidJUnitRunner identifies tests by JUnit's display name
+            final long[] range = testRanges.get(testName + "(" + className + ")");
+            if (range == null) {
+                return false;
+            }
+            start = range[0];
+            end = range[1] == -1 ? written.get() : range[1];
+        }
+
+        Files.createDirectories(destination.getParentFile().toPath());
+        try (FileChannel input = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+             Writer writer = new BufferedWriter(new OutputStreamWriter(
+                     Files.newOutputStream(destination.toPath()), StandardCharsets.UTF_8))) {
+            final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            long offset = start;
+            while (offset < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - offset));
+                if (input.read(buffer, offset) <= 0) {
+                    break;
+                }
+                buffer.flip();
+                int position = 0;
+                while (buffer.limit() - position >= LENGTH_FIELDS_SIZE) {
+                    final int headerSize = headerSize(buffer, position);
+                    final int entrySize = headerSize + Short.toUnsignedInt(buffer.getShort(position));
+                    if (buffer.limit() - position < entrySize) {
+                        break;
+                    }
+                    writer.write(format(buffer, position, headerSize, position + entrySize));
+                    position += entrySize;
+                }
+                if (position == 0) {
+                    // Only a partial entry is left, from the recording being stopped part way through an entry
+                    break;
+                }
+                // Any partial entry at the end of the buffer is read again with the next chunk
+                offset += position;
+            }
+        }
+        return true;
+    }
+
+    private static int headerSize(final ByteBuffer buffer, final int position) {
+        final int headerSize = Short.toUnsignedInt(buffer.getShort(position + HEADER_SIZE_OFFSET));
+        return headerSize == 0 ? LEGACY_HEADER_SIZE : headerSize;
+    }
+
+    private static String format(final ByteBuffer buffer, final int position, final int headerSize, final int end) {
+        final int pid = buffer.getInt(position + PID_OFFSET);
+        final int tid = buffer.getInt(position + TID_OFFSET);
+        final Instant time = Instant.ofEpochSecond(Integer.toUnsignedLong(buffer.getInt(position + SECONDS_OFFSET)),
+                Integer.toUnsignedLong(buffer.getInt(position + NANOSECONDS_OFFSET)));
+        final int payload = position + headerSize;
+        if (payload >= end) {
+            return "";
+        }
+        final int priority = buffer.get(payload);
+        final String tag = readString(buffer, payload + 1, end);
+        final int messageStart = Math.min(end, payload + 1 + tag.getBytes(StandardCharsets.UTF_8).length + 1);
+        final String message = readString(buffer, messageStart, end);
+
+        final String prefix = String.format(Locale.ROOT, "%s %5d %5d %c %s: ", TIME_FORMAT.format(time), pid, tid,
+                priority >= 0 && priority < PRIORITIES.length() ? PRIORITIES.charAt(priority) : '?', tag);
+        final StringBuilder lines = new StringBuilder();
+        for (final String line : message.split("\n", -1)) {
+            lines.append(prefix).append(line).append('\n');
+        }
+        return lines.toString();
+    }
+
+    /**
+     * Reads a string ending in a null character or at the end.
+     */
+    private static String readString(final ByteBuffer buffer, final int start, final int end) {
+        int stringEnd = start;
+        while (stringEnd < end && buffer.get(stringEnd) != 0) {
+            stringEnd++;
+        }
+        final byte[] bytes = new byte[stringEnd - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(start + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
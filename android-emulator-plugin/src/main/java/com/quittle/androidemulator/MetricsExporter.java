@@ -0,0 +1,150 @@
+package com.quittle.androidemulator;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.gradle.api.logging.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exposes the {@link EmulatorMetrics} of the build while it runs, either served over HTTP for Prometheus to scrape or
+ * written periodically to a file for the node exporter's textfile collector, or both. Several builds on the same host
+ * can't share a port, so the file is the better choice when builds run concurrently.
+ */
+public class MetricsExporter implements Closeable {
+    private static final String METRICS_PATH = "/metrics";
+    private static final String OPEN_METRICS_MEDIA_TYPE = "application/openmetrics-text";
+
+    private final EmulatorMetrics metrics;
+    private final AndroidEmulatorExtension.MetricsExtension configuration;
+    private final File textFile;
+    private final Logger logger;
+    private HttpServer server;
+    private ScheduledExecutorService textFileWriter;
+    private boolean started = false;
+
+    /**
+     * @param metrics       The metrics to export.
+     * @param configuration How to export them.
+     * @param textFile      The file to write the metrics to, if enabled.
+     * @param logger        Logs problems exporting the metrics, which don't fail the build.
+     */
+    public MetricsExporter(
+            final EmulatorMetrics metrics,
+            final AndroidEmulatorExtension.MetricsExtension configuration,
+            final File textFile,
+            final Logger logger) {
+        this.metrics = metrics;
+        this.configuration = configuration;
+        this.textFile = textFile;
+        this.logger = logger;
+    }
+
+    /**
+     * Chooses a name for the metrics file of a project so that builds of different projects on the same host don't
+     * overwrite each other's metrics, while later builds of the same project do.
+     *
+     * @param directory  The directory the textfile collector reads.
+     * @param projectDir The directory of the project.
+     * @return The metrics file.
+     */
+    public static File textFileFor(final File directory, final File projectDir) {
+        return new File(directory,
+                "android-emulator-plugin-" + Integer.toHexString(projectDir.getAbsolutePath().hashCode()) + ".prom");
+    }
+
+    /**
+     * Starts exporting the metrics, unless already started.
+     */
+    public synchronized void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+
+        if (configuration.getPort() != null) {
+            try {
+                server = HttpServer.create(
+                        new InetSocketAddress(configuration.getBindAddress(), configuration.getPort()), 0);
+                server.createContext(METRICS_PATH, this::serve);
+                server.start();
+                logger.lifecycle("Serving emulator metrics on http://{}:{}{}", configuration.getBindAddress(),
+                        server.getAddress().getPort(), METRICS_PATH);
+            } catch (final IOException e) {
+                logger.warn("Unable to serve emulator metrics on port {}", configuration.getPort(), e);
+            }
+        }
+
+        if (textFile != null) {
+            textFileWriter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "android-emulator-metrics");
+                thread.setDaemon(true);
+                return thread;
+            });
+            textFileWriter.scheduleWithFixedDelay(this::writeTextFile, 0,
+                    configuration.getTextFileIntervalSeconds(), TimeUnit.SECONDS);
+        }
+    }
+
+    private void serve(final HttpExchange exchange) throws IOException {
+        try {
+            final EmulatorMetrics.Format format = acceptsOpenMetrics(exchange.getRequestHeaders().getFirst("Accept"))
+                    ? EmulatorMetrics.Format.OPEN_METRICS
+                    : EmulatorMetrics.Format.PROMETHEUS_TEXT;
+            final byte[] body = metrics.format(format).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", format.getContentType());
+            exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, body.length);
+            try (OutputStream responseBody = exchange.getResponseBody()) {
+                responseBody.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    static boolean acceptsOpenMetrics(final String acceptHeader) {
+        return acceptHeader != null && acceptHeader.contains(OPEN_METRICS_MEDIA_TYPE);
+    }
+
+    /**
+     * Replaces the metrics file in a single step so the collector never reads a partially written file.
+     */
+    private void writeTextFile() {
+        try {
+            Files.createDirectories(textFile.getParentFile().toPath());
+            final Path temporaryFile = new File(textFile.getParentFile(), textFile.getName() + ".tmp").toPath();
+            Files.write(temporaryFile, metrics.format(EmulatorMetrics.Format.PROMETHEUS_TEXT)
+                    .getBytes(StandardCharsets.UTF_8));
+            Files.move(temporaryFile, textFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (final IOException e) {
+            logger.warn("Unable to write emulator metrics to {}", textFile, e);
+        }
+    }
+
+    /**
+     * Stops exporting the metrics, writing the final values to the metrics file.
+     */
+    @Override
+    public synchronized void close() {
+        if (server != null) {
+            server.stop(0);
+        }
+        if (textFileWriter != null) {
+            textFileWriter.shutdownNow();
+            writeTextFile();
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.quittle.androidemulator;
+
+import org.gradle.api.services.BuildService;
+import org.gradle.api.services.BuildServiceParameters;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stops the {@link MetricsExporter}s of a build when the build finishes. Gradle closes the service after the last task
+ * has run, so the exporter keeps serving the metrics of the emulators for the whole build but doesn't outlive it in
+ * the Gradle daemon.
+ */
+public abstract class MetricsExporterService implements BuildService<BuildServiceParameters.None>, AutoCloseable {
+    private final List<MetricsExporter> exporters = new ArrayList<>();
+
+    /**
+     * @param exporter An exporter to stop when the build finishes.
+     */
+    public synchronized void stopAtEndOfBuild(final MetricsExporter exporter) {
+        exporters.add(exporter);
+    }
+
+    @Override
+    public synchronized void close() {
+        exporters.forEach(MetricsExporter::close);
+        exporters.clear();
+    }
+}
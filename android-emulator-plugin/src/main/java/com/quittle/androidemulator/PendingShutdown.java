@@ -0,0 +1,148 @@
+package com.quittle.androidemulator;
+
+import org.gradle.api.logging.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Lets the emulator finish shutting down, which includes saving its quickboot snapshot, without blocking the build.
+ * <p>
+ * While the emulator is shutting down, a marker file lists the emulator's processes. A detached reaper thread removes
+ * it once they have exited. If the build's JVM exits first, the marker is left behind and the next start of the same
+ * AVD waits for the listed processes itself. Processes are identified by their pid and start time so a marker left
+ * behind by an earlier boot of the host or a reused pid is ignored.
+ */
+public final class PendingShutdown {
+    private static final long SHUTDOWN_TIMEOUT_SEC = 120;
+    private static final long UNKNOWN_START_TIME = -1;
+
+    private PendingShutdown() {}
+
+    /**
+     * Records the emulator as shutting down and reaps it in the background, forcibly destroying it if it hasn't exited
+     * within the timeout. Signalling the emulator to shut down is left to the caller.
+     *
+     * @param process   The emulator process.
+     * @param marker    The marker file for the emulator's AVD.
+     * @param logger    Where to log the progress of the shutdown.
+     * @param afterExit Run once the emulator's processes have exited, before the marker is removed.
+     * @throws IOException if unable to write the marker.
+     */
+    public static void begin(final Process process, final File marker, final Logger logger, final Runnable afterExit)
+            throws IOException {
+        final List<ProcessHandle> handles = Stream.concat(Stream.of(process.toHandle()), process.descendants())
+                .collect(Collectors.toList());
+        final List<String> lines = handles.stream()
+                .map(handle -> handle.pid() + " " + getStartTime(handle))
+                .collect(Collectors.toList());
+        Files.write(marker.toPath(), lines, StandardCharsets.UTF_8);
+
+        final Thread reaper = new Thread(() -> {
+            if (awaitExit(handles, TimeUnit.SECONDS.toMillis(SHUTDOWN_TIMEOUT_SEC), logger)) {
+                afterExit.run();
+                deleteMarker(marker, logger);
+            }
+        }, "android-emulator-reaper");
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    /**
+     * Waits for the emulator's previous shutdown to complete, if one is still in progress.
+     *
+     * @param marker The marker file for the emulator's AVD.
+     * @param logger Where to log the progress of the shutdown.
+     */
+    public static void awaitCompletion(final File marker, final Logger logger) {
+        awaitCompletion(marker, TimeUnit.SECONDS.toMillis(SHUTDOWN_TIMEOUT_SEC), logger);
+    }
+
+    /**
+     * @param timeoutMillis How long to wait for the processes before killing them.
+     */
+    static void awaitCompletion(final File marker, final long timeoutMillis, final Logger logger) {
+        if (!marker.isFile()) {
+            return;
+        }
+
+        final List<ProcessHandle> handles = new ArrayList<>();
+        try {
+            for (final String line : Files.readAllLines(marker.toPath(), StandardCharsets.UTF_8)) {
+                parseLine(line).ifPresent(handles::add);
+            }
+        } catch (final IOException e) {
+            logger.warn("Unable to read " + marker, e);
+        }
+
+        if (!handles.isEmpty()) {
+            logger.lifecycle("Waiting for the previous emulator using this AVD to finish shutting down");
+            if (!awaitExit(handles, timeoutMillis, logger)) {
+                return;
+            }
+        }
+        deleteMarker(marker, logger);
+    }
+
+    /**
+     * @param line A line of the marker in the form {@code <pid> <start time in epoch milliseconds>}.
+     * @return The process, if it's still running.
+     */
+    static Optional<ProcessHandle> parseLine(final String line) {
+        final String[] parts = line.trim().split(" ");
+        final long pid;
+        final long startTime;
+        try {
+            pid = Long.parseLong(parts[0]);
+            startTime = parts.length > 1 ? Long.parseLong(parts[1]) : UNKNOWN_START_TIME;
+        } catch (final NumberFormatException e) {
+            return Optional.empty();
+        }
+        return ProcessHandle.of(pid)
+                .filter(ProcessHandle::isAlive)
+                .filter(handle -> startTime == UNKNOWN_START_TIME || startTime == getStartTime(handle));
+    }
+
+    private static long getStartTime(final ProcessHandle handle) {
+        return handle.info().startInstant().map(Instant::toEpochMilli).orElse(UNKNOWN_START_TIME);
+    }
+
+    /**
+     * @return {@code true} if all the processes have exited or {@code false} if interrupted while waiting.
+     */
+    private static boolean awaitExit(final List<ProcessHandle> handles, final long timeoutMillis, final Logger logger) {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        for (final ProcessHandle handle : handles) {
+            try {
+                handle.onExit().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (final TimeoutException | ExecutionException e) {
+                logger.warn("Emulator process {} did not shut down within {} seconds. Killing it.",
+                        handle.pid(), TimeUnit.MILLISECONDS.toSeconds(timeoutMillis));
+                handle.destroyForcibly();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void deleteMarker(final File marker, final Logger logger) {
+        try {
+            Files.deleteIfExists(marker.toPath());
+        } catch (final IOException e) {
+            logger.warn("Unable to delete " + marker, e);
+        }
+    }
+}
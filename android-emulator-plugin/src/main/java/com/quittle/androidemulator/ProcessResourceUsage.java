@@ -0,0 +1,111 @@
+package com.quittle.androidemulator;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The resources a process has used, read from {@code /proc}. Only available on Linux.
+ */
+public class ProcessResourceUsage {
+    /**
+     * The unit of the CPU times in {@code /proc/<pid>/stat}, which Linux fixes at 100 regardless of the kernel's
+     * actual tick rate.
+     */
+    private static final long CLOCK_TICKS_PER_SECOND = 100;
+    // The utime and stime fields of /proc/<pid>/stat, counted from the state field that follows the command name
+    private static final int UTIME_FIELD = 11;
+    private static final int STIME_FIELD = 12;
+    private static final String RSS_PREFIX = "VmRSS:";
+    private static final String READ_BYTES_PREFIX = "read_bytes:";
+    private static final String WRITE_BYTES_PREFIX = "write_bytes:";
+    private static final long BYTES_PER_KIB = 1024;
+
+    private final long cpuMillis;
+    private final long residentBytes;
+    private final long readBytes;
+    private final long writeBytes;
+
+    ProcessResourceUsage(final long cpuMillis, final long residentBytes, final long readBytes, final long writeBytes) {
+        this.cpuMillis = cpuMillis;
+        this.residentBytes = residentBytes;
+        this.readBytes = readBytes;
+        this.writeBytes = writeBytes;
+    }
+
+    /**
+     * @param pid The process to read.
+     * @return The usage of the process or empty if the process has exited or {@code /proc} isn't available.
+     */
+    public static Optional<ProcessResourceUsage> read(final long pid) {
+        final Path directory = Paths.get("/proc", String.valueOf(pid));
+        try {
+            final String stat = new String(Files.readAllBytes(directory.resolve("stat")), StandardCharsets.UTF_8);
+            final List<String> status = Files.readAllLines(directory.resolve("status"), StandardCharsets.UTF_8);
+            List<String> io;
+            try {
+                io = Files.readAllLines(directory.resolve("io"), StandardCharsets.UTF_8);
+            } catch (final NoSuchFileException e) {
+                // The kernel may be built without I/O accounting
+                io = Collections.emptyList();
+            }
+            return Optional.of(new ProcessResourceUsage(parseCpuMillis(stat), parseKibField(status, RSS_PREFIX),
+                    parseField(io, READ_BYTES_PREFIX), parseField(io, WRITE_BYTES_PREFIX)));
+        } catch (final IOException | NumberFormatException | IndexOutOfBoundsException e) {
+            return Optional.empty();
+        }
+    }
+
+    static long parseCpuMillis(final String stat) {
+        // The command name is in parentheses and may itself contain spaces and parentheses
+        final String[] fields = stat.substring(stat.lastIndexOf(')') + 2).trim().split(" ");
+        final long ticks = Long.parseLong(fields[UTIME_FIELD]) + Long.parseLong(fields[STIME_FIELD]);
+        return ticks * TimeUnit.SECONDS.toMillis(1) / CLOCK_TICKS_PER_SECOND;
+    }
+
+    static long parseKibField(final List<String> lines, final String prefix) {
+        // e.g. "VmRSS:	  123456 kB"
+        return parseField(lines, prefix) * BYTES_PER_KIB;
+    }
+
+    static long parseField(final List<String> lines, final String prefix) {
+        for (final String line : lines) {
+            if (line.startsWith(prefix)) {
+                return Long.parseLong(line.substring(prefix.length()).trim().split("\\s+")[0]);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return The CPU time used by the process in user and kernel mode.
+     */
+    public long getCpuMillis() {
+        return cpuMillis;
+    }
+
+    public long getResidentBytes() {
+        return residentBytes;
+    }
+
+    /**
+     * @return The bytes the process caused to be read from storage.
+     */
+    public long getReadBytes() {
+        return readBytes;
+    }
+
+    /**
+     * @return The bytes the process caused to be written to storage.
+     */
+    public long getWriteBytes() {
+        return writeBytes;
+    }
+}
@@ -0,0 +1,269 @@
+package com.quittle.androidemulator;
+
+import org.apache.commons.io.FileUtils;
+import org.gradle.api.logging.Logger;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * A copy of the emulator's AVD on a RAM disk, like {@code /dev/shm}, so the emulator doesn't read and write its disk
+ * images and snapshots from a slow disk. The copy is made when the emulator starts, if there is enough free memory for
+ * it along with the emulator itself, and discarded once the emulator exits, optionally copying it back over the AVD on
+ * disk first. The copy is always at the same path for the same AVD, as the emulator won't restore a snapshot taken
+ * while its AVD was at a different path. Instances of a shared AVD always run from disk.
+ */
+public class RamDiskAvd {
+    private static final String MEM_AVAILABLE_PREFIX = "MemAvailable:";
+    private static final String PATH_KEY = "path=";
+    private static final String PATH_REL_KEY = "path.rel=";
+    private static final String INCOMING_SUFFIX = ".incoming";
+    private static final String OUTGOING_SUFFIX = ".outgoing";
+    private static final long BYTES_PER_MB = 1024 * 1024;
+    // The emulator's lock files belong to the running instance and would keep the copy from starting
+    private static final FileFilter EXCLUDE_LOCKS = file -> !file.getName().endsWith(".lock");
+
+    /**
+     * The copy in use for each RAM disk AVD home, guarded by the class. Copies are made and copied back while holding
+     * the lock so a late release from a background shutdown can't discard a newer copy of the same AVD.
+     */
+    private static final Map<String, RamDiskAvd> PLACED = new HashMap<>();
+
+    private final EmulatorConfiguration emulatorConfiguration;
+    private final Logger logger;
+    private long footprintBytes = 0;
+
+    private RamDiskAvd(final EmulatorConfiguration emulatorConfiguration, final Logger logger) {
+        this.emulatorConfiguration = emulatorConfiguration;
+        this.logger = logger;
+    }
+
+    /**
+     * Copies the AVD to the RAM disk, if enabled and there is room for it, and has the emulator use the copy. Otherwise
+     * the emulator uses the AVD on disk. Must only be called while no emulator is using the AVD.
+     *
+     * @param emulatorConfiguration The emulator to place.
+     * @param logger                Logs why the AVD was left on disk.
+     * @return The copy or empty if the emulator uses the AVD on disk.
+     */
+    public static Optional<RamDiskAvd> place(final EmulatorConfiguration emulatorConfiguration, final Logger logger) {
+        synchronized (RamDiskAvd.class) {
+            final RamDiskAvd ramDiskAvd = new RamDiskAvd(emulatorConfiguration, logger);
+            final String key = emulatorConfiguration.getRamDiskAvdHome().getAbsolutePath();
+            emulatorConfiguration.setRuntimeAvdHome(emulatorConfiguration.getAvdRoot());
+            ramDiskAvd.recoverCopyBack();
+            // Left behind by an emulator that exited without releasing it, possibly in an earlier build
+            PLACED.remove(key);
+            ramDiskAvd.releaseCopy();
+            if (emulatorConfiguration.getRamDiskEnabled() && ramDiskAvd.copy()) {
+                PLACED.put(key, ramDiskAvd);
+                return Optional.of(ramDiskAvd);
+            }
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * @param emulatorConfiguration The emulator.
+     * @return The copy of the emulator's AVD on the RAM disk or empty if it uses the AVD on disk.
+     */
+    public static Optional<RamDiskAvd> placed(final EmulatorConfiguration emulatorConfiguration) {
+        synchronized (RamDiskAvd.class) {
+            return Optional.ofNullable(PLACED.get(emulatorConfiguration.getRamDiskAvdHome().getAbsolutePath()));
+        }
+    }
+
+    /**
+     * Discards the copy, first copying it back over the AVD on disk if configured. Must only be called once the
+     * emulator has exited. Does nothing if the copy was already released or replaced.
+     */
+    public void release() {
+        synchronized (RamDiskAvd.class) {
+            if (!PLACED.remove(emulatorConfiguration.getRamDiskAvdHome().getAbsolutePath(), this)) {
+                return;
+            }
+            emulatorConfiguration.setRuntimeAvdHome(emulatorConfiguration.getAvdRoot());
+            releaseCopy();
+        }
+    }
+
+    /**
+     * @return The most the copy is expected to take up on the RAM disk, including a new snapshot of the guest's RAM.
+     */
+    public long getFootprintMb() {
+        return footprintBytes / BYTES_PER_MB;
+    }
+
+    /**
+     * @return {@code true} if the AVD was copied to the RAM disk.
+     */
+    private boolean copy() {
+        final File home = emulatorConfiguration.getRamDiskAvdHome();
+        final File avdDirectory = emulatorConfiguration.getAvdDirectory();
+        final File avdIni = emulatorConfiguration.getAvdIni();
+        final File ramDiskDirectory = emulatorConfiguration.getRamDiskDirectory();
+        if (emulatorConfiguration.getSharedAvd()) {
+            // Each instance would need a copy of its own, which wouldn't have the golden snapshot saved on disk
+            logger.warn("Running emulator {} from disk because its AVD is shared by several instances",
+                    emulatorConfiguration.getInstanceName());
+            return false;
+        }
+        if (!ramDiskDirectory.isDirectory()) {
+            logger.warn("Running emulator {} from disk because the RAM disk {} does not exist",
+                    emulatorConfiguration.getInstanceName(), ramDiskDirectory);
+            return false;
+        }
+
+        final long ramDiskBytes = FileUtils.sizeOfDirectory(avdDirectory) +
+                // Room for the emulator to save a new snapshot of the guest's RAM
+                emulatorConfiguration.getHardwareProfile().getRamSizeMb() * BYTES_PER_MB;
+        final Optional<String> lackOfRoom = checkRoom(ramDiskBytes,
+                emulatorConfiguration.getMemoryLimitMb() * BYTES_PER_MB,
+                emulatorConfiguration.getRamDiskMinFreeMemoryMb() * BYTES_PER_MB,
+                ramDiskDirectory.getUsableSpace(), readMemAvailableBytes());
+        if (lackOfRoom.isPresent()) {
+            logger.warn("Running emulator {} from disk because {}", emulatorConfiguration.getInstanceName(),
+                    lackOfRoom.get());
+            return false;
+        }
+
+        final File copy = new File(home, avdDirectory.getName());
+        try {
+            Files.createDirectories(home.toPath());
+            FileUtils.copyDirectory(avdDirectory, copy, EXCLUDE_LOCKS);
+            Files.write(new File(home, avdIni.getName()).toPath(),
+                    rewriteIni(Files.readAllLines(avdIni.toPath(), StandardCharsets.UTF_8), copy),
+                    StandardCharsets.UTF_8);
+        } catch (final IOException e) {
+            logger.warn("Unable to copy the AVD to {}. Running the emulator from disk instead.", home, e);
+            discard(home);
+            return false;
+        }
+        footprintBytes = ramDiskBytes;
+        emulatorConfiguration.setRuntimeAvdHome(home);
+        logger.info("Running emulator {} from {}", emulatorConfiguration.getInstanceName(), copy);
+        return true;
+    }
+
+    private void releaseCopy() {
+        final File home = emulatorConfiguration.getRamDiskAvdHome();
+        final File copy = new File(home, emulatorConfiguration.getAvdDirectory().getName());
+        if (copy.isDirectory() && emulatorConfiguration.getRamDiskCopyBack()) {
+            copyBack(copy);
+        }
+        discard(home);
+    }
+
+    /**
+     * Replaces the AVD on disk with the copy. The AVD on disk is only replaced once the copy is complete, so an
+     * interrupted copy leaves either the previous or the new AVD in place.
+     */
+    private void copyBack(final File copy) {
+        final File avdDirectory = emulatorConfiguration.getAvdDirectory();
+        final File incoming = new File(avdDirectory.getPath() + INCOMING_SUFFIX);
+        final File outgoing = new File(avdDirectory.getPath() + OUTGOING_SUFFIX);
+        try {
+            FileUtils.deleteDirectory(incoming);
+            FileUtils.copyDirectory(copy, incoming, EXCLUDE_LOCKS);
+            Files.move(avdDirectory.toPath(), outgoing.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            Files.move(incoming.toPath(), avdDirectory.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            FileUtils.deleteDirectory(outgoing);
+            logger.info("Copied emulator {} back from {}", emulatorConfiguration.getInstanceName(), copy);
+        } catch (final IOException e) {
+            logger.warn("Unable to copy the AVD back from {}. The changes made to it by this run are lost.", copy, e);
+            recoverCopyBack();
+        }
+    }
+
+    /**
+     * Finishes or undoes a copy back that was interrupted.
+     */
+    private void recoverCopyBack() {
+        final File avdDirectory = emulatorConfiguration.getAvdDirectory();
+        final File incoming = new File(avdDirectory.getPath() + INCOMING_SUFFIX);
+        final File outgoing = new File(avdDirectory.getPath() + OUTGOING_SUFFIX);
+        try {
+            if (!avdDirectory.exists()) {
+                // The previous AVD was moved out of the way only once the new one was completely copied
+                if (incoming.isDirectory()) {
+                    Files.move(incoming.toPath(), avdDirectory.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                } else if (outgoing.isDirectory()) {
+                    Files.move(outgoing.toPath(), avdDirectory.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                }
+            }
+            FileUtils.deleteDirectory(incoming);
+            FileUtils.deleteDirectory(outgoing);
+        } catch (final IOException e) {
+            logger.warn("Unable to recover AVD {} from an interrupted copy", avdDirectory, e);
+        }
+    }
+
+    private void discard(final File home) {
+        try {
+            FileUtils.deleteDirectory(home);
+        } catch (final IOException e) {
+            logger.warn("Unable to delete the copy of the AVD in {}", home, e);
+        }
+    }
+
+    /**
+     * @param ramDiskBytes      The space the AVD needs on the RAM disk.
+     * @param emulatorBytes     The memory the emulator itself uses.
+     * @param minFreeBytes      The memory to leave free for the rest of the host.
+     * @param ramDiskFreeBytes  The free space of the RAM disk.
+     * @param memAvailableBytes The memory available on the host or -1 if unknown.
+     * @return Why the AVD doesn't fit in memory or empty if it does.
+     */
+    static Optional<String> checkRoom(final long ramDiskBytes, final long emulatorBytes, final long minFreeBytes,
+            final long ramDiskFreeBytes, final long memAvailableBytes) {
+        if (ramDiskFreeBytes < ramDiskBytes) {
+            return Optional.of(String.format("%d MB of the RAM disk is free but %d MB is needed",
+                    ramDiskFreeBytes / BYTES_PER_MB, ramDiskBytes / BYTES_PER_MB));
+        }
+        // Files on a RAM disk take memory from everything else, including the emulator
+        final long neededBytes = ramDiskBytes + emulatorBytes + minFreeBytes;
+        if (memAvailableBytes != -1 && memAvailableBytes < neededBytes) {
+            return Optional.of(String.format("%d MB of memory is available but %d MB is needed",
+                    memAvailableBytes / BYTES_PER_MB, neededBytes / BYTES_PER_MB));
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * @param lines        The lines of the {@code <name>.ini} file that points the emulator at the AVD directory.
+     * @param avdDirectory The AVD directory to point to instead.
+     * @return The lines of the new {@code <name>.ini} file.
+     */
+    static List<String> rewriteIni(final List<String> lines, final File avdDirectory) {
+        final List<String> rewritten = new ArrayList<>();
+        rewritten.add(PATH_KEY + avdDirectory.getAbsolutePath());
+        for (final String line : lines) {
+            // The relative path takes precedence over the absolute one if it resolves to an existing directory
+            if (!line.startsWith(PATH_KEY) && !line.startsWith(PATH_REL_KEY)) {
+                rewritten.add(line);
+            }
+        }
+        return rewritten;
+    }
+
+    private static long readMemAvailableBytes() {
+        try {
+            final List<String> meminfo = Files.readAllLines(Paths.get("/proc", "meminfo"), StandardCharsets.UTF_8);
+            final long bytes = ProcessResourceUsage.parseKibField(meminfo, MEM_AVAILABLE_PREFIX);
+            return bytes > 0 ? bytes : -1;
+        } catch (final IOException | NumberFormatException e) {
+            // Not Linux, so only the space on the RAM disk is checked
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,387 @@
+package com.quittle.androidemulator;
+
+import org.gradle.api.GradleException;
+import org.gradle.api.logging.Logger;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Leases an already booted device from the remote endpoints instead of the build starting an emulator. The lease is
+ * kept on the device itself, as a directory only one build can create, so builds on any number of hosts share the
+ * devices without anything coordinating them. The build renews its lease while it runs and a lease that isn't renewed
+ * within the lease timeout, because its build died, is broken by the next build to come along.
+ * <p>
+ * Devices on the same host compete for its resources, so the device leased is a free one on the host with the smallest
+ * share of its devices already leased.
+ */
+public class RemoteDevicePool implements EmulatorLease {
+    static final String LEASE_DIRECTORY = "/data/local/tmp/android-emulator-plugin-lease";
+    private static final long ADB_TIMEOUT_SEC = 30;
+    private static final String FREE_OUTPUT = "free";
+    private static final String LEASED_OUTPUT = "leased";
+    private static final String BOOT_COMPLETED = "1";
+    private static final String ACQUIRED_OUTPUT = "acquired";
+
+    enum LeaseState {
+        FREE,
+        LEASED,
+        UNREACHABLE
+    }
+
+    private final EmulatorConfiguration emulatorConfiguration;
+    private final AdbProxy adbProxy;
+    private final Logger logger;
+    private final AtomicReference<String> lease = new AtomicReference<>();
+    private final AtomicReference<ScheduledExecutorService> renewer = new AtomicReference<>();
+
+    public RemoteDevicePool(final EmulatorConfiguration emulatorConfiguration, final AdbProxy adbProxy,
+            final Logger logger) {
+        this.emulatorConfiguration = emulatorConfiguration;
+        this.adbProxy = adbProxy;
+        this.logger = logger;
+    }
+
+    /**
+     * Leases a free, booted remote device, setting its serial in the {@link EmulatorConfiguration}. Does nothing if no
+     * remote devices are configured. The command is unused as the devices are already running.
+     *
+     * @throws GradleException if no device is free within the maximum lease wait.
+     */
+    @Override
+    public boolean acquire(final List<String> command) throws GradleException {
+        if (lease.get() != null) {
+            return true;
+        }
+        if (!emulatorConfiguration.getRemoteDevicesEnabled()) {
+            return false;
+        }
+
+        final List<String> endpoints = emulatorConfiguration.getRemoteEndpoints();
+        final String owner = owner();
+        final long deadline =
+                System.nanoTime() + TimeUnit.SECONDS.toNanos(emulatorConfiguration.getRemoteMaxLeaseWaitSeconds());
+        logger.lifecycle("Leasing a remote device for {} from {}", emulatorConfiguration.getInstanceName(), endpoints);
+        while (true) {
+            final Map<String, LeaseState> states = new LinkedHashMap<>();
+            for (final String endpoint : endpoints) {
+                states.put(endpoint, probe(endpoint));
+            }
+            for (final String endpoint : rankFreeEndpoints(endpoints, states)) {
+                if (!tryLease(endpoint, owner)) {
+                    // Another build leased it since it was probed
+                    continue;
+                }
+                if (!isBooted(endpoint)) {
+                    logger.warn("Remote device {} has not finished booting. Trying the next one.", endpoint);
+                    releaseLease(endpoint, owner);
+                    continue;
+                }
+                lease.set(endpoint);
+                emulatorConfiguration.setRemoteSerial(endpoint);
+                startRenewing(endpoint, owner);
+                logger.lifecycle("Leased remote device {}", endpoint);
+                return true;
+            }
+
+            if (System.nanoTime() > deadline) {
+                throw new GradleException("No remote device was free within " +
+                        emulatorConfiguration.getRemoteMaxLeaseWaitSeconds() + " seconds. Devices: " + states);
+            }
+            logger.lifecycle("No remote device is free. Checking again in {} seconds. Devices: {}",
+                    emulatorConfiguration.getRemotePollIntervalSeconds(), states);
+            try {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(emulatorConfiguration.getRemotePollIntervalSeconds()));
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new GradleException("Interrupted while waiting for a remote device", e);
+            }
+        }
+    }
+
+    @Override
+    public boolean isLeased() {
+        return lease.get() != null;
+    }
+
+    /**
+     * Releases the lease on the remote device, if any, leaving the device running for the next build.
+     */
+    @Override
+    public void release() {
+        final ScheduledExecutorService executor = renewer.getAndSet(null);
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        final String endpoint = lease.getAndSet(null);
+        if (endpoint == null) {
+            return;
+        }
+        if (!releaseLease(endpoint, owner())) {
+            logger.warn("Unable to release the lease on remote device {}. It will be free again once the lease times " +
+                    "out in {} minutes.", endpoint, emulatorConfiguration.getRemoteLeaseTimeoutMinutes());
+        }
+        run("disconnect", endpoint);
+    }
+
+    /**
+     * Orders the free endpoints so those on the least loaded hosts come first. A host's load is the share of its
+     * reachable devices already leased. Ties go to the host with fewer leased devices and then to the endpoint listed
+     * first.
+     *
+     * @param endpoints The {@code host:port} endpoints, in the order configured.
+     * @param states    The lease state of each endpoint.
+     * @return The free endpoints, the best first.
+     */
+    static List<String> rankFreeEndpoints(final List<String> endpoints, final Map<String, LeaseState> states) {
+        final Map<String, Integer> leasedByHost = new HashMap<>();
+        final Map<String, Integer> reachableByHost = new HashMap<>();
+        final List<String> free = new ArrayList<>();
+        for (final String endpoint : endpoints) {
+            final LeaseState state = states.getOrDefault(endpoint, LeaseState.UNREACHABLE);
+            if (state == LeaseState.UNREACHABLE) {
+                continue;
+            }
+            reachableByHost.merge(host(endpoint), 1, Integer::sum);
+            if (state == LeaseState.LEASED) {
+                leasedByHost.merge(host(endpoint), 1, Integer::sum);
+            } else {
+                free.add(endpoint);
+            }
+        }
+
+        final Comparator<String> byLoad = Comparator.comparingDouble(endpoint ->
+                (double) leasedByHost.getOrDefault(host(endpoint), 0) / reachableByHost.get(host(endpoint)));
+        // Sorting is stable so endpoints that tie stay in the order configured
+        free.sort(byLoad.thenComparingInt(endpoint -> leasedByHost.getOrDefault(host(endpoint), 0)));
+        return free;
+    }
+
+    /**
+     * @param endpoint A {@code host:port} endpoint.
+     * @return The host the endpoint's device runs on.
+     */
+    static String host(final String endpoint) {
+        final int colon = endpoint.lastIndexOf(':');
+        return colon > 0 ? endpoint.substring(0, colon) : endpoint;
+    }
+
+    /**
+     * @param output         The output of {@link #probeScript()}.
+     * @param timeoutSeconds How long a lease lasts without being renewed.
+     * @return The state of the lease described, treating leases past their timeout as free.
+     */
+    static LeaseState parseLeaseState(final String output, final long timeoutSeconds) {
+        final String[] parts = output.trim().split("\\s+");
+        if (parts[0].equals(FREE_OUTPUT)) {
+            return LeaseState.FREE;
+        }
+        if (parts[0].equals(LEASED_OUTPUT) && parts.length > 1) {
+            try {
+                return Long.parseLong(parts[1]) > timeoutSeconds ? LeaseState.FREE : LeaseState.LEASED;
+            } catch (final NumberFormatException e) {
+                // Treated as unreachable below, as the device isn't behaving
+                return LeaseState.UNREACHABLE;
+            }
+        }
+        return LeaseState.UNREACHABLE;
+    }
+
+    /**
+     * @return A shell command printing {@code free} or {@code leased <seconds since the lease was last renewed>}. The
+     *         age is measured by the device's own clock, so the clocks of the builds' hosts don't matter.
+     */
+    static String probeScript() {
+        return probeScript(LEASE_DIRECTORY);
+    }
+
+    static String probeScript(final String leaseDirectory) {
+        return "if [ -d " + leaseDirectory + " ]; then echo " + LEASED_OUTPUT + " " + leaseAge(leaseDirectory) + "; " +
+                "else echo " + FREE_OUTPUT + "; fi";
+    }
+
+    /**
+     * Takes the lease, first breaking the existing lease if it has timed out. Only the build that creates the breaking
+     * marker inside a timed out lease breaks it, so builds finding the same lease timed out at once can't break each
+     * other's new leases. The lease is checked again once marked in case it was replaced in the meantime. A marker left
+     * by a build that died while breaking the lease is taken over once it has timed out too.
+     *
+     * @param leaseDirectory The directory holding the lease.
+     * @param owner          Identifies the build, safe to pass through the shell unquoted.
+     * @param timeoutSeconds How long a lease lasts without being renewed.
+     * @return A shell command printing {@code acquired} if the build now holds the lease.
+     */
+    static String leaseScript(final String leaseDirectory, final String owner, final long timeoutSeconds) {
+        final String marker = leaseDirectory + "/breaking";
+        final String broken = leaseDirectory + ".broken." + owner;
+        return "rm -rf " + broken + "; " +
+                "if [ -d " + leaseDirectory + " ] && [ " + leaseAge(leaseDirectory) + " -gt " + timeoutSeconds + " ] " +
+                        "&& { mkdir " + marker + " 2>/dev/null || { [ " + age(marker) + " -gt " + timeoutSeconds +
+                        " ] && mv " + marker + " " + marker + "." + owner + " 2>/dev/null; }; }; then " +
+                    // Marking the lease dates its directory, so a lease without an owner file counts as timed out
+                    "if [ " + age(leaseDirectory + "/owner") + " -gt " + timeoutSeconds + " ]; " +
+                        "then mv " + leaseDirectory + " " + broken + " && rm -rf " + broken + "; " +
+                    "else rm -rf " + marker + " " + marker + "." + owner + "; fi; " +
+                "fi; " +
+                "mkdir " + leaseDirectory + " 2>/dev/null && echo " + owner + " > " + leaseDirectory + "/owner && " +
+                "echo " + ACQUIRED_OUTPUT;
+    }
+
+    /**
+     * @param leaseDirectory The directory holding the lease.
+     * @param owner          Identifies the build, safe to pass through the shell unquoted.
+     * @return A shell command releasing the lease if the build holds it.
+     */
+    static String releaseScript(final String leaseDirectory, final String owner) {
+        return ifOwner(leaseDirectory, owner, "rm -rf " + leaseDirectory);
+    }
+
+    /**
+     * @param leaseDirectory The directory holding the lease.
+     * @param owner          Identifies the build, safe to pass through the shell unquoted.
+     * @return A shell command renewing the lease if the build holds it.
+     */
+    static String renewScript(final String leaseDirectory, final String owner) {
+        return ifOwner(leaseDirectory, owner, "touch " + leaseDirectory + "/owner");
+    }
+
+    private static String leaseAge(final String leaseDirectory) {
+        // The directory is created just before the owner file so it dates a lease whose build died in between
+        return "$(( $(date +%s) - $(stat -c %Y " + leaseDirectory + "/owner 2>/dev/null || stat -c %Y " +
+                leaseDirectory + ") ))";
+    }
+
+    private static String age(final String path) {
+        return "$(( $(date +%s) - $(stat -c %Y " + path + " 2>/dev/null || echo 0) ))";
+    }
+
+    private LeaseState probe(final String endpoint) {
+        if (!connect(endpoint)) {
+            return LeaseState.UNREACHABLE;
+        }
+        final long timeoutSeconds = TimeUnit.MINUTES.toSeconds(emulatorConfiguration.getRemoteLeaseTimeoutMinutes());
+        return run("-s", endpoint, "shell", probeScript())
+                .filter(output -> !output.isEmpty())
+                .map(output -> parseLeaseState(output.get(0), timeoutSeconds))
+                .orElse(LeaseState.UNREACHABLE);
+    }
+
+    private boolean connect(final String endpoint) {
+        // ADB reports failing to connect on its output while still exiting successfully
+        return run("connect", endpoint).map(output -> output.stream().anyMatch(line ->
+                line.startsWith("connected to") || line.startsWith("already connected to"))).orElse(false);
+    }
+
+    /**
+     * Takes the lease on the device, first breaking the existing lease if it has timed out.
+     *
+     * @return {@code true} if the build now holds the lease.
+     */
+    private boolean tryLease(final String endpoint, final String owner) {
+        final long timeoutSeconds = TimeUnit.MINUTES.toSeconds(emulatorConfiguration.getRemoteLeaseTimeoutMinutes());
+        // Older devices don't pass the exit code of the shell back through ADB
+        return run("-s", endpoint, "shell", leaseScript(LEASE_DIRECTORY, owner, timeoutSeconds))
+                .map(output -> output.contains(ACQUIRED_OUTPUT))
+                .orElse(false);
+    }
+
+    private boolean releaseLease(final String endpoint, final String owner) {
+        return run("-s", endpoint, "shell", releaseScript(LEASE_DIRECTORY, owner)).isPresent();
+    }
+
+    private boolean isBooted(final String endpoint) {
+        return run("-s", endpoint, "shell", "getprop sys.boot_completed")
+                .map(output -> output.contains(BOOT_COMPLETED))
+                .orElse(false);
+    }
+
+    /**
+     * Renews the lease a few times per timeout so it never lapses while the build is running.
+     */
+    private void startRenewing(final String endpoint, final String owner) {
+        final String threadName = "remote-device-lease-" + emulatorConfiguration.getInstanceName();
+        final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, threadName);
+            thread.setDaemon(true);
+            return thread;
+        });
+        final long intervalSeconds =
+                Math.max(1, TimeUnit.MINUTES.toSeconds(emulatorConfiguration.getRemoteLeaseTimeoutMinutes()) / 3);
+        executor.scheduleWithFixedDelay(() -> {
+            if (!run("-s", endpoint, "shell", renewScript(LEASE_DIRECTORY, owner)).isPresent()) {
+                logger.warn("Unable to renew the lease on remote device {}", endpoint);
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        renewer.set(executor);
+    }
+
+    private static String ifOwner(final String leaseDirectory, final String owner, final String command) {
+        return "[ \"$(cat " + leaseDirectory + "/owner 2>/dev/null)\" = " + owner + " ] && " + command;
+    }
+
+    /**
+     * Identifies this build's leases so it only ever renews or releases its own.
+     */
+    private String owner() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (final UnknownHostException e) {
+            host = "unknown";
+        }
+        final String owner = host + "-" + ProcessHandle.current().pid() + "-" + emulatorConfiguration.getInstanceName();
+        // Kept safe to pass through the device's shell unquoted
+        return owner.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    /**
+     * Runs ADB, giving up once it has taken too long, as an unreachable host can leave it hanging.
+     *
+     * @return The lines of output or empty if ADB failed.
+     */
+    private Optional<List<String>> run(final String... arguments) {
+        final Process process;
+        try {
+            process = adbProxy.start(arguments);
+        } catch (final GradleException e) {
+            logger.info("Unable to run ADB", e);
+            return Optional.empty();
+        }
+        CompletableFuture.runAsync(process::destroyForcibly,
+                CompletableFuture.delayedExecutor(ADB_TIMEOUT_SEC, TimeUnit.SECONDS));
+        final List<String> output = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line = reader.readLine();
+            while (line != null) {
+                output.add(line.trim());
+                line = reader.readLine();
+            }
+            return process.waitFor() == 0 ? Optional.of(output) : Optional.empty();
+        } catch (final IOException e) {
+            logger.info("Unable to read ADB output", e);
+            return Optional.empty();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Optional.empty();
+        } finally {
+            process.destroy();
+        }
+    }
+}
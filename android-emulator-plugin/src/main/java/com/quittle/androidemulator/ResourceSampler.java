@@ -0,0 +1,259 @@
+package com.quittle.androidemulator;
+
+import org.gradle.api.logging.Logger;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Periodically samples the CPU, memory, and storage I/O of each emulator and the processes it started, writing a time
+ * series for each emulator and a summary of all of them. Only supported on Linux, where the usage is read from
+ * {@code /proc}.
+ */
+public class ResourceSampler {
+    static final String SUMMARY_FILE_NAME = "summary.txt";
+    private static final String CSV_HEADER = "elapsed_ms,cpu_percent,rss_bytes,read_bytes,write_bytes,processes";
+    private static final double PERCENT = 100.0;
+    private static final double BYTES_PER_MIB = 1024 * 1024;
+
+    private final Map<String, Supplier<Process>> emulators;
+    private final long intervalMillis;
+    private final Logger logger;
+    private final Map<String, Series> series = new LinkedHashMap<>();
+    private ScheduledExecutorService executor;
+    private File outputDir;
+    private long startNanos;
+
+    /**
+     * @param emulators      Provides the current process of each emulator, or {@code null} if it isn't running, keyed
+     *                       by the name of the emulator.
+     * @param intervalMillis How often to sample the emulators.
+     * @param logger         Logs problems writing the samples, which don't fail the build.
+     */
+    public ResourceSampler(
+            final Map<String, Supplier<Process>> emulators, final long intervalMillis, final Logger logger) {
+        this.emulators = emulators;
+        this.intervalMillis = intervalMillis;
+        this.logger = logger;
+    }
+
+    /**
+     * @return Whether the resource usage of processes can be read on this host.
+     */
+    public static boolean isSupported() {
+        return Files.isRegularFile(Paths.get("/proc", "self", "stat"));
+    }
+
+    /**
+     * The usage of a single emulator since sampling started.
+     */
+    static class Series {
+        private final BufferedWriter writer;
+        // The counters of each process at the previous sample, so processes exiting don't make the totals go backwards
+        private Map<Long, ProcessResourceUsage> previous;
+        private long previousNanos;
+        private int samples = 0;
+        private double cpuPercentSum = 0;
+        private double peakCpuPercent = 0;
+        private double residentBytesSum = 0;
+        private long peakResidentBytes = 0;
+        private long readBytes = 0;
+        private long writeBytes = 0;
+
+        /**
+         * @param writer     Receives the time series.
+         * @param startNanos When sampling started.
+         * @param initial    The usage of each of the emulator's processes when sampling started, keyed by PID.
+         */
+        Series(final BufferedWriter writer, final long startNanos, final Map<Long, ProcessResourceUsage> initial) {
+            this.writer = writer;
+            this.previousNanos = startNanos;
+            this.previous = initial;
+        }
+
+        /**
+         * @param usage     The usage of each of the emulator's processes, keyed by PID.
+         * @param nowNanos  When the usage was read.
+         * @param elapsedMs How long sampling has been running.
+         */
+        void add(final Map<Long, ProcessResourceUsage> usage, final long nowNanos, final long elapsedMs)
+                throws IOException {
+            long cpuMillis = 0;
+            long residentBytes = 0;
+            long read = 0;
+            long written = 0;
+            for (final Map.Entry<Long, ProcessResourceUsage> entry : usage.entrySet()) {
+                final ProcessResourceUsage current = entry.getValue();
+                // Processes started since the previous sample count from zero
+                final ProcessResourceUsage before =
+                        previous.getOrDefault(entry.getKey(), new ProcessResourceUsage(0, 0, 0, 0));
+                cpuMillis += Math.max(0, current.getCpuMillis() - before.getCpuMillis());
+                read += Math.max(0, current.getReadBytes() - before.getReadBytes());
+                written += Math.max(0, current.getWriteBytes() - before.getWriteBytes());
+                residentBytes += current.getResidentBytes();
+            }
+            final long intervalMillis = TimeUnit.NANOSECONDS.toMillis(nowNanos - previousNanos);
+            final double cpuPercent = intervalMillis > 0 ? cpuMillis * PERCENT / intervalMillis : 0;
+            previous = usage;
+            previousNanos = nowNanos;
+
+            samples++;
+            cpuPercentSum += cpuPercent;
+            peakCpuPercent = Math.max(peakCpuPercent, cpuPercent);
+            residentBytesSum += residentBytes;
+            peakResidentBytes = Math.max(peakResidentBytes, residentBytes);
+            readBytes += read;
+            writeBytes += written;
+
+            writer.write(String.format(Locale.ROOT, "%d,%.1f,%d,%d,%d,%d", elapsedMs, cpuPercent, residentBytes, read,
+                    written, usage.size()));
+            writer.newLine();
+        }
+
+        double getAverageCpuPercent() {
+            return samples > 0 ? cpuPercentSum / samples : 0;
+        }
+
+        double getAverageResidentBytes() {
+            return samples > 0 ? residentBytesSum / samples : 0;
+        }
+
+        String summarize(final String name) {
+            return String.format(Locale.ROOT,
+                    "%s: %d samples, CPU average %.1f%% peak %.1f%%, RSS average %.1f MiB peak %.1f MiB, " +
+                            "read %.1f MiB, written %.1f MiB",
+                    name, samples, getAverageCpuPercent(), peakCpuPercent, getAverageResidentBytes() / BYTES_PER_MIB,
+                    peakResidentBytes / BYTES_PER_MIB, readBytes / BYTES_PER_MIB, writeBytes / BYTES_PER_MIB);
+        }
+    }
+
+    /**
+     * Starts sampling, writing the samples to the directory. Does nothing if already sampling.
+     *
+     * @param outputDir Where to write the samples, which is replaced.
+     */
+    public synchronized void start(final File outputDir) {
+        if (executor != null) {
+            return;
+        }
+        this.outputDir = outputDir;
+        this.startNanos = System.nanoTime();
+        try {
+            if (outputDir.isDirectory()) {
+                try (Stream<Path> files = Files.list(outputDir.toPath())) {
+                    for (final Path file : files.collect(Collectors.toList())) {
+                        Files.delete(file);
+                    }
+                }
+            }
+            Files.createDirectories(outputDir.toPath());
+            for (final String name : emulators.keySet()) {
+                final BufferedWriter writer = Files.newBufferedWriter(
+                        new File(outputDir, name + ".csv").toPath(), StandardCharsets.UTF_8);
+                writer.write(CSV_HEADER);
+                writer.newLine();
+                series.put(name, new Series(writer, startNanos, readUsage(emulators.get(name).get())));
+            }
+        } catch (final IOException e) {
+            logger.warn("Unable to sample the emulators' resource usage in {}", outputDir, e);
+            closeWriters();
+            return;
+        }
+
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "android-emulator-resource-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(this::sample, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void sample() {
+        final long nowNanos = System.nanoTime();
+        final long elapsedMs = TimeUnit.NANOSECONDS.toMillis(nowNanos - startNanos);
+        try {
+            for (final Map.Entry<String, Series> entry : series.entrySet()) {
+                final Process process = emulators.get(entry.getKey()).get();
+                entry.getValue().add(readUsage(process), nowNanos, elapsedMs);
+            }
+        } catch (final IOException e) {
+            logger.warn("Unable to write the emulators' resource usage to {}", outputDir, e);
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+    }
+
+    private static Map<Long, ProcessResourceUsage> readUsage(final Process process) {
+        final Map<Long, ProcessResourceUsage> usage = new HashMap<>();
+        if (process == null || !process.isAlive()) {
+            return usage;
+        }
+        // The emulator launcher runs the emulator itself and its helpers as child processes
+        Stream.concat(Stream.of(process.toHandle()), process.descendants()).forEach(handle -> {
+            final Optional<ProcessResourceUsage> processUsage = ProcessResourceUsage.read(handle.pid());
+            processUsage.ifPresent(value -> usage.put(handle.pid(), value));
+        });
+        return usage;
+    }
+
+    /**
+     * Stops sampling and writes the summary. Does nothing if not sampling.
+     */
+    public synchronized void stop() {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdownNow();
+        executor = null;
+
+        final List<String> lines = new ArrayList<>();
+        lines.add(String.format(Locale.ROOT, "%d emulators sampled every %d ms on a host with %d cores",
+                series.size(), intervalMillis, Runtime.getRuntime().availableProcessors()));
+        double cpuPercent = 0;
+        double residentBytes = 0;
+        for (final Map.Entry<String, Series> entry : series.entrySet()) {
+            lines.add(entry.getValue().summarize(entry.getKey()));
+            cpuPercent += entry.getValue().getAverageCpuPercent();
+            residentBytes += entry.getValue().getAverageResidentBytes();
+        }
+        lines.add(String.format(Locale.ROOT, "Total: CPU average %.1f%%, RSS average %.1f MiB",
+                cpuPercent, residentBytes / BYTES_PER_MIB));
+        closeWriters();
+        try {
+            Files.write(new File(outputDir, SUMMARY_FILE_NAME).toPath(), lines, StandardCharsets.UTF_8);
+        } catch (final IOException e) {
+            logger.warn("Unable to write the emulators' resource usage to {}", outputDir, e);
+        }
+        lines.forEach(logger::info);
+    }
+
+    private void closeWriters() {
+        for (final Series value : series.values()) {
+            try {
+                value.writer.close();
+            } catch (final IOException e) {
+                logger.warn("Unable to write the emulators' resource usage to {}", outputDir, e);
+            }
+        }
+        series.clear();
+    }
+}
@@ -0,0 +1,48 @@
+package com.quittle.androidemulator;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * What to do when the host can't provide hardware acceleration and the emulator would fall back to software emulation.
+ */
+public enum SoftwareEmulationFallback {
+    /**
+     * Boot the emulator anyway, logging a warning.
+     */
+    ALLOW,
+    /**
+     * Fail the build before starting the emulator.
+     */
+    FAIL,
+    /**
+     * Boot the emulator with a lighter configuration better suited to software emulation.
+     */
+    LIGHTEN("-no-boot-anim", "-gpu", "swiftshader_indirect", "-camera-back", "none", "-camera-front", "none");
+
+    private final List<String> emulatorArguments;
+
+    SoftwareEmulationFallback(final String... emulatorArguments) {
+        this.emulatorArguments = Collections.unmodifiableList(Arrays.asList(emulatorArguments));
+    }
+
+    /**
+     * @return Additional arguments to pass to the emulator when falling back to software emulation.
+     */
+    public List<String> getEmulatorArguments() {
+        return emulatorArguments;
+    }
+
+    /**
+     * Case-insensitive alternative to {@link #valueOf} to make configuring this from Gradle friendlier.
+     *
+     * @param name The name of the fallback, e.g. {@code "fail"}.
+     * @return The matching fallback.
+     * @throws IllegalArgumentException if no fallback matches.
+     */
+    public static SoftwareEmulationFallback fromName(final String name) throws IllegalArgumentException {
+        return valueOf(name.toUpperCase(Locale.ROOT));
+    }
+}
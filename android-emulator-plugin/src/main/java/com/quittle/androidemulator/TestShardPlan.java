@@ -0,0 +1,176 @@
+package com.quittle.androidemulator;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * An assignment of test classes to emulators, balanced so that all the emulators finish at about the same time.
+ * <p>
+ * Classes with a known duration are assigned longest first, each to the emulator with the least work so far, which
+ * keeps the longest running emulator within a third of the optimum. Classes that haven't been run before are then
+ * spread evenly by count since nothing is known about how long they take.
+ */
+public class TestShardPlan {
+    private final List<List<String>> shards;
+    private final long[] predictedMillis;
+    private final int[] unknownClassCounts;
+
+    private TestShardPlan(final int shardCount) {
+        this.shards = new ArrayList<>(shardCount);
+        for (int i = 0; i < shardCount; i++) {
+            shards.add(new ArrayList<>());
+        }
+        this.predictedMillis = new long[shardCount];
+        this.unknownClassCounts = new int[shardCount];
+    }
+
+    /**
+     * @param testClasses The fully qualified names of the test classes to run.
+     * @param shardCount  The number of shards to split the classes between, usually the number of emulators.
+     * @param history     The durations of previous runs.
+     * @return The balanced plan.
+     * @throws IllegalArgumentException if {@code shardCount} is less than one.
+     */
+    public static TestShardPlan plan(
+            final Collection<String> testClasses, final int shardCount, final TestTimingHistory history) {
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("There must be at least one shard");
+        }
+        final TestShardPlan plan = new TestShardPlan(shardCount);
+
+        final List<String> knownClasses = new ArrayList<>();
+        final List<String> unknownClasses = new ArrayList<>();
+        // Sorting first makes the plan the same no matter the order the classes were given in
+        for (final String testClass : new TreeSet<>(testClasses)) {
+            if (history.getDurationMillis(testClass).isPresent()) {
+                knownClasses.add(testClass);
+            } else {
+                unknownClasses.add(testClass);
+            }
+        }
+
+        knownClasses.sort(Comparator.comparingLong(
+                (String testClass) -> history.getDurationMillis(testClass).getAsLong()).reversed());
+        for (final String testClass : knownClasses) {
+            final int shard = plan.leastLoadedShard();
+            plan.shards.get(shard).add(testClass);
+            plan.predictedMillis[shard] += history.getDurationMillis(testClass).getAsLong();
+        }
+
+        for (final String testClass : unknownClasses) {
+            final int shard = plan.fewestUnknownClassesShard();
+            plan.shards.get(shard).add(testClass);
+            plan.unknownClassCounts[shard]++;
+        }
+        return plan;
+    }
+
+    private int leastLoadedShard() {
+        int best = 0;
+        for (int i = 1; i < predictedMillis.length; i++) {
+            if (predictedMillis[i] < predictedMillis[best]) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    private int fewestUnknownClassesShard() {
+        int best = 0;
+        for (int i = 1; i < unknownClassCounts.length; i++) {
+            if (unknownClassCounts[i] < unknownClassCounts[best] ||
+                    unknownClassCounts[i] == unknownClassCounts[best] && predictedMillis[i] < predictedMillis[best]) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    /**
+     * @param shard The index of the shard.
+     * @return The test classes assigned to the shard.
+     */
+    public List<String> getShard(final int shard) {
+        return Collections.unmodifiableList(shards.get(shard));
+    }
+
+    /**
+     * @param shard The index of the shard.
+     * @return The predicted duration of the shard, not counting classes without a previous duration.
+     */
+    public long getPredictedMillis(final int shard) {
+        return predictedMillis[shard];
+    }
+
+    /**
+     * @param shard The index of the shard.
+     * @return The number of classes in the shard without a previous duration.
+     */
+    public int getUnknownClassCount(final int shard) {
+        return unknownClassCounts[shard];
+    }
+
+    /**
+     * @return The predicted duration of the longest running shard.
+     */
+    public long getPredictedMakespanMillis() {
+        long makespan = 0;
+        for (final long millis : predictedMillis) {
+            makespan = Math.max(makespan, millis);
+        }
+        return makespan;
+    }
+
+    /**
+     * @param shard        The index of the shard.
+     * @param runDurations The actual durations of the test classes, keyed by class name.
+     * @return The actual duration of the shard.
+     */
+    public long getActualMillis(final int shard, final Map<String, Long> runDurations) {
+        long millis = 0;
+        for (final String testClass : shards.get(shard)) {
+            millis += runDurations.getOrDefault(testClass, 0L);
+        }
+        return millis;
+    }
+
+    /**
+     * @param runDurations The actual durations of the test classes, keyed by class name.
+     * @return The actual duration of the longest running shard.
+     */
+    public long getActualMakespanMillis(final Map<String, Long> runDurations) {
+        long makespan = 0;
+        for (int i = 0; i < shards.size(); i++) {
+            makespan = Math.max(makespan, getActualMillis(i, runDurations));
+        }
+        return makespan;
+    }
+
+    /**
+     * @param runDurations The actual durations of the test classes, keyed by class name.
+     * @return A human readable comparison of the predicted and actual duration of each shard.
+     */
+    public List<String> formatReport(final Map<String, Long> runDurations) {
+        final List<String> lines = new ArrayList<>();
+        lines.add(String.format("Predicted makespan: %d ms, actual makespan: %d ms",
+                getPredictedMakespanMillis(), getActualMakespanMillis(runDurations)));
+        for (int i = 0; i < shards.size(); i++) {
+            lines.add(String.format("Shard %d: %d classes (%d without history), predicted %d ms, actual %d ms",
+                    i, shards.get(i).size(), unknownClassCounts[i], predictedMillis[i], getActualMillis(i, runDurations)));
+            for (final String testClass : shards.get(i)) {
+                final Long actual = runDurations.get(testClass);
+                lines.add("    " + testClass + (actual != null ? " " + actual + " ms" : " not run"));
+            }
+        }
+        return lines;
+    }
+}
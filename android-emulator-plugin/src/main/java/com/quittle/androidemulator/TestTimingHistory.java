@@ -0,0 +1,192 @@
+package com.quittle.androidemulator;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.TreeMap;
+
+/**
+ * How long each test class took in previous runs, used to balance test classes across emulators.
+ * <p>
+ * The history is stored as one line per test class of {@code <duration in milliseconds> <class name>}. Each run is
+ * averaged with the previous estimate so that a single slow run doesn't skew the estimate too much.
+ */
+public class TestTimingHistory {
+    private static final String COMMENT_PREFIX = "#";
+    private static final String JUNIT_RESULT_PREFIX = "TEST-";
+    private static final String JUNIT_RESULT_SUFFIX = ".xml";
+    private static final double MILLIS_PER_SECOND = 1000.0;
+
+    private final Map<String, Long> durations;
+
+    public TestTimingHistory() {
+        this(new TreeMap<>());
+    }
+
+    private TestTimingHistory(final Map<String, Long> durations) {
+        this.durations = durations;
+    }
+
+    /**
+     * @param file The history file.
+     * @return The history or an empty history if the file doesn't exist.
+     * @throws IOException if the history file could not be read.
+     */
+    public static TestTimingHistory load(final File file) throws IOException {
+        if (!file.isFile()) {
+            return new TestTimingHistory();
+        }
+        return parse(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8));
+    }
+
+    static TestTimingHistory parse(final List<String> lines) {
+        final Map<String, Long> durations = new TreeMap<>();
+        for (final String line : lines) {
+            final String trimmed = line.trim();
+            final int separator = trimmed.indexOf(' ');
+            if (trimmed.startsWith(COMMENT_PREFIX) || separator < 0) {
+                continue;
+            }
+            try {
+                durations.put(trimmed.substring(separator + 1).trim(),
+                        Long.parseLong(trimmed.substring(0, separator)));
+            } catch (final NumberFormatException e) {
+                // Skip corrupt lines rather than losing the rest of the history
+                continue;
+            }
+        }
+        return new TestTimingHistory(durations);
+    }
+
+    /**
+     * @param file The history file, which is created along with its parent directories if necessary.
+     * @throws IOException if the history could not be written.
+     */
+    public void save(final File file) throws IOException {
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.write(file.toPath(), format(), StandardCharsets.UTF_8);
+    }
+
+    List<String> format() {
+        final List<String> lines = new ArrayList<>();
+        lines.add(COMMENT_PREFIX + " <duration in milliseconds> <test class>");
+        durations.forEach((className, millis) -> lines.add(millis + " " + className));
+        return lines;
+    }
+
+    /**
+     * @param className The fully qualified name of the test class.
+     * @return The estimated duration of the class or empty if it hasn't been run before.
+     */
+    public OptionalLong getDurationMillis(final String className) {
+        final Long millis = durations.get(className);
+        return millis == null ? OptionalLong.empty() : OptionalLong.of(millis);
+    }
+
+    /**
+     * @return The estimated durations of all the test classes run before, keyed by class name.
+     */
+    public Map<String, Long> getDurations() {
+        return Collections.unmodifiableMap(durations);
+    }
+
+    /**
+     * Updates the estimates with the durations of a run.
+     *
+     * @param runDurations The durations of the test classes in the run, keyed by class name.
+     */
+    public void record(final Map<String, Long> runDurations) {
+        runDurations.forEach((className, millis) ->
+                durations.merge(className, millis, (previous, latest) -> (previous + latest) / 2));
+    }
+
+    /**
+     * Reads the durations of each test class from JUnit XML results, as written by connected test tasks. When the
+     * same class ran on several devices, the slowest device's duration is used.
+     *
+     * @param resultsDir The directory containing {@code TEST-*.xml} results, searched recursively.
+     * @return The duration of each test class in milliseconds, keyed by class name.
+     * @throws IOException if the results could not be read.
+     */
+    public static Map<String, Long> readJUnitResults(final File resultsDir) throws IOException {
+        final Map<String, Long> durations = new HashMap<>();
+        if (!resultsDir.isDirectory()) {
+            return durations;
+        }
+
+        final DocumentBuilder documentBuilder = newDocumentBuilder();
+        final List<File> resultFiles = new ArrayList<>();
+        collectJUnitResults(resultsDir, resultFiles);
+        for (final File resultFile : resultFiles) {
+            final Document document;
+            try {
+                document = documentBuilder.parse(resultFile);
+            } catch (final SAXException e) {
+                throw new IOException("Unable to parse test results " + resultFile, e);
+            }
+            sumTestCases(document).forEach((className, millis) -> durations.merge(className, millis, Math::max));
+        }
+        return durations;
+    }
+
+    private static void collectJUnitResults(final File dir, final List<File> resultFiles) {
+        final File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (final File child : children) {
+            if (child.isDirectory()) {
+                collectJUnitResults(child, resultFiles);
+            } else if (child.getName().startsWith(JUNIT_RESULT_PREFIX) && child.getName().endsWith(JUNIT_RESULT_SUFFIX)) {
+                resultFiles.add(child);
+            }
+        }
+    }
+
+    private static Map<String, Long> sumTestCases(final Document document) {
+        final Map<String, Long> durations = new HashMap<>();
+        final NodeList testCases = document.getElementsByTagName("testcase");
+        for (int i = 0; i < testCases.getLength(); i++) {
+            final Element testCase = (Element) testCases.item(i);
+            final String className = testCase.getAttribute("classname");
+            if (className.isEmpty()) {
+                continue;
+            }
+            long millis;
+            try {
+                millis = Math.round(Double.parseDouble(testCase.getAttribute("time")) * MILLIS_PER_SECOND);
+            } catch (final NumberFormatException e) {
+                millis = 0;
+            }
+            durations.merge(className, millis, Long::sum);
+        }
+        return durations;
+    }
+
+    private static DocumentBuilder newDocumentBuilder() throws IOException {
+        final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        try {
+            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            return factory.newDocumentBuilder();
+        } catch (final ParserConfigurationException e) {
+            throw new IOException("Unable to create XML parser", e);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.quittle.androidemulator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The tests of a shard left to run after its emulator crashed part way through. The runner runs the classes in turn,
+ * so every class with a finished test is done except the last one, which may have been cut short. That one is run
+ * again without the tests it already finished, along with the classes that never started.
+ */
+public class UnfinishedTests {
+    private final List<String> classes;
+    private final List<String> excludedTests;
+
+    private UnfinishedTests(final List<String> classes, final List<String> excludedTests) {
+        this.classes = Collections.unmodifiableList(classes);
+        this.excludedTests = Collections.unmodifiableList(excludedTests);
+    }
+
+    /**
+     * @param testClasses   The test classes of the shard, in the order they were run.
+     * @param finishedTests The tests that finished, as {@code <class name>#<test name>}, in the order they finished.
+     * @return The tests left to run.
+     */
+    public static UnfinishedTests after(final List<String> testClasses, final List<String> finishedTests) {
+        final Set<String> doneClasses = new LinkedHashSet<>();
+        for (final String finishedTest : finishedTests) {
+            doneClasses.add(className(finishedTest));
+        }
+        final List<String> excludedTests = new ArrayList<>();
+        if (!finishedTests.isEmpty()) {
+            final String lastClass = className(finishedTests.get(finishedTests.size() - 1));
+            doneClasses.remove(lastClass);
+            for (final String finishedTest : finishedTests) {
+                if (className(finishedTest).equals(lastClass)) {
+                    excludedTests.add(finishedTest);
+                }
+            }
+        }
+
+        final List<String> classes = new ArrayList<>();
+        for (final String testClass : testClasses) {
+            if (!doneClasses.contains(testClass)) {
+                classes.add(testClass);
+            }
+        }
+        return new UnfinishedTests(classes, excludedTests);
+    }
+
+    /**
+     * @return The test classes to run.
+     */
+    public List<String> getClasses() {
+        return classes;
+    }
+
+    /**
+     * @return The tests of the classes to skip because they already finished, as {@code <class name>#<test name>}.
+     */
+    public List<String> getExcludedTests() {
+        return excludedTests;
+    }
+
+    private static String className(final String test) {
+        return test.substring(0, test.lastIndexOf('#'));
+    }
+}
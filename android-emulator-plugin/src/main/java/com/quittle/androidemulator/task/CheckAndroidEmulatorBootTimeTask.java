@@ -0,0 +1,58 @@
+package com.quittle.androidemulator.task;
+
+import com.quittle.androidemulator.AndroidEmulatorExtension;
+import com.quittle.androidemulator.BootTimeHistory;
+import com.quittle.androidemulator.EmulatorConfiguration;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.tasks.TaskAction;
+
+import javax.inject.Inject;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares how long getting each emulator ready took in recent builds against the builds before them, warning or
+ * failing if it got slower.
+ */
+public class CheckAndroidEmulatorBootTimeTask extends DefaultTask {
+    private final List<EmulatorConfiguration> emulatorConfigurations;
+    private final AndroidEmulatorExtension.BootTimeRegressionExtension bootTimeRegression;
+
+    @Inject
+    public CheckAndroidEmulatorBootTimeTask(
+            final List<EmulatorConfiguration> emulatorConfigurations,
+            final AndroidEmulatorExtension.BootTimeRegressionExtension bootTimeRegression) {
+        this.emulatorConfigurations = emulatorConfigurations;
+        this.bootTimeRegression = bootTimeRegression;
+    }
+
+    @TaskAction
+    public void act() {
+        final List<String> regressions = new ArrayList<>();
+        for (final EmulatorConfiguration emulatorConfiguration : emulatorConfigurations) {
+            final BootTimeHistory history;
+            try {
+                history = BootTimeHistory.load(emulatorConfiguration.getBootTimeHistoryFile());
+            } catch (final IOException e) {
+                throw new GradleException("Unable to read the boot time history of " +
+                        emulatorConfiguration.getInstanceName(), e);
+            }
+            for (final String regression : history.findRegressions(bootTimeRegression.getThresholdPercent(),
+                    bootTimeRegression.getRecentRuns(), bootTimeRegression.getBaselineRuns())) {
+                regressions.add(emulatorConfiguration.getInstanceName() + " " + regression);
+            }
+        }
+        if (regressions.isEmpty()) {
+            return;
+        }
+
+        final String message = "Getting the emulator ready has become slower than the threshold of " +
+                bootTimeRegression.getThresholdPercent() + "%:\n    " + String.join("\n    ", regressions);
+        if (bootTimeRegression.getFailOnRegression()) {
+            throw new GradleException(message);
+        }
+        getLogger().warn(message);
+    }
+}
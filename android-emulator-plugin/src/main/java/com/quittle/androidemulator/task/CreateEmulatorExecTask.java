@@ -1,16 +1,22 @@
 package com.quittle.androidemulator.task;
 
+import com.quittle.androidemulator.AdbProxy;
+import com.quittle.androidemulator.AvdHardwareProfile;
 import com.quittle.androidemulator.EmulatorConfiguration;
+import com.quittle.androidemulator.PendingShutdown;
+import org.gradle.api.Action;
+import org.gradle.api.Task;
 
 import javax.inject.Inject;
 import java.io.File;
+import java.io.IOException;
 import java.util.List;
 
 import static com.quittle.androidemulator.CollectionUtils.mutableListOf;
 
 public class CreateEmulatorExecTask extends AndroidEmulatorBaseExecTask<CreateEmulatorExecTask> {
     @Inject
-    public CreateEmulatorExecTask(final EmulatorConfiguration emulatorConfiguration) {
+    public CreateEmulatorExecTask(final EmulatorConfiguration emulatorConfiguration, final AdbProxy adbProxy) {
         super(CreateEmulatorExecTask.class, emulatorConfiguration);
 
         final String emulatorName = emulatorConfiguration.getEmulatorName();
@@ -32,7 +38,73 @@ public class CreateEmulatorExecTask extends AndroidEmulatorBaseExecTask<CreateEm
         this.setArgs(args);
         this.setStandardInput(buildStandardInLines("no"));
 
-        this.getOutputs().dir(new File(avdRoot, emulatorName + ".avd"));
+        this.getInputs().property("hardwareProfile", emulatorConfiguration.getHardwareProfile().toUpToDateInput());
+        this.getOutputs().dir(emulatorConfiguration.getAvdDirectory());
         this.getOutputs().file(new File(avdRoot, emulatorName + ".ini"));
+
+        // These cannot be lambdas or the task will never be considered up-to-date
+        this.doFirst(new AwaitPendingShutdown(emulatorConfiguration));
+        this.doLast(new ApplyHardwareProfile(emulatorConfiguration));
+        if (emulatorConfiguration.getGoldenSnapshot()) {
+            // Saved as part of creating the AVD so the snapshot is kept for as long as the AVD is up-to-date
+            this.doLast(new CreateGoldenSnapshot(new GoldenSnapshot(getProject(), emulatorConfiguration, adbProxy)));
+        }
+    }
+
+    /**
+     * Recreating the AVD while a previous instance of it is still shutting down would corrupt it.
+     */
+    private static class AwaitPendingShutdown implements Action<Task> {
+        private final EmulatorConfiguration emulatorConfiguration;
+
+        private AwaitPendingShutdown(final EmulatorConfiguration emulatorConfiguration) {
+            this.emulatorConfiguration = emulatorConfiguration;
+        }
+
+        @Override
+        public void execute(Task task) {
+            for (final File marker : emulatorConfiguration.getInstancePendingShutdownMarkers()) {
+                PendingShutdown.awaitCompletion(marker, task.getLogger());
+            }
+        }
+    }
+
+    /**
+     * avdmanager sizes the hardware conservatively regardless of the host so it is replaced after the AVD is created.
+     */
+    private static class ApplyHardwareProfile implements Action<Task> {
+        private final EmulatorConfiguration emulatorConfiguration;
+
+        private ApplyHardwareProfile(final EmulatorConfiguration emulatorConfiguration) {
+            this.emulatorConfiguration = emulatorConfiguration;
+        }
+
+        @Override
+        public void execute(Task task) {
+            final AvdHardwareProfile hardwareProfile = emulatorConfiguration.getHardwareProfile();
+            final File configIni = new File(emulatorConfiguration.getAvdDirectory(), "config.ini");
+            task.getLogger().info("Configuring {} with hardware {}", configIni, hardwareProfile.toConfigIni());
+            try {
+                hardwareProfile.applyTo(configIni);
+            } catch (final IOException e) {
+                throw new RuntimeException("Unable to configure the hardware of the emulator", e);
+            }
+        }
+    }
+
+    /**
+     * Saves the snapshot the instances of a shared AVD restore from.
+     */
+    private static class CreateGoldenSnapshot implements Action<Task> {
+        private final GoldenSnapshot goldenSnapshot;
+
+        private CreateGoldenSnapshot(final GoldenSnapshot goldenSnapshot) {
+            this.goldenSnapshot = goldenSnapshot;
+        }
+
+        @Override
+        public void execute(Task task) {
+            goldenSnapshot.create();
+        }
     }
 }
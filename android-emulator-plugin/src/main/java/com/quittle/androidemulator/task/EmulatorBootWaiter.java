@@ -0,0 +1,231 @@
+package com.quittle.androidemulator.task;
+
+import com.quittle.androidemulator.AdbProxy;
+import com.quittle.androidemulator.BootProfile;
+import com.quittle.androidemulator.BootRecovery;
+import com.quittle.androidemulator.BootTimings;
+import com.quittle.androidemulator.EmulatorConfiguration;
+import com.quittle.androidemulator.EmulatorMetrics;
+import org.gradle.api.GradleException;
+import org.gradle.api.logging.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Waits for the emulator to boot, enforcing a deadline on each phase of the boot. If the emulator fails to boot, it is
+ * restarted with escalating recovery options until it boots or the configured number of attempts is exhausted.
+ */
+public class EmulatorBootWaiter {
+    private static final long POLL_INTERVAL_MS = 1000;
+
+    private final EmulatorConfiguration emulatorConfiguration;
+    private final AdbProxy adbProxy;
+    private final EmulatorLauncher emulatorLauncher;
+    private final AtomicReference<Process> waitForDeviceProcess;
+    private final EmulatorMetrics.Emulator metrics;
+    private final BootTimings bootTimings;
+    private final Logger logger;
+    private final AtomicBoolean bootProfileReportStarted = new AtomicBoolean(false);
+
+    public EmulatorBootWaiter(
+            final EmulatorConfiguration emulatorConfiguration,
+            final AdbProxy adbProxy,
+            final EmulatorLauncher emulatorLauncher,
+            final AtomicReference<Process> waitForDeviceProcess,
+            final EmulatorMetrics.Emulator metrics,
+            final BootTimings bootTimings,
+            final Logger logger) {
+        this.emulatorConfiguration = emulatorConfiguration;
+        this.adbProxy = adbProxy;
+        this.emulatorLauncher = emulatorLauncher;
+        this.waitForDeviceProcess = waitForDeviceProcess;
+        this.metrics = metrics;
+        this.bootTimings = bootTimings;
+        this.logger = logger;
+    }
+
+    /**
+     * Waits for the emulator that was last launched to boot, relaunching it if the boot fails.
+     *
+     * @throws GradleException if the emulator failed to boot within the configured number of attempts.
+     */
+    public void awaitBoot() throws GradleException {
+        final int maxAttempts = emulatorConfiguration.getMaxBootAttempts();
+        for (int attempt = 1; ; attempt++) {
+            final String failure = waitForBoot();
+            if (failure == null) {
+                final Duration bootDuration = Duration.ofNanos(System.nanoTime() - emulatorLauncher.getLastLaunchNanos());
+                metrics.recordBoot(bootDuration);
+                profileBoot(bootDuration);
+                return;
+            }
+
+            final EmulatorLauncher.BootFailure bootFailure = emulatorLauncher.getBootFailure();
+            if (attempt >= maxAttempts || (bootFailure != null && !bootFailure.recoverable)) {
+                metrics.recordBootFailure();
+                throw new GradleException("Emulator failed to boot: " + failure);
+            }
+
+            final BootRecovery recovery = BootRecovery.forAttempt(attempt + 1, emulatorConfiguration.getSharedAvd());
+            logger.warn("Emulator failed to boot ({}). Retrying with recovery {} (attempt {} of {})",
+                    failure, recovery, attempt + 1, maxAttempts);
+            metrics.recordBootRetry();
+            emulatorLauncher.relaunch(recovery);
+        }
+    }
+
+    /**
+     * Waits for each phase of the boot in turn.
+     *
+     * @return A description of why the boot failed or {@code null} if it completed.
+     */
+    private String waitForBoot() {
+        final String serial = emulatorConfiguration.getEmulatorSerial();
+
+        String failure = waitForPhase("the emulator process to register with ADB",
+                emulatorConfiguration.getProcessUpTimeoutSeconds(), this::waitForDeviceListed);
+        if (failure != null) {
+            return failure;
+        }
+
+        // The AdbProxy cannot be used for the remaining phases as the processes needs to run asynchronously in order
+        // for them to be terminable if the Gradle run is aborted early or the emulator fails.
+        failure = waitForPhase("ADB to come online", emulatorConfiguration.getAdbOnlineTimeoutSeconds(),
+                timeoutSeconds -> runWaitProcess(timeoutSeconds,
+                        emulatorConfiguration.getAdb().getAbsolutePath(), "-s", serial, "wait-for-device"));
+        if (failure != null) {
+            return failure;
+        }
+
+        return waitForPhase("the boot to complete", emulatorConfiguration.getBootCompletedTimeoutSeconds(),
+                timeoutSeconds -> runWaitProcess(timeoutSeconds,
+                        emulatorConfiguration.getAdb().getAbsolutePath(), "-s", serial, "shell",
+                        "while $(exit $(getprop sys.boot_completed)) ; do sleep 1; done;"));
+    }
+
+    /**
+     * Breaks the boot down into its phases, appending the breakdown to the report of the boots during this build.
+     */
+    private void profileBoot(final Duration bootDuration) {
+        final String serial = emulatorConfiguration.getEmulatorSerial();
+        final List<String> output = new ArrayList<>();
+        try {
+            adbProxy.stream(output::add, "-s", serial, "shell", BootProfile.COLLECT_COMMAND);
+        } catch (final GradleException e) {
+            logger.warn("Unable to profile the boot of {}", serial, e);
+            bootTimings.recordBoot(bootDuration.toMillis(), false);
+            return;
+        }
+        final BootProfile profile = BootProfile.parse(bootDuration.toMillis(), output);
+        bootTimings.recordBoot(profile.getTotalMillis(), profile.isFromSnapshot());
+        if (profile.isFromSnapshot()) {
+            logger.info("Emulator restored from a snapshot in {} ms", profile.getTotalMillis());
+        } else {
+            logger.lifecycle("Emulator booted in {} ms: {}", profile.getTotalMillis(), profile.summarize());
+        }
+
+        final List<String> lines = new ArrayList<>();
+        lines.add("AVD: " + emulatorConfiguration.getEmulatorName());
+        lines.add("System image: " + emulatorConfiguration.getSystemImagePackageName());
+        lines.add("Command: " + String.join(" ", emulatorLauncher.getLastLaunchCommand()));
+        lines.addAll(profile.formatReport());
+        lines.add("");
+        final File reportFile = emulatorConfiguration.getBootProfileReportFile();
+        try {
+            Files.createDirectories(reportFile.getParentFile().toPath());
+            // The first boot of the build replaces the previous build's report
+            if (bootProfileReportStarted.getAndSet(true)) {
+                Files.write(reportFile.toPath(), lines, StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } else {
+                Files.write(reportFile.toPath(), lines, StandardCharsets.UTF_8);
+            }
+        } catch (final IOException e) {
+            logger.warn("Unable to write the boot profile to {}", reportFile, e);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Phase {
+        /**
+         * @param timeoutSeconds The deadline for the phase or zero or less to wait indefinitely.
+         * @return {@code true} if the phase completed or {@code false} if the deadline passed or the wait was aborted.
+         */
+        boolean await(long timeoutSeconds) throws IOException, InterruptedException;
+    }
+
+    private String waitForPhase(final String description, final long timeoutSeconds, final Phase phase) {
+        logger.info("Waiting for {}", description);
+        final boolean completed;
+        try {
+            completed = phase.await(timeoutSeconds);
+        } catch (IOException | InterruptedException e) {
+            throw new RuntimeException("Unable to wait for emulator", e);
+        }
+
+        final EmulatorLauncher.BootFailure bootFailure = emulatorLauncher.getBootFailure();
+        if (bootFailure != null) {
+            return bootFailure.reason;
+        }
+        if (!completed) {
+            return String.format("Gave up waiting for %s (timeout of %d seconds)", description, timeoutSeconds);
+        }
+        return null;
+    }
+
+    private boolean waitForDeviceListed(final long timeoutSeconds) throws InterruptedException {
+        final String serial = emulatorConfiguration.getEmulatorSerial();
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        while (emulatorLauncher.getBootFailure() == null) {
+            // Also runs on the health monitor's thread while booting a replacement, where the project can't be used
+            final List<String> devices = new ArrayList<>();
+            adbProxy.stream(devices::add, "devices");
+            final boolean listed = devices.stream()
+                    .anyMatch(line -> line.startsWith(serial) && line.length() > serial.length() &&
+                            Character.isWhitespace(line.charAt(serial.length())));
+            if (listed) {
+                return true;
+            }
+            if (timeoutSeconds > 0 && System.nanoTime() > deadline) {
+                return false;
+            }
+            Thread.sleep(POLL_INTERVAL_MS);
+        }
+        return false;
+    }
+
+    private boolean runWaitProcess(final long timeoutSeconds, final String... command)
+            throws IOException, InterruptedException {
+        final ProcessBuilder pb = new ProcessBuilder(command);
+        pb.environment().putAll(emulatorConfiguration.getEnvironmentVariableMap());
+        final Process p = pb.start();
+        waitForDeviceProcess.set(p);
+        try {
+            // The launcher may have detected a failure before the process was registered
+            if (emulatorLauncher.getBootFailure() != null) {
+                return false;
+            }
+            if (timeoutSeconds > 0) {
+                if (!p.waitFor(timeoutSeconds, TimeUnit.SECONDS)) {
+                    return false;
+                }
+            } else {
+                p.waitFor();
+            }
+            return p.exitValue() == 0;
+        } finally {
+            waitForDeviceProcess.set(null);
+            p.destroyForcibly();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.quittle.androidemulator.task;
+
+import com.quittle.androidemulator.AdbProxy;
+import com.quittle.androidemulator.BootRecovery;
+import com.quittle.androidemulator.DeviceSetupScript;
+import com.quittle.androidemulator.EmulatorConfiguration;
+import com.quittle.androidemulator.EmulatorHealthCheck;
+import com.quittle.androidemulator.EmulatorSnapshots;
+import org.gradle.api.GradleException;
+import org.gradle.api.logging.Logger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Watches the booted emulator and boots a replacement if it crashes or stays offline, so that one crash only fails the
+ * test task running at the time rather than every test task after it.
+ * <p>
+ * The replacement boots from the clean snapshot if one was saved, otherwise it cold boots and the device setup is run
+ * again. Test tasks wait for any replacement in progress before starting.
+ */
+public class EmulatorHealthMonitor {
+    private static final long POLL_INTERVAL_SEC = 5;
+    // ADB briefly reports the emulator as offline while a snapshot is loaded so only a sustained outage counts
+    private static final int MAX_OFFLINE_POLLS = 6;
+    private static final long STOP_TIMEOUT_SEC = 30;
+    private static final String ONLINE_STATE = "device";
+
+    private final EmulatorConfiguration emulatorConfiguration;
+    private final AdbProxy adbProxy;
+    private final EmulatorLauncher emulatorLauncher;
+    private final EmulatorBootWaiter emulatorBootWaiter;
+    private final EmulatorSnapshots emulatorSnapshots;
+    private final Logger logger;
+    private final AtomicReference<ScheduledExecutorService> executor = new AtomicReference<>();
+    private final EmulatorHealthCheck healthCheck = new EmulatorHealthCheck(MAX_OFFLINE_POLLS, POLL_INTERVAL_SEC);
+    private final AtomicInteger replacements = new AtomicInteger(0);
+    private final Object replacementLock = new Object();
+
+    public EmulatorHealthMonitor(
+            final EmulatorConfiguration emulatorConfiguration,
+            final AdbProxy adbProxy,
+            final EmulatorLauncher emulatorLauncher,
+            final EmulatorBootWaiter emulatorBootWaiter,
+            final EmulatorSnapshots emulatorSnapshots,
+            final Logger logger) {
+        this.emulatorConfiguration = emulatorConfiguration;
+        this.adbProxy = adbProxy;
+        this.emulatorLauncher = emulatorLauncher;
+        this.emulatorBootWaiter = emulatorBootWaiter;
+        this.emulatorSnapshots = emulatorSnapshots;
+        this.logger = logger;
+    }
+
+    /**
+     * Starts monitoring the emulator in the background. The emulator must have finished booting.
+     */
+    public void start() {
+        final ScheduledExecutorService newExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "android-emulator-health-monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (!executor.compareAndSet(null, newExecutor)) {
+            newExecutor.shutdown();
+            return;
+        }
+        newExecutor.scheduleWithFixedDelay(this::poll, POLL_INTERVAL_SEC, POLL_INTERVAL_SEC, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops monitoring the emulator, abandoning any replacement in progress. This must be called before the emulator
+     * is deliberately stopped so it isn't mistaken for a crash.
+     */
+    public void stop() {
+        final ScheduledExecutorService currentExecutor = executor.getAndSet(null);
+        if (currentExecutor == null) {
+            return;
+        }
+        currentExecutor.shutdownNow();
+        try {
+            if (!currentExecutor.awaitTermination(STOP_TIMEOUT_SEC, TimeUnit.SECONDS)) {
+                logger.warn("Emulator health monitor did not stop within {} seconds", STOP_TIMEOUT_SEC);
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Blocks until the emulator is healthy, waiting for any replacement in progress or booting one if the emulator has
+     * died since the last check. Does nothing if the emulator isn't being monitored.
+     *
+     * @throws GradleException if a replacement emulator fails to boot.
+     */
+    public void awaitHealthy() throws GradleException {
+        synchronized (replacementLock) {
+            if (executor.get() != null && !(emulatorLauncher.isRunning() && isOnline())) {
+                replace("is no longer running");
+            }
+        }
+    }
+
+    /**
+     * @return The number of replacement emulators booted during this build.
+     */
+    public int getReplacementCount() {
+        return replacements.get();
+    }
+
+    private void poll() {
+        try {
+            synchronized (replacementLock) {
+                final Optional<String> reason = healthCheck.poll(emulatorLauncher.isRunning(), this::isOnline);
+                if (reason.isPresent()) {
+                    replace(reason.get());
+                }
+            }
+        } catch (final RuntimeException e) {
+            // Exceptions would cancel all future polls
+            logger.error("Unable to replace the emulator", e);
+        }
+    }
+
+    /**
+     * Runs on the monitor's thread, so it uses {@link AdbProxy#stream}, which unlike {@link AdbProxy#execute} doesn't
+     * go through the project.
+     */
+    private boolean isOnline() {
+        try {
+            final List<String> state = new ArrayList<>();
+            adbProxy.stream(state::add, "-s", emulatorConfiguration.getEmulatorSerial(), "get-state");
+            return !state.isEmpty() && ONLINE_STATE.equals(state.get(0).trim());
+        } catch (final GradleException e) {
+            // ADB exits abnormally if the device is offline or missing
+            return false;
+        }
+    }
+
+    private void replace(final String reason) {
+        logger.warn("Emulator {} {}. Booting a replacement.", emulatorConfiguration.getEmulatorSerial(), reason);
+        healthCheck.reset();
+
+        final boolean fromSnapshot = emulatorConfiguration.getSnapshotIsolation() &&
+                emulatorSnapshots.isSaved(EmulatorSnapshots.CLEAN_SNAPSHOT_NAME);
+        if (fromSnapshot) {
+            // Don't save over the clean snapshot when the replacement exits
+            emulatorLauncher.relaunch(BootRecovery.NONE,
+                    Arrays.asList("-snapshot", EmulatorSnapshots.CLEAN_SNAPSHOT_NAME, "-no-snapshot-save"));
+        } else {
+            // The crash may have left the quickboot snapshot unusable
+            emulatorLauncher.relaunch(BootRecovery.COLD_BOOT, Collections.emptyList());
+        }
+        emulatorBootWaiter.awaitBoot();
+
+        final DeviceSetupScript deviceSetupScript = emulatorConfiguration.getDeviceSetupScript();
+        if (fromSnapshot) {
+            emulatorSnapshots.markClean();
+        } else if (!deviceSetupScript.isEmpty()) {
+            adbProxy.stream(line -> { }, "-s", emulatorConfiguration.getEmulatorSerial(), "shell",
+                    deviceSetupScript.build());
+        }
+
+        replacements.incrementAndGet();
+        logger.lifecycle("Replacement emulator {} booted", emulatorConfiguration.getEmulatorSerial());
+    }
+}
@@ -0,0 +1,324 @@
+package com.quittle.androidemulator.task;
+
+import com.quittle.androidemulator.BootRecovery;
+import com.quittle.androidemulator.EmulatorConfiguration;
+import com.quittle.androidemulator.EmulatorIsolation;
+import com.quittle.androidemulator.FatalEmulatorOutput;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.gradle.api.Project;
+import org.gradle.api.logging.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Starts the emulator process and watches it while it boots. Fatal output from the emulator or the process exiting
+ * abnormally is recorded as the boot failure and aborts any wait for the device in progress so the failure can be acted
+ * upon immediately rather than waiting for a timeout.
+ */
+public class EmulatorLauncher {
+    /**
+     * Lets several emulators run from the same AVD at once, each with its own throwaway changes.
+     */
+    public static final String READ_ONLY_ARGUMENT = "-read-only";
+    private static final long OUTPUT_DRAIN_TIMEOUT_MS = 5000;
+
+    private final Project project;
+    private final EmulatorConfiguration emulatorConfiguration;
+    private final AtomicReference<Process> emulatorProcess;
+    private final AtomicReference<Process> waitForDeviceProcess;
+    private final AtomicReference<BootFailure> bootFailure = new AtomicReference<>();
+    private final AtomicBoolean shutdownHookAdded = new AtomicBoolean(false);
+    private final AtomicLong launchNanos = new AtomicLong(0);
+    private final AtomicReference<List<String>> launchCommand = new AtomicReference<>(Collections.emptyList());
+    private final AtomicReference<List<String>> lastBootArguments = new AtomicReference<>(Collections.emptyList());
+    private final List<String> launchArguments = new ArrayList<>();
+    private final AtomicReference<EmulatorIsolation> isolation = new AtomicReference<>();
+
+    /**
+     * Describes why the emulator will not finish booting.
+     */
+    public static class BootFailure {
+        public final String reason;
+        public final boolean recoverable;
+
+        BootFailure(final String reason, final boolean recoverable) {
+            this.reason = reason;
+            this.recoverable = recoverable;
+        }
+    }
+
+    public EmulatorLauncher(
+            final Project project,
+            final EmulatorConfiguration emulatorConfiguration,
+            final AtomicReference<Process> emulatorProcess,
+            final AtomicReference<Process> waitForDeviceProcess) {
+        this.project = project;
+        this.emulatorConfiguration = emulatorConfiguration;
+        this.emulatorProcess = emulatorProcess;
+        this.waitForDeviceProcess = waitForDeviceProcess;
+    }
+
+    /**
+     * Starts the emulator on the port already set in the {@link EmulatorConfiguration}.
+     *
+     * @param recovery The recovery to apply to this boot.
+     */
+    public void launch(final BootRecovery recovery) {
+        launch(recovery, Collections.emptyList());
+    }
+
+    /**
+     * Starts the emulator on the port already set in the {@link EmulatorConfiguration}.
+     *
+     * @param recovery      The recovery to apply to this boot.
+     * @param bootArguments Arguments to pass to the emulator for this boot only.
+     */
+    public void launch(final BootRecovery recovery, final List<String> bootArguments) {
+        final Logger logger = project.getLogger();
+        bootFailure.set(null);
+        lastBootArguments.set(Collections.unmodifiableList(new ArrayList<>(bootArguments)));
+
+        // The locks of a shared AVD are held by the other instances still running from it
+        if (recovery.clearLocks && !emulatorConfiguration.getSharedAvd()) {
+            clearStaleLocks(logger);
+        }
+
+        final List<String> arguments = new ArrayList<>();
+        // Adds the port the emulator should start on. This is specified to enable targeting via ADB commands.
+        arguments.add("-port");
+        arguments.add(String.valueOf(emulatorConfiguration.getEmulatorPort()));
+        arguments.addAll(recovery.getEmulatorArguments());
+        arguments.addAll(bootArguments);
+        final List<String> command = buildCommand(arguments);
+
+        // The isolation wraps the command in processes that replace themselves with the emulator, so the process started
+        // is still the emulator's
+        final EmulatorIsolation emulatorIsolation = new EmulatorIsolation(emulatorConfiguration, logger);
+        isolation.set(emulatorIsolation);
+        final List<String> isolatedCommand = emulatorIsolation.wrap(command);
+        final ProcessBuilder pb = new ProcessBuilder(isolatedCommand.toArray(new String[0]));
+        pb.environment().putAll(emulatorConfiguration.getEnvironmentVariableMap());
+        // Only the emulator runs from the RAM disk. The SDK tools keep managing the AVD on disk.
+        pb.environment().put("ANDROID_AVD_HOME", emulatorConfiguration.getRuntimeAvdHome().getAbsolutePath());
+
+        logger.debug("Starting emulator with command {} {}", pb.environment(), pb.command());
+        try {
+            launchCommand.set(Collections.unmodifiableList(command));
+            launchNanos.set(System.nanoTime());
+            final Process directProcess = pb.start();
+            emulatorProcess.set(directProcess);
+            final Thread stdoutWatcher =
+                    watchOutput(directProcess, directProcess.getInputStream(), "STDOUT", System.out);
+            final Thread stderrWatcher =
+                    watchOutput(directProcess, directProcess.getErrorStream(), "STDERR", System.err);
+            watchExit(directProcess, emulatorIsolation, stdoutWatcher, stderrWatcher);
+            if (!shutdownHookAdded.getAndSet(true)) {
+                Runtime.getRuntime().addShutdownHook(new Thread(() ->
+                        emulatorProcess.getAndUpdate(new ProcessDestroyer(project))));
+            }
+        } catch (final IOException e) {
+            emulatorIsolation.release();
+            throw new RuntimeException("Emulator failed to start successfully", e);
+        }
+    }
+
+    /**
+     * The command for the {@link com.quittle.androidemulator.EmulatorBroker} to launch a pooled emulator with, which the
+     * broker adds the port to. Pooled emulators run from the broker's own copy of the AVD, so they aren't read-only
+     * even if the build's instances are. They don't save a snapshot on exit as the broker resets them from its own.
+     *
+     * @return The command launching the emulator, without a port.
+     */
+    public List<String> getBrokerCommand() {
+        final List<String> command = buildCommand(Collections.singletonList("-no-snapshot-save"));
+        command.removeIf(READ_ONLY_ARGUMENT::equals);
+        return command;
+    }
+
+    private List<String> buildCommand(final List<String> arguments) {
+        final List<String> command = new ArrayList<>();
+        command.add(emulatorConfiguration.getEmulator().getAbsolutePath());
+        command.add("@" + emulatorConfiguration.getEmulatorName());
+
+        // Allows the plugin to monitor the logs from the emulator and start the emulator synchronously. Without this,
+        // the emulator would be detached from the process being build and be much more difficult to shut down.
+        command.add("-shell");
+
+        command.addAll(arguments);
+        command.addAll(launchArguments);
+
+        // User-specified arguments
+        command.addAll(emulatorConfiguration.getAdditionalEmulatorArguments());
+        return command;
+    }
+
+    /**
+     * Adds arguments for the plugin to pass to the emulator every time it is launched. They precede the user-specified
+     * arguments so users can override them.
+     *
+     * @param arguments The arguments to add.
+     */
+    public void addLaunchArguments(final Collection<String> arguments) {
+        launchArguments.addAll(arguments);
+    }
+
+    /**
+     * Stops the current emulator process, if any, and starts it again with the boot arguments it was last launched with,
+     * retrying the same boot.
+     *
+     * @param recovery The recovery to apply to the new boot.
+     */
+    public void relaunch(final BootRecovery recovery) {
+        relaunch(recovery, lastBootArguments.get());
+    }
+
+    /**
+     * Stops the current emulator process, if any, and starts it again.
+     *
+     * @param recovery      The recovery to apply to the new boot.
+     * @param bootArguments Arguments to pass to the emulator for the new boot only.
+     */
+    public void relaunch(final BootRecovery recovery, final List<String> bootArguments) {
+        // Clear the reference first so the old process exiting isn't reported as a failure of the new boot
+        new ProcessDestroyer(project).apply(emulatorProcess.getAndSet(null));
+        // The replacement may be given the same cores
+        final EmulatorIsolation previousIsolation = isolation.get();
+        if (previousIsolation != null) {
+            previousIsolation.release();
+        }
+        launch(recovery, bootArguments);
+    }
+
+    /**
+     * @return The {@link System#nanoTime()} at which the emulator was last launched.
+     */
+    public long getLastLaunchNanos() {
+        return launchNanos.get();
+    }
+
+    /**
+     * @return The command the emulator was last launched with.
+     */
+    public List<String> getLastLaunchCommand() {
+        return launchCommand.get();
+    }
+
+    /**
+     * @return Why the current boot will not complete or {@code null} if no failure has been detected.
+     */
+    public BootFailure getBootFailure() {
+        return bootFailure.get();
+    }
+
+    /**
+     * @return {@code true} if the emulator process is running.
+     */
+    public boolean isRunning() {
+        final Process process = emulatorProcess.get();
+        return process != null && process.isAlive();
+    }
+
+    private void clearStaleLocks(final Logger logger) {
+        final File[] locks = emulatorConfiguration.getRuntimeAvdDirectory()
+                .listFiles((dir, name) -> name.endsWith(".lock"));
+        if (locks == null) {
+            return;
+        }
+        for (final File lock : locks) {
+            logger.info("Removing stale emulator lock {}", lock);
+            FileUtils.deleteQuietly(lock);
+        }
+    }
+
+    private void reportFailure(final Process process, final BootFailure failure) {
+        // Ignore processes that have been replaced
+        if (!process.equals(emulatorProcess.get())) {
+            return;
+        }
+        if (bootFailure.compareAndSet(null, failure)) {
+            final Process p = waitForDeviceProcess.get();
+            if (p != null) {
+                p.destroyForcibly();
+            }
+        }
+    }
+
+    /**
+     * Scans the emulator output for fatal errors via a new thread, passing it on as the emulator would have written it
+     * or logging it if configured to.
+     *
+     * @param process The emulator process
+     * @param stream  The output stream of the process to watch
+     * @param name    The name of the stream to prefix log lines with
+     * @param forward Where the emulator would have written the output if it weren't being scanned
+     * @return The started thread watching the output
+     */
+    private Thread watchOutput(
+            final Process process, final InputStream stream, final String name, final PrintStream forward) {
+        final Logger logger = project.getLogger();
+        final boolean logEmulatorOutput = emulatorConfiguration.getLogEmulatorOutput();
+        final Thread thread = new Thread(() -> {
+            try (final InputStream s = stream) {
+                IOUtils.lineIterator(s, StandardCharsets.UTF_8).forEachRemaining(line -> {
+                    if (logEmulatorOutput) {
+                        logger.info("[Android Emulator - {}] {}", name, line);
+                    } else {
+                        forward.println(line);
+                    }
+
+                    if (line.startsWith(EmulatorIsolation.CGROUP_MOVE_FAILED_OUTPUT)) {
+                        logger.warn("{}. The emulator is running without its cgroup limits.", line);
+                    }
+
+                    final FatalEmulatorOutput fatalOutput = FatalEmulatorOutput.match(line);
+                    if (fatalOutput != null && bootFailure.get() == null) {
+                        logger.error("Emulator reported a fatal error: " + line);
+                        reportFailure(process, new BootFailure(line, fatalOutput.recoverable));
+                    }
+                });
+            } catch (IOException | IllegalStateException e) {
+                logger.error("Error reading Android emulator " + name, e);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private void watchExit(final Process process, final EmulatorIsolation emulatorIsolation,
+            final Thread... outputWatchers) {
+        final Logger logger = project.getLogger();
+        new Thread(() -> {
+            final int returnCode;
+            try {
+                returnCode = process.waitFor();
+                emulatorIsolation.release();
+                // Give the output a chance to be scanned so a more specific fatal error is reported instead. Child
+                // processes may hold the output open so this can't wait indefinitely.
+                for (final Thread outputWatcher : outputWatchers) {
+                    outputWatcher.join(OUTPUT_DRAIN_TIMEOUT_MS);
+                }
+            } catch (InterruptedException e) {
+                logger.warn("Interrupted while watching emulator process", e);
+                // Do nothing
+                return;
+            }
+
+            if (returnCode != 0) {
+                logger.error("Emulator exited abnormally with return code " + returnCode);
+            }
+            reportFailure(process, new BootFailure("Emulator exited with return code " + returnCode, true));
+        }).start();
+    }
+}
@@ -0,0 +1,91 @@
+package com.quittle.androidemulator.task;
+
+import com.quittle.androidemulator.AdbProxy;
+import com.quittle.androidemulator.BootRecovery;
+import com.quittle.androidemulator.BootTimings;
+import com.quittle.androidemulator.EmulatorConfiguration;
+import com.quittle.androidemulator.EmulatorConsole;
+import com.quittle.androidemulator.EmulatorMetrics;
+import org.gradle.api.Project;
+import org.gradle.api.logging.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Boots a newly created, shared AVD once so the emulator saves its quickboot snapshot on exit. The instances sharing
+ * the AVD launch it read-only, which can restore the snapshot but never save one of their own, so without it each of
+ * them would cold boot every time.
+ */
+class GoldenSnapshot {
+    private final Project project;
+    private final EmulatorConfiguration emulatorConfiguration;
+    private final AdbProxy adbProxy;
+    private final Logger logger;
+
+    GoldenSnapshot(final Project project, final EmulatorConfiguration emulatorConfiguration, final AdbProxy adbProxy) {
+        this.project = project;
+        this.emulatorConfiguration = emulatorConfiguration;
+        this.adbProxy = adbProxy;
+        this.logger = project.getLogger();
+    }
+
+    /**
+     * @return The snapshot the emulator restores when launched, which may not exist.
+     */
+    File getSnapshotDirectory() {
+        return new File(emulatorConfiguration.getAvdDirectory(),
+                "snapshots" + File.separator + "default_boot");
+    }
+
+    /**
+     * Boots the AVD from scratch and shuts it down, saving the snapshot.
+     */
+    void create() {
+        logger.lifecycle("Booting {} to save a snapshot for its instances to restore",
+                emulatorConfiguration.getEmulatorName());
+        final AtomicReference<Process> emulatorProcess = new AtomicReference<>();
+        final AtomicReference<Process> waitForDeviceProcess = new AtomicReference<>();
+        final EmulatorLauncher emulatorLauncher =
+                new EmulatorLauncher(project, emulatorConfiguration, emulatorProcess, waitForDeviceProcess);
+        // Kept out of the build's metrics and boot times, which are about the instances
+        final EmulatorBootWaiter emulatorBootWaiter = new EmulatorBootWaiter(emulatorConfiguration, adbProxy,
+                emulatorLauncher, waitForDeviceProcess,
+                new EmulatorMetrics().forEmulator(emulatorConfiguration.getInstanceName()), new BootTimings(), logger);
+
+        emulatorConfiguration.setEmulatorPort(
+                StartAndroidEmulatorTask.reserveEmulatorPort(emulatorConfiguration, adbProxy).getPort());
+        try {
+            emulatorLauncher.launch(BootRecovery.NONE, Collections.singletonList("-no-snapshot-load"));
+            emulatorBootWaiter.awaitBoot();
+            final Process process = emulatorProcess.get();
+            try (EmulatorConsole console = new EmulatorConsole(
+                    emulatorConfiguration.getEmulatorPort(), emulatorConfiguration.getConsoleAuthTokenFile())) {
+                console.kill();
+            }
+            if (process != null &&
+                    !process.waitFor(StopAndroidEmulatorTask.CONSOLE_KILL_TIMEOUT_SEC, TimeUnit.SECONDS)) {
+                logger.warn("Emulator did not exit within {} seconds of being killed via its console",
+                        StopAndroidEmulatorTask.CONSOLE_KILL_TIMEOUT_SEC);
+            }
+        } catch (final IOException e) {
+            logger.warn("Unable to stop the emulator via its console. Signalling it instead.", e);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // Signalling the emulator also lets it save the snapshot, if it hasn't already exited
+            emulatorProcess.getAndUpdate(new ProcessDestroyer(project));
+            StopAndroidEmulatorTask.releaseEmulatorPort(emulatorConfiguration, logger);
+        }
+
+        if (getSnapshotDirectory().isDirectory()) {
+            logger.info("Saved snapshot {}", getSnapshotDirectory());
+        } else {
+            logger.warn("The emulator did not save a snapshot of {}, so its instances will cold boot. Make sure the " +
+                    "additional emulator arguments don't disable saving snapshots.", emulatorConfiguration.getEmulatorName());
+        }
+    }
+}
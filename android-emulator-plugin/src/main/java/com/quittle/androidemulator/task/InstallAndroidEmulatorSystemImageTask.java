@@ -3,18 +3,33 @@ package com.quittle.androidemulator.task;
 import com.quittle.androidemulator.EmulatorConfiguration;
 
 import javax.inject.Inject;
-import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 
 public class InstallAndroidEmulatorSystemImageTask extends AndroidEmulatorBaseExecTask<InstallAndroidEmulatorSystemImageTask> {
+    /**
+     * @param emulatorConfigurations The configurations of all the emulators of the build. Emulators sharing a system
+     *                               image only need it installed once and the rest are installed by a single
+     *                               {@code sdkmanager} invocation.
+     */
     @Inject
-    public InstallAndroidEmulatorSystemImageTask(final EmulatorConfiguration emulatorConfiguration) {
-        super(InstallAndroidEmulatorSystemImageTask.class, emulatorConfiguration);
+    public InstallAndroidEmulatorSystemImageTask(final List<EmulatorConfiguration> emulatorConfigurations) {
+        super(InstallAndroidEmulatorSystemImageTask.class, emulatorConfigurations.get(0));
 
-        this.setExecutable(emulatorConfiguration.getCmdLineToolsSdkManager());
-        this.args(Arrays.asList(buildSdkRootArgument(), emulatorConfiguration.getSystemImagePackageName()));
-        this.args(emulatorConfiguration.getAdditionalSdkManagerArguments());
+        final EmulatorConfiguration primaryConfiguration = emulatorConfigurations.get(0);
+        final Set<String> packageNames = new LinkedHashSet<>();
+        for (final EmulatorConfiguration emulatorConfiguration : emulatorConfigurations) {
+            if (packageNames.add(emulatorConfiguration.getSystemImagePackageName())) {
+                this.getOutputs().dir(emulatorConfiguration.sdkFile("system-images", emulatorConfiguration.getAndroidVersion(), emulatorConfiguration.getFlavor(), emulatorConfiguration.getAbi()));
+                this.getOutputs().file(emulatorConfiguration.sdkFile("system-images", emulatorConfiguration.getAndroidVersion(), emulatorConfiguration.getFlavor(), emulatorConfiguration.getAbi(), "system.img"));
+            }
+        }
+
+        this.setExecutable(primaryConfiguration.getCmdLineToolsSdkManager());
+        this.args(buildSdkRootArgument());
+        this.args(packageNames);
+        this.args(primaryConfiguration.getAdditionalSdkManagerArguments());
         this.setStandardInput(buildStandardInLines("y"));
-        this.getOutputs().dir(emulatorConfiguration.sdkFile("system-images", emulatorConfiguration.getAndroidVersion(), emulatorConfiguration.getFlavor(), emulatorConfiguration.getAbi()));
-        this.getOutputs().file(emulatorConfiguration.sdkFile("system-images", emulatorConfiguration.getAndroidVersion(), emulatorConfiguration.getFlavor(), emulatorConfiguration.getAbi(), "system.img"));
     }
 }
@@ -0,0 +1,93 @@
+package com.quittle.androidemulator.task;
+
+import com.quittle.androidemulator.AdbProxy;
+import com.quittle.androidemulator.EmulatorConfiguration;
+import com.quittle.androidemulator.EmulatorMetrics;
+import com.quittle.androidemulator.EmulatorSnapshots;
+import org.gradle.api.GradleException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * An emulator started by the plugin, along with what's needed to use it once it has booted.
+ */
+public class ManagedEmulator {
+    private final EmulatorConfiguration emulatorConfiguration;
+    private final AdbProxy adbProxy;
+    private final EmulatorSnapshots emulatorSnapshots;
+    private final EmulatorHealthMonitor emulatorHealthMonitor;
+    private final EmulatorMetrics.Emulator metrics;
+
+    public ManagedEmulator(
+            final EmulatorConfiguration emulatorConfiguration,
+            final AdbProxy adbProxy,
+            final EmulatorSnapshots emulatorSnapshots,
+            final EmulatorHealthMonitor emulatorHealthMonitor,
+            final EmulatorMetrics.Emulator metrics) {
+        this.emulatorConfiguration = emulatorConfiguration;
+        this.adbProxy = adbProxy;
+        this.emulatorSnapshots = emulatorSnapshots;
+        this.emulatorHealthMonitor = emulatorHealthMonitor;
+        this.metrics = metrics;
+    }
+
+    public EmulatorConfiguration getConfiguration() {
+        return emulatorConfiguration;
+    }
+
+    public AdbProxy getAdbProxy() {
+        return adbProxy;
+    }
+
+    public EmulatorSnapshots getSnapshots() {
+        return emulatorSnapshots;
+    }
+
+    public EmulatorHealthMonitor getHealthMonitor() {
+        return emulatorHealthMonitor;
+    }
+
+    public EmulatorMetrics.Emulator getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Runs the action against all the emulators at once, waiting for all of them to finish.
+     *
+     * @param emulators The emulators to run the action against.
+     * @param action    The action, which is run on a separate thread for each emulator.
+     * @return The results of the action, in the same order as the emulators.
+     * @throws GradleException if the action fails for any emulator.
+     */
+    public static <T> List<T> onEach(final List<ManagedEmulator> emulators, final Function<ManagedEmulator, T> action)
+            throws GradleException {
+        final ExecutorService executor = Executors.newFixedThreadPool(emulators.size());
+        try {
+            final List<Future<T>> futures = new ArrayList<>();
+            for (final ManagedEmulator emulator : emulators) {
+                futures.add(executor.submit(() -> action.apply(emulator)));
+            }
+            final List<T> results = new ArrayList<>();
+            for (final Future<T> future : futures) {
+                results.add(future.get());
+            }
+            return results;
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new GradleException("Failed on an emulator", e.getCause());
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GradleException("Interrupted while waiting for the emulators", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
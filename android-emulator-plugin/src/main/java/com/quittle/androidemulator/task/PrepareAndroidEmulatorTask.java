@@ -0,0 +1,39 @@
+package com.quittle.androidemulator.task;
+
+import com.quittle.androidemulator.AdbProxy;
+import com.quittle.androidemulator.DeviceSetupScript;
+import com.quittle.androidemulator.EmulatorConfiguration;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.tasks.TaskAction;
+
+import javax.inject.Inject;
+
+/**
+ * Prepares a booted emulator for testing, running all the configured setup steps and readiness probes in a single
+ * {@code adb shell} session.
+ */
+public class PrepareAndroidEmulatorTask extends DefaultTask {
+    private final EmulatorConfiguration emulatorConfiguration;
+    private final AdbProxy adbProxy;
+
+    @Inject
+    public PrepareAndroidEmulatorTask(final EmulatorConfiguration emulatorConfiguration, final AdbProxy adbProxy) {
+        this.emulatorConfiguration = emulatorConfiguration;
+        this.adbProxy = adbProxy;
+    }
+
+    /**
+     * Runs the setup script, if any. The task always runs, even without a script, so the boot times recorded once the
+     * emulator is ready are recorded either way.
+     */
+    @TaskAction
+    public void act() {
+        final DeviceSetupScript script = emulatorConfiguration.getDeviceSetupScript();
+        if (script.isEmpty()) {
+            return;
+        }
+        final String serial = emulatorConfiguration.getEmulatorSerial();
+        getLogger().debug("Preparing {} with script: {}", serial, script.build());
+        adbProxy.execute("-s", serial, "shell", script.build());
+    }
+}
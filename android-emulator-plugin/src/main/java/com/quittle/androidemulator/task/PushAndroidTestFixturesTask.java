@@ -0,0 +1,97 @@
+package com.quittle.androidemulator.task;
+
+import com.quittle.androidemulator.AdbSyncClient;
+import com.quittle.androidemulator.AndroidEmulatorExtension;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.tasks.TaskAction;
+
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Copies a directory of test fixtures to the emulators, only sending files that changed since they were last copied.
+ * A file is considered unchanged if the device's copy has the same size and modification time. Files removed from the
+ * directory are left on the device.
+ */
+public class PushAndroidTestFixturesTask extends DefaultTask {
+    private final List<ManagedEmulator> emulators;
+    private final AndroidEmulatorExtension.TestFixturesExtension testFixtures;
+
+    @Inject
+    public PushAndroidTestFixturesTask(
+            final List<ManagedEmulator> emulators, final AndroidEmulatorExtension.TestFixturesExtension testFixtures) {
+        this.emulators = emulators;
+        this.testFixtures = testFixtures;
+    }
+
+    /**
+     * A file to copy and where to copy it to.
+     */
+    private static class Fixture {
+        private final Path localFile;
+        private final String remotePath;
+        private final long size;
+        private final long modifiedSeconds;
+
+        private Fixture(final Path localFile, final String remotePath) throws IOException {
+            this.localFile = localFile;
+            this.remotePath = remotePath;
+            this.size = Files.size(localFile);
+            this.modifiedSeconds = TimeUnit.MILLISECONDS.toSeconds(Files.getLastModifiedTime(localFile).toMillis());
+        }
+    }
+
+    @TaskAction
+    public void act() throws IOException {
+        final File sourceDir = testFixtures.getSourceDir();
+        if (!sourceDir.isDirectory()) {
+            throw new GradleException("Test fixtures directory " + sourceDir + " does not exist");
+        }
+        final List<Fixture> fixtures = findFixtures(sourceDir.toPath());
+
+        ManagedEmulator.onEach(emulators, emulator -> {
+            emulator.getHealthMonitor().awaitHealthy();
+            final String serial = emulator.getConfiguration().getEmulatorSerial();
+            try (AdbSyncClient sync = emulator.getAdbProxy().openSync()) {
+                final List<AdbSyncClient.FileStat> stats =
+                        sync.stat(fixtures.stream().map(fixture -> fixture.remotePath).collect(Collectors.toList()));
+                int sentFiles = 0;
+                long sentBytes = 0;
+                for (int i = 0; i < fixtures.size(); i++) {
+                    final Fixture fixture = fixtures.get(i);
+                    if (!stats.get(i).matches(fixture.size, fixture.modifiedSeconds)) {
+                        sentBytes += sync.send(fixture.localFile, fixture.remotePath, fixture.modifiedSeconds);
+                        sentFiles++;
+                    }
+                }
+                getLogger().lifecycle("Pushed {} of {} test fixtures ({} bytes) to {}",
+                        sentFiles, fixtures.size(), sentBytes, serial);
+            } catch (final IOException e) {
+                throw new GradleException("Unable to push test fixtures to " + serial, e);
+            }
+            return emulator;
+        });
+    }
+
+    private List<Fixture> findFixtures(final Path sourceDir) throws IOException {
+        final String devicePath = testFixtures.getDevicePath().replaceAll("/+$", "");
+        final List<Fixture> fixtures = new ArrayList<>();
+        try (Stream<Path> paths = Files.walk(sourceDir)) {
+            for (final Path path : paths.filter(Files::isRegularFile).sorted().collect(Collectors.toList())) {
+                final List<String> segments = new ArrayList<>();
+                sourceDir.relativize(path).forEach(segment -> segments.add(segment.toString()));
+                fixtures.add(new Fixture(path, devicePath + "/" + String.join("/", segments)));
+            }
+        }
+        return fixtures;
+    }
+}
@@ -0,0 +1,81 @@
+package com.quittle.androidemulator.task;
+
+import com.android.build.gradle.internal.tasks.DeviceProviderInstrumentTestTask;
+import com.quittle.androidemulator.EmulatorConfiguration;
+import com.quittle.androidemulator.TestShardPlan;
+import com.quittle.androidemulator.TestTimingHistory;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.tasks.TaskAction;
+
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Records how long each test class of the connected and instrumentation test tasks took, for balancing test classes across emulators in
+ * later runs. Also reports how well the history before this run would have predicted it.
+ */
+public class RecordAndroidTestTimingsTask extends DefaultTask {
+    private final EmulatorConfiguration emulatorConfiguration;
+    private final int shardCount;
+
+    /**
+     * @param emulatorConfiguration The configuration of the build's first emulator.
+     * @param shardCount            The number of instances of the first emulator, which the test classes are balanced
+     *                              across.
+     */
+    @Inject
+    public RecordAndroidTestTimingsTask(final EmulatorConfiguration emulatorConfiguration, final int shardCount) {
+        this.emulatorConfiguration = emulatorConfiguration;
+        this.shardCount = shardCount;
+    }
+
+    @TaskAction
+    public void act() {
+        final Map<String, Long> runDurations = new HashMap<>();
+        try {
+            for (final DeviceProviderInstrumentTestTask testTask :
+                    getProject().getTasks().withType(DeviceProviderInstrumentTestTask.class)) {
+                if (testTask.getState().getExecuted()) {
+                    final File resultsDir = testTask.getResultsDir().get().getAsFile();
+                    runDurations.putAll(TestTimingHistory.readJUnitResults(resultsDir));
+                }
+            }
+            for (final RunAndroidInstrumentationTestsTask testTask :
+                    getProject().getTasks().withType(RunAndroidInstrumentationTestsTask.class)) {
+                if (testTask.getState().getExecuted()) {
+                    runDurations.putAll(TestTimingHistory.readJUnitResults(testTask.getResultsDir()));
+                }
+            }
+        } catch (final IOException e) {
+            throw new GradleException("Unable to read connected test results", e);
+        }
+        if (runDurations.isEmpty()) {
+            getLogger().info("No connected test results to record");
+            return;
+        }
+
+        final File historyFile = emulatorConfiguration.getTestTimingHistoryFile();
+        final File reportFile = emulatorConfiguration.getTestShardReportFile();
+        try {
+            final TestTimingHistory history = TestTimingHistory.load(historyFile);
+
+            final TestShardPlan plan = TestShardPlan.plan(runDurations.keySet(), shardCount, history);
+            Files.createDirectories(reportFile.getParentFile().toPath());
+            Files.write(reportFile.toPath(), plan.formatReport(runDurations), StandardCharsets.UTF_8);
+            getLogger().info("Predicted test makespan across {} emulators of {} ms, actual {} ms. See {}",
+                    shardCount, plan.getPredictedMakespanMillis(), plan.getActualMakespanMillis(runDurations),
+                    reportFile);
+
+            history.record(runDurations);
+            history.save(historyFile);
+        } catch (final IOException e) {
+            throw new GradleException("Unable to record connected test timings", e);
+        }
+    }
+}
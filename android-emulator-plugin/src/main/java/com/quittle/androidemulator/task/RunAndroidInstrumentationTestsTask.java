@@ -0,0 +1,383 @@
+package com.quittle.androidemulator.task;
+
+import com.android.build.gradle.BaseExtension;
+import com.quittle.androidemulator.AndroidEmulatorExtension;
+import com.quittle.androidemulator.ApkInstaller;
+import com.quittle.androidemulator.EmulatorConfiguration;
+import com.quittle.androidemulator.EmulatorMetrics;
+import com.quittle.androidemulator.EmulatorSnapshots;
+import com.quittle.androidemulator.InstrumentationResultParser;
+import com.quittle.androidemulator.JUnitXmlReport;
+import com.quittle.androidemulator.LogcatCapture;
+import com.quittle.androidemulator.TestShardPlan;
+import com.quittle.androidemulator.TestTimingHistory;
+import com.quittle.androidemulator.UnfinishedTests;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.tasks.TaskAction;
+
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Runs the instrumentation tests directly with {@code am instrument} on each entry of the matrix, splitting the test
+ * classes between the instances of the entry based on how long they took in previous runs. Results are written as
+ * JUnit XML, one file per emulator, as each test completes. If an emulator crashes and is replaced part way through its
+ * share, the tests it didn't finish are run on the replacement.
+ */
+public class RunAndroidInstrumentationTestsTask extends DefaultTask {
+    // The runner the Android Gradle plugin uses when none is configured
+    private static final String DEFAULT_RUNNER = "android.test.InstrumentationTestRunner";
+    private static final String TEST_APK_DIRECTORY = "androidTest";
+    // How many times a shard's unfinished tests are moved to a replacement emulator if its emulator crashes
+    private static final int MAX_REQUEUES = 1;
+
+    private final List<ManagedEmulator> emulators;
+    private final AndroidEmulatorExtension.InstrumentationTestsExtension instrumentationTests;
+
+    @Inject
+    public RunAndroidInstrumentationTestsTask(
+            final List<ManagedEmulator> emulators,
+            final AndroidEmulatorExtension.InstrumentationTestsExtension instrumentationTests) {
+        this.emulators = emulators;
+        this.instrumentationTests = instrumentationTests;
+
+        final String variant = capitalize(instrumentationTests.getVariant());
+        this.dependsOn("assemble" + variant, "assemble" + variant + "AndroidTest");
+    }
+
+    /**
+     * @return The directory the JUnit XML results are written to.
+     */
+    public File getResultsDir() {
+        return new File(getProject().getBuildDir(),
+                "outputs" + File.separator + "androidTest-results" + File.separator + "androidEmulator");
+    }
+
+    @TaskAction
+    public void act() throws IOException {
+        final BaseExtension androidExtension = getProject().getExtensions().getByType(BaseExtension.class);
+        final String instrumentation = getTestPackage(androidExtension) + "/" + getRunner(androidExtension);
+        final List<File> apks = findApks(false);
+        final List<File> testApks = findApks(true);
+        if (testApks.isEmpty()) {
+            throw new GradleException("No test APK found for variant " + instrumentationTests.getVariant());
+        }
+        apks.addAll(testApks);
+        final Map<File, String> apkHashes = ApkInstaller.hash(apks);
+
+        ManagedEmulator.onEach(emulators, emulator -> {
+            install(emulator, apkHashes, instrumentation);
+            return emulator;
+        });
+
+        final Set<String> testClasses = listTestClasses(emulators.get(0), instrumentation);
+        final EmulatorConfiguration primaryConfiguration = emulators.get(0).getConfiguration();
+        final TestTimingHistory history = TestTimingHistory.load(primaryConfiguration.getTestTimingHistoryFile());
+        // Each entry of the matrix runs the whole suite, split only between the instances of the entry
+        final Map<ManagedEmulator, List<String>> shards = new HashMap<>();
+        for (final Map.Entry<String, List<ManagedEmulator>> entry : groupByAvd(emulators).entrySet()) {
+            final List<ManagedEmulator> instances = entry.getValue();
+            final TestShardPlan plan = TestShardPlan.plan(testClasses, instances.size(), history);
+            for (int i = 0; i < instances.size(); i++) {
+                shards.put(instances.get(i), plan.getShard(i));
+            }
+            getLogger().lifecycle("Running {} test classes on {} instances of {}, predicted to take {} seconds",
+                    testClasses.size(), instances.size(), entry.getKey(), plan.getPredictedMakespanMillis() / 1000);
+        }
+
+        final File resultsDir = getResultsDir();
+        final List<JUnitXmlReport> reports = ManagedEmulator.onEach(emulators, emulator ->
+                runShard(emulator, instrumentation, shards.get(emulator), apkHashes, resultsDir));
+
+        int testCount = 0;
+        int failureCount = 0;
+        boolean runFailed = false;
+        for (final JUnitXmlReport report : reports) {
+            if (report != null) {
+                testCount += report.getTestCount();
+                failureCount += report.getFailureCount();
+                runFailed |= report.isRunFailed();
+            }
+        }
+        if (failureCount > 0 || runFailed) {
+            throw new GradleException(String.format("%d of %d tests failed%s. See the results in %s", failureCount,
+                    testCount, runFailed ? " and the instrumentation crashed" : "", resultsDir));
+        }
+        getLogger().lifecycle("{} tests passed", testCount);
+    }
+
+    /**
+     * @param emulators The emulators of the build.
+     * @return The emulators grouped by the AVD they were launched from, which is shared by the instances of an entry.
+     */
+    private static Map<String, List<ManagedEmulator>> groupByAvd(final List<ManagedEmulator> emulators) {
+        final Map<String, List<ManagedEmulator>> groups = new LinkedHashMap<>();
+        for (final ManagedEmulator emulator : emulators) {
+            groups.computeIfAbsent(emulator.getConfiguration().getEmulatorName(), name -> new ArrayList<>())
+                    .add(emulator);
+        }
+        return groups;
+    }
+
+    private String getTestPackage(final BaseExtension androidExtension) {
+        if (instrumentationTests.getTestPackage() != null) {
+            return instrumentationTests.getTestPackage();
+        }
+        if (androidExtension.getDefaultConfig().getTestApplicationId() != null) {
+            return androidExtension.getDefaultConfig().getTestApplicationId();
+        }
+        final String applicationId = androidExtension.getDefaultConfig().getApplicationId() != null
+                ? androidExtension.getDefaultConfig().getApplicationId()
+                : androidExtension.getNamespace();
+        if (applicationId == null) {
+            throw new GradleException("Unable to determine the test package. Set instrumentationTests.testPackage");
+        }
+        return applicationId + ".test";
+    }
+
+    private String getRunner(final BaseExtension androidExtension) {
+        if (instrumentationTests.getRunner() != null) {
+            return instrumentationTests.getRunner();
+        }
+        if (androidExtension.getDefaultConfig().getTestInstrumentationRunner() != null) {
+            return androidExtension.getDefaultConfig().getTestInstrumentationRunner();
+        }
+        return DEFAULT_RUNNER;
+    }
+
+    /**
+     * Finds the APKs built for the variant, e.g. {@code app-free-debug.apk} for the {@code freeDebug} variant.
+     *
+     * @param test Whether to find the test APK rather than the APKs under test.
+     * @return The APKs, which may be empty.
+     */
+    private List<File> findApks(final boolean test) throws IOException {
+        final Path apkRoot = new File(getProject().getBuildDir(), "outputs" + File.separator + "apk").toPath();
+        if (!Files.isDirectory(apkRoot)) {
+            return new ArrayList<>();
+        }
+        final String dashedVariant =
+                instrumentationTests.getVariant().replaceAll("([a-z0-9])([A-Z])", "$1-$2").toLowerCase(Locale.ROOT);
+        final String suffix = "-" + dashedVariant + (test ? "-androidTest.apk" : ".apk");
+        try (Stream<Path> paths = Files.walk(apkRoot)) {
+            return paths
+                    .filter(path -> path.getFileName().toString().endsWith(suffix))
+                    .filter(path -> apkRoot.relativize(path).startsWith(TEST_APK_DIRECTORY) == test)
+                    .sorted()
+                    .map(Path::toFile)
+                    .collect(Collectors.toCollection(ArrayList::new));
+        }
+    }
+
+    private void install(
+            final ManagedEmulator emulator, final Map<File, String> apkHashes, final String instrumentation) {
+        final EmulatorConfiguration emulatorConfiguration = emulator.getConfiguration();
+        emulator.getHealthMonitor().awaitHealthy();
+        if (emulatorConfiguration.getSnapshotIsolation()) {
+            // The tests start from the clean device but the snapshot doesn't include the APKs so they're installed after
+            emulator.getSnapshots().restoreIfDirty(EmulatorSnapshots.CLEAN_SNAPSHOT_NAME);
+            emulator.getSnapshots().markDirty();
+        }
+        // Other tools, like the connected test tasks, uninstall the APKs without updating the record of what's installed
+        final List<String> installedInstrumentation = new ArrayList<>();
+        emulator.getAdbProxy().stream(installedInstrumentation::add,
+                "-s", emulatorConfiguration.getEmulatorSerial(), "shell", "pm", "list", "instrumentation");
+        final boolean force = installedInstrumentation.stream()
+                .noneMatch(line -> line.startsWith("instrumentation:" + instrumentation + " "));
+
+        final List<File> installed = new ApkInstaller(emulatorConfiguration, emulator.getAdbProxy())
+                .install(apkHashes, force);
+        getLogger().info("Installed {} of {} APKs on {}", installed.size(), apkHashes.size(),
+                emulatorConfiguration.getEmulatorSerial());
+    }
+
+    /**
+     * Lists the test classes without running them, using the runner's log only mode.
+     */
+    private Set<String> listTestClasses(final ManagedEmulator emulator, final String instrumentation) {
+        final Set<String> testClasses = new TreeSet<>();
+        final List<String> failures = new ArrayList<>();
+        final InstrumentationResultParser parser = new InstrumentationResultParser(new InstrumentationResultParser.Listener() {
+            @Override
+            public void testStarted(final String className, final String testName) {
+                testClasses.add(className);
+            }
+
+            @Override
+            public void testEnded(
+                    final String className,
+                    final String testName,
+                    final InstrumentationResultParser.TestStatus status,
+                    final String stackTrace,
+                    final long elapsedMillis) {
+                testClasses.add(className);
+            }
+
+            @Override
+            public void runFailed(final String message) {
+                failures.add(message);
+            }
+        });
+        emulator.getAdbProxy().stream(parser::addLine, "-s", emulator.getConfiguration().getEmulatorSerial(),
+                "shell", "am", "instrument", "-r", "-w", "-e", "log", "true", instrumentation);
+        parser.done();
+        if (!failures.isEmpty()) {
+            throw new GradleException("Unable to list the tests of " + instrumentation + ": " + failures.get(0));
+        }
+        return testClasses;
+    }
+
+    private JUnitXmlReport runShard(
+            final ManagedEmulator emulator, final String instrumentation, final List<String> testClasses,
+            final Map<File, String> apkHashes, final File resultsDir) {
+        if (testClasses.isEmpty()) {
+            return null;
+        }
+        final String serial = emulator.getConfiguration().getEmulatorSerial();
+        final File reportFile = new File(resultsDir, "TEST-" + serial + ".xml");
+        try (JUnitXmlReport report = new JUnitXmlReport(reportFile, serial)) {
+            final ProgressLogger progressLogger =
+                    new ProgressLogger(report, emulator.getMetrics(), serial, getLogger());
+            final EmulatorHealthMonitor healthMonitor = emulator.getHealthMonitor();
+            UnfinishedTests tests = UnfinishedTests.after(testClasses, Collections.emptyList());
+            for (int requeues = 0; ; requeues++) {
+                final int replacements = healthMonitor.getReplacementCount();
+                runTests(emulator, instrumentation, tests, progressLogger, report, resultsDir);
+                if (!report.isRunFailed() || requeues >= MAX_REQUEUES) {
+                    break;
+                }
+                // The run also fails when the app under test crashes, which a replacement wouldn't help with
+                healthMonitor.awaitHealthy();
+                if (healthMonitor.getReplacementCount() == replacements) {
+                    break;
+                }
+                tests = UnfinishedTests.after(testClasses, progressLogger.finishedTests);
+                getLogger().lifecycle("[{}] The emulator was replaced during the run. Running the {} unfinished " +
+                        "test classes on the replacement.", serial, tests.getClasses().size());
+                install(emulator, apkHashes, instrumentation);
+            }
+            return report;
+        } catch (final IOException e) {
+            throw new UncheckedIOException("Unable to write test results to " + reportFile, e);
+        }
+    }
+
+    private void runTests(
+            final ManagedEmulator emulator, final String instrumentation, final UnfinishedTests tests,
+            final ProgressLogger progressLogger, final JUnitXmlReport report, final File resultsDir)
+            throws IOException {
+        final String serial = emulator.getConfiguration().getEmulatorSerial();
+        final File logcatFile = new File(getTemporaryDir(), "logcat-" + serial + ".bin");
+        final List<String> arguments = new ArrayList<>(Arrays.asList("-s", serial, "shell", "am", "instrument", "-r",
+                "-w", "-e", "class", String.join(",", tests.getClasses())));
+        if (!tests.getExcludedTests().isEmpty()) {
+            arguments.addAll(Arrays.asList("-e", "notClass", String.join(",", tests.getExcludedTests())));
+        }
+        arguments.add(instrumentation);
+
+        final InstrumentationResultParser parser = new InstrumentationResultParser(progressLogger);
+        final LogcatCapture logcat = LogcatCapture.start(emulator.getAdbProxy(), serial, logcatFile);
+        progressLogger.failedTests.clear();
+        // Only whether the last run crashed matters, as the tests that didn't finish are rerun
+        report.startRun();
+        emulator.getMetrics().busy();
+        try {
+            emulator.getAdbProxy().stream(parser::addLine, arguments.toArray(new String[0]));
+        } catch (final GradleException e) {
+            // ADB exits abnormally if the emulator goes away, which the parser reports as the run failing
+            getLogger().info("[{}] Instrumentation ended abnormally", serial, e);
+        } finally {
+            parser.done();
+            emulator.getMetrics().idle();
+            logcat.close();
+        }
+
+        final List<String> failedTests = new ArrayList<>(progressLogger.failedTests);
+        if (report.isRunFailed()) {
+            failedTests.addAll(logcat.getUnfinishedTests());
+        }
+        final File logcatDir = new File(resultsDir, "logcat" + File.separator + serial);
+        for (final String failedTest : failedTests) {
+            final int separator = failedTest.lastIndexOf('#');
+            logcat.extract(failedTest.substring(0, separator), failedTest.substring(separator + 1),
+                    new File(logcatDir, failedTest + ".txt"));
+        }
+        // Only the failed tests' logs are kept
+        Files.deleteIfExists(logcatFile.toPath());
+    }
+
+    /**
+     * Logs each test as it completes while passing the results on to the report, remembering which tests failed.
+     */
+    private static class ProgressLogger implements InstrumentationResultParser.Listener {
+        private final JUnitXmlReport report;
+        private final EmulatorMetrics.Emulator metrics;
+        private final String serial;
+        private final Logger logger;
+        // The tests that failed in the current run, as <class name>#<test name>
+        private final List<String> failedTests = new ArrayList<>();
+        // The tests that finished in any run, as <class name>#<test name>
+        private final List<String> finishedTests = new ArrayList<>();
+
+        private ProgressLogger(
+                final JUnitXmlReport report,
+                final EmulatorMetrics.Emulator metrics,
+                final String serial,
+                final Logger logger) {
+            this.report = report;
+            this.metrics = metrics;
+            this.serial = serial;
+            this.logger = logger;
+        }
+
+        @Override
+        public void testStarted(final String className, final String testName) {
+            report.testStarted(className, testName);
+        }
+
+        @Override
+        public void testEnded(
+                final String className,
+                final String testName,
+                final InstrumentationResultParser.TestStatus status,
+                final String stackTrace,
+                final long elapsedMillis) {
+            report.testEnded(className, testName, status, stackTrace, elapsedMillis);
+            metrics.recordTest(status);
+            finishedTests.add(className + "#" + testName);
+            if (status == InstrumentationResultParser.TestStatus.FAILED ||
+                    status == InstrumentationResultParser.TestStatus.ERROR) {
+                failedTests.add(className + "#" + testName);
+            }
+            logger.lifecycle("[{}] {} {}#{} ({} ms)", serial, status, className, testName, elapsedMillis);
+        }
+
+        @Override
+        public void runFailed(final String message) {
+            report.runFailed(message);
+            logger.error("[{}] {}", serial, message);
+        }
+    }
+
+    private static String capitalize(final String name) {
+        return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    }
+}
@@ -0,0 +1,29 @@
+package com.quittle.androidemulator.task;
+
+import com.quittle.androidemulator.EmulatorConfiguration;
+import com.quittle.androidemulator.EmulatorSnapshots;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.tasks.TaskAction;
+
+import javax.inject.Inject;
+
+/**
+ * Saves a snapshot of the prepared emulator for tests to be isolated from each other by restoring it.
+ */
+public class SaveAndroidEmulatorSnapshotTask extends DefaultTask {
+    private final EmulatorSnapshots emulatorSnapshots;
+
+    @Inject
+    public SaveAndroidEmulatorSnapshotTask(
+            final EmulatorConfiguration emulatorConfiguration, final EmulatorSnapshots emulatorSnapshots) {
+        this.emulatorSnapshots = emulatorSnapshots;
+
+        this.onlyIf(task -> emulatorConfiguration.getSnapshotIsolation());
+    }
+
+    @TaskAction
+    public void act() {
+        getLogger().info("Saving snapshot {}", EmulatorSnapshots.CLEAN_SNAPSHOT_NAME);
+        emulatorSnapshots.save(EmulatorSnapshots.CLEAN_SNAPSHOT_NAME);
+    }
+}
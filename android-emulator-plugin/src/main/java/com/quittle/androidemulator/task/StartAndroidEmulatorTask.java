@@ -1,23 +1,29 @@
 package com.quittle.androidemulator.task;
 
 import com.quittle.androidemulator.AdbProxy;
+import com.quittle.androidemulator.BootAdmissionController;
+import com.quittle.androidemulator.BootRecovery;
+import com.quittle.androidemulator.EmulatorLease;
 import com.quittle.androidemulator.EmulatorConfiguration;
-import org.apache.commons.io.IOUtils;
+import com.quittle.androidemulator.EmulatorMetrics;
+import com.quittle.androidemulator.EmulatorPortReservation;
+import com.quittle.androidemulator.HardwareAccelerationProbe;
+import com.quittle.androidemulator.PendingShutdown;
+import com.quittle.androidemulator.RamDiskAvd;
+import com.quittle.androidemulator.SoftwareEmulationFallback;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import org.apache.tools.ant.taskdefs.condition.Os;
 import org.gradle.api.DefaultTask;
 import org.gradle.api.GradleException;
-import org.gradle.api.logging.Logger;
 import org.gradle.api.tasks.TaskAction;
 
 import javax.inject.Inject;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicReference;
-import java.util.function.UnaryOperator;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -35,124 +41,152 @@ public class StartAndroidEmulatorTask extends DefaultTask {
      */
     private static final Pattern ADB_OUTPUT_EMULATOR_PATTERN = Pattern.compile("(emulator-(\\d{1,5}))\\s+device");
 
+    /**
+     * The extra property of the task holding how long the boot waited to be admitted, in milliseconds.
+     */
+    public static final String BOOT_QUEUE_WAIT_MILLIS_PROPERTY = "bootQueueWaitMillis";
+
     private final EmulatorConfiguration emulatorConfiguration;
     private final AdbProxy adbProxy;
-    private final AtomicReference<Process> emulatorProcess;
-    private final AtomicReference<Process> waitForDeviceProcess;
+    private final EmulatorLauncher emulatorLauncher;
+    private final BootAdmissionController bootAdmissionController;
+    private final EmulatorLease emulatorLease;
+    private final EmulatorMetrics.Emulator metrics;
 
     @Inject
     public StartAndroidEmulatorTask(
             final EmulatorConfiguration emulatorConfiguration,
             final AdbProxy adbProxy,
-            final AtomicReference<Process> emulatorProcess,
-            final AtomicReference<Process> waitForDeviceProcess) {
+            final EmulatorLauncher emulatorLauncher,
+            final BootAdmissionController bootAdmissionController,
+            final EmulatorLease emulatorLease,
+            final EmulatorMetrics.Emulator metrics) {
         this.emulatorConfiguration = emulatorConfiguration;
         this.adbProxy = adbProxy;
-        this.emulatorProcess = emulatorProcess;
-        this.waitForDeviceProcess = waitForDeviceProcess;
+        this.emulatorLauncher = emulatorLauncher;
+        this.bootAdmissionController = bootAdmissionController;
+        this.emulatorLease = emulatorLease;
+        this.metrics = metrics;
     }
 
     @TaskAction
     public void act() {
-        final boolean logEmulatorOutput = emulatorConfiguration.getLogEmulatorOutput();
+        // A leased emulator has already booted, so there's nothing left to start
+        if (emulatorLease.acquire(emulatorLauncher.getBrokerCommand())) {
+            return;
+        }
+
+        // The emulator can't start while the previous instance of the same AVD is still saving its snapshot
+        PendingShutdown.awaitCompletion(emulatorConfiguration.getPendingShutdownMarker(), getLogger());
+
+        // Wait for admission before choosing a port as other emulators may claim ports while this one is queued
+        metrics.bootQueued();
+        final long queuedNanos = System.nanoTime();
+        try {
+            bootAdmissionController.acquire();
+        } finally {
+            metrics.bootAdmitted(Duration.ofNanos(System.nanoTime() - queuedNanos));
+        }
+        getExtensions().getExtraProperties().set(BOOT_QUEUE_WAIT_MILLIS_PROPERTY,
+                bootAdmissionController.getLastQueueWaitMillis());
 
-        final int proposedEmulatorPort = findAcceptableEmulatorPort(adbProxy);
-        emulatorConfiguration.setEmulatorPort(proposedEmulatorPort);
+        // Held until the emulator has exited, which the stop task, run even if this task fails, waits for
+        emulatorConfiguration.setEmulatorPort(reserveEmulatorPort(emulatorConfiguration, adbProxy).getPort());
 
-        final List<String> command = new ArrayList<>();
-        command.add(emulatorConfiguration.getEmulator().getAbsolutePath());
-        command.add("@" + emulatorConfiguration.getEmulatorName());
+        checkHardwareAcceleration();
 
-        // Allows the plugin to monitor the logs from the emulator and start the emulator synchronously. Without this,
-        // the emulator would be detached from the process being build and be much more difficult to shut down.
-        command.add("-shell");
+        RamDiskAvd.place(emulatorConfiguration, getLogger());
 
-        // Adds the port the emulator should start on. This is specified to enable targeting via ADB commands.
-        command.add("-port");
-        command.add(String.valueOf(proposedEmulatorPort));
+        emulatorLauncher.launch(BootRecovery.NONE);
 
-        // User-specified arguments
-        command.addAll(emulatorConfiguration.getAdditionalEmulatorArguments());
+        // The wait task of a matrix emulator may run after the next emulator has started, which may need the slot
+        final String serial = emulatorConfiguration.getEmulatorSerial();
+        bootAdmissionController.launched(() -> isBootCompleted(serial));
+    }
 
-        final ProcessBuilder pb = new ProcessBuilder(command.toArray(new String[0]));
-        pb.environment().putAll(emulatorConfiguration.getEnvironmentVariableMap());
-        if (!logEmulatorOutput) {
-            pb.inheritIO();
+    /**
+     * @param serial The serial of the emulator.
+     * @return {@code true} if the emulator has finished booting.
+     */
+    private boolean isBootCompleted(final String serial) {
+        final List<String> output = new ArrayList<>();
+        try {
+            // Unlike executing ADB via the project, streaming is safe from the threads of other tasks
+            adbProxy.stream(output::add, "-s", serial, "shell", "getprop", "sys.boot_completed");
+        } catch (final GradleException e) {
+            // Not registered with ADB or online yet
+            return false;
         }
+        return output.stream().anyMatch(line -> line.trim().equals("1"));
+    }
 
-        final Logger logger = getLogger();
-        logger.debug("Starting emulator with command {} {}", pb.environment(), pb.command());
+    /**
+     * Verifies the emulator will be hardware accelerated and applies the configured fallback if not.
+     */
+    private void checkHardwareAcceleration() {
+        final HardwareAccelerationProbe probe = new HardwareAccelerationProbe(
+                emulatorConfiguration.getEmulator(),
+                emulatorConfiguration.getAccelerationProbeCacheFile(),
+                getKvmDevice(),
+                emulatorConfiguration.getEnvironmentVariableMap());
+        final HardwareAccelerationProbe.Result result;
         try {
-            final Process directProcess = pb.start();
-            emulatorProcess.set(directProcess);
-            if (logEmulatorOutput) {
-                logOutput(directProcess, logger);
-            }
-            new Thread(() -> {
-                final int returnCode;
-                try {
-                    returnCode = directProcess.waitFor();
-                } catch (InterruptedException e) {
-                    logger.warn("Interrupted while watching emulator process", e);
-                    // Do nothing
-                    return;
-                }
-
-                if (returnCode != 0) {
-                    logger.error("Emulator exited abnormally with return code " + returnCode);
-                    final Process p = waitForDeviceProcess.get();
-                    if (p != null) {
-                        p.destroyForcibly();
-                    }
-                }
-            }).start();
-            Runtime.getRuntime().addShutdownHook(new Thread(() ->
-                    emulatorProcess.getAndUpdate(new ProcessDestroyer(getProject()))));
+            result = probe.probe();
         } catch (final IOException e) {
-            throw new RuntimeException("Emulator failed to start successfully", e);
+            getLogger().warn("Unable to determine if the emulator will be hardware accelerated", e);
+            return;
+        }
+
+        if (result.accelerated) {
+            getLogger().info("Emulator will be accelerated by {}", result.accelerator);
+            return;
+        }
+
+        final SoftwareEmulationFallback fallback = emulatorConfiguration.getSoftwareEmulationFallback();
+        final String message = "Hardware acceleration is unavailable and the emulator will fall back to much slower " +
+                "software emulation. " + result.description;
+        switch (fallback) {
+            case FAIL:
+                throw new GradleException(message);
+            case LIGHTEN:
+                getLogger().warn("{} Starting the emulator with a lighter configuration.", message);
+                emulatorLauncher.addLaunchArguments(fallback.getEmulatorArguments());
+                break;
+            default:
+                getLogger().warn(message);
+                break;
         }
     }
 
+    @SuppressFBWarnings(value = "DMI_HARDCODED_ABSOLUTE_FILENAME", justification = "The KVM device is always at this path")
+    private static File getKvmDevice() {
+        if (Os.isName("linux")) {
+            return new File("/dev/kvm");
+        }
+        return null;
+    }
+
     /**
-     * Logs emulator output via new threads.
+     * Reserves a port for the emulator, skipping those of emulators ADB knows about, which may have been started without
+     * a reservation.
      *
-     * @param process The process to log the output of
-     * @param logger  The logger to report output with
+     * @param emulatorConfiguration The configuration of the emulator.
+     * @param adbProxy              The ADB of the build.
+     * @return The reservation, to be closed once the emulator has exited.
      */
-    private static void logOutput(final Process process, final Logger logger) {
-        final InputStream stdout = process.getInputStream(); // NOPMD - These can't be closed outside of the thread
-        final InputStream stderr = process.getErrorStream(); // NOPMD - These can't be closed outside of the thread
-        new Thread(() -> {
-            try (final InputStream stream = stdout) {
-                IOUtils.lineIterator(stream, StandardCharsets.UTF_8).forEachRemaining(s -> logger.info("[Android Emulator - STDOUT] " + s));
-            } catch (IOException | IllegalStateException e) {
-                logger.error("Error reading Android emulator stdout", e);
-            }
-        }).start();
-        new Thread(() -> {
-            try (final InputStream stream = stderr) {
-                IOUtils.lineIterator(stream, StandardCharsets.UTF_8).forEachRemaining(s -> logger.info("[Android Emulator - STDERR] " + s));
-            } catch (IOException | IllegalStateException e) {
-                logger.error("Error reading Android emulator stderr", e);
-            }
-        }).start();
-    }
-
-    private static int findAcceptableEmulatorPort(final AdbProxy adbProxy) {
-        final Set<Integer> reservedPorts =
+    static EmulatorPortReservation reserveEmulatorPort(final EmulatorConfiguration emulatorConfiguration,
+            final AdbProxy adbProxy) {
+        final Set<Integer> portsInUse =
                 Stream.of(adbProxy.execute("devices"))
                         .map(ADB_OUTPUT_EMULATOR_PATTERN::matcher)
                         .filter(Matcher::matches)
                         .map(matcher -> Integer.parseInt(matcher.group(2)))
                         .collect(Collectors.toSet());
 
-        // Start at the top of the range and iterate down to increase the likelihood of getting an earlier match.
-        for (int port = 5680; port >= 5554; port -= 2) {
-            if (!reservedPorts.contains(port)) {
-                return port;
-            }
+        try {
+            return EmulatorPortReservation.reserve(emulatorConfiguration.getPortReservationDirectory(), portsInUse);
+        } catch (final IOException e) {
+            throw new GradleException("Unable to reserve a port for the emulator", e);
         }
-
-        throw new GradleException("No viable emulator ports found");
     }
 }
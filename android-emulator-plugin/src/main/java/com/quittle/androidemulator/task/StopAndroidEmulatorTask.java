@@ -1,24 +1,152 @@
 package com.quittle.androidemulator.task;
 
+import com.quittle.androidemulator.BootAdmissionController;
+import com.quittle.androidemulator.EmulatorLease;
+import com.quittle.androidemulator.EmulatorConfiguration;
+import com.quittle.androidemulator.EmulatorConsole;
+import com.quittle.androidemulator.EmulatorPortReservation;
+import com.quittle.androidemulator.PendingShutdown;
+import com.quittle.androidemulator.RamDiskAvd;
 import org.gradle.api.DefaultTask;
+import org.gradle.api.logging.Logger;
 import org.gradle.api.tasks.TaskAction;
-import org.gradle.api.tasks.TaskExecutionException;
 
 import javax.inject.Inject;
+import java.io.IOException;
+import java.util.Optional;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
-import java.util.function.UnaryOperator;
 
 public class StopAndroidEmulatorTask extends DefaultTask {
+    // Exiting includes saving the quickboot snapshot, which can take a while for emulators with a lot of RAM
+    static final long CONSOLE_KILL_TIMEOUT_SEC = 60;
+
     final AtomicReference<Process> emulatorProcess;
+    private final EmulatorConfiguration emulatorConfiguration;
+    private final BootAdmissionController bootAdmissionController;
+    private final EmulatorLease emulatorLease;
+    private final EmulatorHealthMonitor emulatorHealthMonitor;
 
     @Inject
-    public StopAndroidEmulatorTask(final AtomicReference<Process> emulatorProcess) {
+    public StopAndroidEmulatorTask(
+            final AtomicReference<Process> emulatorProcess,
+            final EmulatorConfiguration emulatorConfiguration,
+            final BootAdmissionController bootAdmissionController,
+            final EmulatorLease emulatorLease,
+            final EmulatorHealthMonitor emulatorHealthMonitor) {
         this.emulatorProcess = emulatorProcess;
+        this.emulatorConfiguration = emulatorConfiguration;
+        this.bootAdmissionController = bootAdmissionController;
+        this.emulatorLease = emulatorLease;
+        this.emulatorHealthMonitor = emulatorHealthMonitor;
     }
 
     @TaskAction
     public void act() {
-        emulatorProcess.getAndUpdate(new ProcessDestroyer(getProject()));
+        // Otherwise stopping the emulator would be mistaken for a crash
+        emulatorHealthMonitor.stop();
+
+        final Process process = emulatorProcess.get();
+        if (emulatorLease.isLeased()) {
+            // Whoever lent the emulator keeps it for the next build, along with its port
+            emulatorLease.release();
+        } else if (emulatorConfiguration.getAsyncShutdown() && process != null && process.isAlive()) {
+            // Clear the reference so the shutdown hook doesn't interrupt the emulator saving its snapshot
+            emulatorProcess.set(null);
+            shutDownInBackground(process);
+        } else {
+            if (process != null && process.isAlive() && killViaConsole()) {
+                awaitExit(process);
+            }
+            // Signals whatever is left of the emulator, if anything, and reaps its child processes
+            emulatorProcess.getAndUpdate(new ProcessDestroyer(getProject()));
+            RamDiskAvd.placed(emulatorConfiguration).ifPresent(RamDiskAvd::release);
+            releaseEmulatorPort(emulatorConfiguration, getLogger());
+        }
+        // The boot slot is still held if the build stopped before the emulator finished booting
+        bootAdmissionController.release();
+    }
+
+    /**
+     * Asks the emulator to shut down and lets the build continue while it does.
+     *
+     * @param process The emulator process.
+     */
+    private void shutDownInBackground(final Process process) {
+        // The copy of the AVD on the RAM disk and the port are still in use until the emulator has exited
+        final Optional<RamDiskAvd> ramDiskAvd = RamDiskAvd.placed(emulatorConfiguration);
+        final Logger logger = getLogger();
+        try {
+            PendingShutdown.begin(process, emulatorConfiguration.getPendingShutdownMarker(), logger, () -> {
+                ramDiskAvd.ifPresent(RamDiskAvd::release);
+                releaseEmulatorPort(emulatorConfiguration, logger);
+            });
+        } catch (final IOException e) {
+            getLogger().warn("Unable to record the emulator shutdown. Waiting for it to complete instead.", e);
+            if (killViaConsole()) {
+                awaitExit(process);
+            }
+            new ProcessDestroyer(getProject()).apply(process);
+            ramDiskAvd.ifPresent(RamDiskAvd::release);
+            releaseEmulatorPort(emulatorConfiguration, logger);
+            return;
+        }
+
+        if (!killViaConsole()) {
+            // Still graceful, giving the emulator the chance to save its snapshot
+            process.destroy();
+        }
+    }
+
+    /**
+     * Frees the port reserved for the emulator, if any, for other emulators. The emulator must have exited.
+     *
+     * @param emulatorConfiguration The configuration of the emulator.
+     * @param logger                Where to report failing to free the port.
+     */
+    static void releaseEmulatorPort(final EmulatorConfiguration emulatorConfiguration, final Logger logger) {
+        final Integer port = emulatorConfiguration.getEmulatorPort();
+        if (port == null) {
+            return;
+        }
+        final Optional<EmulatorPortReservation> reservation = EmulatorPortReservation.reserved(port);
+        if (!reservation.isPresent()) {
+            return;
+        }
+        try {
+            reservation.get().close();
+        } catch (final IOException e) {
+            logger.warn("Unable to release port {} reserved for the emulator", port, e);
+        }
+    }
+
+    /**
+     * Asks the emulator to exit via its console, which is quicker and more reliable than signalling it.
+     *
+     * @return {@code true} if the emulator acknowledged the request.
+     */
+    private boolean killViaConsole() {
+        final Integer port = emulatorConfiguration.getEmulatorPort();
+        if (port == null) {
+            return false;
+        }
+        try (EmulatorConsole console = new EmulatorConsole(port, emulatorConfiguration.getConsoleAuthTokenFile())) {
+            console.kill();
+            return true;
+        } catch (final IOException e) {
+            getLogger().info("Unable to stop the emulator via its console. Signalling it instead.", e);
+            return false;
+        }
+    }
+
+    private void awaitExit(final Process process) {
+        try {
+            if (!process.waitFor(CONSOLE_KILL_TIMEOUT_SEC, TimeUnit.SECONDS)) {
+                getLogger().warn("Emulator did not exit within {} seconds of being killed via its console",
+                        CONSOLE_KILL_TIMEOUT_SEC);
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 }
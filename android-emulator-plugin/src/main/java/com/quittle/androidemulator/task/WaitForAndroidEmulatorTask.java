@@ -1,43 +1,46 @@
 package com.quittle.androidemulator.task;
 
-import com.quittle.androidemulator.EmulatorConfiguration;
+import com.quittle.androidemulator.BootAdmissionController;
+import com.quittle.androidemulator.EmulatorLease;
 import org.gradle.api.DefaultTask;
 import org.gradle.api.tasks.TaskAction;
 
 import javax.inject.Inject;
-import java.io.IOException;
-import java.util.Arrays;
-import java.util.List;
-import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * Waits for the emulator to boot, relaunching it if it fails to, and starts monitoring its health once booted.
+ */
 public class WaitForAndroidEmulatorTask extends DefaultTask {
-    private final EmulatorConfiguration emulatorConfiguration;
-    private final AtomicReference<Process> waitForDeviceProcess;
+    private final EmulatorBootWaiter emulatorBootWaiter;
+    private final BootAdmissionController bootAdmissionController;
+    private final EmulatorLease emulatorLease;
+    private final EmulatorHealthMonitor emulatorHealthMonitor;
 
     @Inject
-    public WaitForAndroidEmulatorTask(final EmulatorConfiguration emulatorConfiguration, final AtomicReference<Process> waitForDeviceProcess) {
-        this.emulatorConfiguration = emulatorConfiguration;
-        this.waitForDeviceProcess = waitForDeviceProcess;
+    public WaitForAndroidEmulatorTask(
+            final EmulatorBootWaiter emulatorBootWaiter,
+            final BootAdmissionController bootAdmissionController,
+            final EmulatorLease emulatorLease,
+            final EmulatorHealthMonitor emulatorHealthMonitor) {
+        this.emulatorBootWaiter = emulatorBootWaiter;
+        this.bootAdmissionController = bootAdmissionController;
+        this.emulatorLease = emulatorLease;
+        this.emulatorHealthMonitor = emulatorHealthMonitor;
     }
 
     @TaskAction
     public void act() {
-        // The AdbProxy cannot be used here as the process needs to run asynchronously in order for it to be
-        // terminable if the Gradle run is aborted early.
-        final List<String> command = Arrays.asList(
-                emulatorConfiguration.getAdb().getAbsolutePath(),
-                "-s", "emulator-" + emulatorConfiguration.getEmulatorPort(),
-                "wait-for-device",
-                "shell",
-                "while $(exit $(getprop sys.boot_completed)) ; do sleep 1; done;");
-        final ProcessBuilder pb = new ProcessBuilder(command.toArray(new String[0]));
-        pb.environment().putAll(emulatorConfiguration.getEnvironmentVariableMap());
+        // Emulators are only lent once booted and whoever lent them looks after them
+        if (emulatorLease.isLeased()) {
+            return;
+        }
+
         try {
-            final Process p = pb.start();
-            waitForDeviceProcess.set(p);
-            p.waitFor();
-        } catch (IOException | InterruptedException e) {
-            throw new RuntimeException("Unable to wait for emulator", e);
+            emulatorBootWaiter.awaitBoot();
+        } finally {
+            // Once booted, the emulator no longer needs the resources reserved for booting
+            bootAdmissionController.release();
         }
+        emulatorHealthMonitor.start();
     }
 }
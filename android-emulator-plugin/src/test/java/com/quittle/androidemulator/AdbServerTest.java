@@ -0,0 +1,135 @@
+package com.quittle.androidemulator;
+
+import org.gradle.api.GradleException;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Uses a shell script standing in for {@code adb}, which records each command it is run with.
+ */
+@DisabledOnOs(OS.WINDOWS)
+class AdbServerTest {
+    private static final int PORT = 5123;
+    private static final Logger LOGGER = Logging.getLogger(AdbServerTest.class);
+
+    @TempDir
+    File tempDir;
+
+    private File adb;
+    private File commandLog;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        adb = new File(tempDir, "adb");
+        commandLog = new File(tempDir, "commands.log");
+        Files.write(adb.toPath(), Arrays.asList(
+                "#!/bin/sh",
+                "echo \"$1 $ANDROID_ADB_SERVER_PORT\" >> '" + commandLog.getAbsolutePath() + "'",
+                "if [ \"$1\" = start-server ]; then exit \"${START_SERVER_EXIT_CODE:-0}\"; fi"),
+                StandardCharsets.UTF_8);
+        assertTrue(adb.setExecutable(true));
+    }
+
+    private AdbServer adbServer(final Integer port, final String startServerExitCode) {
+        final Map<String, String> environment = new HashMap<>();
+        if (port != null) {
+            environment.put("ANDROID_ADB_SERVER_PORT", String.valueOf(port));
+        }
+        environment.put("START_SERVER_EXIT_CODE", startServerExitCode);
+        return new AdbServer(adb, port, environment, LOGGER);
+    }
+
+    private List<String> commands() throws IOException {
+        if (!commandLog.exists()) {
+            return Collections.emptyList();
+        }
+        return Files.readAllLines(commandLog.toPath(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void testStartAndKill() throws IOException {
+        final AdbServer server = adbServer(PORT, "0");
+        assertTrue(server.isEnabled());
+
+        server.startInBackground();
+        server.awaitStarted();
+        // The server is only started once
+        server.startInBackground();
+        server.awaitStarted();
+        assertEquals(Collections.singletonList("start-server " + PORT), commands());
+
+        server.kill();
+        assertEquals(Arrays.asList("start-server " + PORT, "kill-server " + PORT), commands());
+
+        // Only a server that was started is killed
+        server.kill();
+        assertEquals(Arrays.asList("start-server " + PORT, "kill-server " + PORT), commands());
+    }
+
+    @Test
+    void testAwaitStartedStartsServer() throws IOException {
+        final AdbServer server = adbServer(PORT, "0");
+
+        server.awaitStarted();
+        assertEquals(Collections.singletonList("start-server " + PORT), commands());
+        server.kill();
+    }
+
+    @Test
+    void testRestartAfterKill() throws IOException {
+        final AdbServer server = adbServer(PORT, "0");
+
+        server.startInBackground();
+        server.awaitStarted();
+        server.kill();
+        server.startInBackground();
+        server.awaitStarted();
+        assertEquals(Arrays.asList("start-server " + PORT, "kill-server " + PORT, "start-server " + PORT),
+                commands());
+
+        server.kill();
+        assertEquals(Arrays.asList("start-server " + PORT, "kill-server " + PORT, "start-server " + PORT,
+                "kill-server " + PORT), commands());
+    }
+
+    @Test
+    void testFailedStart() throws IOException {
+        final AdbServer server = adbServer(PORT, "3");
+
+        server.startInBackground();
+        final GradleException e = assertThrows(GradleException.class, server::awaitStarted);
+        assertEquals("ADB server failed to start with return code 3", e.getMessage());
+
+        // The failed server is still cleaned up
+        server.kill();
+        assertEquals(Arrays.asList("start-server " + PORT, "kill-server " + PORT), commands());
+    }
+
+    @Test
+    void testDisabled() throws IOException {
+        final AdbServer server = adbServer(null, "0");
+        assertFalse(server.isEnabled());
+
+        server.startInBackground();
+        server.awaitStarted();
+        server.kill();
+        assertEquals(Collections.emptyList(), commands());
+    }
+}
@@ -0,0 +1,216 @@
+package com.quittle.androidemulator;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Uses a fake ADB server replicating the sync service of a device.
+ */
+class AdbSyncClientTest {
+    private static final String SERIAL = "emulator-5554";
+
+    @TempDir
+    File tempDir;
+
+    private ServerSocket serverSocket;
+    private Thread serverThread;
+    private final List<String> hostRequests = Collections.synchronizedList(new ArrayList<>());
+    private final Map<String, byte[]> deviceFiles = new ConcurrentHashMap<>();
+    private final Map<String, Integer> deviceModifiedSeconds = new ConcurrentHashMap<>();
+    private final List<Integer> dataLengths = Collections.synchronizedList(new ArrayList<>());
+
+    @BeforeEach
+    void setUp() throws IOException {
+        serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    }
+
+    @AfterEach
+    void tearDown() throws IOException, InterruptedException {
+        serverSocket.close();
+        if (serverThread != null) {
+            serverThread.join(5000);
+        }
+    }
+
+    private void startFakeAdbServer() {
+        serverThread = new Thread(() -> {
+            try (Socket socket = serverSocket.accept()) {
+                final DataInputStream input = new DataInputStream(socket.getInputStream());
+                final OutputStream output = socket.getOutputStream();
+                for (int i = 0; i < 2; i++) {
+                    final String request = readString(input, Integer.parseInt(readString(input, 4), 16));
+                    hostRequests.add(request);
+                    if (request.equals("host:transport:" + SERIAL) || request.equals("sync:")) {
+                        output.write("OKAY".getBytes(StandardCharsets.US_ASCII));
+                    } else {
+                        final String message = "device '" + request.substring(request.lastIndexOf(':') + 1) + "' not found";
+                        output.write(("FAIL" + String.format("%04x", message.length()) + message)
+                                .getBytes(StandardCharsets.US_ASCII));
+                        return;
+                    }
+                    output.flush();
+                }
+
+                while (true) {
+                    final String id = readString(input, 4);
+                    final int length = readInt(input);
+                    if (id.equals("QUIT")) {
+                        return;
+                    } else if (id.equals("STAT")) {
+                        final String path = readString(input, length);
+                        final byte[] contents = deviceFiles.get(path);
+                        output.write(header("STAT", contents == null ? 0 : 0100644));
+                        output.write(littleEndian(contents == null ? 0 : contents.length));
+                        output.write(littleEndian(contents == null ? 0 : deviceModifiedSeconds.get(path)));
+                    } else if (id.equals("SEND")) {
+                        final String pathAndMode = readString(input, length);
+                        final String path = pathAndMode.substring(0, pathAndMode.lastIndexOf(','));
+                        final ByteArrayOutputStream contents = new ByteArrayOutputStream();
+                        String dataId = readString(input, 4);
+                        int dataLength = readInt(input);
+                        while (dataId.equals("DATA")) {
+                            dataLengths.add(dataLength);
+                            final byte[] data = new byte[dataLength];
+                            input.readFully(data);
+                            contents.write(data);
+                            dataId = readString(input, 4);
+                            dataLength = readInt(input);
+                        }
+                        if (path.startsWith("/system/")) {
+                            final String message = "couldn't create file: Read-only file system";
+                            output.write(header("FAIL", message.length()));
+                            output.write(message.getBytes(StandardCharsets.US_ASCII));
+                        } else {
+                            deviceFiles.put(path, contents.toByteArray());
+                            deviceModifiedSeconds.put(path, dataLength);
+                            output.write(header("OKAY", 0));
+                        }
+                    }
+                    output.flush();
+                }
+            } catch (final IOException e) {
+                // The server socket was closed by the test
+            }
+        });
+        serverThread.start();
+    }
+
+    @Test
+    void testStatAndSend() throws IOException {
+        startFakeAdbServer();
+        deviceFiles.put("/data/local/tmp/existing.txt", new byte[3]);
+        deviceModifiedSeconds.put("/data/local/tmp/existing.txt", 1_600_000_000);
+
+        // Larger than a single DATA chunk
+        final byte[] contents = new byte[150 * 1024];
+        for (int i = 0; i < contents.length; i++) {
+            contents[i] = (byte) i;
+        }
+        final File localFile = new File(tempDir, "fixture.bin");
+        Files.write(localFile.toPath(), contents);
+
+        try (AdbSyncClient sync = new AdbSyncClient(serverSocket.getLocalPort(), SERIAL)) {
+            final List<AdbSyncClient.FileStat> stats =
+                    sync.stat(Arrays.asList("/data/local/tmp/existing.txt", "/data/local/tmp/fixture.bin"));
+            assertTrue(stats.get(0).exists());
+            assertEquals(3, stats.get(0).getSize());
+            assertTrue(stats.get(0).matches(3, 1_600_000_000));
+            assertFalse(stats.get(0).matches(3, 1_600_000_001));
+            assertFalse(stats.get(1).exists());
+            assertFalse(stats.get(1).matches(0, 0));
+
+            assertEquals(contents.length, sync.send(localFile.toPath(), "/data/local/tmp/fixture.bin", 1_700_000_000));
+
+            final AdbSyncClient.FileStat sent = sync.stat(Collections.singletonList("/data/local/tmp/fixture.bin")).get(0);
+            assertTrue(sent.matches(contents.length, 1_700_000_000));
+        }
+
+        assertEquals(Arrays.asList("host:transport:" + SERIAL, "sync:"), hostRequests);
+        assertArrayEquals(contents, deviceFiles.get("/data/local/tmp/fixture.bin"));
+        assertEquals(Arrays.asList(64 * 1024, 64 * 1024, 22 * 1024), dataLengths);
+    }
+
+    @Test
+    void testManyStats() throws IOException {
+        startFakeAdbServer();
+        final List<String> paths = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            paths.add("/data/local/tmp/missing-" + i);
+        }
+        try (AdbSyncClient sync = new AdbSyncClient(serverSocket.getLocalPort(), SERIAL)) {
+            final List<AdbSyncClient.FileStat> stats = sync.stat(paths);
+            assertEquals(1000, stats.size());
+            assertTrue(stats.stream().noneMatch(AdbSyncClient.FileStat::exists));
+        }
+    }
+
+    @Test
+    void testSendFailure() throws IOException {
+        startFakeAdbServer();
+        final File localFile = new File(tempDir, "empty.txt");
+        Files.write(localFile.toPath(), new byte[0]);
+        try (AdbSyncClient sync = new AdbSyncClient(serverSocket.getLocalPort(), SERIAL)) {
+            final IOException e = assertThrows(IOException.class,
+                    () -> sync.send(localFile.toPath(), "/system/empty.txt", 0));
+            assertEquals("Device failed to write /system/empty.txt: couldn't create file: Read-only file system",
+                    e.getMessage());
+            // The connection remains usable after a failed send
+            assertEquals(Collections.emptyList(), dataLengths);
+            assertEquals(0, sync.send(localFile.toPath(), "/data/local/tmp/empty.txt", 0));
+        }
+        assertArrayEquals(new byte[0], deviceFiles.get("/data/local/tmp/empty.txt"));
+    }
+
+    @Test
+    void testDeviceNotFound() {
+        startFakeAdbServer();
+        final IOException e = assertThrows(IOException.class,
+                () -> new AdbSyncClient(serverSocket.getLocalPort(), "emulator-5556"));
+        assertEquals("ADB server rejected host:transport:emulator-5556: device 'emulator-5556' not found",
+                e.getMessage());
+    }
+
+    private static String readString(final DataInputStream input, final int length) throws IOException {
+        final byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int readInt(final DataInputStream input) throws IOException {
+        final byte[] bytes = new byte[4];
+        input.readFully(bytes);
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).getInt();
+    }
+
+    private static byte[] header(final String id, final int value) {
+        return ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN)
+                .put(id.getBytes(StandardCharsets.US_ASCII)).putInt(value).array();
+    }
+
+    private static byte[] littleEndian(final int value) {
+        return ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(value).array();
+    }
+}
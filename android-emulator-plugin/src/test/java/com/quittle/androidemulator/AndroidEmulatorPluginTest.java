@@ -0,0 +1,120 @@
+package com.quittle.androidemulator;
+
+import com.android.build.gradle.BaseExtension;
+import com.android.build.gradle.internal.dsl.DefaultConfig;
+import io.mockk.impl.annotations.MockK;
+import io.mockk.junit5.MockKExtension;
+import org.gradle.api.Project;
+import org.gradle.api.Task;
+import org.gradle.api.internal.TaskInternal;
+import org.gradle.api.internal.project.ProjectInternal;
+import org.gradle.testfixtures.ProjectBuilder;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static io.mockk.MockKKt.every;
+import static org.junit.jupiter.api.Assertions.*;
+
+@ExtendWith({ MockitoExtension.class, MockKExtension.class })
+class AndroidEmulatorPluginTest {
+    @MockK
+    private BaseExtension mockBaseExtension;
+    @Mock
+    private DefaultConfig mockDefaultConfig;
+    @TempDir
+    File tempDir;
+
+    /**
+     * The default configuration, without a {@code deviceSetup}, still runs the action recording the boot times and the
+     * readiness wait once the emulator is prepared, and then checks the boot times.
+     */
+    @Test
+    void testPrepareRecordsBootTimesWithoutDeviceSetup() throws IOException {
+        final File sdk = new File(tempDir, "sdk");
+        final File sdkManager = new File(sdk, String.join(File.separator, "cmdline-tools", "latest", "bin", "sdkmanager"));
+        assertTrue(sdkManager.getParentFile().mkdirs());
+        assertTrue(sdkManager.createNewFile());
+        every(_scope -> mockBaseExtension.getSdkDirectory()).returns(sdk);
+        every(_scope -> mockBaseExtension.getDefaultConfig()).returns(mockDefaultConfig);
+        final Project project = ProjectBuilder.builder().withProjectDir(new File(tempDir, "project")).build();
+        project.getExtensions().add(BaseExtension.class, "android", mockBaseExtension);
+        project.getPluginManager().apply(AndroidEmulatorPlugin.class);
+        project.getExtensions().getByType(AndroidEmulatorExtension.class).getEmulator().setName("pixel");
+        ((ProjectInternal) project).evaluate();
+
+        final TaskInternal prepareTask = (TaskInternal) project.getTasks()
+                .getByName(AndroidEmulatorPlugin.PREPARE_ANDROID_EMULATOR_TASK_NAME);
+        assertTrue(prepareTask.getOnlyIf().isSatisfiedBy(prepareTask));
+        final Task checkTask = project.getTasks().getByName(AndroidEmulatorPlugin.CHECK_ANDROID_EMULATOR_BOOT_TIME_TASK_NAME);
+        assertEquals(Collections.singleton(checkTask), prepareTask.getFinalizedBy().getDependencies(prepareTask));
+
+        // Without a setup script, nothing is run on the device
+        prepareTask.getActions().forEach(action -> action.execute(prepareTask));
+        final File history = new File(project.getBuildDir(), "android-avd-root" + File.separator +
+                "pixel.boot-history.txt");
+        assertEquals(1, BootTimeHistory.load(history).getEntries().size());
+    }
+
+    @Test
+    void testMatrixAggregateTasks_singleEmulator() {
+        assertEquals(Collections.emptyMap(),
+                AndroidEmulatorPlugin.matrixAggregateTasks(Collections.singletonList("")));
+    }
+
+    @Test
+    void testMatrixAggregateTasks_singleEntryMatrix() {
+        final String suffix = AndroidEmulatorPlugin.instanceTaskNameSuffix(
+                AndroidEmulatorPlugin.toTaskNameSuffix("pixel"), 0, 1);
+        assertEquals("Pixel", suffix);
+
+        final Map<String, List<String>> aggregates =
+                AndroidEmulatorPlugin.matrixAggregateTasks(Collections.singletonList(suffix));
+        assertEquals(Arrays.asList(
+                "createAndroidEmulator",
+                "startAndroidEmulator",
+                "waitForAndroidEmulator",
+                "prepareAndroidEmulator",
+                "saveAndroidEmulatorSnapshot",
+                "stopAndroidEmulator"),
+                new ArrayList<>(aggregates.keySet()));
+        assertEquals(Collections.singletonList("startAndroidEmulatorPixel"), aggregates.get("startAndroidEmulator"));
+        assertEquals(Collections.singletonList("stopAndroidEmulatorPixel"), aggregates.get("stopAndroidEmulator"));
+    }
+
+    @Test
+    void testMatrixAggregateTasks_instances() {
+        final List<String> suffixes = Arrays.asList(
+                AndroidEmulatorPlugin.instanceTaskNameSuffix("", 0, 2),
+                AndroidEmulatorPlugin.instanceTaskNameSuffix("", 1, 2));
+        assertEquals(Arrays.asList("Instance1", "Instance2"), suffixes);
+
+        assertEquals(Arrays.asList("waitForAndroidEmulatorInstance1", "waitForAndroidEmulatorInstance2"),
+                AndroidEmulatorPlugin.matrixAggregateTasks(suffixes).get("waitForAndroidEmulator"));
+    }
+
+    @Test
+    void testMatrixAggregateTasks_matrix() {
+        final List<String> suffixes = Arrays.asList(
+                AndroidEmulatorPlugin.instanceTaskNameSuffix("Pixel", 0, 2),
+                AndroidEmulatorPlugin.instanceTaskNameSuffix("Pixel", 1, 2),
+                AndroidEmulatorPlugin.instanceTaskNameSuffix("Tablet", 0, 1));
+        assertEquals(Arrays.asList("PixelInstance1", "PixelInstance2", "Tablet"), suffixes);
+
+        assertEquals(Arrays.asList(
+                "createAndroidEmulatorPixelInstance1",
+                "createAndroidEmulatorPixelInstance2",
+                "createAndroidEmulatorTablet"),
+                AndroidEmulatorPlugin.matrixAggregateTasks(suffixes).get("createAndroidEmulator"));
+    }
+}
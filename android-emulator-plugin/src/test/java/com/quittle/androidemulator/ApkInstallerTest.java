@@ -0,0 +1,52 @@
+package com.quittle.androidemulator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ApkInstallerTest {
+    @TempDir
+    File tempDir;
+
+    @Test
+    void testRecordRoundTrip() {
+        final Map<String, String> record = ApkInstaller.parseRecord(Arrays.asList(
+                "abc123 app-debug.apk",
+                "def456 app-debug-androidTest.apk\r",
+                "",
+                "corrupt"));
+        assertEquals(2, record.size());
+        assertEquals("abc123", record.get("app-debug.apk"));
+
+        assertEquals(ApkInstaller.formatRecord(record), ApkInstaller.formatRecord(
+                ApkInstaller.parseRecord(ApkInstaller.formatRecord(record))));
+    }
+
+    @Test
+    void testEmptyRecord() {
+        assertTrue(ApkInstaller.parseRecord(Collections.emptyList()).isEmpty());
+        assertTrue(ApkInstaller.formatRecord(Collections.emptyMap()).isEmpty());
+    }
+
+    @Test
+    void testHash() throws IOException {
+        final File apk = new File(tempDir, "app-debug.apk");
+        Files.write(apk.toPath(), "abc".getBytes(StandardCharsets.UTF_8));
+        final File emptyApk = new File(tempDir, "app-debug-androidTest.apk");
+        Files.write(emptyApk.toPath(), new byte[0]);
+
+        final Map<File, String> hashes = ApkInstaller.hash(Arrays.asList(apk, emptyApk));
+        assertEquals(Arrays.asList(apk, emptyApk), Arrays.asList(hashes.keySet().toArray()));
+        assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", hashes.get(apk));
+        assertEquals("e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855", hashes.get(emptyApk));
+    }
+}
@@ -0,0 +1,103 @@
+package com.quittle.androidemulator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AvdHardwareProfileTest {
+    private static final long GB = 1024;
+
+    @Test
+    void testLargeHost() {
+        final AvdHardwareProfile profile = AvdHardwareProfile.compute(
+                32, 64 * GB, 500 * GB, 1, new AndroidEmulatorExtension.EmulatorExtension());
+        assertEquals(AvdHardwareProfile.MAX_CORES, profile.getCores());
+        assertEquals(AvdHardwareProfile.MAX_RAM_MB, profile.getRamSizeMb());
+        assertEquals(512, profile.getHeapSizeMb());
+        assertEquals(AvdHardwareProfile.DEFAULT_DATA_PARTITION_MB, profile.getDataPartitionSizeMb());
+    }
+
+    @Test
+    void testSmallHostIsNotOverCommittedBeyondMinimums() {
+        final AvdHardwareProfile profile = AvdHardwareProfile.compute(
+                2, 3 * GB, 3 * GB, 1, new AndroidEmulatorExtension.EmulatorExtension());
+        assertEquals(1, profile.getCores());
+        assertEquals(AvdHardwareProfile.MIN_RAM_MB, profile.getRamSizeMb());
+        assertEquals(256, profile.getHeapSizeMb());
+        assertEquals(AvdHardwareProfile.MIN_DATA_PARTITION_MB, profile.getDataPartitionSizeMb());
+    }
+
+    @Test
+    void testResourcesAreSharedBetweenEmulators() {
+        final AvdHardwareProfile profile = AvdHardwareProfile.compute(
+                16, 32 * GB, -1, 4, new AndroidEmulatorExtension.EmulatorExtension());
+        assertEquals(3, profile.getCores());
+        assertEquals(6 * GB, profile.getRamSizeMb());
+        assertEquals(0, profile.getRamSizeMb() % AvdHardwareProfile.RAM_GRANULARITY_MB);
+        assertEquals(AvdHardwareProfile.DEFAULT_DATA_PARTITION_MB, profile.getDataPartitionSizeMb());
+    }
+
+    @Test
+    void testOverrides() {
+        final AndroidEmulatorExtension.EmulatorExtension emulator = new AndroidEmulatorExtension.EmulatorExtension();
+        emulator.cores(3);
+        emulator.ramSizeMb(5000);
+        emulator.dataPartitionSizeMb(1000);
+
+        final AvdHardwareProfile profile = AvdHardwareProfile.compute(32, 64 * GB, 500 * GB, 1, emulator);
+        assertEquals(3, profile.getCores());
+        assertEquals(5000, profile.getRamSizeMb());
+        assertEquals(512, profile.getHeapSizeMb());
+        assertEquals(1000, profile.getDataPartitionSizeMb());
+
+        emulator.heapSizeMb(128);
+        assertEquals(128, AvdHardwareProfile.compute(32, 64 * GB, 500 * GB, 1, emulator).getHeapSizeMb());
+    }
+
+    @Test
+    void testUpToDateInputIgnoresFreeDisk() {
+        final AndroidEmulatorExtension.EmulatorExtension emulator = new AndroidEmulatorExtension.EmulatorExtension();
+        final AvdHardwareProfile roomy = AvdHardwareProfile.compute(8, 16 * GB, 500 * GB, 2, emulator);
+        final AvdHardwareProfile cramped = AvdHardwareProfile.compute(8, 16 * GB, 5 * GB, 2, emulator);
+        assertNotEquals(roomy.toConfigIni(), cramped.toConfigIni());
+        assertEquals(roomy.toUpToDateInput(), cramped.toUpToDateInput());
+        assertFalse(roomy.toUpToDateInput().containsKey("disk.dataPartition.size"));
+
+        // Configured sizes are still inputs
+        emulator.dataPartitionSizeMb(4096);
+        assertEquals("4096M", AvdHardwareProfile.compute(8, 16 * GB, 5 * GB, 2, emulator).toUpToDateInput()
+                .get("disk.dataPartition.size"));
+        assertEquals(AvdHardwareProfile.compute(8, 16 * GB, 5 * GB, 2, emulator).toConfigIni(),
+                AvdHardwareProfile.compute(8, 16 * GB, 5 * GB, 2, emulator).toUpToDateInput());
+    }
+
+    @Test
+    void testApplyTo(@TempDir final Path tempDir) throws IOException {
+        final File configIni = tempDir.resolve("config.ini").toFile();
+        Files.write(configIni.toPath(), Arrays.asList(
+                "avd.ini.encoding=UTF-8",
+                "hw.cpu.ncore = 2",
+                "hw.ramSize=1536M",
+                "image.sysdir.1=system-images/android-30/default/x86_64/"), StandardCharsets.UTF_8);
+
+        new AvdHardwareProfile(4, 4096, 512, 6144).applyTo(configIni);
+
+        final List<String> lines = Files.readAllLines(configIni.toPath(), StandardCharsets.UTF_8);
+        assertEquals(Arrays.asList(
+                "avd.ini.encoding=UTF-8",
+                "hw.cpu.ncore=4",
+                "hw.ramSize=4096",
+                "image.sysdir.1=system-images/android-30/default/x86_64/",
+                "vm.heapSize=512",
+                "disk.dataPartition.size=6144M"), lines);
+    }
+}
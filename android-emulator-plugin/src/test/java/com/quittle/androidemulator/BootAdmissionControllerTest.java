@@ -0,0 +1,89 @@
+package com.quittle.androidemulator;
+
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class BootAdmissionControllerTest {
+    private static final AvdHardwareProfile PROFILE = new AvdHardwareProfile(4, 2048, 256, 6144);
+    private static final Logger LOGGER = Logging.getLogger(BootAdmissionControllerTest.class);
+    private static final int MAX_QUEUE_WAIT_SECONDS = 60;
+
+    @TempDir
+    File tempDir;
+
+    private EmulatorConfiguration configuration() {
+        final EmulatorConfiguration configuration = mock(EmulatorConfiguration.class);
+        when(configuration.getBootAdmissionEnabled()).thenReturn(true);
+        when(configuration.getMaxConcurrentBoots()).thenReturn(1);
+        when(configuration.getMaxBootQueueWaitSeconds()).thenReturn(MAX_QUEUE_WAIT_SECONDS);
+        when(configuration.getBootStaggerSeconds()).thenReturn(0);
+        when(configuration.getBootSlotDirectory()).thenReturn(tempDir);
+        // Needs no more than the host has, however busy it is
+        when(configuration.getHardwareProfile()).thenReturn(new AvdHardwareProfile(0, 0, 0, 0));
+        return configuration;
+    }
+
+    @Test
+    void testWaitingBootReleasesSlotOfBootedEmulator() {
+        final BootAdmissionController first = new BootAdmissionController(configuration(), LOGGER);
+        first.acquire();
+        final AtomicBoolean booted = new AtomicBoolean(true);
+        first.launched(booted::get);
+
+        // The only slot is held by an emulator whose wait task hasn't run yet
+        final BootAdmissionController second = new BootAdmissionController(configuration(), LOGGER);
+        second.acquire();
+        assertTrue(second.getLastQueueWaitMillis() < MAX_QUEUE_WAIT_SECONDS * 1000);
+
+        // Releasing the slot again once the first emulator's wait task runs does nothing
+        first.release();
+        second.release();
+    }
+
+    @Test
+    void testHasCapacity() {
+        assertTrue(BootAdmissionController.hasCapacity(2.0, 4096, 8, PROFILE));
+        assertTrue(BootAdmissionController.hasCapacity(4.0, 2048, 8, PROFILE));
+    }
+
+    @Test
+    void testNoCapacityWhenHostIsBusy() {
+        assertFalse(BootAdmissionController.hasCapacity(4.5, 4096, 8, PROFILE));
+        assertFalse(BootAdmissionController.hasCapacity(2.0, 2047, 8, PROFILE));
+    }
+
+    @Test
+    void testUnknownMeasurementsDoNotBlock() {
+        assertTrue(BootAdmissionController.hasCapacity(-1, -1, 1, PROFILE));
+        assertFalse(BootAdmissionController.hasCapacity(-1, 1024, 1, PROFILE));
+    }
+
+    @Test
+    void testParseMemAvailable() {
+        assertEquals(15_258, BootAdmissionController.parseMemAvailableMb(Arrays.asList(
+                "MemTotal:       32617592 kB",
+                "MemFree:         1203340 kB",
+                "MemAvailable:   15624312 kB",
+                "Buffers:          912384 kB")));
+    }
+
+    @Test
+    void testParseMemAvailableMissing() {
+        assertEquals(-1, BootAdmissionController.parseMemAvailableMb(Collections.emptyList()));
+        assertEquals(-1, BootAdmissionController.parseMemAvailableMb(Arrays.asList(
+                "MemTotal:       32617592 kB",
+                "MemFree:         1203340 kB")));
+        assertEquals(-1, BootAdmissionController.parseMemAvailableMb(Collections.singletonList("MemAvailable: lots")));
+    }
+}
@@ -0,0 +1,89 @@
+package com.quittle.androidemulator;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BootProfileTest {
+    private static final List<String> COLD_BOOT_OUTPUT = Arrays.asList(
+            "@@uptime",
+            "60.50 230.12",
+            "@@getprop",
+            "[ro.boottime.init]: [3900000000]",
+            "[ro.boottime.init.selinux]: [215]",
+            "@@events",
+            "10-19 12:00:08.100   345   345 I boot_progress_start: 8100",
+            "10-19 12:00:10.000   345   345 I boot_progress_preload_start: 10000",
+            "10-19 12:00:14.000   345   345 I boot_progress_preload_end: 14000",
+            "10-19 12:00:15.000   600   600 I boot_progress_system_run: 15000",
+            "10-19 12:00:16.000   600   600 I boot_progress_pms_start: 16000",
+            "10-19 12:00:30.000   600   600 I boot_progress_pms_ready: 30000",
+            "10-19 12:00:40.000   600   600 I boot_progress_ams_ready: 40000",
+            "10-19 12:00:55.000   600   600 I boot_progress_enable_screen: 55000",
+            "@@dmesg",
+            "[    3.500000] Run /init as init process");
+
+    @Test
+    void testColdBoot() {
+        final BootProfile profile = BootProfile.parse(70_000, COLD_BOOT_OUTPUT);
+        assertFalse(profile.isFromSnapshot());
+        assertEquals(70_000, profile.getTotalMillis());
+
+        final Map<String, Long> expected = new LinkedHashMap<>();
+        expected.put("emulator", 9_500L);
+        // The kernel log is preferred over the property
+        expected.put("kernel", 3_500L);
+        expected.put("init", 4_600L);
+        expected.put("zygote", 6_900L);
+        expected.put("system_server", 1_000L);
+        expected.put("package_scan", 14_000L);
+        expected.put("services", 10_000L);
+        expected.put("launcher", 15_000L);
+        expected.put("boot_completed", 5_500L);
+        assertEquals(expected, profile.getPhases());
+        assertEquals(70_000, profile.getPhases().values().stream().mapToLong(Long::longValue).sum());
+
+        assertEquals("emulator 9500 ms, kernel 3500 ms, init 4600 ms, zygote 6900 ms, system_server 1000 ms, " +
+                "package_scan 14000 ms, services 10000 ms, launcher 15000 ms, boot_completed 5500 ms",
+                profile.summarize());
+        final List<String> report = profile.formatReport();
+        assertEquals("Booted in 70000 ms", report.get(0));
+        assertEquals("    package_scan      14000 ms  20.0%", report.get(6));
+        assertTrue(report.contains("    boot_progress_preload_end             14000"));
+    }
+
+    @Test
+    void testMissingMarkers() {
+        // Without the kernel log or the framework's events, the remaining phases absorb the missing ones
+        final BootProfile profile = BootProfile.parse(70_000, Arrays.asList(
+                "@@uptime",
+                "60.50 230.12",
+                "@@getprop",
+                "[ro.boottime.init]: [3900000000]",
+                "@@events",
+                "@@dmesg"));
+        final Map<String, Long> expected = new LinkedHashMap<>();
+        expected.put("emulator", 9_500L);
+        expected.put("kernel", 3_900L);
+        expected.put("boot_completed", 56_600L);
+        assertEquals(expected, profile.getPhases());
+    }
+
+    @Test
+    void testSnapshotRestore() {
+        final BootProfile profile = BootProfile.parse(4_000, COLD_BOOT_OUTPUT);
+        assertTrue(profile.isFromSnapshot());
+        assertTrue(profile.getPhases().isEmpty());
+        assertEquals(Arrays.asList("Restored from a snapshot in 4000 ms"), profile.formatReport());
+    }
+
+    @Test
+    void testNoOutput() {
+        assertTrue(BootProfile.parse(4_000, Arrays.asList()).isFromSnapshot());
+    }
+}
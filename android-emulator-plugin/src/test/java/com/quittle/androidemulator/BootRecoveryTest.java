@@ -0,0 +1,25 @@
+package com.quittle.androidemulator;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BootRecoveryTest {
+    @Test
+    void testForAttempt() {
+        assertEquals(BootRecovery.NONE, BootRecovery.forAttempt(1));
+        assertEquals(BootRecovery.COLD_BOOT, BootRecovery.forAttempt(2));
+        assertEquals(BootRecovery.WIPE_DATA, BootRecovery.forAttempt(3));
+        assertEquals(BootRecovery.WIPE_DATA, BootRecovery.forAttempt(10));
+        assertEquals(BootRecovery.NONE, BootRecovery.forAttempt(0));
+    }
+
+    @Test
+    void testForAttemptOnSharedAvd() {
+        assertEquals(BootRecovery.NONE, BootRecovery.forAttempt(1, true));
+        assertEquals(BootRecovery.COLD_BOOT, BootRecovery.forAttempt(2, true));
+        assertEquals(BootRecovery.COLD_BOOT, BootRecovery.forAttempt(3, true));
+        assertEquals(BootRecovery.COLD_BOOT, BootRecovery.forAttempt(10, true));
+        assertEquals(BootRecovery.WIPE_DATA, BootRecovery.forAttempt(3, false));
+    }
+}
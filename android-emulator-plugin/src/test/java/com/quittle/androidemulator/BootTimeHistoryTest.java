@@ -0,0 +1,159 @@
+package com.quittle.androidemulator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BootTimeHistoryTest {
+    private static final String OLD_CONFIGURATION = "emulator=32.1.15 image=system-images;android-30;default;x86_64 args=-no-window";
+    private static final String NEW_CONFIGURATION = "emulator=33.1.4 image=system-images;android-30;default;x86_64 args=-no-window";
+
+    @TempDir
+    File tempDir;
+
+    private static BootTimeHistory.Entry entry(final long bootMillis, final boolean fromSnapshot, final String configuration) {
+        final Map<BootTimings.Phase, Long> millis = new EnumMap<>(BootTimings.Phase.class);
+        millis.put(BootTimings.Phase.SDK_INSTALL, 2_000L);
+        millis.put(BootTimings.Phase.BOOT, bootMillis);
+        millis.put(BootTimings.Phase.READY, 3_000L);
+        return new BootTimeHistory.Entry(1_700_000_000, fromSnapshot, millis, configuration);
+    }
+
+    @Test
+    void testAppendKeepsConcurrentEntries() throws IOException, InterruptedException {
+        final File file = new File(tempDir, "avd/pixel.boot-history.txt");
+        final BootTimeHistory history = new BootTimeHistory();
+        history.record(entry(70_000, false, OLD_CONFIGURATION));
+        history.save(file);
+
+        final List<Thread> builds = new ArrayList<>();
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        for (int build = 0; build < 8; build++) {
+            final long bootMillis = 60_000 + build;
+            builds.add(new Thread(() -> {
+                try {
+                    BootTimeHistory.append(file, entry(bootMillis, false, NEW_CONFIGURATION));
+                } catch (final IOException e) {
+                    failures.add(e);
+                }
+            }));
+        }
+        builds.forEach(Thread::start);
+        for (final Thread build : builds) {
+            build.join();
+        }
+
+        assertEquals(Collections.emptyList(), failures);
+        final List<BootTimeHistory.Entry> entries = BootTimeHistory.load(file).getEntries();
+        assertEquals(9, entries.size());
+        assertEquals(OLD_CONFIGURATION, entries.get(0).getConfiguration());
+    }
+
+    @Test
+    void testAppendCreatesHistory() throws IOException {
+        final File file = new File(tempDir, "avd/pixel.boot-history.txt");
+        BootTimeHistory.append(file, entry(70_000, false, OLD_CONFIGURATION));
+        BootTimeHistory.append(file, entry(71_000, true, OLD_CONFIGURATION));
+
+        final List<BootTimeHistory.Entry> entries = BootTimeHistory.load(file).getEntries();
+        assertEquals(2, entries.size());
+        assertEquals(Long.valueOf(71_000), entries.get(1).getMillis().get(BootTimings.Phase.BOOT));
+        assertTrue(Files.readAllLines(file.toPath()).get(0).startsWith("#"));
+    }
+
+    @Test
+    void testSaveAndLoad() throws IOException {
+        final File file = new File(tempDir, "avd/pixel.boot-history.txt");
+        assertTrue(BootTimeHistory.load(file).getEntries().isEmpty());
+
+        final BootTimeHistory history = new BootTimeHistory();
+        history.record(entry(70_000, false, OLD_CONFIGURATION));
+        history.record(new BootTimeHistory.Entry(1_700_000_100, true, Collections.emptyMap(), ""));
+        history.save(file);
+
+        final List<BootTimeHistory.Entry> entries = BootTimeHistory.load(file).getEntries();
+        assertEquals(2, entries.size());
+        assertEquals(1_700_000_000, entries.get(0).getEpochSeconds());
+        assertFalse(entries.get(0).isFromSnapshot());
+        assertEquals(Long.valueOf(70_000), entries.get(0).getMillis().get(BootTimings.Phase.BOOT));
+        assertNull(entries.get(0).getMillis().get(BootTimings.Phase.AVD_CREATE));
+        assertEquals(OLD_CONFIGURATION, entries.get(0).getConfiguration());
+        assertTrue(entries.get(1).isFromSnapshot());
+        assertTrue(entries.get(1).getMillis().isEmpty());
+        assertEquals("", entries.get(1).getConfiguration());
+    }
+
+    @Test
+    void testParseSkipsCorruptLines() {
+        final BootTimeHistory history = BootTimeHistory.parse(Arrays.asList(
+                "# comment",
+                "1700000000 cold 2000 - 70000 3000 " + OLD_CONFIGURATION,
+                "1700000001 cold",
+                "1700000002 cold x - 70000 3000",
+                ""));
+        assertEquals(1, history.getEntries().size());
+    }
+
+    @Test
+    void testOnlyKeepsRecentEntries() {
+        final BootTimeHistory history = new BootTimeHistory();
+        for (int i = 0; i < 250; i++) {
+            history.record(entry(i, false, OLD_CONFIGURATION));
+        }
+        final List<String> lines = history.format();
+        assertEquals(201, lines.size());
+        assertTrue(lines.get(1).startsWith("1700000000 cold 2000 - 50 3000 "));
+    }
+
+    @Test
+    void testFindRegressions() {
+        final BootTimeHistory history = new BootTimeHistory();
+        for (int i = 0; i < 10; i++) {
+            history.record(entry(60_000 + i * 1_000, false, OLD_CONFIGURATION));
+            // Snapshot restores aren't compared with cold boots
+            history.record(entry(5_000, true, OLD_CONFIGURATION));
+        }
+        assertEquals(Collections.emptyList(), history.findRegressions(25, 3, 20));
+
+        history.record(entry(140_000, false, NEW_CONFIGURATION));
+        // A single slow boot doesn't move the median
+        assertEquals(Collections.emptyList(), history.findRegressions(25, 3, 20));
+
+        history.record(entry(130_000, false, NEW_CONFIGURATION));
+        history.record(entry(150_000, false, NEW_CONFIGURATION));
+        assertEquals(Arrays.asList(
+                "boot (cold): the median of the last 3 builds, 140000 ms, is 117% more than the median of the 10 " +
+                        "builds before them, 64500 ms",
+                "The configuration changed from " + OLD_CONFIGURATION + " to " + NEW_CONFIGURATION),
+                history.findRegressions(25, 3, 20));
+        assertEquals(Collections.emptyList(), history.findRegressions(200, 3, 20));
+        // Not enough builds before the recent ones to compare against
+        assertEquals(Collections.emptyList(), history.findRegressions(25, 7, 20));
+    }
+
+    @Test
+    void testMedian() {
+        assertEquals(2, BootTimeHistory.median(Arrays.asList(3L, 1L, 2L)));
+        assertEquals(25, BootTimeHistory.median(Arrays.asList(40L, 10L, 20L, 30L)));
+    }
+
+    @Test
+    void testReadEmulatorRevision() throws IOException {
+        final File sourceProperties = new File(tempDir, "source.properties");
+        assertEquals("unknown", BootTimeHistory.readEmulatorRevision(sourceProperties));
+        Files.write(sourceProperties.toPath(),
+                Arrays.asList("Pkg.Desc=Android Emulator", "Pkg.Revision=33.1.4"));
+        assertEquals("33.1.4", BootTimeHistory.readEmulatorRevision(sourceProperties));
+    }
+}
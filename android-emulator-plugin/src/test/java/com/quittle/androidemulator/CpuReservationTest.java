@@ -0,0 +1,50 @@
+package com.quittle.androidemulator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CpuReservationTest {
+    @TempDir
+    File tempDir;
+
+    @Test
+    void testReservedCoresAreNotReservedAgain() throws IOException {
+        final File directory = new File(tempDir, "cpus");
+        final Optional<CpuReservation> first = CpuReservation.tryReserve(directory, Arrays.asList(2, 3));
+        assertTrue(first.isPresent());
+        assertEquals(Arrays.asList(2, 3), first.get().getCpus());
+
+        assertFalse(CpuReservation.tryReserve(directory, Arrays.asList(3, 4)).isPresent());
+        final Optional<CpuReservation> second = CpuReservation.tryReserve(directory, Arrays.asList(4, 5));
+        assertTrue(second.isPresent());
+
+        first.get().close();
+        // Closing twice does nothing
+        first.get().close();
+        final Optional<CpuReservation> third = CpuReservation.tryReserve(directory, Collections.singletonList(3));
+        assertTrue(third.isPresent());
+
+        // The failed attempt at 3 and 4 must not have released the lock held on 4
+        assertFalse(CpuReservation.tryReserve(directory, Collections.singletonList(4)).isPresent());
+
+        second.get().close();
+        third.get().close();
+    }
+
+    @Test
+    void testDirectoryIsCreated() throws IOException {
+        final File directory = new File(tempDir, "nested" + File.separator + "cpus");
+        try (CpuReservation reservation = CpuReservation.tryReserve(directory, Collections.singletonList(1)).get()) {
+            assertTrue(new File(directory, "cpu-1").isFile());
+            assertEquals(Collections.singletonList(1), reservation.getCpus());
+        }
+    }
+}
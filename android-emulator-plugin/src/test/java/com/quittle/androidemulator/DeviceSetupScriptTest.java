@@ -0,0 +1,53 @@
+package com.quittle.androidemulator;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DeviceSetupScriptTest {
+    @Test
+    void testEmpty() {
+        final DeviceSetupScript script = new DeviceSetupScript(new AndroidEmulatorExtension.DeviceSetupExtension());
+        assertTrue(script.isEmpty());
+        assertEquals("", script.build());
+    }
+
+    @Test
+    void testStepOrder() {
+        final AndroidEmulatorExtension.DeviceSetupExtension deviceSetup = new AndroidEmulatorExtension.DeviceSetupExtension();
+        deviceSetup.commands("echo custom");
+        deviceSetup.unlockScreen(true);
+        deviceSetup.disableAnimations(true);
+        deviceSetup.waitForServices("package", "activity");
+
+        final DeviceSetupScript script = new DeviceSetupScript(deviceSetup);
+        assertFalse(script.isEmpty());
+
+        final String built = script.build();
+        final int packageProbe = built.indexOf("service check package");
+        final int activityProbe = built.indexOf("service check activity");
+        final int animations = built.indexOf("settings put global window_animation_scale 0");
+        final int unlock = built.indexOf("input keyevent 82");
+        final int custom = built.indexOf("{ echo custom; } || exit 1");
+
+        assertTrue(packageProbe >= 0);
+        assertTrue(packageProbe < activityProbe);
+        assertTrue(activityProbe < animations);
+        assertTrue(animations < unlock);
+        assertTrue(unlock < custom);
+        assertFalse(built.contains("\n"));
+    }
+
+    @Test
+    void testPersistentStepsGuardedByMarker() {
+        final AndroidEmulatorExtension.DeviceSetupExtension deviceSetup = new AndroidEmulatorExtension.DeviceSetupExtension();
+        deviceSetup.keepScreenOn(true);
+        final String built = new DeviceSetupScript(deviceSetup).build();
+        assertTrue(built.startsWith("if [ \"$(cat " + DeviceSetupScript.MARKER_FILE + " 2>/dev/null)\" != '"));
+        assertTrue(built.contains("svc power stayon true && echo '"));
+
+        // The marker changes when the persistent steps change so they are re-applied
+        deviceSetup.disableAnimations(true);
+        assertNotEquals(built, new DeviceSetupScript(deviceSetup).build());
+    }
+}
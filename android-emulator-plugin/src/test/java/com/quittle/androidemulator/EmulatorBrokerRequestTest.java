@@ -0,0 +1,110 @@
+package com.quittle.androidemulator;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EmulatorBrokerRequestTest {
+    private static final List<String> COMMAND = Arrays.asList("/sdk/emulator/emulator", "@pixel", "-shell", "-read-only");
+    private static final List<String> ARGUMENTS = COMMAND.subList(1, COMMAND.size());
+
+    private static BufferedReader reader(final List<String> lines) {
+        return new BufferedReader(new StringReader(String.join("\n", lines) + "\n"));
+    }
+
+    @Test
+    void testFormatAndRead() throws IOException {
+        final Map<String, String> environment = new HashMap<>();
+        environment.put("ANDROID_SDK_ROOT", "/sdk");
+        environment.put("ANDROID_AVD_HOME", "/avd=root");
+        final File sdk = new File("/sdk").getAbsoluteFile();
+        final EmulatorBrokerRequest request = new EmulatorBrokerRequest("abc123", "secret", sdk,
+                new File("/avd/pixel.avd"), environment, ARGUMENTS);
+
+        final List<String> lines = request.format();
+        assertEquals(Arrays.asList(
+                "acquire abc123",
+                "token secret",
+                "sdk " + sdk.getAbsolutePath(),
+                "avd " + new File("/avd/pixel.avd").getAbsolutePath(),
+                "env ANDROID_AVD_HOME=/avd=root",
+                "env ANDROID_SDK_ROOT=/sdk",
+                "arg @pixel",
+                "arg -shell",
+                "arg -read-only",
+                ""), lines);
+
+        final EmulatorBrokerRequest read = EmulatorBrokerRequest.read(reader(lines));
+        assertEquals("abc123", read.getFingerprint());
+        assertEquals("secret", read.getToken());
+        assertEquals(sdk, read.getSdkRoot());
+        assertEquals(new File("/avd/pixel.avd").getAbsoluteFile(), read.getAvd());
+        assertEquals(environment, read.getEnvironment());
+        assertEquals(ARGUMENTS, read.getArguments());
+    }
+
+    @Test
+    void testOnlyLaunchesSdkTools() throws IOException {
+        final File sdk = new File("/sdk").getAbsoluteFile();
+        final EmulatorBrokerRequest read = EmulatorBrokerRequest.read(reader(Arrays.asList(
+                "acquire abc123", "token secret", "sdk " + sdk.getAbsolutePath(), "avd /pixel.avd", "arg @pixel", "")));
+        final String suffix = System.getProperty("os.name").startsWith("Windows") ? ".exe" : "";
+        assertEquals(new File(sdk, "emulator" + File.separator + "emulator" + suffix), read.getEmulator());
+        assertEquals(new File(sdk, "platform-tools" + File.separator + "adb" + suffix), read.getAdb());
+        assertEquals(Arrays.asList(read.getEmulator().getAbsolutePath(), "@pixel"), read.getCommand());
+
+        // The tools are only looked for in an absolute SDK path
+        assertThrows(IOException.class, () -> EmulatorBrokerRequest.read(reader(Arrays.asList(
+                "acquire abc123", "token secret", "sdk relative/sdk", "avd /pixel.avd", "arg @pixel", ""))));
+    }
+
+    @Test
+    void testReadIncomplete() {
+        final String sdk = "sdk " + new File("/sdk").getAbsolutePath();
+        assertThrows(IOException.class, () -> EmulatorBrokerRequest.read(reader(Arrays.asList("acquire abc123", ""))));
+        // The connection closed before the empty line
+        assertThrows(IOException.class, () -> EmulatorBrokerRequest.read(new BufferedReader(
+                new StringReader("acquire abc123\ntoken secret\n" + sdk + "\navd /pixel.avd\narg @pixel\n"))));
+        assertThrows(IOException.class, () -> EmulatorBrokerRequest.read(
+                reader(Arrays.asList("acquire abc123", "token secret", sdk, "arg @pixel", ""))));
+        // Requests without the token are incomplete
+        assertThrows(IOException.class, () -> EmulatorBrokerRequest.read(
+                reader(Arrays.asList("acquire abc123", sdk, "avd /pixel.avd", "arg @pixel", ""))));
+        assertThrows(IOException.class, () -> EmulatorBrokerRequest.read(reader(Arrays.asList(
+                "acquire abc123", "token secret", sdk, "avd /pixel.avd", "arg @pixel", "unknown", ""))));
+    }
+
+    @Test
+    void testParseReply() throws IOException {
+        assertEquals(5556, EmulatorBrokerRequest.parseReply("leased 5556"));
+        assertThrows(IOException.class, () -> EmulatorBrokerRequest.parseReply("error No free ports"));
+        assertThrows(IOException.class, () -> EmulatorBrokerRequest.parseReply("leased soon"));
+        assertThrows(IOException.class, () -> EmulatorBrokerRequest.parseReply(null));
+    }
+
+    @Test
+    void testFingerprint() {
+        final Map<String, String> environment = Collections.singletonMap("ANDROID_SDK_ROOT", "/sdk");
+        final List<String> config = Arrays.asList("hw.ramSize=2048", "hw.cpu.ncore=2");
+        final String fingerprint = EmulatorBrokerRequest.fingerprint(COMMAND, environment, config);
+
+        assertEquals(64, fingerprint.length());
+        assertEquals(fingerprint, EmulatorBrokerRequest.fingerprint(COMMAND, new HashMap<>(environment), config));
+        assertNotEquals(fingerprint, EmulatorBrokerRequest.fingerprint(
+                Arrays.asList("/sdk/emulator/emulator", "@pixel", "-shell"), environment, config));
+        assertNotEquals(fingerprint, EmulatorBrokerRequest.fingerprint(
+                COMMAND, Collections.singletonMap("ANDROID_SDK_ROOT", "/other-sdk"), config));
+        assertNotEquals(fingerprint, EmulatorBrokerRequest.fingerprint(
+                COMMAND, environment, Arrays.asList("hw.ramSize=4096", "hw.cpu.ncore=2")));
+    }
+}
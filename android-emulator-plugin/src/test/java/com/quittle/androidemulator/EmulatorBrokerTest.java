@@ -0,0 +1,350 @@
+package com.quittle.androidemulator;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the broker against {@link FakeEmulator}s, launched from an SDK of shell scripts standing in for the emulator and
+ * ADB.
+ */
+class EmulatorBrokerTest {
+    private static final long AWAIT_TIMEOUT_MS = 10_000;
+
+    @TempDir
+    File tempDir;
+
+    private File sdk;
+    private File avd;
+    private File brokerDirectory;
+    private File logDirectory;
+    private EmulatorBroker broker;
+    private Thread brokerThread;
+    private ServerSocket serverSocket;
+    private String token;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        sdk = new File(tempDir, "sdk");
+        writeScript(new File(sdk, "emulator" + File.separator + "emulator"), FakeEmulator.emulatorScript());
+        writeScript(new File(sdk, "platform-tools" + File.separator + "adb"), FakeEmulator.ADB_SCRIPT);
+
+        final File avdRoot = new File(tempDir, "avd-root");
+        avd = new File(avdRoot, "pixel.avd");
+        assertTrue(new File(avd, "snapshots" + File.separator + "default_boot").mkdirs());
+        Files.write(new File(avd, "config.ini").toPath(), Collections.singletonList("hw.ramSize=2048"),
+                StandardCharsets.UTF_8);
+        Files.write(new File(avd, "hardware-qemu.ini.lock").toPath(), Collections.singletonList("1234"),
+                StandardCharsets.UTF_8);
+        Files.write(new File(avdRoot, "pixel.ini").toPath(),
+                Arrays.asList("avd.ini.encoding=UTF-8", "path=" + avd.getAbsolutePath(), "path.rel=avd/pixel.avd",
+                        "target=android-33"),
+                StandardCharsets.UTF_8);
+
+        brokerDirectory = new File(tempDir, "broker");
+        logDirectory = new File(tempDir, "fake-emulators");
+        assertTrue(logDirectory.mkdirs());
+    }
+
+    private static void writeScript(final File file, final List<String> lines) throws IOException {
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.write(file.toPath(), lines, StandardCharsets.UTF_8);
+        assertTrue(file.setExecutable(true));
+    }
+
+    @AfterEach
+    void tearDown() throws IOException, InterruptedException {
+        if (serverSocket != null) {
+            // Stops the broker, which stops its emulators
+            serverSocket.close();
+            brokerThread.join(AWAIT_TIMEOUT_MS);
+        }
+    }
+
+    private void startBroker(final int poolSize, final int maxEmulators) throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Files.createDirectories(brokerDirectory.toPath());
+        token = EmulatorBroker.writeToken(brokerDirectory);
+        broker = new EmulatorBroker(serverSocket,
+                new EmulatorBroker.Options(serverSocket.getLocalPort(), poolSize, maxEmulators, 1, brokerDirectory),
+                token);
+        brokerThread = new Thread(broker::serve);
+        brokerThread.start();
+    }
+
+    /**
+     * Leases an emulator over a new connection, which stays open for the length of the lease.
+     */
+    private Socket lease(final String fingerprint) throws IOException {
+        return lease(fingerprint, token, sdk);
+    }
+
+    private Socket lease(final String fingerprint, final String requestToken, final File requestSdk)
+            throws IOException {
+        final Socket socket = new Socket(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+        final EmulatorBrokerRequest request = new EmulatorBrokerRequest(fingerprint, requestToken, requestSdk, avd,
+                Collections.singletonMap(FakeEmulator.LOG_DIRECTORY_VARIABLE, logDirectory.getAbsolutePath()),
+                Collections.singletonList("@pixel"));
+        final Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+        for (final String line : request.format()) {
+            writer.write(line + "\n");
+        }
+        writer.flush();
+        return socket;
+    }
+
+    private static int readPort(final Socket socket) throws IOException {
+        final BufferedReader reader =
+                new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        return EmulatorBrokerRequest.parseReply(reader.readLine());
+    }
+
+    private static void release(final Socket socket) throws IOException {
+        final Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+        writer.write(EmulatorBrokerRequest.RELEASE + "\n");
+        writer.flush();
+    }
+
+    private static void await(final BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + AWAIT_TIMEOUT_MS;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "Timed out waiting for the broker");
+            Thread.sleep(50);
+        }
+    }
+
+    private List<String> log(final int port) throws IOException {
+        return FakeEmulator.readLog(logDirectory, port);
+    }
+
+    private long countBoots(final int port) throws IOException {
+        return log(port).stream().filter(line -> line.startsWith("boot ")).count();
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    void testLeaseIsResetAndReused() throws IOException, InterruptedException {
+        startBroker(1, 2);
+        final int port;
+        try (Socket socket = lease("a")) {
+            port = readPort(socket);
+            assertEquals(1, broker.count(EmulatorBroker.State.LEASED));
+
+            // The emulator runs from the broker's own copy of the AVD, without the original's locks and snapshots
+            final String boot = log(port).get(0);
+            final File avdHome = new File(boot.substring("boot ".length()));
+            assertEquals(new File(brokerDirectory, "avd"), avdHome.getParentFile());
+            assertTrue(new File(avdHome, "pixel.avd" + File.separator + "config.ini").isFile());
+            assertFalse(new File(avdHome, "pixel.avd" + File.separator + "hardware-qemu.ini.lock").exists());
+            assertFalse(new File(avdHome, "pixel.avd" + File.separator + "snapshots").exists());
+            assertEquals(
+                    Arrays.asList("path=" + new File(avdHome, "pixel.avd").getAbsolutePath(),
+                            "avd.ini.encoding=UTF-8", "target=android-33"),
+                    Files.readAllLines(new File(avdHome, "pixel.ini").toPath(), StandardCharsets.UTF_8));
+            assertTrue(log(port).contains("avd snapshot save " + EmulatorBroker.CLEAN_SNAPSHOT_NAME + "-" + port));
+
+            release(socket);
+            await(() -> broker.count(EmulatorBroker.State.IDLE) == 1);
+        }
+        assertTrue(log(port).contains("avd snapshot load " + EmulatorBroker.CLEAN_SNAPSHOT_NAME + "-" + port));
+
+        // The next build is lent the same emulator without booting another
+        try (Socket socket = lease("a")) {
+            assertEquals(port, readPort(socket));
+            assertEquals(1, countBoots(port));
+            assertEquals(1, broker.count(EmulatorBroker.State.LEASED));
+        }
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    void testDroppedConnectionReleases() throws IOException, InterruptedException {
+        startBroker(1, 2);
+        final int port;
+        try (Socket socket = lease("a")) {
+            port = readPort(socket);
+            // Closing the connection without releasing, as a build that dies would
+        }
+        await(() -> broker.count(EmulatorBroker.State.IDLE) == 1);
+        assertTrue(log(port).contains("avd snapshot load " + EmulatorBroker.CLEAN_SNAPSHOT_NAME + "-" + port));
+        assertFalse(log(port).contains("kill"));
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    void testPoolSizeLimitsIdleEmulators() throws IOException, InterruptedException {
+        startBroker(1, 2);
+        final int first;
+        final int second;
+        try (Socket firstSocket = lease("a"); Socket secondSocket = lease("a")) {
+            first = readPort(firstSocket);
+            second = readPort(secondSocket);
+            assertNotEquals(first, second);
+            assertEquals(2, broker.count(EmulatorBroker.State.LEASED));
+            release(firstSocket);
+            await(() -> broker.count(EmulatorBroker.State.IDLE) == 1);
+            release(secondSocket);
+            await(() -> broker.count(EmulatorBroker.State.LEASED) == 0);
+        }
+
+        // Only one emulator like them is kept, so the second is stopped along with its copy of the AVD
+        assertEquals(1, broker.count(EmulatorBroker.State.IDLE));
+        assertFalse(log(first).contains("kill"));
+        assertTrue(log(second).contains("kill"));
+        await(() -> new File(brokerDirectory, "avd").list().length == 1);
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    void testEvictsIdleEmulatorToMakeRoom() throws IOException, InterruptedException {
+        startBroker(1, 1);
+        final int idle;
+        try (Socket socket = lease("a")) {
+            idle = readPort(socket);
+            release(socket);
+            await(() -> broker.count(EmulatorBroker.State.IDLE) == 1);
+        }
+
+        // The host has room for one emulator, so the idle one is stopped to boot one of another configuration
+        try (Socket socket = lease("b")) {
+            final int leased = readPort(socket);
+            assertNotEquals(idle, leased);
+            assertTrue(log(idle).contains("kill"));
+            assertEquals(1, countBoots(leased));
+            assertEquals(0, broker.count(EmulatorBroker.State.IDLE));
+            assertEquals(1, broker.count(EmulatorBroker.State.LEASED));
+        }
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    void testWaitsForRoom() throws IOException, InterruptedException {
+        startBroker(1, 1);
+        try (Socket first = lease("a"); Socket second = lease("b")) {
+            final int firstPort = readPort(first);
+            // Nothing can be evicted while the only emulator is leased, so the second build waits
+            Thread.sleep(500);
+            assertEquals(1, broker.count(EmulatorBroker.State.LEASED));
+            assertEquals(0, broker.count(EmulatorBroker.State.BOOTING));
+
+            release(first);
+            final int secondPort = readPort(second);
+            assertTrue(log(firstPort).contains("kill"));
+            assertEquals(1, countBoots(secondPort));
+            assertEquals(1, broker.count(EmulatorBroker.State.LEASED));
+        }
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    void testReapsIdleEmulators() throws IOException, InterruptedException {
+        startBroker(1, 2);
+        final long expired = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(2);
+        final int idle;
+        try (Socket socket = lease("a")) {
+            idle = readPort(socket);
+            release(socket);
+            await(() -> broker.count(EmulatorBroker.State.IDLE) == 1);
+        }
+        assertFalse(broker.reapExpired(System.currentTimeMillis()));
+        assertEquals(1, broker.count(EmulatorBroker.State.IDLE));
+
+        try (Socket socket = lease("b")) {
+            final int leased = readPort(socket);
+            // Only the idle emulator is stopped and the broker keeps running for the leased one
+            assertFalse(broker.reapExpired(expired));
+            assertTrue(log(idle).contains("kill"));
+            assertFalse(log(leased).contains("kill"));
+            assertEquals(0, broker.count(EmulatorBroker.State.IDLE));
+            assertEquals(1, broker.count(EmulatorBroker.State.LEASED));
+
+            release(socket);
+            await(() -> broker.count(EmulatorBroker.State.IDLE) == 1);
+        }
+        // Once nothing is left, the broker exits
+        await(() -> broker.reapExpired(expired));
+        assertEquals(0, broker.count(EmulatorBroker.State.IDLE));
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    void testRejectsRequestWithoutToken() throws IOException {
+        startBroker(1, 2);
+        assertEquals(token, EmulatorBroker.readToken(brokerDirectory));
+        assertEquals(PosixFilePermissions.fromString("rw-------"),
+                Files.getPosixFilePermissions(new File(brokerDirectory, EmulatorBroker.TOKEN_FILE_NAME).toPath()));
+
+        try (Socket socket = lease("a", "not-the-token", sdk)) {
+            final IOException e = assertThrows(IOException.class, () -> readPort(socket));
+            assertEquals("Broker did not lend an emulator: error The request did not present the broker's token",
+                    e.getMessage());
+        }
+        assertEquals(0, broker.count(EmulatorBroker.State.BOOTING) + broker.count(EmulatorBroker.State.LEASED));
+        assertEquals(Collections.emptyList(), Arrays.asList(logDirectory.list()));
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    void testOnlyLaunchesSdkEmulator() throws IOException {
+        startBroker(1, 2);
+        // Not an SDK, so there's no emulator for the broker to launch
+        try (Socket socket = lease("a", token, tempDir)) {
+            final IOException e = assertThrows(IOException.class, () -> readPort(socket));
+            assertEquals("Broker did not lend an emulator: error No emulator or ADB in the SDK " +
+                    tempDir.getAbsolutePath(), e.getMessage());
+        }
+        assertEquals(Collections.emptyList(), Arrays.asList(logDirectory.list()));
+    }
+
+    @Test
+    void testWithPort() {
+        assertEquals(Arrays.asList("/emulator", "@pixel", "-port", "5554", "-shell", "-read-only"),
+                EmulatorBroker.withPort(Arrays.asList("/emulator", "@pixel", "-shell", "-read-only"), 5554));
+        assertEquals(Arrays.asList("/emulator", "-port", "5556"),
+                EmulatorBroker.withPort(Collections.singletonList("/emulator"), 5556));
+    }
+
+    @Test
+    void testOptions() {
+        final EmulatorBroker.Options options =
+                new EmulatorBroker.Options(25037, 2, 4, 30, new File("/tmp/android-emulator-plugin/broker"));
+        final EmulatorBroker.Options parsed =
+                EmulatorBroker.Options.parse(options.toArguments().toArray(new String[0]));
+        assertEquals(25037, parsed.port);
+        assertEquals(2, parsed.poolSize);
+        assertEquals(4, parsed.maxEmulators);
+        assertEquals(30, parsed.idleTimeoutMinutes);
+        assertEquals(new File("/tmp/android-emulator-plugin/broker").getAbsoluteFile(), parsed.directory);
+    }
+
+    @Test
+    void testOptionsMissing() {
+        assertThrows(IllegalArgumentException.class,
+                () -> EmulatorBroker.Options.parse(new String[] { "--port=25037" }));
+        assertThrows(IllegalArgumentException.class,
+                () -> EmulatorBroker.Options.parse(new String[] { "port" }));
+    }
+}
@@ -15,6 +15,7 @@ import org.mockito.junit.jupiter.MockitoExtension;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 
 import static io.mockk.MockKKt.every;
 import static org.junit.jupiter.api.Assertions.*;
@@ -43,6 +44,13 @@ class EmulatorConfigurationTest {
         every(_scope -> mockBaseExtension.getSdkDirectory()).returns(tempDir);
         every(_scope -> mockBaseExtension.getDefaultConfig()).returns(mockDefaultConfig);
         when(mockAndroidEmulatorExtension.getEmulator()).thenReturn(mockEmulatorExtension);
+        when(mockAndroidEmulatorExtension.getDeviceSetup()).thenReturn(new AndroidEmulatorExtension.DeviceSetupExtension());
+        when(mockAndroidEmulatorExtension.getBootWatchdog()).thenReturn(new AndroidEmulatorExtension.BootWatchdogExtension());
+        when(mockAndroidEmulatorExtension.getBootAdmission()).thenReturn(new AndroidEmulatorExtension.BootAdmissionExtension());
+        when(mockAndroidEmulatorExtension.getIsolation()).thenReturn(new AndroidEmulatorExtension.IsolationExtension());
+        when(mockAndroidEmulatorExtension.getRamDisk()).thenReturn(new AndroidEmulatorExtension.RamDiskExtension());
+        when(mockAndroidEmulatorExtension.getBroker()).thenReturn(new AndroidEmulatorExtension.BrokerExtension());
+        when(mockAndroidEmulatorExtension.getRemoteDevices()).thenReturn(new AndroidEmulatorExtension.RemoteDevicesExtension());
         configuration = new EmulatorConfiguration(mockProject, mockBaseExtension, mockAndroidEmulatorExtension);
     }
 
@@ -157,6 +165,37 @@ class EmulatorConfigurationTest {
         assertGetSdkManagerThrows();
     }
 
+    @Test
+    void testSingleInstance() {
+        assertEquals(configuration.getEmulatorName(), configuration.getInstanceName());
+        assertFalse(configuration.getSharedAvd());
+        assertTrue(configuration.getCreatesAvd());
+        assertFalse(configuration.getGoldenSnapshot());
+    }
+
+    @Test
+    void testSharedAvdInstances() {
+        when(mockEmulatorExtension.getName()).thenReturn("pixel");
+        when(mockEmulatorExtension.getInstances()).thenReturn(3);
+        when(mockEmulatorExtension.getGoldenSnapshot()).thenReturn(true);
+        final EmulatorConfiguration second = new EmulatorConfiguration(mockProject, mockBaseExtension,
+                mockAndroidEmulatorExtension, mockEmulatorExtension, 1, 1, 3, null);
+
+        assertEquals("pixel", second.getEmulatorName());
+        assertEquals("pixel-2", second.getInstanceName());
+        assertTrue(second.getSharedAvd());
+        assertFalse(second.getCreatesAvd());
+        assertTrue(second.getGoldenSnapshot());
+        // The instances share the AVD but not the files describing each instance
+        assertEquals(new File(second.getAvdRoot(), "pixel.avd"), second.getAvdDirectory());
+        assertEquals(new File(second.getAvdRoot(), "pixel-2.shutdown-pending"), second.getPendingShutdownMarker());
+        assertEquals(Arrays.asList(
+                new File(second.getAvdRoot(), "pixel-1.shutdown-pending"),
+                new File(second.getAvdRoot(), "pixel-2.shutdown-pending"),
+                new File(second.getAvdRoot(), "pixel-3.shutdown-pending")),
+                second.getInstancePendingShutdownMarkers());
+    }
+
     /**
      * Asserts that calling {@link EmulatorConfiguration#getSdkManager()} throws an
      * exception.
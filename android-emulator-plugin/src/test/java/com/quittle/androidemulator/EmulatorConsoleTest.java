@@ -0,0 +1,162 @@
+package com.quittle.androidemulator;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Uses a fake console server replicating the responses of the emulator.
+ */
+class EmulatorConsoleTest {
+    private static final String AUTH_TOKEN = "s3cr3t";
+    private static final String AUTH_BANNER = "Android Console: Authentication required\r\n" +
+            "Android Console: type 'auth <auth_token>' to authenticate\r\n" +
+            "Android Console: you can find your <auth_token> in\r\n" +
+            "'/home/user/.emulator_console_auth_token'\r\n" +
+            "OK\r\n";
+
+    @TempDir
+    File tempDir;
+
+    private File authTokenFile;
+    private ServerSocket serverSocket;
+    private Thread serverThread;
+    private final List<String> receivedCommands = Collections.synchronizedList(new ArrayList<>());
+
+    @BeforeEach
+    void setUp() throws IOException {
+        authTokenFile = new File(tempDir, ".emulator_console_auth_token");
+        Files.write(authTokenFile.toPath(), (AUTH_TOKEN + "\n").getBytes(StandardCharsets.UTF_8));
+        serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    }
+
+    @AfterEach
+    void tearDown() throws IOException, InterruptedException {
+        serverSocket.close();
+        if (serverThread != null) {
+            serverThread.join(5000);
+        }
+    }
+
+    private void startFakeConsole(final String banner) {
+        serverThread = new Thread(() -> {
+            try (Socket socket = serverSocket.accept()) {
+                final BufferedReader reader =
+                        new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                final Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+                writer.write(banner);
+                writer.flush();
+
+                boolean authenticated = !banner.contains("Authentication required");
+                String command;
+                while ((command = reader.readLine()) != null) {
+                    receivedCommands.add(command);
+                    if (command.equals("auth " + AUTH_TOKEN)) {
+                        authenticated = true;
+                        writer.write("Android Console: type 'help' for a list of commands\r\nOK\r\n");
+                    } else if (!authenticated) {
+                        writer.write("KO: unknown command, try 'help'\r\n");
+                    } else if (command.equals("avd status")) {
+                        writer.write("virtual device is running\r\nOK\r\n");
+                    } else if (command.equals("avd snapshot save clean")) {
+                        writer.write("OK\r\n");
+                    } else if (command.equals("avd snapshot load missing")) {
+                        writer.write("KO: Snapshot with name 'missing' does not exist\r\n");
+                    } else if (command.equals("avd snapshot list")) {
+                        writer.write("List of snapshots present on all disks:\r\n" +
+                                "ID        TAG                 VM SIZE                DATE       VM CLOCK\r\n" +
+                                "--        default_boot           129M 2023-05-01 10:00:00   00:00:21.102\r\n" +
+                                "--        clean                  131M 2023-05-01 10:01:00   00:00:35.000\r\n" +
+                                "OK\r\n");
+                    } else if (command.equals("kill")) {
+                        writer.write("OK: killing emulator, bye bye\r\n");
+                        writer.flush();
+                        return;
+                    } else {
+                        writer.write("KO: unknown command, try 'help'\r\n");
+                    }
+                    writer.flush();
+                }
+            } catch (final IOException e) {
+                // The server socket was closed by the test
+            }
+        });
+        serverThread.start();
+    }
+
+    @Test
+    void testAuthenticatesAndRunsCommands() throws IOException {
+        startFakeConsole(AUTH_BANNER);
+        try (EmulatorConsole console = new EmulatorConsole(serverSocket.getLocalPort(), authTokenFile)) {
+            assertEquals("virtual device is running", console.getStatus());
+            console.saveSnapshot("clean");
+            assertEquals(Arrays.asList("default_boot", "clean"), console.listSnapshots());
+        }
+        assertEquals(Arrays.asList("auth s3cr3t", "avd status", "avd snapshot save clean", "avd snapshot list"),
+                receivedCommands);
+    }
+
+    @Test
+    void testNoAuthenticationRequired() throws IOException {
+        startFakeConsole("Android Console: type 'help' for a list of commands\r\nOK\r\n");
+        try (EmulatorConsole console = new EmulatorConsole(serverSocket.getLocalPort(), authTokenFile)) {
+            assertEquals("virtual device is running", console.getStatus());
+        }
+        assertEquals(Collections.singletonList("avd status"), receivedCommands);
+    }
+
+    @Test
+    void testCommandFailure() throws IOException {
+        startFakeConsole(AUTH_BANNER);
+        try (EmulatorConsole console = new EmulatorConsole(serverSocket.getLocalPort(), authTokenFile)) {
+            final IOException e = assertThrows(IOException.class, () -> console.loadSnapshot("missing"));
+            assertEquals("Emulator console command failed: KO: Snapshot with name 'missing' does not exist",
+                    e.getMessage());
+            // The console remains usable after a failed command
+            assertEquals("virtual device is running", console.getStatus());
+        }
+    }
+
+    @Test
+    void testKill() throws IOException {
+        startFakeConsole(AUTH_BANNER);
+        try (EmulatorConsole console = new EmulatorConsole(serverSocket.getLocalPort(), authTokenFile)) {
+            console.kill();
+            assertThrows(IOException.class, console::getStatus);
+        }
+    }
+
+    @Test
+    void testMissingAuthToken() {
+        startFakeConsole(AUTH_BANNER);
+        assertTrue(authTokenFile.delete());
+        final IOException e = assertThrows(IOException.class,
+                () -> new EmulatorConsole(serverSocket.getLocalPort(), authTokenFile).close());
+        assertTrue(e.getMessage().contains("does not exist"));
+    }
+
+    @Test
+    void testParseSnapshotListWithoutSnapshots() {
+        assertEquals(Collections.emptyList(), EmulatorConsole.parseSnapshotList(
+                Collections.singletonList("There is no snapshot available")));
+    }
+}
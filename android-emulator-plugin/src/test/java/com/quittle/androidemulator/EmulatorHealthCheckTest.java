@@ -0,0 +1,55 @@
+package com.quittle.androidemulator;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EmulatorHealthCheckTest {
+    @Test
+    void testHealthy() {
+        final EmulatorHealthCheck healthCheck = new EmulatorHealthCheck(3, 5);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(Optional.empty(), healthCheck.poll(true, () -> true));
+        }
+    }
+
+    @Test
+    void testCrashed() {
+        final EmulatorHealthCheck healthCheck = new EmulatorHealthCheck(3, 5);
+        assertEquals(Optional.of("crashed"), healthCheck.poll(false, () -> {
+            throw new AssertionError("A crashed emulator isn't asked whether it's online");
+        }));
+    }
+
+    @Test
+    void testOffline() {
+        final EmulatorHealthCheck healthCheck = new EmulatorHealthCheck(3, 5);
+        assertEquals(Optional.empty(), healthCheck.poll(true, () -> false));
+        assertEquals(Optional.empty(), healthCheck.poll(true, () -> false));
+        assertEquals(Optional.of("has been offline for 15 seconds"), healthCheck.poll(true, () -> false));
+    }
+
+    @Test
+    void testBrieflyOffline() {
+        final EmulatorHealthCheck healthCheck = new EmulatorHealthCheck(3, 5);
+        // Loading a snapshot takes the emulator offline for a moment
+        assertEquals(Optional.empty(), healthCheck.poll(true, () -> false));
+        assertEquals(Optional.empty(), healthCheck.poll(true, () -> false));
+        assertEquals(Optional.empty(), healthCheck.poll(true, () -> true));
+        assertEquals(Optional.empty(), healthCheck.poll(true, () -> false));
+        assertEquals(Optional.empty(), healthCheck.poll(true, () -> false));
+    }
+
+    @Test
+    void testReset() {
+        final EmulatorHealthCheck healthCheck = new EmulatorHealthCheck(2, 5);
+        assertEquals(Optional.empty(), healthCheck.poll(true, () -> false));
+        assertEquals(Optional.of("has been offline for 10 seconds"), healthCheck.poll(true, () -> false));
+
+        // The replacement gets the full grace period
+        healthCheck.reset();
+        assertEquals(Optional.empty(), healthCheck.poll(true, () -> false));
+    }
+}
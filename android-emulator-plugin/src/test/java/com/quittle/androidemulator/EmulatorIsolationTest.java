@@ -0,0 +1,137 @@
+package com.quittle.androidemulator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EmulatorIsolationTest {
+    @TempDir
+    File tempDir;
+
+    @Test
+    void testParseAndFormatCpuList() {
+        assertEquals(Arrays.asList(0, 1, 2, 3, 8, 10, 11), EmulatorIsolation.parseCpuList(" 0-3,8,10-11\n"));
+        assertEquals("0-3,8,10-11", EmulatorIsolation.formatCpuList(Arrays.asList(11, 0, 1, 2, 3, 8, 10)));
+        assertEquals("5", EmulatorIsolation.formatCpuList(Collections.singletonList(5)));
+    }
+
+    @Test
+    void testSiblingsStayTogether() {
+        // 8 physical cores with 2 threads each, where the second thread of core n is logical core n + 8
+        final Map<Integer, Long> coreIds = new HashMap<>();
+        for (int cpu = 0; cpu < 16; cpu++) {
+            coreIds.put(cpu, EmulatorIsolation.coreId(0, cpu % 8));
+        }
+        final List<Integer> ordered = EmulatorIsolation.orderCpus(EmulatorIsolation.parseCpuList("0-15"), coreIds);
+        assertEquals(Arrays.asList(0, 8, 1, 9, 2, 10, 3, 11), ordered.subList(0, 8));
+
+        // The first physical core is left to Gradle and each emulator gets whole physical cores
+        assertEquals(Arrays.asList(1, 9, 2, 10), EmulatorIsolation.assignCpus(ordered, coreIds, 0, 3));
+        assertEquals(Arrays.asList(3, 11, 4, 12), EmulatorIsolation.assignCpus(ordered, coreIds, 1, 3));
+        assertEquals(Arrays.asList(5, 13, 6, 14), EmulatorIsolation.assignCpus(ordered, coreIds, 2, 3));
+    }
+
+    @Test
+    void testCpuSetsStartWithAssignedSet() {
+        final List<Integer> cpus = EmulatorIsolation.parseCpuList("0-11");
+        // 2 cores are left to Gradle, leaving 3 sets of 3 cores for 3 emulators
+        assertEquals(Arrays.asList(
+                Arrays.asList(5, 6, 7),
+                Arrays.asList(8, 9, 10),
+                Arrays.asList(2, 3, 4)),
+                EmulatorIsolation.cpuSets(cpus, Collections.emptyMap(), 1, 3));
+        // Rounding down leaves room for a set more than the build needs
+        assertEquals(Arrays.asList(
+                Arrays.asList(2, 3, 4, 5, 6),
+                Arrays.asList(7, 8, 9, 10, 11)),
+                EmulatorIsolation.cpuSets(EmulatorIsolation.parseCpuList("0-11"), Collections.emptyMap(), 0, 2));
+    }
+
+    @Test
+    void testCpuSetsOfSharedCores() {
+        final List<Integer> cpus = EmulatorIsolation.parseCpuList("0-3");
+        assertEquals(Arrays.asList(
+                Collections.singletonList(3),
+                Collections.singletonList(1),
+                Collections.singletonList(2)),
+                EmulatorIsolation.cpuSets(cpus, Collections.emptyMap(), 2, 5));
+    }
+
+    @Test
+    void testOrdersByPackage() {
+        final Map<Integer, Long> coreIds = new HashMap<>();
+        coreIds.put(0, EmulatorIsolation.coreId(1, 0));
+        coreIds.put(1, EmulatorIsolation.coreId(0, 5));
+        coreIds.put(2, EmulatorIsolation.coreId(0, 0));
+        assertEquals(Arrays.asList(2, 1, 0, 3),
+                EmulatorIsolation.orderCpus(Arrays.asList(0, 1, 2, 3), coreIds));
+    }
+
+    @Test
+    void testSingleEmulatorGetsAllButReservedCores() {
+        final List<Integer> cpus = EmulatorIsolation.parseCpuList("0-3");
+        assertEquals(Arrays.asList(1, 2, 3), EmulatorIsolation.assignCpus(cpus, Collections.emptyMap(), 0, 1));
+    }
+
+    @Test
+    void testMoreEmulatorsThanCoresShareCores() {
+        final List<Integer> cpus = EmulatorIsolation.parseCpuList("0-3");
+        assertEquals(Collections.singletonList(1), EmulatorIsolation.assignCpus(cpus, Collections.emptyMap(), 0, 5));
+        assertEquals(Collections.singletonList(3), EmulatorIsolation.assignCpus(cpus, Collections.emptyMap(), 2, 5));
+        assertEquals(Collections.singletonList(2), EmulatorIsolation.assignCpus(cpus, Collections.emptyMap(), 4, 5));
+    }
+
+    @Test
+    void testSingleCoreHost() {
+        assertEquals(Collections.singletonList(0),
+                EmulatorIsolation.assignCpus(Collections.singletonList(0), Collections.emptyMap(), 0, 2));
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    void testCgroupScript() throws IOException, InterruptedException {
+        final File procs = new File(tempDir, "cgroup.procs");
+        assertTrue(procs.createNewFile());
+        final File output = new File(tempDir, "output");
+        assertEquals(0, runCgroupScript(procs, output));
+        assertEquals("started", readTrimmed(output));
+        // The shell's pid, which the emulator takes on by replacing the shell
+        assertTrue(readTrimmed(procs).matches("\\d+"));
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    void testCgroupScriptStartsEmulatorWhenMoveFails() throws IOException, InterruptedException {
+        final File procs = new File(tempDir, "missing" + File.separator + "cgroup.procs");
+        final File output = new File(tempDir, "output");
+        assertEquals(0, runCgroupScript(procs, output));
+        assertEquals("Unable to move the emulator into cgroup " + procs.getAbsolutePath() + "\nstarted",
+                readTrimmed(output));
+    }
+
+    private static int runCgroupScript(final File procs, final File output) throws IOException, InterruptedException {
+        final Process process = new ProcessBuilder("sh", "-c", EmulatorIsolation.CGROUP_SCRIPT,
+                procs.getAbsolutePath(), "echo", "started")
+                .redirectErrorStream(true)
+                .redirectOutput(output)
+                .start();
+        return process.waitFor();
+    }
+
+    private static String readTrimmed(final File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+    }
+}
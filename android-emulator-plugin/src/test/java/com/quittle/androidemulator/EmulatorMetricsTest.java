@@ -0,0 +1,102 @@
+package com.quittle.androidemulator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EmulatorMetricsTest {
+    @Test
+    void testPrometheusText() {
+        final EmulatorMetrics metrics = new EmulatorMetrics();
+        final EmulatorMetrics.Emulator emulator = metrics.forEmulator("pixel");
+        assertSame(emulator, metrics.forEmulator("pixel"));
+
+        emulator.bootQueued();
+        emulator.bootAdmitted(Duration.ofMillis(500));
+        emulator.recordBootRetry();
+        emulator.recordBoot(Duration.ofSeconds(25));
+        emulator.recordBoot(Duration.ofSeconds(1000));
+        emulator.recordReadinessWait(Duration.ofMillis(4500));
+        emulator.busy();
+        emulator.recordTest(InstrumentationResultParser.TestStatus.PASSED);
+        emulator.recordTest(InstrumentationResultParser.TestStatus.PASSED);
+        emulator.recordTest(InstrumentationResultParser.TestStatus.FAILED);
+
+        final String text = metrics.format(EmulatorMetrics.Format.PROMETHEUS_TEXT);
+        assertTrue(text.contains("# TYPE android_emulator_boot_seconds histogram\n"));
+        assertTrue(text.contains("android_emulator_boot_seconds_bucket{emulator=\"pixel\",le=\"20.0\"} 0.0\n"));
+        assertTrue(text.contains("android_emulator_boot_seconds_bucket{emulator=\"pixel\",le=\"30.0\"} 1.0\n"));
+        assertTrue(text.contains("android_emulator_boot_seconds_bucket{emulator=\"pixel\",le=\"600.0\"} 1.0\n"));
+        assertTrue(text.contains("android_emulator_boot_seconds_bucket{emulator=\"pixel\",le=\"+Inf\"} 2.0\n"));
+        assertTrue(text.contains("android_emulator_boot_seconds_sum{emulator=\"pixel\"} 1025.0\n"));
+        assertTrue(text.contains("android_emulator_boot_seconds_count{emulator=\"pixel\"} 2.0\n"));
+        assertTrue(text.contains("android_emulator_boot_queue_wait_seconds_sum{emulator=\"pixel\"} 0.5\n"));
+        assertTrue(text.contains("# TYPE android_emulator_readiness_wait_seconds histogram\n"));
+        assertTrue(text.contains(
+                "android_emulator_readiness_wait_seconds_bucket{emulator=\"pixel\",le=\"2.0\"} 0.0\n"));
+        assertTrue(text.contains(
+                "android_emulator_readiness_wait_seconds_bucket{emulator=\"pixel\",le=\"5.0\"} 1.0\n"));
+        assertTrue(text.contains("android_emulator_readiness_wait_seconds_sum{emulator=\"pixel\"} 4.5\n"));
+        assertTrue(text.contains("android_emulator_boots_queued{emulator=\"pixel\"} 0.0\n"));
+        assertTrue(text.contains("# TYPE android_emulator_boot_retries_total counter\n"));
+        assertTrue(text.contains("android_emulator_boot_retries_total{emulator=\"pixel\"} 1.0\n"));
+        assertTrue(text.contains("android_emulator_boot_failures_total{emulator=\"pixel\"} 0.0\n"));
+        assertTrue(text.contains("android_emulator_running{emulator=\"pixel\"} 0.0\n"));
+        assertTrue(text.contains("android_emulator_busy{emulator=\"pixel\"} 1.0\n"));
+        assertTrue(text.contains("android_emulator_tests_total{emulator=\"pixel\",result=\"passed\"} 2.0\n"));
+        assertTrue(text.contains("android_emulator_tests_total{emulator=\"pixel\",result=\"failed\"} 1.0\n"));
+        // Only reported while the emulator runs
+        assertFalse(text.contains("android_emulator_cpu_seconds_total{"));
+        assertFalse(text.contains("# EOF"));
+    }
+
+    @Test
+    void testResidentBytesSkipsExitedProcesses() {
+        assertEquals(Optional.of(3072L), EmulatorMetrics.residentBytes(Stream.of(
+                Optional.of(new ProcessResourceUsage(0, 1024, 0, 0)),
+                Optional.empty(),
+                Optional.of(new ProcessResourceUsage(0, 2048, 0, 0)))));
+        assertEquals(Optional.empty(), EmulatorMetrics.residentBytes(Stream.of(Optional.empty())));
+    }
+
+    @Test
+    void testOpenMetrics() {
+        final EmulatorMetrics metrics = new EmulatorMetrics();
+        metrics.forEmulator("a \"quoted\" name").recordBootFailure();
+
+        final String text = metrics.format(EmulatorMetrics.Format.OPEN_METRICS);
+        assertTrue(text.contains("# TYPE android_emulator_boot_failures counter\n"));
+        assertTrue(text.contains("android_emulator_boot_failures_total{emulator=\"a \\\"quoted\\\" name\"} 1.0\n"));
+        assertTrue(text.endsWith("# EOF\n"));
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    void testTracksRunningProcess() throws Exception {
+        final EmulatorMetrics metrics = new EmulatorMetrics();
+        final Process process = new ProcessBuilder("sleep", "30").start();
+        try {
+            metrics.forEmulator("pixel").track(() -> process, () -> 2);
+            final String text = metrics.format(EmulatorMetrics.Format.PROMETHEUS_TEXT);
+            assertTrue(text.contains("android_emulator_running{emulator=\"pixel\"} 1.0\n"));
+            assertTrue(text.contains("android_emulator_replacements_total{emulator=\"pixel\"} 2.0\n"));
+            assertTrue(text.contains("android_emulator_cpu_seconds_total{emulator=\"pixel\"} "));
+        } finally {
+            process.destroyForcibly();
+        }
+    }
+
+    @Test
+    void testAcceptsOpenMetrics() {
+        assertTrue(MetricsExporter.acceptsOpenMetrics(
+                "application/openmetrics-text;version=1.0.0,text/plain;version=0.0.4;q=0.5,*/*;q=0.1"));
+        assertFalse(MetricsExporter.acceptsOpenMetrics("text/plain"));
+        assertFalse(MetricsExporter.acceptsOpenMetrics(null));
+    }
+}
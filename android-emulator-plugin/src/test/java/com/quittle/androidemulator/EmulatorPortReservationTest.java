@@ -0,0 +1,69 @@
+package com.quittle.androidemulator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EmulatorPortReservationTest {
+    @TempDir
+    File tempDir;
+
+    @Test
+    void testReservedPortsAreNotReservedAgain() throws IOException {
+        final File directory = new File(tempDir, "ports");
+        final EmulatorPortReservation first = EmulatorPortReservation.reserve(directory, Collections.emptySet());
+        final EmulatorPortReservation second = EmulatorPortReservation.reserve(directory, Collections.emptySet());
+        assertNotEquals(first.getPort(), second.getPort());
+        assertEquals(0, first.getPort() % 2);
+        assertTrue(new File(directory, "port-" + first.getPort()).isFile());
+        assertSame(first, EmulatorPortReservation.reserved(first.getPort()).get());
+
+        first.close();
+        // Closing twice does nothing
+        first.close();
+        assertFalse(EmulatorPortReservation.reserved(first.getPort()).isPresent());
+        assertSame(second, EmulatorPortReservation.reserved(second.getPort()).get());
+
+        second.close();
+    }
+
+    @Test
+    void testPortsInUseAreSkipped() throws IOException {
+        final File directory = new File(tempDir, "ports");
+        final int skipped;
+        try (EmulatorPortReservation reservation = EmulatorPortReservation.reserve(directory, Collections.emptySet())) {
+            skipped = reservation.getPort();
+        }
+
+        final Set<Integer> portsInUse = new HashSet<>(Collections.singleton(skipped));
+        try (EmulatorPortReservation reservation = EmulatorPortReservation.reserve(directory, portsInUse)) {
+            assertNotEquals(skipped, reservation.getPort());
+        }
+    }
+
+    @Test
+    void testBoundPortsAreSkipped() throws IOException {
+        final File directory = new File(tempDir, "ports");
+        final int bound;
+        try (EmulatorPortReservation reservation = EmulatorPortReservation.reserve(directory, Collections.emptySet())) {
+            bound = reservation.getPort();
+        }
+
+        // Bound by an emulator that didn't reserve its port, the ADB port after the console port is taken too
+        try (ServerSocket socket = new ServerSocket(bound + 1, 1, InetAddress.getLoopbackAddress());
+                EmulatorPortReservation reservation =
+                        EmulatorPortReservation.reserve(directory, Collections.emptySet())) {
+            assertEquals(bound + 1, socket.getLocalPort());
+            assertNotEquals(bound, reservation.getPort());
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.quittle.androidemulator;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Stands in for the emulator binary in tests that launch emulators. It serves the console on the port passed with
+ * {@code -port}, replying {@code OK} to every command, and exits once sent {@code kill}. Each line it receives is
+ * appended to {@code <port>.log} in the directory named by the {@code FAKE_EMULATOR_LOG} environment variable, after a
+ * line of {@code boot <ANDROID_AVD_HOME>} written on launch. While the console is being served, {@code <port>.ready}
+ * exists in the same directory, which {@link #ADB_SCRIPT} waits for the way ADB waits for the emulator to boot.
+ */
+final class FakeEmulator {
+    static final String LOG_DIRECTORY_VARIABLE = "FAKE_EMULATOR_LOG";
+    /**
+     * A shell script standing in for ADB, which only ever waits for the fake emulator of the serial after {@code -s}.
+     */
+    static final List<String> ADB_SCRIPT = Collections.unmodifiableList(Arrays.asList(
+            "#!/bin/sh",
+            "port=${2#emulator-}",
+            "while [ ! -f \"$FAKE_EMULATOR_LOG/$port.ready\" ]; do sleep 0.1; done"));
+    // Keeps a fake left behind by a failed test from running forever
+    private static final int IDLE_EXIT_MS = 120_000;
+
+    private FakeEmulator() {}
+
+    /**
+     * @return A shell script standing in for the SDK's emulator, which launches the fake with its arguments.
+     */
+    static List<String> emulatorScript() {
+        final File classes;
+        try {
+            classes = new File(FakeEmulator.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (final URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+        return Arrays.asList(
+                "#!/bin/sh",
+                "exec '" + new File(System.getProperty("java.home"), "bin" + File.separator + "java").getAbsolutePath() +
+                        "' -cp '" + classes.getAbsolutePath() + "' " + FakeEmulator.class.getName() + " \"$@\"");
+    }
+
+    /**
+     * @param logDirectory The directory the fakes log to.
+     * @param port         The port of the fake.
+     * @return The lines the fake on the port has logged so far.
+     */
+    static List<String> readLog(final File logDirectory, final int port) throws IOException {
+        final File log = new File(logDirectory, port + ".log");
+        return log.isFile() ? Files.readAllLines(log.toPath(), StandardCharsets.UTF_8) : Collections.emptyList();
+    }
+
+    public static void main(final String[] args) throws IOException {
+        final int port = Integer.parseInt(args[Arrays.asList(args).indexOf("-port") + 1]);
+        final File log = new File(System.getenv(LOG_DIRECTORY_VARIABLE), port + ".log");
+        final File ready = new File(System.getenv(LOG_DIRECTORY_VARIABLE), port + ".ready");
+        try (ServerSocket serverSocket = new ServerSocket(port, 1, InetAddress.getLoopbackAddress())) {
+            serverSocket.setSoTimeout(IDLE_EXIT_MS);
+            append(log, "boot " + System.getenv("ANDROID_AVD_HOME"));
+            Files.createFile(ready.toPath());
+            serve(serverSocket, log);
+        } finally {
+            Files.deleteIfExists(ready.toPath());
+        }
+    }
+
+    private static void serve(final ServerSocket serverSocket, final File log) throws IOException {
+        while (true) {
+            try (Socket socket = serverSocket.accept()) {
+                final BufferedReader reader =
+                        new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                final Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+                writer.write("Android Console: type 'help' for a list of commands\r\nOK\r\n");
+                writer.flush();
+                String command = reader.readLine();
+                while (command != null) {
+                    append(log, command);
+                    writer.write("OK\r\n");
+                    writer.flush();
+                    if (command.equals("kill")) {
+                        return;
+                    }
+                    command = reader.readLine();
+                }
+            } catch (final SocketTimeoutException e) {
+                return;
+            }
+        }
+    }
+
+    private static void append(final File log, final String line) throws IOException {
+        Files.write(log.toPath(), Collections.singletonList(line), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+}
@@ -0,0 +1,57 @@
+package com.quittle.androidemulator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FatalEmulatorOutputTest {
+    @Test
+    void testMatch() {
+        assertEquals(FatalEmulatorOutput.INVALID_ARGUMENTS,
+                FatalEmulatorOutput.match("ERROR   | Invalid command-line parameter: fake."));
+        assertEquals(FatalEmulatorOutput.INVALID_ARGUMENTS,
+                FatalEmulatorOutput.match("emulator: ERROR: unknown option: -fake"));
+        assertEquals(FatalEmulatorOutput.UNKNOWN_AVD,
+                FatalEmulatorOutput.match("PANIC: Unknown AVD name [generated-android-21_x86-default], use -list-avds to see valid list."));
+        assertEquals(FatalEmulatorOutput.MISSING_ACCELERATION,
+                FatalEmulatorOutput.match("ERROR   | x86_64 emulation currently requires hardware acceleration!"));
+        assertEquals(FatalEmulatorOutput.AVD_IN_USE,
+                FatalEmulatorOutput.match("ERROR   | Running multiple emulators with the same AVD is an experimental feature."));
+        assertEquals(FatalEmulatorOutput.SNAPSHOT_FAILURE,
+                FatalEmulatorOutput.match("qemu-system-x86_64: error while loading state for instance 0x0 of device 'ram'"));
+        assertEquals(FatalEmulatorOutput.PANIC,
+                FatalEmulatorOutput.match("FATAL   | Broken AVD system path"));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "",
+            "INFO    | Android emulator version 31.3.14.0",
+            "emulator: INFO: boot completed",
+            "[    0.000000] Unknown kernel command line parameters \"skip_initramfs\", will be passed to user space.",
+    })
+    void testNoMatch(final String line) {
+        assertNull(FatalEmulatorOutput.match(line));
+    }
+
+    @Test
+    void testRecoverable() {
+        assertFalse(FatalEmulatorOutput.INVALID_ARGUMENTS.recoverable);
+        assertFalse(FatalEmulatorOutput.MISSING_ACCELERATION.recoverable);
+        assertTrue(FatalEmulatorOutput.AVD_IN_USE.recoverable);
+        assertTrue(FatalEmulatorOutput.SNAPSHOT_FAILURE.recoverable);
+    }
+
+    @Test
+    void testBootRecoveryEscalation() {
+        assertEquals(BootRecovery.NONE, BootRecovery.forAttempt(1));
+        assertEquals(BootRecovery.COLD_BOOT, BootRecovery.forAttempt(2));
+        assertEquals(BootRecovery.WIPE_DATA, BootRecovery.forAttempt(3));
+        assertEquals(BootRecovery.WIPE_DATA, BootRecovery.forAttempt(10));
+        assertFalse(BootRecovery.NONE.clearLocks);
+        assertTrue(BootRecovery.NONE.getEmulatorArguments().isEmpty());
+        assertTrue(BootRecovery.WIPE_DATA.getEmulatorArguments().contains("-wipe-data"));
+    }
+}
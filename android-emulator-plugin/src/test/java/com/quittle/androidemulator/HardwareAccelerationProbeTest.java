@@ -0,0 +1,152 @@
+package com.quittle.androidemulator;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Uses a shell script standing in for the emulator binary.
+ */
+@DisabledOnOs(OS.WINDOWS)
+class HardwareAccelerationProbeTest {
+    private static final String KVM_USABLE = "accel:\n0\nKVM (version 12) is installed and usable.\naccel\n";
+    private static final String KVM_MISSING =
+            "accel:\n9\n/dev/kvm is not found: VT disabled in BIOS or KVM kernel module not loaded\naccel\n";
+
+    @TempDir
+    File tempDir;
+
+    private File emulator;
+    private File cacheFile;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        final File emulatorDir = new File(tempDir, "emulator");
+        assertTrue(emulatorDir.mkdirs());
+        emulator = new File(emulatorDir, "emulator");
+        cacheFile = new File(tempDir, "cache/acceleration-probe.properties");
+        writeRevision("31.3.14");
+    }
+
+    @Test
+    void testAccelerated() throws IOException {
+        writeEmulator(KVM_USABLE, 0);
+        final HardwareAccelerationProbe.Result result = newProbe(null).probe();
+        assertTrue(result.accelerated);
+        assertEquals("KVM", result.accelerator);
+        assertEquals("KVM (version 12) is installed and usable.", result.description);
+    }
+
+    @Test
+    void testSoftwareOnly() throws IOException {
+        writeEmulator(KVM_MISSING, 1);
+        final HardwareAccelerationProbe.Result result = newProbe(null).probe();
+        assertFalse(result.accelerated);
+        assertEquals("TCG", result.accelerator);
+        assertTrue(result.description.contains("/dev/kvm is not found"));
+    }
+
+    @Test
+    void testCachedPerRevision() throws IOException {
+        writeEmulator(KVM_USABLE, 0);
+        assertTrue(newProbe(null).probe().accelerated);
+        assertTrue(cacheFile.isFile());
+
+        // The emulator isn't run again for the same revision
+        writeEmulator(KVM_MISSING, 1);
+        assertTrue(newProbe(null).probe().accelerated);
+
+        writeRevision("32.1.0");
+        assertFalse(newProbe(null).probe().accelerated);
+    }
+
+    @Test
+    void testSoftwareOnlyNotCached() throws IOException {
+        writeEmulator(KVM_MISSING, 1);
+        assertFalse(newProbe(null).probe().accelerated);
+        assertFalse(cacheFile.exists());
+
+        // Loading the KVM module is picked up without updating the emulator
+        writeEmulator(KVM_USABLE, 0);
+        assertTrue(newProbe(null).probe().accelerated);
+        assertTrue(cacheFile.isFile());
+    }
+
+    @Test
+    void testCachedSoftwareOnlyIgnored() throws IOException {
+        assertTrue(cacheFile.getParentFile().mkdirs());
+        Files.write(cacheFile.toPath(), ("emulator=" + emulator.getAbsolutePath() + "\nrevision=31.3.14\n" +
+                "accelerated=false\naccelerator=TCG\n").getBytes(StandardCharsets.UTF_8));
+        writeEmulator(KVM_USABLE, 0);
+        assertTrue(newProbe(null).probe().accelerated);
+    }
+
+    @Test
+    void testHungCheckTimesOut() throws IOException {
+        // Keeps its output open without ever finishing it
+        Files.write(emulator.toPath(), "#!/bin/sh\nprintf 'accel:\\n'\nsleep 60\n".getBytes(StandardCharsets.UTF_8));
+        assertTrue(emulator.setExecutable(true));
+
+        final long start = System.nanoTime();
+        final HardwareAccelerationProbe.Result result =
+                new HardwareAccelerationProbe(emulator, cacheFile, null, Collections.emptyMap(), 500).probe();
+        assertTrue(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) < 30);
+        assertFalse(result.accelerated);
+        assertEquals("Timed out running emulator -accel-check", result.description);
+        assertFalse(cacheFile.exists());
+    }
+
+    @Test
+    void testInaccessibleKvmDevice() throws IOException {
+        writeEmulator(KVM_USABLE, 0);
+        final File kvmDevice = new File(tempDir, "kvm");
+        assertTrue(kvmDevice.createNewFile());
+
+        assertTrue(newProbe(kvmDevice).probe().accelerated);
+
+        assertTrue(kvmDevice.setWritable(false));
+        // Running as root ignores file permissions
+        if (!kvmDevice.canWrite()) {
+            final HardwareAccelerationProbe.Result result = newProbe(kvmDevice).probe();
+            assertFalse(result.accelerated);
+            assertTrue(result.description.contains(kvmDevice.toString()));
+        }
+    }
+
+    @Test
+    void testParseAccelCheckHypervisorFramework() {
+        final HardwareAccelerationProbe.Result result = HardwareAccelerationProbe.parseAccelCheck(0,
+                "accel:\n0\nHypervisor.Framework OS X Version 13.0\naccel\n");
+        assertTrue(result.accelerated);
+        assertEquals("HVF", result.accelerator);
+    }
+
+    private HardwareAccelerationProbe newProbe(final File kvmDevice) {
+        return new HardwareAccelerationProbe(emulator, cacheFile, kvmDevice, Collections.emptyMap());
+    }
+
+    private void writeEmulator(final String output, final int exitCode) throws IOException {
+        final String script = "#!/bin/sh\n" +
+                "[ \"$1\" = '-accel-check' ] || exit 2\n" +
+                "printf '" + output.replace("\n", "\\n") + "'\n" +
+                "exit " + exitCode + "\n";
+        Files.write(emulator.toPath(), script.getBytes(StandardCharsets.UTF_8));
+        assertTrue(emulator.setExecutable(true));
+    }
+
+    private void writeRevision(final String revision) throws IOException {
+        Files.write(new File(emulator.getParentFile(), "source.properties").toPath(),
+                ("Pkg.Revision=" + revision + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+}
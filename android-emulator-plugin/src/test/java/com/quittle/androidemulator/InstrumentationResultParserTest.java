@@ -0,0 +1,139 @@
+package com.quittle.androidemulator;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InstrumentationResultParserTest {
+    private final List<String> events = new ArrayList<>();
+    private long now = 0;
+    private InstrumentationResultParser parser;
+
+    @BeforeEach
+    void setUp() {
+        parser = new InstrumentationResultParser(new InstrumentationResultParser.Listener() {
+            @Override
+            public void testStarted(final String className, final String testName) {
+                events.add("started " + className + "#" + testName);
+            }
+
+            @Override
+            public void testEnded(
+                    final String className,
+                    final String testName,
+                    final InstrumentationResultParser.TestStatus status,
+                    final String stackTrace,
+                    final long elapsedMillis) {
+                events.add("ended " + className + "#" + testName + " " + status + " " + elapsedMillis +
+                        (stackTrace == null ? "" : " " + stackTrace));
+            }
+
+            @Override
+            public void runFailed(final String message) {
+                events.add("failed " + message);
+            }
+        }, () -> now);
+    }
+
+    @Test
+    void testPassingAndFailingTests() {
+        addLines(
+                "INSTRUMENTATION_STATUS: class=com.example.ATest",
+                "INSTRUMENTATION_STATUS: current=1",
+                "INSTRUMENTATION_STATUS: numtests=2",
+                "INSTRUMENTATION_STATUS: stream=",
+                "com.example.ATest:",
+                "INSTRUMENTATION_STATUS: test=testPasses",
+                "INSTRUMENTATION_STATUS_CODE: 1");
+        assertEquals(Arrays.asList("started com.example.ATest#testPasses"), events);
+
+        now = 150;
+        addLines(
+                "INSTRUMENTATION_STATUS: class=com.example.ATest",
+                "INSTRUMENTATION_STATUS: test=testPasses",
+                "INSTRUMENTATION_STATUS_CODE: 0");
+        // Reported as soon as the test completes
+        assertEquals("ended com.example.ATest#testPasses PASSED 150", events.get(1));
+
+        addLines(
+                "INSTRUMENTATION_STATUS: class=com.example.ATest",
+                "INSTRUMENTATION_STATUS: test=testFails",
+                "INSTRUMENTATION_STATUS_CODE: 1");
+        now = 200;
+        addLines(
+                "INSTRUMENTATION_STATUS: class=com.example.ATest",
+                "INSTRUMENTATION_STATUS: stack=java.lang.AssertionError: expected",
+                "\tat com.example.ATest.testFails(ATest.java:10)",
+                "",
+                "INSTRUMENTATION_STATUS: test=testFails",
+                "INSTRUMENTATION_STATUS_CODE: -2",
+                "INSTRUMENTATION_RESULT: stream=",
+                "",
+                "Time: 0.2",
+                "",
+                "FAILURES!!!",
+                "INSTRUMENTATION_CODE: -1");
+        parser.done();
+
+        assertEquals("ended com.example.ATest#testFails FAILED 50 java.lang.AssertionError: expected\n" +
+                "\tat com.example.ATest.testFails(ATest.java:10)\n", events.get(3));
+        assertEquals(4, events.size());
+        assertTrue(parser.isRunSuccessful());
+    }
+
+    @Test
+    void testIgnoredTest() {
+        addLines(
+                "INSTRUMENTATION_STATUS: class=com.example.ATest",
+                "INSTRUMENTATION_STATUS: test=testIgnored",
+                "INSTRUMENTATION_STATUS_CODE: 1",
+                "INSTRUMENTATION_STATUS: class=com.example.ATest",
+                "INSTRUMENTATION_STATUS: test=testIgnored",
+                "INSTRUMENTATION_STATUS_CODE: -3",
+                "INSTRUMENTATION_CODE: -1");
+        assertEquals("ended com.example.ATest#testIgnored IGNORED 0", events.get(1));
+    }
+
+    @Test
+    void testProcessCrash() {
+        addLines(
+                "INSTRUMENTATION_STATUS: class=com.example.ATest",
+                "INSTRUMENTATION_STATUS: test=testCrashes",
+                "INSTRUMENTATION_STATUS_CODE: 1",
+                "INSTRUMENTATION_RESULT: shortMsg=Process crashed.",
+                "INSTRUMENTATION_CODE: 0");
+        parser.done();
+        assertEquals("failed Instrumentation finished with code 0: Process crashed.", events.get(1));
+        assertFalse(parser.isRunSuccessful());
+    }
+
+    @Test
+    void testOutputEndsEarly() {
+        addLines(
+                "INSTRUMENTATION_STATUS: class=com.example.ATest",
+                "INSTRUMENTATION_STATUS: test=testHangs",
+                "INSTRUMENTATION_STATUS_CODE: 1");
+        parser.done();
+        assertEquals("failed Instrumentation ended while running com.example.ATest#testHangs", events.get(1));
+        assertFalse(parser.isRunSuccessful());
+    }
+
+    @Test
+    void testInstrumentationNotFound() {
+        addLines("INSTRUMENTATION_FAILED: com.example.test/androidx.test.runner.AndroidJUnitRunner");
+        parser.done();
+        assertEquals(Arrays.asList(
+                "failed Instrumentation failed: com.example.test/androidx.test.runner.AndroidJUnitRunner"), events);
+    }
+
+    private void addLines(final String... lines) {
+        for (final String line : lines) {
+            parser.addLine(line);
+        }
+    }
+}
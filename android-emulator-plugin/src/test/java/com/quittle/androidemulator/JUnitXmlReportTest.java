@@ -0,0 +1,80 @@
+package com.quittle.androidemulator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JUnitXmlReportTest {
+    @TempDir
+    File tempDir;
+
+    @Test
+    void testWritesTestsAsTheyComplete() throws IOException {
+        final File file = new File(tempDir, "results/TEST-emulator-5554.xml");
+        try (JUnitXmlReport report = new JUnitXmlReport(file, "emulator-5554")) {
+            report.testEnded("com.example.ATest", "testPasses",
+                    InstrumentationResultParser.TestStatus.PASSED, null, 1500);
+            assertTrue(read(file).contains(
+                    "<testcase name=\"testPasses\" classname=\"com.example.ATest\" time=\"1.500\"/>"));
+
+            report.testEnded("com.example.ATest", "testFails",
+                    InstrumentationResultParser.TestStatus.FAILED, "java.lang.AssertionError: 1 < 2\n\tat x", 20);
+            report.testEnded("com.example.BTest", "testSkipped",
+                    InstrumentationResultParser.TestStatus.IGNORED, null, 0);
+            assertEquals(3, report.getTestCount());
+            assertEquals(1, report.getFailureCount());
+            assertFalse(report.isRunFailed());
+        }
+
+        final String xml = read(file);
+        assertTrue(xml.contains("<failure message=\"java.lang.AssertionError: 1 &lt; 2\">"));
+        assertTrue(xml.contains("<skipped/>"));
+        assertTrue(xml.endsWith("</testsuite>\n"));
+
+        // The report is readable as results for the timing history
+        final Map<String, Long> durations = TestTimingHistory.readJUnitResults(tempDir);
+        assertEquals(Long.valueOf(1520), durations.get("com.example.ATest"));
+        assertEquals(Long.valueOf(0), durations.get("com.example.BTest"));
+    }
+
+    @Test
+    void testRunFailed() throws IOException {
+        final File file = new File(tempDir, "TEST-emulator-5556.xml");
+        try (JUnitXmlReport report = new JUnitXmlReport(file, "emulator-5556")) {
+            report.runFailed("Process crashed.");
+            assertTrue(report.isRunFailed());
+        }
+        assertTrue(read(file).contains("<error message=\"Process crashed.\"/>"));
+    }
+
+    @Test
+    void testRerunAfterRunFailed() throws IOException {
+        final File file = new File(tempDir, "TEST-emulator-5558.xml");
+        try (JUnitXmlReport report = new JUnitXmlReport(file, "emulator-5558")) {
+            report.runFailed("Process crashed.");
+            report.startRun();
+            report.testEnded("com.example.ATest", "testPasses",
+                    InstrumentationResultParser.TestStatus.PASSED, null, 10);
+            // Only the latest run counts, but the crash stays in the report
+            assertFalse(report.isRunFailed());
+            assertEquals(0, report.getFailureCount());
+        }
+        assertTrue(read(file).contains("<error message=\"Process crashed.\"/>"));
+    }
+
+    @Test
+    void testEscape() {
+        assertEquals("a &amp; &quot;b&quot; &lt;c&gt;\n", JUnitXmlReport.escape("a & \"b\" <c>\n\u0000"));
+    }
+
+    private static String read(final File file) throws IOException {
+        return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    }
+}
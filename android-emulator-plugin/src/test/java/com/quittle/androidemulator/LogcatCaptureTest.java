@@ -0,0 +1,147 @@
+package com.quittle.androidemulator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LogcatCaptureTest {
+    // The header size of the current format, which includes the log id and uid
+    private static final int HEADER_SIZE = 28;
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    void testStartTime() {
+        assertEquals("10-19 05:29:26.000", LogcatCapture.startTime(Collections.singletonList("10-19 05:29:26.000\r")));
+        assertEquals("10-19 05:29:26.000",
+                LogcatCapture.startTime(Arrays.asList("WARNING: linker: unused DT entry", "10-19 05:29:26.000")));
+        // Starts from the latest entry if the device's clock can't be read
+        assertEquals("1", LogcatCapture.startTime(Collections.singletonList("/system/bin/sh: date: not found")));
+        assertEquals("1", LogcatCapture.startTime(Collections.emptyList()));
+    }
+
+    @Test
+    void testExtractsFailedTest() throws IOException {
+        final ByteArrayOutputStream log = new ByteArrayOutputStream();
+        log.write(entry(HEADER_SIZE, 'I', "ActivityManager", "Start proc com.example"));
+        log.write(entry(HEADER_SIZE, 'I', "TestRunner", "started: testPasses(com.example.ATest)"));
+        log.write(entry(HEADER_SIZE, 'D', "Example", "passing"));
+        log.write(entry(HEADER_SIZE, 'I', "TestRunner", "finished: testPasses(com.example.ATest)"));
+        log.write(entry(HEADER_SIZE, 'I', "TestRunner", "started: testFails(com.example.ATest)"));
+        log.write(entry(HEADER_SIZE, 'E', "Example", "first line\nsecond line"));
+        log.write(entry(HEADER_SIZE, 'I', "TestRunner", "finished: testFails(com.example.ATest)"));
+        log.write(entry(HEADER_SIZE, 'W', "Example", "after"));
+
+        final LogcatCapture capture = pumpAndClose(log.toByteArray());
+        assertEquals(Collections.emptyList(), capture.getUnfinishedTests());
+
+        final File extracted = new File(tempDir, "logcat/com.example.ATest#testFails.txt");
+        assertTrue(capture.extract("com.example.ATest", "testFails", extracted));
+        final List<String> lines = Files.readAllLines(extracted.toPath(), StandardCharsets.UTF_8);
+        assertEquals(4, lines.size());
+        assertTrue(lines.get(0).endsWith(" 1234  5678 I TestRunner: started: testFails(com.example.ATest)"), lines.get(0));
+        assertTrue(lines.get(1).endsWith(" E Example: first line"), lines.get(1));
+        assertTrue(lines.get(2).endsWith(" E Example: second line"), lines.get(2));
+        assertTrue(lines.get(3).endsWith(" I TestRunner: finished: testFails(com.example.ATest)"), lines.get(3));
+
+        assertFalse(capture.extract("com.example.ATest", "testNeverRan", new File(tempDir, "missing.txt")));
+        assertFalse(new File(tempDir, "missing.txt").exists());
+    }
+
+    @Test
+    void testCrashedTest() throws IOException {
+        final ByteArrayOutputStream log = new ByteArrayOutputStream();
+        // The original format without a header size
+        log.write(entry(0, 'I', "TestRunner", "started: testCrashes(com.example.ATest)"));
+        log.write(entry(0, 'F', "libc", "Fatal signal 11 (SIGSEGV)"));
+
+        final LogcatCapture capture = pumpAndClose(log.toByteArray());
+        assertEquals(Collections.singletonList("com.example.ATest#testCrashes"), capture.getUnfinishedTests());
+
+        final File extracted = new File(tempDir, "crash.txt");
+        assertTrue(capture.extract("com.example.ATest", "testCrashes", extracted));
+        final List<String> lines = Files.readAllLines(extracted.toPath(), StandardCharsets.UTF_8);
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(1).endsWith(" F libc: Fatal signal 11 (SIGSEGV)"), lines.get(1));
+    }
+
+    @Test
+    void testRecordsLogAsIs() throws IOException {
+        final ByteArrayOutputStream log = new ByteArrayOutputStream();
+        for (int i = 0; i < 1000; i++) {
+            log.write(entry(HEADER_SIZE, 'V', "Spam", "message " + i));
+        }
+        // A partial entry from the recording being stopped
+        log.write(entry(HEADER_SIZE, 'V', "Spam", "partial"), 0, 10);
+
+        pumpAndClose(log.toByteArray());
+        assertArrayEquals(log.toByteArray(), Files.readAllBytes(new File(tempDir, "logcat.bin").toPath()));
+    }
+
+    /**
+     * Records the log, returning it a few bytes at a time so entries are split between reads.
+     */
+    private LogcatCapture pumpAndClose(final byte[] log) throws IOException {
+        final ByteBuffer remaining = ByteBuffer.wrap(log);
+        final ReadableByteChannel source = new ReadableByteChannel() {
+            @Override
+            public int read(final ByteBuffer destination) {
+                if (!remaining.hasRemaining()) {
+                    return -1;
+                }
+                final int length = Math.min(Math.min(7, remaining.remaining()), destination.remaining());
+                for (int i = 0; i < length; i++) {
+                    destination.put(remaining.get());
+                }
+                return length;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+                // Nothing to close
+            }
+        };
+        final LogcatCapture capture = new LogcatCapture(source, new File(tempDir, "logcat.bin"), () -> { });
+        capture.pump();
+        capture.close();
+        return capture;
+    }
+
+    private static byte[] entry(final int headerSize, final char priority, final String tag, final String message) {
+        final byte[] tagBytes = tag.getBytes(StandardCharsets.UTF_8);
+        final byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
+        final int payloadLength = 1 + tagBytes.length + 1 + messageBytes.length + 1;
+        final int actualHeaderSize = headerSize == 0 ? 20 : headerSize;
+        final ByteBuffer entry = ByteBuffer.allocate(actualHeaderSize + payloadLength).order(ByteOrder.LITTLE_ENDIAN);
+        entry.putShort((short) payloadLength)
+                .putShort((short) headerSize)
+                .putInt(1234)
+                .putInt(5678)
+                .putInt(1_700_000_000)
+                .putInt(123_000_000);
+        entry.position(actualHeaderSize);
+        entry.put((byte) "??VDIWEFS".indexOf(priority))
+                .put(tagBytes).put((byte) 0)
+                .put(messageBytes).put((byte) 0);
+        return entry.array();
+    }
+}
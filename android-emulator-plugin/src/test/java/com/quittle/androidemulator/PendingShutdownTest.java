@@ -0,0 +1,123 @@
+package com.quittle.androidemulator;
+
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Uses {@code sleep} processes standing in for the emulator's.
+ */
+@DisabledOnOs(OS.WINDOWS)
+class PendingShutdownTest {
+    private static final long AWAIT_TIMEOUT_MS = 10_000;
+    private static final Logger LOGGER = Logging.getLogger(PendingShutdownTest.class);
+
+    @TempDir
+    File tempDir;
+
+    private final List<Process> processes = new ArrayList<>();
+
+    @AfterEach
+    void tearDown() {
+        processes.forEach(Process::destroyForcibly);
+    }
+
+    private Process sleep(final int seconds) throws IOException {
+        final Process process = new ProcessBuilder("sleep", String.valueOf(seconds)).start();
+        processes.add(process);
+        return process;
+    }
+
+    private static long startTime(final Process process) {
+        return process.info().startInstant().map(Instant::toEpochMilli).orElse(-1L);
+    }
+
+    private File marker(final String... lines) throws IOException {
+        final File marker = new File(tempDir, "pixel.shutdown-pending");
+        Files.write(marker.toPath(), Arrays.asList(lines), StandardCharsets.UTF_8);
+        return marker;
+    }
+
+    @Test
+    void testStaleMarkerIsRemoved() throws IOException, InterruptedException {
+        final Process exited = sleep(0);
+        assertTrue(exited.waitFor(AWAIT_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        final File marker = marker(exited.pid() + " " + startTime(exited), "not a pid");
+
+        PendingShutdown.awaitCompletion(marker, AWAIT_TIMEOUT_MS, LOGGER);
+        assertFalse(marker.exists());
+    }
+
+    @Test
+    void testReusedPidIsIgnored() throws IOException {
+        // The process now using the pid started after the one listed
+        final Process process = sleep(60);
+        final File marker = marker(process.pid() + " " + (startTime(process) - 60_000));
+
+        final long start = System.nanoTime();
+        PendingShutdown.awaitCompletion(marker, AWAIT_TIMEOUT_MS, LOGGER);
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < AWAIT_TIMEOUT_MS);
+        assertFalse(marker.exists());
+        assertTrue(process.isAlive());
+        assertEquals(Optional.empty(),
+                PendingShutdown.parseLine(process.pid() + " " + (startTime(process) - 60_000)));
+    }
+
+    @Test
+    void testWaitsForListedProcesses() throws IOException, InterruptedException {
+        final Process process = sleep(1);
+        final File marker = marker(process.pid() + " " + startTime(process));
+
+        PendingShutdown.awaitCompletion(marker, AWAIT_TIMEOUT_MS, LOGGER);
+        assertFalse(process.isAlive());
+        assertFalse(marker.exists());
+    }
+
+    @Test
+    void testKillsProcessesAfterTimeout() throws IOException, InterruptedException {
+        final Process process = sleep(60);
+        final File marker = marker(process.pid() + " " + startTime(process));
+
+        PendingShutdown.awaitCompletion(marker, 200, LOGGER);
+        assertTrue(process.waitFor(AWAIT_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertFalse(marker.exists());
+    }
+
+    @Test
+    void testBeginReapsInBackground() throws IOException, InterruptedException {
+        final Process process = sleep(1);
+        final File marker = new File(tempDir, "pixel.shutdown-pending");
+        final CountDownLatch exited = new CountDownLatch(1);
+
+        PendingShutdown.begin(process, marker, LOGGER, exited::countDown);
+        assertEquals(Collections.singletonList(process.pid() + " " + startTime(process)),
+                Files.readAllLines(marker.toPath(), StandardCharsets.UTF_8));
+
+        assertTrue(exited.await(AWAIT_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertFalse(process.isAlive());
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(AWAIT_TIMEOUT_MS);
+        while (marker.exists() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(marker.exists());
+    }
+}
@@ -0,0 +1,43 @@
+package com.quittle.androidemulator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+
+import java.util.Arrays;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProcessResourceUsageTest {
+    @Test
+    void testParseCpuMillis() {
+        // utime of 250 and stime of 125 ticks, with a command name containing spaces and parentheses
+        assertEquals(3750, ProcessResourceUsage.parseCpuMillis(
+                "1234 (qemu (x86) 64) S 1 1234 1234 0 -1 4194560 100 0 0 0 250 125 0 0 20 0 12 0 5000 " +
+                        "4000000000 500000 18446744073709551615 0 0 0 0 0 0 0 0 0 0 0 0 17 3 0 0 0 0 0"));
+    }
+
+    @Test
+    void testParseFields() {
+        assertEquals(2048L * 1024, ProcessResourceUsage.parseKibField(Arrays.asList(
+                "Name:\tqemu-system-x86",
+                "VmPeak:\t 4096 kB",
+                "VmRSS:\t    2048 kB"), "VmRSS:"));
+        assertEquals(4096, ProcessResourceUsage.parseField(Arrays.asList(
+                "rchar: 100000",
+                "read_bytes: 4096",
+                "write_bytes: 8192"), "read_bytes:"));
+        assertEquals(0, ProcessResourceUsage.parseField(Arrays.asList("rchar: 100000"), "write_bytes:"));
+    }
+
+    @Test
+    @EnabledOnOs(OS.LINUX)
+    void testReadsCurrentProcess() {
+        final Optional<ProcessResourceUsage> usage = ProcessResourceUsage.read(ProcessHandle.current().pid());
+        assertTrue(usage.isPresent());
+        assertTrue(usage.get().getResidentBytes() > 0);
+        assertTrue(usage.get().getCpuMillis() > 0);
+        assertFalse(ProcessResourceUsage.read(-1).isPresent());
+    }
+}
@@ -0,0 +1,50 @@
+package com.quittle.androidemulator;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RamDiskAvdTest {
+    private static final long MB = 1024 * 1024;
+
+    @Test
+    void testCheckRoom_fits() {
+        assertEquals(Optional.empty(), RamDiskAvd.checkRoom(4096 * MB, 3584 * MB, 1024 * MB, 8192 * MB, 10000 * MB));
+    }
+
+    @Test
+    void testCheckRoom_ramDiskTooSmall() {
+        assertEquals(Optional.of("2048 MB of the RAM disk is free but 4096 MB is needed"),
+                RamDiskAvd.checkRoom(4096 * MB, 3584 * MB, 1024 * MB, 2048 * MB, 32768 * MB));
+    }
+
+    @Test
+    void testCheckRoom_notEnoughMemoryForEmulator() {
+        // The AVD fits on the RAM disk but would leave too little memory for the emulator itself
+        assertEquals(Optional.of("8000 MB of memory is available but 8704 MB is needed"),
+                RamDiskAvd.checkRoom(4096 * MB, 3584 * MB, 1024 * MB, 8192 * MB, 8000 * MB));
+    }
+
+    @Test
+    void testCheckRoom_unknownMemory() {
+        assertEquals(Optional.empty(), RamDiskAvd.checkRoom(4096 * MB, 3584 * MB, 1024 * MB, 8192 * MB, -1));
+    }
+
+    @Test
+    void testRewriteIni() {
+        final File avdDirectory = new File("/dev/shm/android-emulator-plugin-1234abcd-pixel/pixel.avd");
+        assertEquals(Arrays.asList(
+                "path=" + avdDirectory.getAbsolutePath(),
+                "avd.ini.encoding=UTF-8",
+                "target=android-30"),
+                RamDiskAvd.rewriteIni(Arrays.asList(
+                        "avd.ini.encoding=UTF-8",
+                        "path=/project/build/android-avd-root/pixel.avd",
+                        "path.rel=avd/pixel.avd",
+                        "target=android-30"), avdDirectory));
+    }
+}
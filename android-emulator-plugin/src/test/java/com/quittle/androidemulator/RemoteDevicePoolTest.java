@@ -0,0 +1,244 @@
+package com.quittle.androidemulator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.DisabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RemoteDevicePoolTest {
+    // Stand-ins for two hosts, as local emulators reachable on different loopback addresses
+    private static final String HOST_A_1 = "127.0.0.1:5555";
+    private static final String HOST_A_2 = "127.0.0.1:5557";
+    private static final String HOST_A_3 = "127.0.0.1:5559";
+    private static final String HOST_B_1 = "127.0.0.2:5555";
+    private static final String HOST_B_2 = "127.0.0.2:5557";
+    private static final List<String> ENDPOINTS = Arrays.asList(HOST_A_1, HOST_A_2, HOST_A_3, HOST_B_1, HOST_B_2);
+    private static final long TIMEOUT_SECONDS = 60;
+
+    @TempDir
+    File tempDir;
+
+    private static Map<String, RemoteDevicePool.LeaseState> states(final RemoteDevicePool.LeaseState... states) {
+        final Map<String, RemoteDevicePool.LeaseState> map = new HashMap<>();
+        for (int i = 0; i < states.length; i++) {
+            map.put(ENDPOINTS.get(i), states[i]);
+        }
+        return map;
+    }
+
+    @Test
+    void testRankFreeEndpointsKeepsOrderWhenIdle() {
+        assertEquals(ENDPOINTS, RemoteDevicePool.rankFreeEndpoints(ENDPOINTS, states(
+                RemoteDevicePool.LeaseState.FREE,
+                RemoteDevicePool.LeaseState.FREE,
+                RemoteDevicePool.LeaseState.FREE,
+                RemoteDevicePool.LeaseState.FREE,
+                RemoteDevicePool.LeaseState.FREE)));
+    }
+
+    @Test
+    void testRankFreeEndpointsPrefersLeastLoadedHost() {
+        // Host A has 1 of 3 leased while host B has 1 of 2
+        assertEquals(Arrays.asList(HOST_A_2, HOST_A_3, HOST_B_2), RemoteDevicePool.rankFreeEndpoints(ENDPOINTS, states(
+                RemoteDevicePool.LeaseState.LEASED,
+                RemoteDevicePool.LeaseState.FREE,
+                RemoteDevicePool.LeaseState.FREE,
+                RemoteDevicePool.LeaseState.LEASED,
+                RemoteDevicePool.LeaseState.FREE)));
+
+        // Host A has 2 of 3 leased while host B has 1 of 2
+        assertEquals(Arrays.asList(HOST_B_2, HOST_A_3), RemoteDevicePool.rankFreeEndpoints(ENDPOINTS, states(
+                RemoteDevicePool.LeaseState.LEASED,
+                RemoteDevicePool.LeaseState.LEASED,
+                RemoteDevicePool.LeaseState.FREE,
+                RemoteDevicePool.LeaseState.LEASED,
+                RemoteDevicePool.LeaseState.FREE)));
+    }
+
+    @Test
+    void testRankFreeEndpointsBreaksTiesByLeasedCount() {
+        final List<String> endpoints = Arrays.asList(HOST_A_1, HOST_A_2, HOST_B_1, HOST_B_2, "127.0.0.2:5559",
+                "127.0.0.2:5561");
+        final Map<String, RemoteDevicePool.LeaseState> states = new HashMap<>();
+        states.put(HOST_A_1, RemoteDevicePool.LeaseState.LEASED);
+        states.put(HOST_A_2, RemoteDevicePool.LeaseState.FREE);
+        states.put(HOST_B_1, RemoteDevicePool.LeaseState.LEASED);
+        states.put(HOST_B_2, RemoteDevicePool.LeaseState.LEASED);
+        states.put("127.0.0.2:5559", RemoteDevicePool.LeaseState.FREE);
+        states.put("127.0.0.2:5561", RemoteDevicePool.LeaseState.FREE);
+
+        // Both hosts are half leased, but host A has fewer devices busy
+        assertEquals(Arrays.asList(HOST_A_2, "127.0.0.2:5559", "127.0.0.2:5561"),
+                RemoteDevicePool.rankFreeEndpoints(endpoints, states));
+    }
+
+    @Test
+    void testRankFreeEndpointsIgnoresUnreachable() {
+        // Unreachable devices don't count towards their host's load
+        assertEquals(Arrays.asList(HOST_A_3, HOST_B_2), RemoteDevicePool.rankFreeEndpoints(ENDPOINTS, states(
+                RemoteDevicePool.LeaseState.UNREACHABLE,
+                RemoteDevicePool.LeaseState.UNREACHABLE,
+                RemoteDevicePool.LeaseState.FREE,
+                RemoteDevicePool.LeaseState.LEASED,
+                RemoteDevicePool.LeaseState.FREE)));
+
+        assertEquals(Collections.emptyList(),
+                RemoteDevicePool.rankFreeEndpoints(ENDPOINTS, Collections.emptyMap()));
+    }
+
+    @Test
+    void testHost() {
+        assertEquals("127.0.0.1", RemoteDevicePool.host(HOST_A_1));
+        assertEquals("device-host.example.com", RemoteDevicePool.host("device-host.example.com:5555"));
+        assertEquals("[::1]", RemoteDevicePool.host("[::1]:5555"));
+        assertEquals("device-host", RemoteDevicePool.host("device-host"));
+    }
+
+    @Test
+    void testParseLeaseState() {
+        assertEquals(RemoteDevicePool.LeaseState.FREE, RemoteDevicePool.parseLeaseState("free", 60));
+        assertEquals(RemoteDevicePool.LeaseState.LEASED, RemoteDevicePool.parseLeaseState("leased 0", 60));
+        assertEquals(RemoteDevicePool.LeaseState.LEASED, RemoteDevicePool.parseLeaseState("leased 60\r", 60));
+        assertEquals(RemoteDevicePool.LeaseState.FREE, RemoteDevicePool.parseLeaseState("leased 61", 60));
+        assertEquals(RemoteDevicePool.LeaseState.UNREACHABLE, RemoteDevicePool.parseLeaseState("leased", 60));
+        assertEquals(RemoteDevicePool.LeaseState.UNREACHABLE, RemoteDevicePool.parseLeaseState("leased x", 60));
+        assertEquals(RemoteDevicePool.LeaseState.UNREACHABLE,
+                RemoteDevicePool.parseLeaseState("/system/bin/sh: stat: not found", 60));
+    }
+
+    @Test
+    void testProbeScriptReadsLeaseDirectory() {
+        final String script = RemoteDevicePool.probeScript();
+        assertTrue(script.contains("[ -d " + RemoteDevicePool.LEASE_DIRECTORY + " ]"), script);
+        assertTrue(script.contains("echo free"), script);
+        assertTrue(script.contains("echo leased"), script);
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    void testLeaseFlow() throws IOException, InterruptedException {
+        // The temporary directory stands in for the device's
+        final String lease = new File(tempDir, "lease").getAbsolutePath();
+
+        assertEquals("free", shell(RemoteDevicePool.probeScript(lease)));
+        assertEquals("acquired", shell(RemoteDevicePool.leaseScript(lease, "build-a", TIMEOUT_SECONDS)));
+        assertEquals(RemoteDevicePool.LeaseState.LEASED,
+                RemoteDevicePool.parseLeaseState(shell(RemoteDevicePool.probeScript(lease)), TIMEOUT_SECONDS));
+
+        // Only the build holding the lease renews or releases it
+        assertEquals("", shell(RemoteDevicePool.leaseScript(lease, "build-b", TIMEOUT_SECONDS)));
+        shell(RemoteDevicePool.releaseScript(lease, "build-b"));
+        assertEquals("build-a", owner(lease));
+        expire(lease);
+        shell(RemoteDevicePool.renewScript(lease, "build-a"));
+        assertEquals(RemoteDevicePool.LeaseState.LEASED,
+                RemoteDevicePool.parseLeaseState(shell(RemoteDevicePool.probeScript(lease)), TIMEOUT_SECONDS));
+
+        shell(RemoteDevicePool.releaseScript(lease, "build-a"));
+        assertEquals("free", shell(RemoteDevicePool.probeScript(lease)));
+        assertEquals("acquired", shell(RemoteDevicePool.leaseScript(lease, "build-b", TIMEOUT_SECONDS)));
+        assertEquals("build-b", owner(lease));
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    void testBreaksExpiredLease() throws IOException, InterruptedException {
+        final String lease = new File(tempDir, "lease").getAbsolutePath();
+        assertEquals("acquired", shell(RemoteDevicePool.leaseScript(lease, "build-a", TIMEOUT_SECONDS)));
+        expire(lease);
+        assertEquals(RemoteDevicePool.LeaseState.FREE,
+                RemoteDevicePool.parseLeaseState(shell(RemoteDevicePool.probeScript(lease)), TIMEOUT_SECONDS));
+
+        assertEquals("acquired", shell(RemoteDevicePool.leaseScript(lease, "build-b", TIMEOUT_SECONDS)));
+        assertEquals("build-b", owner(lease));
+
+        // The build that lost its lease can't take it back
+        shell(RemoteDevicePool.renewScript(lease, "build-a"));
+        shell(RemoteDevicePool.releaseScript(lease, "build-a"));
+        assertEquals("build-b", owner(lease));
+        assertEquals(Collections.singletonList("lease"), Arrays.asList(tempDir.list()));
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    void testBreaksExpiredLeaseLeftMarkedByDeadBuild() throws IOException, InterruptedException {
+        final String lease = new File(tempDir, "lease").getAbsolutePath();
+        assertEquals("acquired", shell(RemoteDevicePool.leaseScript(lease, "build-a", TIMEOUT_SECONDS)));
+        final File marker = new File(lease, "breaking");
+        assertTrue(marker.mkdir());
+        expire(lease);
+
+        // Another build may still be breaking the lease
+        Files.setLastModifiedTime(marker.toPath(), FileTime.fromMillis(System.currentTimeMillis()));
+        assertEquals("", shell(RemoteDevicePool.leaseScript(lease, "build-b", TIMEOUT_SECONDS)));
+
+        expire(marker.getAbsolutePath());
+        assertEquals("acquired", shell(RemoteDevicePool.leaseScript(lease, "build-b", TIMEOUT_SECONDS)));
+        assertEquals("build-b", owner(lease));
+    }
+
+    @Test
+    @DisabledOnOs(OS.WINDOWS)
+    void testOnlyOneBuildBreaksExpiredLease() throws IOException, InterruptedException {
+        final String lease = new File(tempDir, "lease").getAbsolutePath();
+        assertEquals("acquired", shell(RemoteDevicePool.leaseScript(lease, "build-dead", TIMEOUT_SECONDS)));
+        for (int round = 0; round < 10; round++) {
+            expire(lease);
+            final List<Process> builds = new ArrayList<>();
+            for (int build = 0; build < 4; build++) {
+                builds.add(new ProcessBuilder("sh", "-c",
+                        RemoteDevicePool.leaseScript(lease, "build-" + build, TIMEOUT_SECONDS)).start());
+            }
+            final List<String> winners = new ArrayList<>();
+            for (int build = 0; build < builds.size(); build++) {
+                if (read(builds.get(build)).equals("acquired")) {
+                    winners.add("build-" + build);
+                }
+            }
+            assertEquals(1, winners.size());
+            assertEquals(winners.get(0), owner(lease));
+        }
+    }
+
+    private static String shell(final String script) throws IOException, InterruptedException {
+        return read(new ProcessBuilder("sh", "-c", script).start());
+    }
+
+    private static String read(final Process process) throws IOException, InterruptedException {
+        try (InputStream stdout = process.getInputStream()) {
+            final String output = new String(stdout.readAllBytes(), StandardCharsets.UTF_8).trim();
+            assertTrue(process.waitFor(10, TimeUnit.SECONDS));
+            return output;
+        }
+    }
+
+    private static String owner(final String lease) throws IOException {
+        return new String(Files.readAllBytes(new File(lease, "owner").toPath()), StandardCharsets.UTF_8).trim();
+    }
+
+    private static void expire(final String lease) throws IOException {
+        final FileTime expired =
+                FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS * 2));
+        final File owner = new File(lease, "owner");
+        if (owner.exists()) {
+            Files.setLastModifiedTime(owner.toPath(), expired);
+        }
+        Files.setLastModifiedTime(new File(lease).toPath(), expired);
+    }
+}
@@ -0,0 +1,98 @@
+package com.quittle.androidemulator;
+
+import org.gradle.api.logging.Logging;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledOnOs;
+import org.junit.jupiter.api.condition.OS;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResourceSamplerTest {
+    @TempDir
+    File tempDir;
+
+    @Test
+    void testSeries() throws IOException {
+        final StringWriter output = new StringWriter();
+        final Map<Long, ProcessResourceUsage> initial = new HashMap<>();
+        initial.put(1L, new ProcessResourceUsage(10_000, 1024 * 1024, 0, 0));
+        final long start = 0;
+        final ResourceSampler.Series series;
+        try (BufferedWriter writer = new BufferedWriter(output)) {
+            series = new ResourceSampler.Series(writer, start, initial);
+
+            // The emulator used a core and a half and started a child process
+            final Map<Long, ProcessResourceUsage> first = new HashMap<>();
+            first.put(1L, new ProcessResourceUsage(11_000, 3 * 1024 * 1024, 1024 * 1024, 0));
+            first.put(2L, new ProcessResourceUsage(500, 1024 * 1024, 0, 2 * 1024 * 1024));
+            series.add(first, TimeUnit.SECONDS.toNanos(1), 1000);
+
+            // The child exited, which doesn't make the totals go backwards
+            final Map<Long, ProcessResourceUsage> second = new HashMap<>();
+            second.put(1L, new ProcessResourceUsage(11_500, 2 * 1024 * 1024, 1024 * 1024, 0));
+            series.add(second, TimeUnit.SECONDS.toNanos(2), 2000);
+        }
+
+        assertEquals(String.join(System.lineSeparator(),
+                "1000,150.0,4194304,1048576,2097152,2",
+                "2000,50.0,2097152,0,0,1",
+                ""), output.toString());
+        assertEquals(100.0, series.getAverageCpuPercent());
+        assertEquals("pixel: 2 samples, CPU average 100.0% peak 150.0%, RSS average 3.0 MiB peak 4.0 MiB, " +
+                "read 1.0 MiB, written 2.0 MiB", series.summarize("pixel"));
+    }
+
+    @Test
+    @EnabledOnOs(OS.LINUX)
+    void testSamplesProcesses() throws Exception {
+        final Process process = new ProcessBuilder("sleep", "30").start();
+        try {
+            final Map<String, Supplier<Process>> emulators = new LinkedHashMap<>();
+            emulators.put("running", () -> process);
+            emulators.put("stopped", () -> null);
+            final ResourceSampler sampler = new ResourceSampler(emulators, 50, Logging.getLogger(getClass()));
+            final File outputDir = new File(tempDir, "connectedDebugAndroidTest");
+            sampler.start(outputDir);
+            Thread.sleep(300);
+            sampler.stop();
+            // Stopping again does nothing
+            sampler.stop();
+
+            final List<String> running = Files.readAllLines(new File(outputDir, "running.csv").toPath(), StandardCharsets.UTF_8);
+            assertEquals("elapsed_ms,cpu_percent,rss_bytes,read_bytes,write_bytes,processes", running.get(0));
+            assertTrue(running.size() > 2);
+            assertTrue(running.get(1).endsWith(",1"));
+            final List<String> stopped = Files.readAllLines(new File(outputDir, "stopped.csv").toPath(), StandardCharsets.UTF_8);
+            assertTrue(stopped.get(1).endsWith(",0.0,0,0,0,0"));
+
+            final List<String> summary = Files.readAllLines(
+                    new File(outputDir, ResourceSampler.SUMMARY_FILE_NAME).toPath(), StandardCharsets.UTF_8);
+            assertTrue(summary.get(0).startsWith("2 emulators sampled every 50 ms on a host with "));
+            assertTrue(summary.get(1).startsWith("running: "));
+            assertTrue(summary.get(3).startsWith("Total: CPU average "));
+
+            // Starting again replaces the previous samples
+            sampler.start(outputDir);
+            sampler.stop();
+            assertEquals(Collections.singletonList("elapsed_ms,cpu_percent,rss_bytes,read_bytes,write_bytes,processes"),
+                    Files.readAllLines(new File(outputDir, "running.csv").toPath(), StandardCharsets.UTF_8));
+        } finally {
+            process.destroyForcibly();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.quittle.androidemulator;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestShardPlanTest {
+    @Test
+    void testLongestFirst() {
+        final TestTimingHistory history = historyOf("A", 70L, "B", 50L, "C", 40L, "D", 30L, "E", 10L);
+        final TestShardPlan plan = TestShardPlan.plan(Arrays.asList("E", "D", "C", "B", "A"), 2, history);
+
+        // A(70) -> 0, B(50) -> 1, C(40) -> 1, D(30) -> 0, E(10) -> 1
+        assertEquals(Arrays.asList("A", "D"), plan.getShard(0));
+        assertEquals(Arrays.asList("B", "C", "E"), plan.getShard(1));
+        assertEquals(100, plan.getPredictedMillis(0));
+        assertEquals(100, plan.getPredictedMillis(1));
+        assertEquals(100, plan.getPredictedMakespanMillis());
+    }
+
+    @Test
+    void testUnknownClassesSpreadByCount() {
+        final TestTimingHistory history = historyOf("Known", 100L);
+        final TestShardPlan plan = TestShardPlan.plan(Arrays.asList("Known", "U1", "U2", "U3", "U4"), 3, history);
+
+        // Ties between shards with as many unknown classes go to the shard with the least known work
+        assertEquals(Arrays.asList("Known", "U3"), plan.getShard(0));
+        assertEquals(Arrays.asList("U1", "U4"), plan.getShard(1));
+        assertEquals(Arrays.asList("U2"), plan.getShard(2));
+        assertEquals(1, plan.getUnknownClassCount(0));
+        assertEquals(2, plan.getUnknownClassCount(1));
+        assertEquals(100, plan.getPredictedMakespanMillis());
+    }
+
+    @Test
+    void testNoHistory() {
+        final TestShardPlan plan =
+                TestShardPlan.plan(Arrays.asList("A", "B", "C"), 2, new TestTimingHistory());
+        assertEquals(Arrays.asList("A", "C"), plan.getShard(0));
+        assertEquals(Arrays.asList("B"), plan.getShard(1));
+        assertEquals(0, plan.getPredictedMakespanMillis());
+    }
+
+    @Test
+    void testMoreShardsThanClasses() {
+        final TestShardPlan plan = TestShardPlan.plan(Collections.singletonList("A"), 3, historyOf("A", 5L));
+        assertEquals(3, plan.getShardCount());
+        assertTrue(plan.getShard(1).isEmpty());
+        assertTrue(plan.getShard(2).isEmpty());
+    }
+
+    @Test
+    void testInvalidShardCount() {
+        assertThrows(IllegalArgumentException.class,
+                () -> TestShardPlan.plan(Collections.singletonList("A"), 0, new TestTimingHistory()));
+    }
+
+    @Test
+    void testActualMakespan() {
+        final TestShardPlan plan = TestShardPlan.plan(Arrays.asList("A", "B", "C"), 2, historyOf("A", 60L, "B", 30L, "C", 20L));
+        final Map<String, Long> run = historyOf("A", 50L, "B", 45L, "C", 25L).getDurations();
+
+        assertEquals(50, plan.getActualMillis(0, run));
+        assertEquals(70, plan.getActualMillis(1, run));
+        assertEquals(70, plan.getActualMakespanMillis(run));
+
+        final List<String> report = plan.formatReport(run);
+        assertEquals("Predicted makespan: 60 ms, actual makespan: 70 ms", report.get(0));
+        assertTrue(report.contains("    C 25 ms"));
+    }
+
+    private static TestTimingHistory historyOf(final Object... classesAndMillis) {
+        final Map<String, Long> durations = new HashMap<>();
+        for (int i = 0; i < classesAndMillis.length; i += 2) {
+            durations.put((String) classesAndMillis[i], (Long) classesAndMillis[i + 1]);
+        }
+        final TestTimingHistory history = new TestTimingHistory();
+        history.record(durations);
+        return history;
+    }
+}
@@ -0,0 +1,98 @@
+package com.quittle.androidemulator;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.OptionalLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TestTimingHistoryTest {
+    @TempDir
+    File tempDir;
+
+    @Test
+    void testLoadMissing() throws IOException {
+        final TestTimingHistory history = TestTimingHistory.load(new File(tempDir, "missing.txt"));
+        assertTrue(history.getDurations().isEmpty());
+    }
+
+    @Test
+    void testSaveAndLoad() throws IOException {
+        final TestTimingHistory history = new TestTimingHistory();
+        final Map<String, Long> run = new HashMap<>();
+        run.put("com.example.FastTest", 120L);
+        run.put("com.example.SlowTest", 45_000L);
+        history.record(run);
+
+        final File file = new File(tempDir, "history/test-timings.txt");
+        history.save(file);
+
+        final TestTimingHistory loaded = TestTimingHistory.load(file);
+        assertEquals(OptionalLong.of(120), loaded.getDurationMillis("com.example.FastTest"));
+        assertEquals(OptionalLong.of(45_000), loaded.getDurationMillis("com.example.SlowTest"));
+        assertEquals(OptionalLong.empty(), loaded.getDurationMillis("com.example.NewTest"));
+    }
+
+    @Test
+    void testRecordAveragesWithPrevious() {
+        final TestTimingHistory history = new TestTimingHistory();
+        history.record(Collections.singletonMap("com.example.Test", 1000L));
+        history.record(Collections.singletonMap("com.example.Test", 3000L));
+        assertEquals(OptionalLong.of(2000), history.getDurationMillis("com.example.Test"));
+    }
+
+    @Test
+    void testParseSkipsCorruptLines() {
+        final TestTimingHistory history = TestTimingHistory.parse(Arrays.asList(
+                "# <duration in milliseconds> <test class>",
+                "100 com.example.A",
+                "garbage",
+                "abc com.example.B",
+                "",
+                "200 com.example.C"));
+        assertEquals(2, history.getDurations().size());
+        assertEquals(OptionalLong.of(100), history.getDurationMillis("com.example.A"));
+        assertEquals(OptionalLong.of(200), history.getDurationMillis("com.example.C"));
+    }
+
+    @Test
+    void testReadJUnitResults() throws IOException {
+        writeResult("pixel-api24/TEST-pixel-api24-app-.xml",
+                "<testcase name='a' classname='com.example.ATest' time='1.5'/>" +
+                "<testcase name='b' classname='com.example.ATest' time='0.25'/>" +
+                "<testcase name='c' classname='com.example.BTest' time='2'/>");
+        writeResult("pixel-api34/TEST-pixel-api34-app-.xml",
+                "<testcase name='a' classname='com.example.ATest' time='1'/>" +
+                "<testcase name='b' classname='com.example.ATest' time='0.5'/>" +
+                "<testcase name='c' classname='com.example.BTest' time='3.25'/>");
+        writeResult("pixel-api34/not-a-result.xml", "<testcase name='x' classname='com.example.XTest' time='9'/>");
+
+        final Map<String, Long> durations = TestTimingHistory.readJUnitResults(tempDir);
+        assertEquals(2, durations.size());
+        // The slowest device is used for each class
+        assertEquals(Long.valueOf(1750), durations.get("com.example.ATest"));
+        assertEquals(Long.valueOf(3250), durations.get("com.example.BTest"));
+    }
+
+    @Test
+    void testReadJUnitResultsMissingDir() throws IOException {
+        assertTrue(TestTimingHistory.readJUnitResults(new File(tempDir, "missing")).isEmpty());
+    }
+
+    private void writeResult(final String path, final String testCases) throws IOException {
+        final File file = new File(tempDir, path);
+        assertTrue(file.getParentFile().isDirectory() || file.getParentFile().mkdirs());
+        Files.write(file.toPath(),
+                ("<?xml version='1.0' encoding='UTF-8'?><testsuite name='suite'>" + testCases + "</testsuite>")
+                        .getBytes(StandardCharsets.UTF_8));
+    }
+}
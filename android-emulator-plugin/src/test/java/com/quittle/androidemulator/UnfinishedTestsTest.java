@@ -0,0 +1,44 @@
+package com.quittle.androidemulator;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UnfinishedTestsTest {
+    private static final List<String> SHARD = Arrays.asList("com.example.A", "com.example.B", "com.example.C");
+
+    @Test
+    void testNothingFinished() {
+        final UnfinishedTests tests = UnfinishedTests.after(SHARD, Collections.emptyList());
+        assertEquals(SHARD, tests.getClasses());
+        assertEquals(Collections.emptyList(), tests.getExcludedTests());
+    }
+
+    @Test
+    void testCrashedPartWayThroughClass() {
+        final UnfinishedTests tests = UnfinishedTests.after(SHARD, Arrays.asList(
+                "com.example.A#one", "com.example.A#two", "com.example.B#one"));
+        assertEquals(Arrays.asList("com.example.B", "com.example.C"), tests.getClasses());
+        assertEquals(Collections.singletonList("com.example.B#one"), tests.getExcludedTests());
+    }
+
+    @Test
+    void testCrashedInLastClass() {
+        final UnfinishedTests tests = UnfinishedTests.after(SHARD, Arrays.asList(
+                "com.example.A#one", "com.example.B#one", "com.example.C#one", "com.example.C#two"));
+        assertEquals(Collections.singletonList("com.example.C"), tests.getClasses());
+        assertEquals(Arrays.asList("com.example.C#one", "com.example.C#two"), tests.getExcludedTests());
+    }
+
+    @Test
+    void testNestedClass() {
+        final UnfinishedTests tests = UnfinishedTests.after(Arrays.asList("com.example.A$Nested", "com.example.B"),
+                Collections.singletonList("com.example.A$Nested#one"));
+        assertEquals(Arrays.asList("com.example.A$Nested", "com.example.B"), tests.getClasses());
+        assertEquals(Collections.singletonList("com.example.A$Nested#one"), tests.getExcludedTests());
+    }
+}